@@ -133,6 +133,8 @@ public class BenchmarkMain {
 //		
 		plotBarGraph("Single Thread", "bonecp-singlethread-poolsize-"+BenchmarkTests.pool_size+"-threads-"+BenchmarkTests.threads+".png", tests.testSingleThread());
 		plotBarGraph("Prepared Statement\nSingle Threaded", "bonecp-preparedstatement-single-poolsize-"+BenchmarkTests.pool_size+"-threads-"+BenchmarkTests.threads+".png", tests.testPreparedStatementSingleThread());
+
+		plotBarGraph("10000 Short-Lived Threads", "Pool Strategy", "bonecp-shortlived-threads-poolsize-"+BenchmarkTests.pool_size+".png", BenchmarkTests.POOL_STRATEGIES, tests.testManyShortLivedThreads(10000));
 //		plotLineGraph(tests.testMultiThreadedConstantDelayWithPreparedStatements(0), 0, true);
 //		plotLineGraph(tests.testMultiThreadedConstantDelayWithPreparedStatements(10), 10, true);
 //		plotLineGraph(tests.testMultiThreadedConstantDelayWithPreparedStatements(25), 25, true);
@@ -226,12 +228,23 @@ public class BenchmarkMain {
 	 * @param results 
 	 */
 	private static void plotBarGraph(String title, String filename, long[] results) {
+		plotBarGraph(title, "Connection Pool", filename, ConnectionPoolType.values(), results);
+	}
+
+	/**
+	 * @param title 
+	 * @param axisLabel label of the categories' axis
+	 * @param filename 
+	 * @param categories what each of the results is for, in the same order
+	 * @param results 
+	 */
+	private static void plotBarGraph(String title, String axisLabel, String filename, Object[] categories, long[] results) {
 		DefaultCategoryDataset dataset = new DefaultCategoryDataset();
-		for (ConnectionPoolType poolType: ConnectionPoolType.values()){
-				dataset.setValue(results[poolType.ordinal()], "ms", poolType);
+		for (int i=0; i < categories.length; i++){
+				dataset.setValue(results[i], "ms", categories[i].toString());
 		}
 		JFreeChart chart = ChartFactory.createBarChart(title,
-				"Connection Pool", "Time (ms)", dataset, PlotOrientation.VERTICAL, false,
+				axisLabel, "Time (ms)", dataset, PlotOrientation.VERTICAL, false,
 				true, false);
 		try {
 			String fname = System.getProperty("java.io.tmpdir")+File.separator+filename;
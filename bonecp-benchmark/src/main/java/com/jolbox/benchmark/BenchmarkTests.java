@@ -28,12 +28,15 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import javax.sql.DataSource;
 
 import org.apache.commons.dbcp.BasicDataSource;
 import org.apache.tomcat.jdbc.pool.PoolProperties;
 import org.logicalcobwebs.proxool.ProxoolDataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import snaq.db.DBPoolDataSource;
 
@@ -51,7 +54,8 @@ import com.mchange.v2.c3p0.DataSources;
  */
 @SuppressWarnings("all")
 public class BenchmarkTests {
-
+	/** Logger. */
+	private static final Logger logger = LoggerFactory.getLogger(BenchmarkTests.class);
 
 	/** A dummy query for DB. */
 	public static final String TEST_QUERY = "SELECT 1 FROM INFORMATION_SCHEMA.SYSTEM_USERS";
@@ -66,6 +70,8 @@ public class BenchmarkTests {
 	private static final int MAX_CONNECTIONS = 1000000;
 	/** Placeholder for all the results. */
 	private static List<String> results = new LinkedList<String>();
+	/** BoneCP pool strategies compared by testManyShortLivedThreads(). */
+	public static final String[] POOL_STRATEGIES = {"DEFAULT", "CACHED", "LIGHTWEIGHT"};
 	/** config setting. */
 	public static int threads = 500;
 	/** config setting. */
@@ -521,6 +527,72 @@ return dsb;
 		return result;
 	}
 
+	/**
+	 * Starts the given number of threads, each of which borrows a connection once, runs a statement and gives it
+	 * back, then dies. Repeated for each of the BoneCP pool strategies.
+	 *
+	 * @param tasks number of threads
+	 * @return time taken (ms) for all the threads to finish, in the order of POOL_STRATEGIES
+	 * @throws SQLException
+	 * @throws InterruptedException
+	 */
+	public long[] testManyShortLivedThreads(int tasks) throws SQLException, InterruptedException{
+		System.out.println(tasks+" short-lived threads get/release connection");
+		long[] results = new long[POOL_STRATEGIES.length];
+		for (int i=0; i < POOL_STRATEGIES.length; i++){
+			System.out.println("|- Benchmarking BoneCP " + POOL_STRATEGIES[i] + " strategy");
+			BoneCPConfig config = new BoneCPConfig();
+			config.setJdbcUrl(url);
+			config.setUsername(username);
+			config.setPassword(password);
+			config.setStatementsCacheSize(0);
+			config.setMinConnectionsPerPartition(pool_size / 4);
+			config.setMaxConnectionsPerPartition(pool_size / 4);
+			config.setPartitionCount(4);
+			config.setDisableConnectionTracking(true);
+			config.setPoolStrategy(POOL_STRATEGIES[i]);
+			BoneCP dsb = new BoneCP(config);
+			results[i] = startShortLivedThreadTest(tasks, dsb);
+			dsb.shutdown();
+		}
+		return results;
+	}
+
+	/**
+	 * Helper function. All the threads are started (and kept waiting) before the clock starts ticking.
+	 *
+	 * @param tasks number of threads
+	 * @param dsb pool to use
+	 * @return time taken (ms)
+	 * @throws InterruptedException
+	 */
+	private static long startShortLivedThreadTest(int tasks, final BoneCP dsb) throws InterruptedException {
+		final CountDownLatch startSignal = new CountDownLatch(1);
+		final CountDownLatch doneSignal = new CountDownLatch(tasks);
+		for (int i=0; i < tasks; i++){
+			new Thread(new Runnable() {
+				public void run() {
+					try {
+						startSignal.await();
+						Connection conn = dsb.getConnection();
+						Statement st = conn.createStatement();
+						st.execute(TEST_QUERY);
+						st.close();
+						conn.close();
+					} catch (Exception e) {
+						logger.error("Short-lived thread failed to use its connection", e);
+					} finally {
+						doneSignal.countDown();
+					}
+				}
+			}).start();
+		}
+		long start = System.nanoTime();
+		startSignal.countDown();
+		doneSignal.await();
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+	}
+
 
 	/**
 	 * 
@@ -22,6 +22,9 @@ import java.sql.SQLException;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.ListenableFuture;
+
 /**
  * Parent class for the different pool strategies.
  * @author wallacew
@@ -95,17 +98,121 @@ public abstract class AbstractConnectionStrategy implements ConnectionStrategy,S
 		return result;
 	}
 
+	/** Obtains a connection for the given affinity key, see BoneCP.getConnection(Object).
+	 * @param key affinity key
+	 * @return Connection, or null on timeout if so configured
+	 * @throws SQLException on timeout or error
+	 */
+	public Connection getConnection(Object key) throws SQLException {
+		return this.pool.keyedPartitions.getConnection(key, this);
+	}
+
+	/** Obtains a connection without tying up a thread while waiting for one, see BoneCP.getAsyncConnection().
+	 * @return future returning the connection
+	 */
+	public ListenableFuture<Connection> getAsyncConnection() {
+		AsyncConnectionRequest.ConnectionFuture result = new AsyncConnectionRequest.ConnectionFuture();
+		AsyncConnectionRequest request = new AsyncConnectionRequest(this.pool, this, result);
+		result.setRequest(request);
+		request.start();
+		return result;
+	}
+
+	/** Obtains a connection without tying up a thread while waiting for one, handing it to the given callback.
+	 * @param callback receives the connection, or the reason why none could be obtained
+	 */
+	public void getAsyncConnection(FutureCallback<? super Connection> callback) {
+		new AsyncConnectionRequest(this.pool, this, callback).start();
+	}
+
 	/** Actual call that returns a connection
 	 * @return Connection
 	 * @throws SQLException
 	 */
 	protected abstract Connection getConnectionInternal() throws SQLException;
+
+	/** Returns the partition the calling thread looks in first, and waits on if there are no free connections.
+	 * @return partition index
+	 */
+	protected int homePartition(){
+		return threadPartition(this.pool.partitionCount);
+	}
+
+	/** Derives a partition from the calling thread's id alone, without keeping any state for the thread.
+	 * @param partitionCount number of partitions to pick from
+	 * @return partition index
+	 */
+	protected static int threadPartition(int partitionCount){
+		return (PoolUtil.threadHash() >>> 1) % partitionCount;
+	}
 	
 		
 	public ConnectionHandle pollConnection(){
 		// usually overridden
 		return null; 
 	}
+
+	/** Takes a free connection from the given partition or, failing that, from any of the others, going through them
+	 * in order from the one returned by fallbackPartition(). Signals for more connections to be created if needed.
+	 * @param home partition to look in first
+	 * @return a connection, or null if none is free
+	 */
+	protected ConnectionHandle pollConnection(int home){
+		ConnectionPartition connectionPartition = this.pool.partitions[home];
+		ConnectionHandle result = pollFree(connectionPartition);
+
+		if (result == null) {
+			// we ran out of space on this partition (or lost the race for it), look for a free connection elsewhere.
+			int start = fallbackPartition(home);
+			for (int i=0; i < this.pool.partitionCount; i++){
+				int p = (start + i) % this.pool.partitionCount;
+				if (p == home) {
+					continue; // we already determined it's not here
+				}
+				result = pollFree(this.pool.partitions[p]); // try our luck with this partition
+				if (result != null) {
+					if (this.pool.statisticsEnabled){
+						this.pool.partitions[p].incrementSteals();
+					}
+					connectionPartition = this.pool.partitions[p]; // we found it here
+					break;  // we found a connection
+				}
+			}
+			if (result == null && this.pool.statisticsEnabled){
+				connectionPartition.incrementMisses();
+			}
+		} else if (this.pool.statisticsEnabled){
+			connectionPartition.incrementHits();
+		}
+
+		if (!connectionPartition.isUnableToCreateMoreTransactions()){ // unless we can't create any more connections...
+			this.pool.maybeSignalForMoreConnections(connectionPartition);  // see if we need to create more
+		}
+
+		return result;
+	}
+
+	/** Returns the partition to start from when looking for a free connection outside the calling thread's home
+	 * partition. By default the others are gone through in order, starting right after the home partition.
+	 * @param home partition that had no free connection
+	 * @return partition index
+	 */
+	protected int fallbackPartition(int home){
+		return home + 1;
+	}
+
+	/** Takes a connection out of the given partition's free queue, passing over any that a maintenance task is
+	 * checking right now (the task puts them back once done).
+	 * @param partition partition to take from
+	 * @return a connection, or null if none is free
+	 */
+	protected static ConnectionHandle pollFree(ConnectionPartition partition){
+		ConnectionHandle result;
+		do {
+			result = partition.getFreeConnections().poll();
+		} while (result != null && !result.claimForUse());
+		return result;
+	}
 	
 	/* (non-Javadoc)
 	 * @see com.jolbox.bonecp.ConnectionStrategy#cleanupConnection(com.jolbox.bonecp.ConnectionHandle)
@@ -0,0 +1,242 @@
+/**
+ *  Copyright 2010 Wallace Wadge
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.jolbox.bonecp;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.FutureCallback;
+
+/**
+ * A request for a connection that does not tie up a thread while it waits.
+ *
+ * If no connection is free straight away, the request queues up on the pool's {@link ConnectionWaitQueue} and
+ * is completed by whichever thread next releases a connection, right from within close(). The timeout, if any,
+ * is kept on the shared {@link MaintenanceScheduler} and fires on the pool's maintenance threads. Callbacks
+ * therefore run on threads owned by the pool or the application, so they should hand off any lengthy work rather
+ * than do it in place.
+ *
+ * @author wallacew
+ */
+public class AsyncConnectionRequest implements ConnectionWaitQueue.Callback<ConnectionHandle>, Runnable {
+	/** Logger class. */
+	private static final Logger logger = LoggerFactory.getLogger(AsyncConnectionRequest.class);
+	/** Pool handle. */
+	private final BoneCP pool;
+	/** Strategy to take free connections with. */
+	private final AbstractConnectionStrategy strategy;
+	/** Where the outcome goes. */
+	private final FutureCallback<? super Connection> callback;
+	/** Set once the outcome has been delivered (or the request has been cancelled). */
+	private final AtomicBoolean done = new AtomicBoolean();
+	/** Set once the timeout has fired. */
+	private volatile boolean timedOut;
+	/** Our place in the wait queue, if we're waiting. */
+	private volatile ConnectionWaitQueue<ConnectionHandle>.AsyncWaiter waiter;
+	/** Pending timeout, if any. */
+	private volatile MaintenanceScheduler.Timeout timeout;
+	/** If stats are enabled, the nanoTime when this connection was requested. */
+	private long statsObtainTime;
+
+	/** Creates a new request. Nothing happens until start() is called.
+	 * @param pool pool to take a connection from
+	 * @param strategy strategy in use by the pool
+	 * @param callback where the connection (or the failure) goes
+	 */
+	protected AsyncConnectionRequest(BoneCP pool, AbstractConnectionStrategy strategy, FutureCallback<? super Connection> callback) {
+		this.pool = pool;
+		this.strategy = strategy;
+		this.callback = callback;
+	}
+
+	/** Takes a free connection if there is one, otherwise queues up for the next one to be released. */
+	protected void start(){
+		try {
+			this.statsObtainTime = this.strategy.preConnection();
+		} catch (SQLException e) {
+			fail(e);
+			return;
+		}
+		ConnectionHandle handle = this.strategy.pollConnection();
+		if (handle != null){
+			complete(handle);
+		} else {
+			if (this.pool.connectionTimeoutInMs != Long.MAX_VALUE){
+				this.timeout = this.pool.maintenanceScheduler.schedule(this.pool.maintenanceExecutor, this, this.pool.connectionTimeoutInMs, TimeUnit.MILLISECONDS);
+			}
+			await();
+		}
+	}
+
+	/** Gives up on this request. Has no effect once the outcome has been delivered. */
+	protected void cancel(){
+		if (this.done.compareAndSet(false, true)){
+			cancelTimeout();
+			ConnectionWaitQueue<ConnectionHandle>.AsyncWaiter current = this.waiter;
+			if (current != null){
+				current.cancel(); // if we've been handed a connection in the meantime, complete() puts it back.
+			}
+		}
+	}
+
+	/** Queues up for the next connection to be released. */
+	private void await(){
+		// wait on the same partition a getConnection() from this thread would.
+		ConnectionWaitQueue<ConnectionHandle>.AsyncWaiter current = this.pool.connectionWaitQueue.pollAsync(
+				this.pool.partitions[this.strategy.homePartition()].getFreeConnectionBag(), this);
+		this.waiter = current;
+		// the timeout might have fired before it could see us in the queue.
+		if (this.timedOut && current.cancel()){
+			timeoutReached();
+		}
+	}
+
+	/** Fires when we've waited for too long. */
+	// @Override
+	public void run() {
+		this.timedOut = true;
+		ConnectionWaitQueue<ConnectionHandle>.AsyncWaiter current = this.waiter;
+		if (current != null && current.cancel()){
+			timeoutReached();
+		}
+	}
+
+	/** Delivers the timeout as configured: either as a null connection or as an exception. */
+	private void timeoutReached(){
+		if (this.pool.nullOnConnectionTimeout){
+			if (this.done.compareAndSet(false, true)){
+				deliver(null);
+			}
+		} else {
+			// 08001 = The application requester is unable to establish the connection.
+			fail(new SQLException("Timed out waiting for a free available connection.", "08001"));
+		}
+	}
+
+	// @Override
+	public void handedOver(ConnectionHandle handle) {
+		if (handle.claimForUse()){
+			complete(handle);
+		} else if (this.timedOut){
+			timeoutReached();
+		} else if (!this.done.get()){
+			// a maintenance task is checking this one and will put it back once done. Wait for the next.
+			await();
+		}
+	}
+
+	// @Override
+	public void waitCancelled() {
+		fail(new SQLException(this.pool.shutdownStackTrace));
+	}
+
+	/** Hands the given connection, which has been claimed for use, to the application.
+	 * @param handle connection to hand out
+	 */
+	private void complete(ConnectionHandle handle){
+		if (!this.done.compareAndSet(false, true)){
+			// cancelled while we were getting it. Give it back.
+			try {
+				this.pool.putConnectionBackInPartition(handle);
+			} catch (SQLException e) {
+				logger.error("Failed to return an unwanted connection to the pool", e);
+			}
+			return;
+		}
+		cancelTimeout();
+		this.strategy.postConnection(handle, this.statsObtainTime);
+		deliver(handle);
+	}
+
+	/** Reports the given failure, unless the outcome has already been delivered.
+	 * @param t failure
+	 */
+	private void fail(Throwable t){
+		if (this.done.compareAndSet(false, true)){
+			cancelTimeout();
+			try {
+				this.callback.onFailure(t);
+			} catch (RuntimeException e) {
+				logger.error("Async connection callback failed", e);
+			}
+		}
+	}
+
+	/** Passes the connection on. Exceptions from the callback must not escape into whoever released it.
+	 * @param connection connection to pass on, or null on timeout
+	 */
+	private void deliver(Connection connection){
+		try {
+			this.callback.onSuccess(connection);
+		} catch (RuntimeException e) {
+			logger.error("Async connection callback failed", e);
+		}
+	}
+
+	/** Stops the timeout from firing, if there is one. */
+	private void cancelTimeout(){
+		MaintenanceScheduler.Timeout current = this.timeout;
+		if (current != null){
+			current.cancel();
+		}
+	}
+
+	/** Future handed out by BoneCP.getAsyncConnection(). Cancelling it takes the request out of the queue. */
+	protected static class ConnectionFuture extends AbstractFuture<Connection> implements FutureCallback<Connection> {
+		/** Request completing this future. */
+		private volatile AsyncConnectionRequest request;
+
+		/** Sets the request completing this future.
+		 * @param request request
+		 */
+		protected void setRequest(AsyncConnectionRequest request){
+			this.request = request;
+		}
+
+		// @Override
+		public void onSuccess(Connection connection) {
+			if (!set(connection) && connection != null){
+				// cancelled after the request had taken the connection but before we got it: nobody else will close it.
+				try {
+					connection.close();
+				} catch (SQLException e) {
+					logger.error("Failed to return an unwanted connection to the pool", e);
+				}
+			}
+		}
+
+		// @Override
+		public void onFailure(Throwable t) {
+			setException(t);
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			boolean result = super.cancel(mayInterruptIfRunning);
+			AsyncConnectionRequest current = this.request;
+			if (result && current != null){
+				current.cancel();
+			}
+			return result;
+		}
+	}
+}
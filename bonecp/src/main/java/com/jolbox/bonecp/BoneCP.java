@@ -21,20 +21,26 @@ import java.io.Serializable;
 import java.lang.management.ManagementFactory;
 import java.lang.ref.Reference;
 import java.sql.Connection;
+import java.sql.Driver;
 import java.sql.DriverManager;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+// #ifdef JDK>6
+import java.sql.SQLFeatureNotSupportedException;
+// #endif JDK>6
 import java.sql.Statement;
-import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -49,9 +55,9 @@ import org.slf4j.LoggerFactory;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.FinalizableReferenceQueue;
 import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
-import com.google.common.util.concurrent.ListeningExecutorService;
-import com.google.common.util.concurrent.MoreExecutors;
 import com.jolbox.bonecp.hooks.AcquireFailConfig;
 import com.jolbox.bonecp.hooks.ConnectionHook;
 
@@ -81,27 +87,59 @@ public class BoneCP implements Serializable, Closeable {
 	private static final String[] METADATATABLE = new String[] {"TABLE"};
 	/** Constant for keep-alive test */
 	private static final String KEEPALIVEMETADATA = "BONECPKEEPALIVE";
+	/** How long to wait for Connection.isValid() in the keep-alive test, in seconds. */
+	private static final int KEEPALIVE_TIMEOUT_IN_SECONDS = 5;
+	/** Cheap keep-alive queries for drivers that don't implement Connection.isValid(), keyed by database product name
+	 * prefix. Only used when no connectionTestStatement is configured; a configured one replaces both isValid()
+	 * and this table. */
+	private static final String[][] PING_STATEMENTS = {
+		{"MySQL", "/* ping */ SELECT 1"}, // Connector/J answers this from the protocol-level ping
+		{"PostgreSQL", "SELECT 1"},
+		{"Microsoft SQL Server", "SELECT 1"},
+		{"H2", "SELECT 1"},
+		{"SQLite", "SELECT 1"},
+		{"Oracle", "SELECT 1 FROM DUAL"},
+		{"Apache Derby", "VALUES 1"},
+		{"HSQL", "SELECT 1 FROM INFORMATION_SCHEMA.SYSTEM_USERS"},
+		{"DB2", "SELECT 1 FROM SYSIBM.SYSDUMMY1"},
+		{"Firebird", "SELECT 1 FROM RDB$DATABASE"}
+	};
+	/** Cleared once we find out that the driver doesn't implement Connection.isValid(). */
+	private volatile boolean isValidSupported = true;
+	/** Keep-alive query picked from PING_STATEMENTS, or null if we don't know one for this database. */
+	private volatile String pingStatement;
+	/** Set once pingStatement has been looked up. */
+	private volatile boolean pingStatementResolved;
+	/** Connections that completed a statement successfully within this many ms are not tested. 0 = always test. */
+	protected long validationTrustWindowInMs;
 	/** Create more connections when we hit x% of our possible number of connections. */
 	protected final int poolAvailabilityThreshold;
 	/** Number of partitions passed in constructor. **/
 	protected int partitionCount;
 	/** Partitions handle. */
 	protected ConnectionPartition[] partitions;
-	/** Handle to factory that creates 1 thread per partition that periodically wakes up and performs some
-	 * activity on the connection.
+	/** Threads waiting for a connection to be released in any partition. */
+	protected ConnectionWaitQueue<ConnectionHandle> connectionWaitQueue;
+	/** JVM-wide timer saying when the idle connection testers, max age testers and pool sizing tasks of every
+	 * partition of every pool are due. Our own tasks run on maintenanceExecutor.
 	 */
-	@VisibleForTesting protected ScheduledExecutorService keepAliveScheduler;
-	/** Handle to factory that creates 1 thread per partition that periodically wakes up and performs some
-	 * activity on the connection.
-	 */
-	private ScheduledExecutorService maxAliveScheduler;
-	/** Executor for threads watching each partition to dynamically create new threads/kill off excess ones.
-	 */
-	private ExecutorService connectionsScheduler;
+	@VisibleForTesting protected MaintenanceScheduler maintenanceScheduler;
+	/** Runs this pool's background work: the tasks above once due, the pool watch tasks, connection testers and
+	 * replacements for expired connections. Runs on the maintenance scheduler's worker threads, shared by all pools,
+	 * no more than connectionTestThreads (at least 2) tasks at a time, so a slow database makes the work queue up 
+	 * rather than take up more threads. */
+	@VisibleForTesting protected ExecutorService maintenanceExecutor;
+	/** Periodic tasks of this pool on the maintenance scheduler, to cancel on shutdown. */
+	@VisibleForTesting protected List<MaintenanceScheduler.Timeout> maintenanceTasks = new ArrayList<MaintenanceScheduler.Timeout>();
+	/** Lets the pool watch tasks create connections in parallel, on the shared worker threads too, and opens the
+	 * initial connections in the background if initialFillAsync is set. Null if connectionCreationThreads is 1 and
+	 * the initial fill is done in the foreground. */
+	private ExecutorService connectionCreationExecutor;
+	/** Tests and closes off released connections in the background, on the shared worker threads too. Null if 
+	 * connectionRetirementThreads is 0. */
+	private ExecutorService connectionRetirementExecutor;
 	/** Configuration object used in constructor. */
 	@VisibleForTesting protected BoneCPConfig config;
-	/** Executor service for obtaining a connection in an asynchronous fashion. */
-	private ListeningExecutorService asyncExecutor;
 	/** Logger class. */
 	private static final Logger logger = LoggerFactory.getLogger(BoneCP.class);
 	/** JMX support. */
@@ -127,23 +165,31 @@ public class BoneCP implements Serializable, Closeable {
 	private long closeConnectionWatchTimeoutInMs;
 	/** if true, we care about statistics. */
 	protected boolean statisticsEnabled;
+	/** if true, checkouts feed the partitions' demand forecasts. */
+	protected boolean poolSizingEnabled;
 	/** statistics handle. */
 	protected Statistics statistics = new Statistics(this);
+	/** Limit on statements cached across all connections, plus the SQL strings they share. Null if not caching. */
+	private transient StatementCacheBudget statementCacheBudget;
+	/** Tracks the statements to prepare on new connections. Null if not warming up statement caches. */
+	private transient StatementCacheWarmup statementCacheWarmup;
+	/** Config settings shared by all the connection handles of this pool. */
+	private transient ConnectionHandle.Settings connectionHandleSettings;
 	/** Config setting. */
 	@VisibleForTesting protected boolean nullOnConnectionTimeout;
 	/** Config setting. */
 	@VisibleForTesting
 	protected boolean resetConnectionOnClose;
-	/** Config setting. */
-	protected boolean cachedPoolStrategy;
 	/** Currently active get connection strategy class to use. */
 	protected ConnectionStrategy connectionStrategy;
+	/** Serves getConnection(key) requests. */
+	protected transient KeyedPartitions keyedPartitions;
 	/** If true, there are no connections to be taken. */
 	private AtomicBoolean dbIsDown = new AtomicBoolean();
 	/** Config setting. */
 	@VisibleForTesting protected Properties clientInfo;
-	/** If false, we haven't made a dummy driver call first. */
-	@VisibleForTesting protected volatile boolean driverInitialized = false;
+	/** JDBC driver to open connections with, looked up on first use. */
+	@VisibleForTesting protected transient volatile Driver driver;
 	/** Keep track of our jvm version. */
 	protected int jvmMajorVersion;
 	/** This is moved here to aid testing. */
@@ -158,17 +204,38 @@ public class BoneCP implements Serializable, Closeable {
 			logger.info("Shutting down connection pool...");
 			this.poolShuttingDown = true;
 			this.shutdownStackTrace = captureStackTrace(SHUTDOWN_LOCATION_TRACE);
-			this.keepAliveScheduler.shutdownNow(); // stop threads from firing.
-			this.maxAliveScheduler.shutdownNow(); // stop threads from firing.
-			this.connectionsScheduler.shutdownNow(); // stop threads from firing.
-			this.asyncExecutor.shutdownNow();
+			if (this.connectionWaitQueue != null){
+				this.connectionWaitQueue.cancelAsyncWaiters(); // nothing will be released to them any more.
+			}
+			for (MaintenanceScheduler.Timeout task: this.maintenanceTasks){
+				task.cancel(); // stop tasks from firing.
+			}
+			if (this.connectionCreationExecutor != null){
+				this.connectionCreationExecutor.shutdownNow();
+			}
+			this.maintenanceExecutor.shutdown(); // no new work.
 
 			try {
-				this.connectionsScheduler.awaitTermination(5, TimeUnit.SECONDS);
+				if (this.connectionCreationExecutor != null){
+					this.connectionCreationExecutor.awaitTermination(5, TimeUnit.SECONDS);
+				}
 
-				this.maxAliveScheduler.awaitTermination(5, TimeUnit.SECONDS);
-				this.keepAliveScheduler.awaitTermination(5, TimeUnit.SECONDS);
-				this.asyncExecutor.awaitTermination(5, TimeUnit.SECONDS);
+				// let any of our tasks that's running right now finish off.
+				long deadline = System.currentTimeMillis() + 5000;
+				for (MaintenanceScheduler.Timeout task: this.maintenanceTasks){
+					while (task.isRunning() && System.currentTimeMillis() < deadline){
+						Thread.sleep(10);
+					}
+				}
+				// anything else, eg a pool watch task still opening connections, is stopped.
+				this.maintenanceExecutor.shutdownNow();
+				this.maintenanceExecutor.awaitTermination(5, TimeUnit.SECONDS);
+
+				if (this.connectionRetirementExecutor != null){
+					// let connections already on their way out be closed off.
+					this.connectionRetirementExecutor.shutdown();
+					this.connectionRetirementExecutor.awaitTermination(5, TimeUnit.SECONDS);
+				}
 				
 				if (this.closeConnectionExecutor != null){
 					this.closeConnectionExecutor.shutdownNow();
@@ -178,6 +245,7 @@ public class BoneCP implements Serializable, Closeable {
 			} catch (InterruptedException e) {
 				// do nothing
 			}
+			this.maintenanceScheduler.release();
 			this.connectionStrategy.terminateAllConnections();
 			unregisterDriver();
 			registerUnregisterJMX(false);
@@ -265,7 +333,11 @@ public class BoneCP implements Serializable, Closeable {
 			result = null;
 			try { 
 				// keep track of this hook.
+				long statStart = this.statisticsEnabled ? System.nanoTime() : 0;
 				result = this.obtainRawInternalConnection();
+				if (statStart != 0){
+					this.statistics.addConnectionCreationTime(System.nanoTime() - statStart);
+				}
 				tryAgain = false;
 
 				if (acquireRetryAttempts != this.getConfig().getAcquireRetryAttempts()){
@@ -316,7 +388,7 @@ public class BoneCP implements Serializable, Closeable {
 
 	}
 
-	/** Returns a database connection by using Driver.getConnection() or DataSource.getConnection()
+	/** Returns a database connection by using Driver.connect() or DataSource.getConnection()
 	 * @return Connection handle
 	 * @throws SQLException on error
 	 */
@@ -339,26 +411,20 @@ public class BoneCP implements Serializable, Closeable {
 			return (username == null ? datasourceBean.getConnection() : datasourceBean.getConnection(username, password));
 		}
 
-		// just force the driver to init first
-		if (!this.driverInitialized ){
-			try{
-				this.driverInitialized = true;
-				if (props != null){
-					result = DriverManager.getConnection(url, props);
-				} else {
-					result = DriverManager.getConnection(url, username, password);
-				}
-				result.close();
-			}catch (SQLException t){
-				// just force the driver to init first
-				// See https://bugs.launchpad.net/bonecp/+bug/876476
+		if (props == null){
+			// same as DriverManager.getConnection(url, username, password) does
+			props = new Properties();
+			if (username != null){
+				props.put("user", username);
+			}
+			if (password != null){
+				props.put("password", password);
 			}
 		}
-
-		if (props != null){
-			result = DriverManager.getConnection(url, props);
-		} else { 
-			result = DriverManager.getConnection(url, username, password);
+		result = getDriver(url).connect(url, props);
+		if (result == null){
+			// 08001 = The application requester is unable to establish the connection.
+			throw new SQLException("No suitable driver found for "+url, "08001");
 		}
 		// #ifdef JDK>6
 		if (this.clientInfo != null){ // we take care of null'ing this in the constructor if jdk < 6
@@ -369,6 +435,22 @@ public class BoneCP implements Serializable, Closeable {
 		return result;
 	}
 
+	/** Returns the JDBC driver for the given URL. The driver is looked up in DriverManager once and its connect()
+	 * called directly from then on, which saves going through DriverManager.getConnection, a synchronized
+	 * method that tries each registered driver in turn, for every connection.
+	 * @param url JDBC url
+	 * @return driver
+	 * @throws SQLException if no driver takes the URL.
+	 */
+	protected Driver getDriver(String url) throws SQLException {
+		Driver result = this.driver;
+		if (result == null || !result.acceptsURL(url)){
+			result = DriverManager.getDriver(url);
+			this.driver = result;
+		}
+		return result;
+	}
+
 	/**
 	 * Constructor.
 	 * @param config Configuration for pool
@@ -392,114 +474,308 @@ public class BoneCP implements Serializable, Closeable {
 			throw new SQLException("Cloning of the config failed");
 		}
 		this.config.sanitize();
+		this.connectionHandleSettings = new ConnectionHandle.Settings(this.config);
 
-		this.statisticsEnabled = this.config.isStatisticsEnabled();
-		this.closeConnectionWatchTimeoutInMs = this.config.getCloseConnectionWatchTimeoutInMs();
-		this.poolAvailabilityThreshold = this.config.getPoolAvailabilityThreshold();
-		this.connectionTimeoutInMs = this.config.getConnectionTimeoutInMs();
+		this.statisticsEnabled = this.config.isStatisticsEnabled();
+		if (this.statisticsEnabled){
+			this.statistics.setSqlProfileSize(this.config.getSqlProfileSize());
+		}
+		if (this.config.getStatementsCacheSize() > 0){
+			this.statementCacheBudget = new StatementCacheBudget(this.config.getStatementsCacheBudget());
+			List<String> seedStatements = new ArrayList<String>();
+			if (this.config.getStatementsCacheWarmupSql() != null){
+				for (String sql: this.config.getStatementsCacheWarmupSql().split(";")){
+					if (sql.trim().length() > 0){
+						seedStatements.add(sql.trim());
+					}
+				}
+			}
+			if (this.config.getStatementsCacheWarmupSize() > 0 || !seedStatements.isEmpty()){
+				this.statementCacheWarmup = new StatementCacheWarmup(this.config.getStatementsCacheWarmupSize(), seedStatements);
+			}
+		}
+		this.closeConnectionWatchTimeoutInMs = this.config.getCloseConnectionWatchTimeoutInMs();
+		this.poolAvailabilityThreshold = this.config.getPoolAvailabilityThreshold();
+		this.poolSizingEnabled = this.config.getPoolSizingPeriodInMs() > 0;
+		this.validationTrustWindowInMs = this.config.getValidationTrustWindowInMs();
+		this.connectionTimeoutInMs = this.config.getConnectionTimeoutInMs();
 
 		if (this.connectionTimeoutInMs == 0){
 			this.connectionTimeoutInMs = Long.MAX_VALUE;
 		}
-		this.nullOnConnectionTimeout = this.config.isNullOnConnectionTimeout();
-		this.resetConnectionOnClose = this.config.isResetConnectionOnClose();
-		this.clientInfo = jvmMajorVersion > 5  ? this.config.getClientInfo() : null;
+		this.nullOnConnectionTimeout = this.config.isNullOnConnectionTimeout();
+		this.resetConnectionOnClose = this.config.isResetConnectionOnClose();
+		this.clientInfo = jvmMajorVersion > 5  ? this.config.getClientInfo() : null;
 		AcquireFailConfig acquireConfig = new AcquireFailConfig();
 		acquireConfig.setAcquireRetryAttempts(new AtomicInteger(0));
 		acquireConfig.setAcquireRetryDelayInMs(0);
 		acquireConfig.setLogMessage("Failed to obtain initial connection");
 
-		if (!this.config.isLazyInit()){
+		if (!this.config.isLazyInit()){
 			try{
 				Connection sanityConnection = obtainRawInternalConnection();
 				sanityConnection.close();
 			} catch (Exception e){
-				if (this.config.getConnectionHook() != null){
-					this.config.getConnectionHook().onAcquireFail(e, acquireConfig);
+				if (this.config.getConnectionHook() != null){
+					this.config.getConnectionHook().onAcquireFail(e, acquireConfig);
 				}
-				throw PoolUtil.generateSQLException(String.format(ERROR_TEST_CONNECTION, this.config.getJdbcUrl(), this.config.getUsername(), PoolUtil.stringifyException(e)), e);
+				throw PoolUtil.generateSQLException(String.format(ERROR_TEST_CONNECTION, this.config.getJdbcUrl(), this.config.getUsername(), PoolUtil.stringifyException(e)), e);
 
 			}
 		}
-		if (!this.config.isDisableConnectionTracking()){
+		if (!this.config.isDisableConnectionTracking()){
 			this.finalizableRefQueue = new FinalizableReferenceQueue();
 		}
 
-		this.asyncExecutor = MoreExecutors.listeningDecorator(Executors.newCachedThreadPool());
-
-		this.partitions = new ConnectionPartition[this.config.getPartitionCount()];
+		this.partitions = new ConnectionPartition[this.config.getPartitionCount()];
+		this.connectionWaitQueue = new ConnectionWaitQueue<ConnectionHandle>(this.statisticsEnabled ? this.statistics : null, 
+				TimeUnit.MILLISECONDS.toNanos(this.config.getHandoffThresholdInMs())){
+			@Override
+			protected void putBack(ConnectionBag<ConnectionHandle> home, ConnectionHandle connectionHandle) {
+				// back to its own partition. One we can't claim is being tested, and the tester will put it back itself.
+				if (connectionHandle.claimForUse()){
+					try {
+						putConnectionBackInPartition(connectionHandle);
+					} catch (SQLException e) {
+						logger.error("Error in attempting to close connection", e);
+					}
+				}
+			}
+		};
 		String suffix = "";
 
-		if (this.config.getPoolName()!=null) {
-			suffix="-"+this.config.getPoolName();
+		if (this.config.getPoolName()!=null) {
+			suffix="-"+this.config.getPoolName();
 		}
 
 
-		this.keepAliveScheduler =  Executors.newScheduledThreadPool(this.config.getPartitionCount(), new CustomThreadFactory("BoneCP-keep-alive-scheduler"+suffix, true));
-		this.maxAliveScheduler =  Executors.newScheduledThreadPool(this.config.getPartitionCount(), new CustomThreadFactory("BoneCP-max-alive-scheduler"+suffix, true));
-		this.connectionsScheduler =  Executors.newFixedThreadPool(this.config.getPartitionCount(), new CustomThreadFactory("BoneCP-pool-watch-thread"+suffix, true));
+		this.maintenanceScheduler = MaintenanceScheduler.acquire();
+		boolean started = false;
+		try {
+			this.maintenanceExecutor = this.maintenanceScheduler.newExecutor(Math.max(2, this.config.getConnectionTestThreads()), 0);
+			if (this.config.getConnectionCreationThreads() > 1 || this.config.isInitialFillAsync()){
+				this.connectionCreationExecutor = this.maintenanceScheduler.newExecutor(this.config.getConnectionCreationThreads(), 0);
+			}
+			if (this.config.getConnectionRetirementThreads() > 0){
+				this.connectionRetirementExecutor = this.maintenanceScheduler.newExecutor(this.config.getConnectionRetirementThreads(), 
+						this.config.getConnectionRetirementQueueSize());
+			}
 
-		this.partitionCount = this.config.getPartitionCount();
-		this.closeConnectionWatch = this.config.isCloseConnectionWatch();
-		this.cachedPoolStrategy = this.config.getPoolStrategy() != null && this.config.getPoolStrategy().equalsIgnoreCase("CACHED");
-		if (this.cachedPoolStrategy){
-			this.connectionStrategy = new CachedConnectionStrategy(this, new DefaultConnectionStrategy(this));
-		} else {
-			this.connectionStrategy = new DefaultConnectionStrategy(this);
-		}
-		boolean queueLIFO = this.config.getServiceOrder() != null && this.config.getServiceOrder().equalsIgnoreCase("LIFO");
-		if (this.closeConnectionWatch){
-			logger.warn(THREAD_CLOSE_CONNECTION_WARNING);
-			this.closeConnectionExecutor =  Executors.newCachedThreadPool(new CustomThreadFactory("BoneCP-connection-watch-thread"+suffix, true));
+			this.partitionCount = this.config.getPartitionCount();
+			this.closeConnectionWatch = this.config.isCloseConnectionWatch();
+			boolean cachedPoolStrategy = "CACHED".equalsIgnoreCase(this.config.getPoolStrategy());
+			boolean lightweightPoolStrategy = "LIGHTWEIGHT".equalsIgnoreCase(this.config.getPoolStrategy());
+			if (cachedPoolStrategy){
+				this.connectionStrategy = new CachedConnectionStrategy(this, new DefaultConnectionStrategy(this));
+			} else if (lightweightPoolStrategy){
+				this.connectionStrategy = new LightweightConnectionStrategy(this);
+			} else {
+				this.connectionStrategy = new DefaultConnectionStrategy(this);
+			}
+			this.keyedPartitions = new KeyedPartitions(this);
+			boolean queueLIFO = this.config.getServiceOrder() != null && this.config.getServiceOrder().equalsIgnoreCase("LIFO");
+			if (this.closeConnectionWatch){
+				logger.warn(THREAD_CLOSE_CONNECTION_WARNING);
+				this.closeConnectionExecutor =  Executors.newCachedThreadPool(new CustomThreadFactory("BoneCP-connection-watch-thread"+suffix, true));
 
-		}
-		for (int p=0; p < this.config.getPartitionCount(); p++){
+			}
+			for (int p=0; p < this.config.getPartitionCount(); p++){
 
-			ConnectionPartition connectionPartition = new ConnectionPartition(this);
-			this.partitions[p]=connectionPartition;
-			BlockingQueue<ConnectionHandle> connectionHandles = new LinkedBlockingQueue<ConnectionHandle>(this.config.getMaxConnectionsPerPartition());
+				ConnectionPartition connectionPartition = new ConnectionPartition(this);
+				this.partitions[p]=connectionPartition;
+				ConnectionBag<ConnectionHandle> connectionHandles = new ConnectionBag<ConnectionHandle>(this.config.getMaxConnectionsPerPartition(), this.connectionWaitQueue, !lightweightPoolStrategy, queueLIFO);
 
-			this.partitions[p].setFreeConnections(connectionHandles);
+				this.partitions[p].setFreeConnections(connectionHandles);
 
-			if (!this.config.isLazyInit()){
-				for (int i=0; i < this.config.getMinConnectionsPerPartition(); i++){
-					this.partitions[p].addFreeConnection(new ConnectionHandle(null, this.partitions[p], this, false));
-				}
 
-			}
+				if (this.config.getIdleConnectionTestPeriod(TimeUnit.SECONDS) > 0 || this.config.getIdleMaxAge(TimeUnit.SECONDS) > 0){
 
+					final Runnable connectionTester = new ConnectionTesterThread(connectionPartition, this, this.config.getIdleMaxAge(TimeUnit.MILLISECONDS), this.config.getIdleConnectionTestPeriod(TimeUnit.MILLISECONDS), queueLIFO);
+					long delayInSeconds = this.config.getIdleConnectionTestPeriod(TimeUnit.SECONDS);
+					if (delayInSeconds == 0L){
+						delayInSeconds = this.config.getIdleMaxAge(TimeUnit.SECONDS);
+					}
+					if (this.config.getIdleMaxAge(TimeUnit.SECONDS) < delayInSeconds
+							&& this.config.getIdleConnectionTestPeriod(TimeUnit.SECONDS) != 0
+							&& this.config.getIdleMaxAge(TimeUnit.SECONDS) != 0){
+						delayInSeconds = this.config.getIdleMaxAge(TimeUnit.SECONDS);
+					}
+					this.maintenanceTasks.add(this.maintenanceScheduler.scheduleWithFixedDelay(this.maintenanceExecutor, connectionTester, delayInSeconds, delayInSeconds, TimeUnit.SECONDS));
+				}
 
-			if (this.config.getIdleConnectionTestPeriod(TimeUnit.SECONDS) > 0 || this.config.getIdleMaxAge(TimeUnit.SECONDS) > 0){
 
-				final Runnable connectionTester = new ConnectionTesterThread(connectionPartition, this, this.config.getIdleMaxAge(TimeUnit.MILLISECONDS), this.config.getIdleConnectionTestPeriod(TimeUnit.MILLISECONDS), queueLIFO);
-				long delayInSeconds = this.config.getIdleConnectionTestPeriod(TimeUnit.SECONDS);
-				if (delayInSeconds == 0L){
-					delayInSeconds = this.config.getIdleMaxAge(TimeUnit.SECONDS);
+				if (this.config.getMaxConnectionAgeInSeconds() > 0){
+					final Runnable connectionMaxAgeTester = new ConnectionMaxAgeThread(connectionPartition, this, this.config.getMaxConnectionAge(TimeUnit.MILLISECONDS), queueLIFO);
+					// look often enough for expiry times spread out by the jitter to be spread out in practice too.
+					long delayInSeconds = Math.max(1, this.config.getMaxConnectionAgeInSeconds() / 10);
+					this.maintenanceTasks.add(this.maintenanceScheduler.scheduleWithFixedDelay(this.maintenanceExecutor, connectionMaxAgeTester, delayInSeconds, delayInSeconds, TimeUnit.SECONDS));
 				}
-				if (this.config.getIdleMaxAge(TimeUnit.SECONDS) < delayInSeconds
-						&& this.config.getIdleConnectionTestPeriod(TimeUnit.SECONDS) != 0
-						&& this.config.getIdleMaxAge(TimeUnit.SECONDS) != 0){
-					delayInSeconds = this.config.getIdleMaxAge(TimeUnit.SECONDS);
+
+				if (this.poolSizingEnabled){
+					final Runnable poolSizer = new PoolSizingThread(connectionPartition, this);
+					this.maintenanceTasks.add(this.maintenanceScheduler.scheduleWithFixedDelay(this.maintenanceExecutor, poolSizer, this.config.getPoolSizingPeriodInMs(), this.config.getPoolSizingPeriodInMs(), TimeUnit.MILLISECONDS));
 				}
-				this.keepAliveScheduler.scheduleAtFixedRate(connectionTester,delayInSeconds, delayInSeconds, TimeUnit.SECONDS);
 			}
 
+			if (this.config.getKeyIdleTimeoutInMs() > 0 
+					&& (this.config.getReservedConnectionsPerKey() > 0 || this.config.getMaxConnectionsPerKey() > 0)){
+				final KeyedPartitions keyed = this.keyedPartitions;
+				long delayInMs = this.config.getKeyIdleTimeoutInMs() / 2;
+				this.maintenanceTasks.add(this.maintenanceScheduler.scheduleWithFixedDelay(this.maintenanceExecutor, new Runnable() {
+					// @Override
+					public void run() {
+						keyed.releaseIdleKeys();
+					}
+				}, delayInMs, delayInMs, TimeUnit.MILLISECONDS));
+			}
+
+			fillInitialConnections();
 
-			if (this.config.getMaxConnectionAgeInSeconds() > 0){
-				final Runnable connectionMaxAgeTester = new ConnectionMaxAgeThread(connectionPartition, this, this.config.getMaxConnectionAge(TimeUnit.MILLISECONDS), queueLIFO);
-				this.maxAliveScheduler.scheduleAtFixedRate(connectionMaxAgeTester, this.config.getMaxConnectionAgeInSeconds(), this.config.getMaxConnectionAgeInSeconds(), TimeUnit.SECONDS);
+			if (!this.config.isDisableJMX()){
+				registerUnregisterJMX(true);
+			}
+			started = true;
+		} finally {
+			if (!started){
+				abortStartup();
 			}
-			// watch this partition for low no of threads
-			this.connectionsScheduler.execute(new PoolWatchThread(connectionPartition, this));
 		}
 
-		if (!this.config.isDisableJMX()){
-			registerUnregisterJMX(true);
+
+	}
+
+
+	/** Undoes what the constructor has done so far when it fails: stops our tasks and threads, lets go of the
+	 * shared maintenance scheduler and closes off any connections already opened.
+	 */
+	private void abortStartup(){
+		this.poolShuttingDown = true;
+		for (MaintenanceScheduler.Timeout task: this.maintenanceTasks){
+			task.cancel();
+		}
+		if (this.connectionCreationExecutor != null){
+			this.connectionCreationExecutor.shutdownNow();
+		}
+		if (this.maintenanceExecutor != null){
+			this.maintenanceExecutor.shutdownNow();
+		}
+		if (this.connectionRetirementExecutor != null){
+			this.connectionRetirementExecutor.shutdown(); // let connections already on their way out be closed off.
+		}
+		if (this.closeConnectionExecutor != null){
+			this.closeConnectionExecutor.shutdownNow();
 		}
+		this.maintenanceScheduler.release();
+		// connections are only opened once every partition has been set up.
+		if (this.connectionStrategy != null && this.partitions[this.partitions.length-1] != null){
+			this.connectionStrategy.terminateAllConnections();
+		}
+		if (this.finalizableRefQueue != null) {
+			this.finalizableRefQueue.close();
+		}
+	}
 
+	/**
+	 * Opens minConnectionsPerPartition connections in every partition (unless lazyInit is set), up to
+	 * connectionCreationThreads at a time, either before returning or in the background as per initialFillAsync.
+	 * Each partition's pool watch task is signalled once its initial connections are in, to make up for any that
+	 * failed. Connections still being opened in the background when the pool is shut down are closed off again.
+	 * @throws SQLException if a connection couldn't be obtained when filling in the foreground.
+	 */
+	private void fillInitialConnections() throws SQLException {
+		final boolean async = this.config.isInitialFillAsync();
+		int connections = this.config.isLazyInit() ? 0 : this.config.getMinConnectionsPerPartition();
+		List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+		for (final ConnectionPartition partition: this.partitions){
+			if (connections == 0){
+				if (!this.config.isLazyInit()){
+					partition.signalPoolWatchThread(); // minConnections is 0, check if poolAvailabilityThreshold wants some
+				}
+				continue;
+			}
+			partition.suspendPoolWatch();
+			final AtomicInteger remaining = new AtomicInteger(connections);
+			for (int i=0; i < connections; i++){
+				tasks.add(new Callable<Object>() {
+					public Object call() throws SQLException {
+						try {
+							if (BoneCP.this.poolShuttingDown){
+								return null;
+							}
+							ConnectionHandle handle = new ConnectionHandle(null, partition, BoneCP.this, false);
+							warmUpStatementCache(handle);
+							if (BoneCP.this.poolShuttingDown){
+								// shut down while we were opening it: it was never counted, so just close it.
+								handle.internalClose();
+								return null;
+							}
+							partition.addFreeConnection(handle);
+						} catch (SQLException e) {
+							if (!async){
+								throw e;
+							}
+							// the pool watch task will top up the partition later on.
+							logger.error("Failed to obtain initial connection", e);
+						} finally {
+							if (remaining.decrementAndGet() == 0){
+								partition.resumePoolWatch();
+							}
+						}
+						return null;
+					}
+				});
+			}
+		}
+		if (tasks.isEmpty()){
+			return;
+		}
 
+		int threads = Math.min(this.config.getConnectionCreationThreads(), tasks.size());
+		if (threads <= 1 && !async){
+			for (Callable<Object> task: tasks){
+				runInitialFillTask(task);
+			}
+			return;
+		}
+
+		// shutdown() stops and waits for this executor, so background tasks don't outlive the pool.
+		List<Future<Object>> results = new ArrayList<Future<Object>>(tasks.size());
+		for (Callable<Object> task: tasks){
+			results.add(this.connectionCreationExecutor.submit(task));
+		}
+		if (async){
+			return;
+		}
+		// on failure, the constructor gives up and shuts the executor down, dropping any tasks still waiting.
+		try {
+			for (Future<Object> result: results){
+				result.get();
+			}
+		} catch (InterruptedException e) {
+			throw PoolUtil.generateSQLException("Interrupted while obtaining initial connections", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof SQLException){
+				throw (SQLException) e.getCause();
+			}
+			throw PoolUtil.generateSQLException("Failed to obtain initial connections", e.getCause());
+		}
 	}
 
+	/** Runs one of the initial fill tasks in the calling thread.
+	 * @param task to run
+	 * @throws SQLException on error
+	 */
+	private void runInitialFillTask(Callable<Object> task) throws SQLException {
+		try {
+			task.call();
+		} catch (SQLException e) {
+			throw e;
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw PoolUtil.generateSQLException(e.getMessage(), e);
+		}
+	}
 
 	/**
 	 * Initialises JMX stuff.
@@ -550,6 +826,33 @@ public class BoneCP implements Serializable, Closeable {
 		return this.connectionStrategy.getConnection();
 	}
 
+	/**
+	 * Returns a free connection for the given key, eg a tenant or schema name. Each key is served from a partition
+	 * of its own (keys share partitions if there are more keys than partitions), so the connections handed out for a
+	 * key stay warm for that key. Each key can have connections set aside for it (reservedConnectionsPerKey) and be
+	 * limited in how many it has out at once (maxConnectionsPerKey). If its partition has nothing free, a key 
+	 * borrows a connection from some other partition that has one free beyond those set aside there, otherwise it
+	 * waits for one of its own to be released. Timeouts are as per getConnection().
+	 * 
+	 * Only the first 1024 keys are remembered and given partitions in turn; any further keys are spread over the
+	 * partitions by hash code, and get neither connections set aside nor a maximum.
+	 * 
+	 * A ConnectionStrategy that doesn't extend AbstractConnectionStrategy knows nothing about keys; it is simply asked
+	 * for a connection as per getConnection().
+	 * 
+	 * @param key affinity key, should implement equals() and hashCode().
+	 * @return Connection handle.
+	 * @throws SQLException on timeout or error
+	 */
+	public Connection getConnection(Object key) throws SQLException {
+		Preconditions.checkNotNull(key);
+		if (this.connectionStrategy instanceof AbstractConnectionStrategy){
+			return ((AbstractConnectionStrategy)this.connectionStrategy).getConnection(key);
+		}
+		return this.connectionStrategy.getConnection(); // a strategy of our own would not know about keys
+
+	}
+
 
 	/** Starts off a new thread to monitor this connection attempt.
 	 * @param connectionHandle to monitor
@@ -576,34 +879,70 @@ public class BoneCP implements Serializable, Closeable {
 		return stringBuilder.toString();
 	}
 
-	/** Obtain a connection asynchronously by queueing a request to obtain a connection in a separate thread.
+	/** Obtain a connection asynchronously. If no connection is free, the request is queued up and completed by 
+	 * whichever thread next releases a connection, so no thread is kept waiting on the caller's behalf. Timeouts are
+	 * as per getConnection().
 	 *
 	 *  Use as follows:<p>
 	 *      Future&lt;Connection&gt; result = pool.getAsyncConnection();<p>
 	 *       ... do something else in your application here ...<p>
 	 *      Connection connection = result.get(); // get the connection<p>
 	 *
+	 *  Listeners added to the future may run on the thread releasing the connection, so they should not block.
+	 *  Cancelling the future gives up the place in the queue.
+	 *
+	 *  A ConnectionStrategy that doesn't extend AbstractConnectionStrategy has no queue to join, so with one of those
+	 *  the connection is obtained on the calling thread instead.
+	 *
 	 * @return A Future task returning a connection. 
 	 */ 
 	public ListenableFuture<Connection> getAsyncConnection(){
+		if (this.connectionStrategy instanceof AbstractConnectionStrategy){
+			return ((AbstractConnectionStrategy)this.connectionStrategy).getAsyncConnection();
+		}
+		// some other strategy: all we can do is wait for it here.
+		try {
+			return Futures.immediateFuture(this.connectionStrategy.getConnection());
+		} catch (SQLException e) {
+			return Futures.immediateFailedFuture(e);
+		}
+	}
 
-		return this.asyncExecutor.submit(new Callable<Connection>() {
-
-			public Connection call() throws Exception {
-				return getConnection();
-			}});
+	/** Obtain a connection asynchronously, handing it to the given callback once available. Works like 
+	 * getAsyncConnection() but without a future in between, for callers that are event driven anyway. The callback
+	 * may be called on the thread releasing the connection (or on this one if a connection is free straight away),
+	 * so it should not block.
+	 * @param callback receives the connection, or the reason why none could be obtained.
+	 */
+	public void getAsyncConnection(FutureCallback<? super Connection> callback){
+		if (this.connectionStrategy instanceof AbstractConnectionStrategy){
+			((AbstractConnectionStrategy)this.connectionStrategy).getAsyncConnection(callback);
+		} else {
+			Connection connection;
+			try {
+				connection = this.connectionStrategy.getConnection();
+			} catch (SQLException e) {
+				callback.onFailure(e);
+				return;
+			}
+			callback.onSuccess(connection);
+		}
 	}
 
 	/**
-	 * Tests if this partition has hit a threshold and signal to the pool watch thread to create new connections
+	 * Tests if this partition has hit a threshold and signal to the pool watch thread to create new connections.
+	 * Also feeds the partition's demand forecast if predictive sizing is enabled.
 	 * @param connectionPartition to test for.
 	 */
 	protected void maybeSignalForMoreConnections(ConnectionPartition connectionPartition) {
 
+		if (this.poolSizingEnabled){
+			connectionPartition.getDemandForecast().recordLeased(connectionPartition.getCreatedConnections() - connectionPartition.getAvailableConnections());
+		}
 		if (!connectionPartition.isUnableToCreateMoreTransactions() 
 				&& !this.poolShuttingDown &&
-				connectionPartition.getAvailableConnections()*100/connectionPartition.getMaxConnections() <= this.poolAvailabilityThreshold){
-			connectionPartition.getPoolWatchThreadSignalQueue().offer(new Object()); // item being pushed is not important.
+				connectionPartition.getUnreservedConnections()*100/connectionPartition.getMaxConnections() <= this.poolAvailabilityThreshold){
+			connectionPartition.signalPoolWatchThread();
 		}
 	}
 
@@ -635,36 +974,93 @@ public class BoneCP implements Serializable, Closeable {
 	 * @throws SQLException
 	 **/
 	protected void internalReleaseConnection(ConnectionHandle connectionHandle) throws SQLException {
-		if (!this.cachedPoolStrategy){
-			connectionHandle.clearStatementCaches(false);
-		}
+		connectionHandle.clearStatementCaches(false);
 
 		if (connectionHandle.getReplayLog() != null){
 			connectionHandle.getReplayLog().clear();
 			connectionHandle.recoveryResult.getReplaceTarget().clear();
 		}
 
-		if (connectionHandle.isExpired() || 
-				(!this.poolShuttingDown 
-						&& connectionHandle.isPossiblyBroken()
-				&& !isConnectionHandleAlive(connectionHandle))){
+		boolean expired = connectionHandle.isExpired();
+		boolean replace = expired && !this.poolShuttingDown && !connectionHandle.isPossiblyBroken() && !connectionHandle.isReplaced();
+		if (replace){
+			expired = false; // keep using it until its replacement is ready.
+		}
+
+		if (expired || (!this.poolShuttingDown && connectionHandle.isPossiblyBroken())){
+			retireConnection(connectionHandle, expired);
+			return;
+		}
+
+		returnConnection(connectionHandle, replace);
+	}
 
-            if (connectionHandle.isExpired()) {
-                connectionHandle.internalClose();
-            }
+	/** Closes off an expired connection, or tests one that might be broken and closes it off if it is. That takes
+	 * a trip to the database, so it's done on the retirement threads if there are any rather than making the 
+	 * application wait for it. If they can't keep up, the caller does it after all.
+	 * @param connectionHandle connection being released
+	 * @param expired true if the connection has expired, else it's possibly broken.
+	 * @throws SQLException on error
+	 */
+	protected void retireConnection(final ConnectionHandle connectionHandle, final boolean expired) throws SQLException {
+		if (this.connectionRetirementExecutor == null){
+			checkAndRetireConnection(connectionHandle, expired);
+		} else {
+			try {
+				this.connectionRetirementExecutor.execute(new Runnable() {
+					// @Override
+					public void run() {
+						try {
+							checkAndRetireConnection(connectionHandle, expired);
+						} catch (SQLException e) {
+							logger.error("Error in retiring connection", e);
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				// the retirement threads can't keep up (or have gone away), so the caller has to do it.
+				checkAndRetireConnection(connectionHandle, expired);
+			}
+		}
+	}
 
-			ConnectionPartition connectionPartition = connectionHandle.getOriginatingPartition();
-			postDestroyConnection(connectionHandle);
+	/** Closes off an expired connection, or one that turns out to be broken. A possibly broken connection that's
+	 * alive after all goes back in the pool.
+	 * @param connectionHandle connection being released
+	 * @param expired true if the connection has expired, else it's possibly broken.
+	 * @throws SQLException on error
+	 */
+	@VisibleForTesting protected void checkAndRetireConnection(ConnectionHandle connectionHandle, boolean expired) throws SQLException {
+		if (!expired && isConnectionHandleAlive(connectionHandle)){
+			returnConnection(connectionHandle, false);
+			return;
+		}
 
-			maybeSignalForMoreConnections(connectionPartition);
-			connectionHandle.clearStatementCaches(true);
-			return; // don't place back in queue - connection is broken or expired.
+		if (expired) {
+			connectionHandle.internalClose();
 		}
 
+		ConnectionPartition connectionPartition = connectionHandle.getOriginatingPartition();
+		postDestroyConnection(connectionHandle);
 
+		maybeSignalForMoreConnections(connectionPartition);
+		connectionHandle.clearStatementCaches(true);
+		// don't place back in queue - connection is broken or expired.
+	}
+
+	/** Places a released connection back in its partition, or closes it off if we're shutting down.
+	 * @param connectionHandle connection being released
+	 * @param replace true if the connection has expired and a replacement should be opened for it.
+	 * @throws SQLException on error
+	 */
+	private void returnConnection(ConnectionHandle connectionHandle, boolean replace) throws SQLException {
 		connectionHandle.setConnectionLastUsedInMs(System.currentTimeMillis());
 		if (!this.poolShuttingDown){
 			putConnectionBackInPartition(connectionHandle);
+			if (replace){
+				// only once it's back in the pool, else the replacement might take its place.
+				replaceExpiredConnection(connectionHandle);
+			}
 		} else {
 			connectionHandle.internalClose();
 		}
@@ -672,31 +1068,104 @@ public class BoneCP implements Serializable, Closeable {
 
 
 
+	/** Replaces an expired connection without shrinking its partition: if the partition has room for one more
+	 * connection, a replacement is opened first, on the maintenance threads, and the expired connection is only taken
+	 * out of the pool once the replacement is in it. Until then the expired connection carries on being used. Does
+	 * nothing if its replacement has already been requested.
+	 * @param expired connection that has reached its max age
+	 */
+	protected void replaceExpiredConnection(final ConnectionHandle expired){
+		if (expired.requestReplacement()){
+			executeMaintenance(new Runnable() {
+				// @Override
+				public void run() {
+					swapExpiredConnection(expired);
+				}
+			});
+		}
+	}
+
+	/** Opens a replacement for an expired connection, then swaps the two over. If the expired connection is in use
+	 * at the time, it's closed once it's released instead. The replacement is counted against maxConnections before
+	 * it's opened; if the partition is full, or the replacement can't be opened, the expired connection is simply
+	 * retired and the pool watch thread fills the gap.
+	 * @param expired connection that has reached its max age
+	 */
+	@VisibleForTesting protected void swapExpiredConnection(ConnectionHandle expired){
+		ConnectionPartition partition = expired.getOriginatingPartition();
+		ConnectionHandle replacement = null;
+		if (!this.poolShuttingDown && partition.reserveConnection()){
+			try {
+				replacement = new ConnectionHandle(null, partition, this, false);
+				warmUpStatementCache(replacement);
+			} catch (SQLException e) {
+				logger.error("Failed to open a connection to replace an expired one", e);
+				partition.updateCreatedConnections(-1); // give back the reservation
+			}
+		}
+
+		// the handle sitting in the free queue may be a different one on the same physical connection.
+		ConnectionHandle current = null;
+		for (ConnectionHandle connection: partition.getFreeConnections()){
+			if (connection.isSameConnection(expired)){
+				current = connection;
+				break;
+			}
+		}
+		boolean retire = current != null && current.startMaintenance();
+		if (retire && current.endMaintenance(false)){
+			partition.getFreeConnections().remove(current);
+		}
+		expired.replacementDone();
+
+		boolean added = false;
+		if (replacement != null){
+			try {
+				added = partition.addReservedConnection(replacement);
+			} catch (SQLException e) {
+				logger.error("Failed to add the replacement of an expired connection", e);
+			}
+		}
+		if (retire){
+			destroyConnection(current);
+		}
+		if (!added){
+			// one connection fewer than before, or soon will be once the expired one is released.
+			partition.signalPoolWatchThread();
+		}
+	}
+
 	/** Places a connection back in the originating partition.
 	 * @param connectionHandle to place back
 	 * @throws SQLException on error
 	 */
 	protected void putConnectionBackInPartition(ConnectionHandle connectionHandle) throws SQLException {
-
-		if (this.cachedPoolStrategy && ((CachedConnectionStrategy)this.connectionStrategy).tlConnections.dumbGet().getValue()){
-			connectionHandle.logicallyClosed.set(true);
-			((CachedConnectionStrategy)this.connectionStrategy).tlConnections.set(new AbstractMap.SimpleEntry<ConnectionHandle, Boolean>(connectionHandle, false));
-		} else {
-			BlockingQueue<ConnectionHandle> queue = connectionHandle.getOriginatingPartition().getFreeConnections();
-				if (!queue.offer(connectionHandle)){ // this shouldn't fail
-					connectionHandle.internalClose();
-				}
+		BlockingQueue<ConnectionHandle> queue = connectionHandle.getOriginatingPartition().getFreeConnections();
+		connectionHandle.markFree();
+		if (!queue.offer(connectionHandle)){ // this shouldn't fail
+			connectionHandle.internalClose();
 		}
-
-
 	}
 
 
-	/** Sends a dummy statement to the server to keep the connection alive
+	/** Sends a dummy statement to the server to keep the connection alive. Connections that have completed a
+	 * statement within the validation trust window are known to be alive and are not tested. Otherwise, unless a
+	 * test statement has been configured, we try the cheapest checks first: Connection.isValid(), then a trivial
+	 * query for the database in use, and only then a metadata query.
 	 * @param connection Connection handle to perform activity on
 	 * @return true if test query worked, false otherwise
 	 */
 	public boolean isConnectionHandleAlive(ConnectionHandle connection) {
+		connection.closeStatementsEvictedByBudget(); // we have the connection to ourselves for now.
+		if (this.validationTrustWindowInMs > 0 
+				&& System.currentTimeMillis() - connection.getLastStatementSucceededInMs() <= this.validationTrustWindowInMs){
+			if (this.statisticsEnabled){
+				this.statistics.incrementConnectionValidationsSkipped();
+			}
+			return true;
+		}
+
+		long validationStartTime = this.statisticsEnabled ? System.nanoTime() : 0;
 		Statement stmt = null;
 		boolean result = false;
 		boolean logicallyClosed = connection.logicallyClosed.get();
@@ -704,11 +1173,21 @@ public class BoneCP implements Serializable, Closeable {
 			connection.logicallyClosed.compareAndSet(true, false); // avoid checks later on if it's marked as closed.
 			String testStatement = this.config.getConnectionTestStatement();
 			ResultSet rs = null;
+			Boolean valid = null;
 
 			if (testStatement == null) {
-				// Make a call to fetch the metadata instead of a dummy query.
-				rs = connection.getMetaData().getTables( null, null, KEEPALIVEMETADATA, METADATATABLE );
-			} else {
+				// #ifdef JDK>6
+				valid = checkValid(connection);
+				// #endif JDK>6
+				if (valid == null){
+					testStatement = getPingStatement(connection);
+					if (testStatement == null){
+						// Make a call to fetch the metadata instead of a dummy query.
+						rs = connection.getMetaData().getTables( null, null, KEEPALIVEMETADATA, METADATATABLE );
+					}
+				}
+			}
+			if (testStatement != null){
 				stmt = connection.createStatement();
 				stmt.execute(testStatement);
 			}
@@ -718,7 +1197,7 @@ public class BoneCP implements Serializable, Closeable {
 				rs.close();
 			}
 
-			result = true;
+			result = valid == null || valid.booleanValue();
 		} catch (SQLException e) {
 			// connection must be broken!
 			result = false;
@@ -726,10 +1205,60 @@ public class BoneCP implements Serializable, Closeable {
 			connection.logicallyClosed.set(logicallyClosed);
 			connection.setConnectionLastResetInMs(System.currentTimeMillis());
 			result = closeStatement(stmt, result);
+			if (this.statisticsEnabled){
+				this.statistics.addConnectionValidation(System.nanoTime() - validationStartTime, result);
+			}
 		}
 		return result;
 	}
 
+	/** Returns a trivial query to test connections with, picked once by looking at the database product name.
+	 * @param connection to look up the database with
+	 * @return keep-alive query, or null if we don't know one for this database.
+	 * @throws SQLException on error
+	 */
+	private String getPingStatement(ConnectionHandle connection) throws SQLException {
+		if (!this.pingStatementResolved){
+			String productName = connection.getMetaData().getDatabaseProductName();
+			String result = null;
+			if (productName != null){
+				for (String[] ping: PING_STATEMENTS){
+					if (productName.startsWith(ping[0])){
+						result = ping[1];
+						break;
+					}
+				}
+			}
+			this.pingStatement = result;
+			this.pingStatementResolved = true;
+			logger.debug("Using " + (result == null ? "a metadata query" : "\"" + result + "\"") + " to test connections to " + productName);
+		}
+		return this.pingStatement;
+	}
+
+	// #ifdef JDK>6
+	/** Tests the connection with Connection.isValid(), which lets the driver pick the cheapest way of checking
+	 * it, usually a protocol-level ping.
+	 * @param connection to test
+	 * @return result of isValid(), or null if the driver doesn't support it.
+	 * @throws SQLException on error
+	 */
+	private Boolean checkValid(ConnectionHandle connection) throws SQLException {
+		if (this.isValidSupported){
+			try {
+				return connection.isValid(KEEPALIVE_TIMEOUT_IN_SECONDS);
+			} catch (AbstractMethodError e) {
+				// driver predates JDBC4
+			} catch (SQLFeatureNotSupportedException e) {
+				// fall through
+			}
+			this.isValidSupported = false;
+			logger.debug("Driver does not support Connection.isValid(), falling back to a query for keep-alive tests");
+		}
+		return null;
+	}
+	// #endif JDK>6
+
 	/**
 	 * @param stmt
 	 * @param result
@@ -814,6 +1343,74 @@ public class BoneCP implements Serializable, Closeable {
 		return this.statistics;
 	}
 
+	/**
+	 * Returns the pool-wide statement cache budget shared by all connections.
+	 * @return budget, or null if statement caching is off.
+	 */
+	protected StatementCacheBudget getStatementCacheBudget() {
+		return this.statementCacheBudget;
+	}
+
+	/**
+	 * Returns the tracker of statements to prepare on new connections.
+	 * @return tracker, or null if not warming up statement caches.
+	 */
+	protected StatementCacheWarmup getStatementCacheWarmup() {
+		return this.statementCacheWarmup;
+	}
+
+	/**
+	 * Returns the config settings shared by all the connection handles of this pool.
+	 * @return settings
+	 */
+	protected ConnectionHandle.Settings getConnectionHandleSettings() {
+		return this.connectionHandleSettings;
+	}
+
+	/** Returns the executor used to create connections in parallel when growing a partition.
+	 * @return the executor, or null if connections are created one at a time.
+	 */
+	protected ExecutorService getConnectionCreationExecutor() {
+		return this.connectionCreationExecutor;
+	}
+
+	/** Returns the scheduler saying when this pool's background tasks are due.
+	 * @return the maintenance scheduler
+	 */
+	protected MaintenanceScheduler getMaintenanceScheduler() {
+		return this.maintenanceScheduler;
+	}
+
+	/** Returns the threads running this pool's background tasks.
+	 * @return the maintenance executor
+	 */
+	protected ExecutorService getMaintenanceExecutor() {
+		return this.maintenanceExecutor;
+	}
+
+	/** Runs the given background task on this pool's maintenance threads as soon as possible. Does nothing once the
+	 * pool has been shut down.
+	 * @param task to run
+	 */
+	protected void executeMaintenance(Runnable task){
+		try {
+			this.maintenanceExecutor.execute(task);
+		} catch (RejectedExecutionException e) {
+			logger.debug("Pool has been shut down, ignoring maintenance task");
+		}
+	}
+
+	/**
+	 * Prepares the statements new connections should have ready (if any) on the given connection, which must
+	 * not have been handed out yet.
+	 * @param connectionHandle new connection
+	 */
+	protected void warmUpStatementCache(ConnectionHandle connectionHandle) {
+		if (this.statementCacheWarmup != null){
+			connectionHandle.warmUpStatementCache(this.statementCacheWarmup.getStatements(this.config.getStatementsCacheSize()));
+		}
+	}
+
 	/**
 	 * Returns the dbIsDown field.
 	 * @return dbIsDown
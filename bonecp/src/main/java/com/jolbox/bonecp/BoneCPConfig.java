@@ -82,6 +82,12 @@ public class BoneCPConfig implements BoneCPConfigMBean, Cloneable, Serializable
 	private String connectionTestStatement;
 	/** Min no of prepared statements to cache. */
 	private int statementsCacheSize = 0;
+	/** Max no of statements cached across all connections of the pool, 0 = no limit. */
+	private int statementsCacheBudget = 0;
+	/** No of the pool's most used statements to prepare on each new connection. */
+	private int statementsCacheWarmupSize = 0;
+	/** Statements to prepare on each new connection, separated by ';'. */
+	private String statementsCacheWarmupSql;
 	/** No of statements that can be cached per connection. Deprecated. */
 	private int statementsCachedPerConnection = 0;
 	/** Number of release-connection helper threads to create per partition. */
@@ -104,6 +110,20 @@ public class BoneCPConfig implements BoneCPConfigMBean, Cloneable, Serializable
 	private int acquireRetryAttempts=5;
 	/** If set to true, the connection pool will remain empty until the first connection is obtained. */
 	private boolean lazyInit;
+	/** If set to true, the initial connections are obtained in the background. */
+	private boolean initialFillAsync;
+	/** Max no of connections to open at the same time when filling or growing the pool. */
+	private int connectionCreationThreads = 1;
+	/** Max no of idle connections per partition to test at the same time. */
+	private int connectionTestThreads = 2;
+	/** Skip the connection test if the connection completed a statement successfully within the last x ms. */
+	private long validationTrustWindowInMs = 0;
+	/** Let running threads barge in on released connections unless the oldest waiter has waited for x ms. */
+	private long handoffThresholdInMs = 0;
+	/** No of threads closing off expired and broken connections in the background. */
+	private int connectionRetirementThreads = 1;
+	/** Max no of connections waiting to be closed off in the background. */
+	private int connectionRetirementQueueSize = 100;
 	/** If set to true, stores all activity on this connection to allow for replaying it again. */
 	private boolean transactionRecoveryEnabled;
 	/** Connection hook class name. */
@@ -120,6 +140,8 @@ public class BoneCPConfig implements BoneCPConfigMBean, Cloneable, Serializable
 	private long queryExecuteTimeLimitInMs = 0;
 	/** Create more connections when we hit x% of our possible number of connections. */
 	private int poolAvailabilityThreshold = 0;
+	/** How often to update the demand forecast and resize partitions from it, in ms. 0 = disabled. */
+	private long poolSizingPeriodInMs = 0;
 	/** Disable connection tracking. */
 	private boolean disableConnectionTracking;
 	/** Used when the alternate way of obtaining a connection is required */
@@ -130,12 +152,18 @@ public class BoneCPConfig implements BoneCPConfigMBean, Cloneable, Serializable
 	private long closeConnectionWatchTimeoutInMs = 0;
 	/** A connection older than maxConnectionAge will be destroyed and purged from the pool. */
 	private long maxConnectionAgeInSeconds = 0;
+	/** Each connection's max age is cut short by a random amount of up to this % of maxConnectionAge. */
+	private int maxConnectionAgeJitterPercent = 10;
 	/** Config property. */
 	private String configFile;
-	/** Queue mode. Values currently understood are FIFO and LIFO. */
+	/** Order in which free connections are handed out. Values currently understood are FIFO and LIFO. */
 	private String serviceOrder = "FIFO";
 	/** If true, keep track of some statistics. */
 	private boolean statisticsEnabled;
+	/** Only time 1 in every statisticsSampleRate statements when keeping statistics. */
+	private int statisticsSampleRate = 1;
+	/** Number of distinct SQL statements to keep an execution profile of when keeping statistics. */
+	private int sqlProfileSize = 100;
 	/** The default auto-commit state of created connections. */
 	private boolean defaultAutoCommit = true;
 	/** The default read-only state of created connections. */
@@ -154,6 +182,8 @@ public class BoneCPConfig implements BoneCPConfigMBean, Cloneable, Serializable
 	private boolean nullOnConnectionTimeout;
 	/** If true, issue a reset (rollback) on connection close in case client forgot it. */
 	private boolean resetConnectionOnClose;
+	/** If true, trust what a connection remembers of its session state to skip redundant rollbacks and resets. */
+	private boolean trackSessionState;
 	/** Detect uncommitted transactions. If true, and resetConnectionOnClose is also true, the pool will print out a stack 
 	 * trace of the location where you had a connection that specified setAutoCommit(false)
 	 * but then forgot to call commit/rollback before closing it off. This feature is intended 
@@ -161,6 +191,12 @@ public class BoneCPConfig implements BoneCPConfigMBean, Cloneable, Serializable
 	private boolean detectUnresolvedTransactions;
 	/** Determines pool operation Recognised strategies are: DEFAULT, CACHED. */
 	private String poolStrategy = "DEFAULT";
+	/** Free connections set aside for each key used with getConnection(key). */
+	private int reservedConnectionsPerKey;
+	/** Maximum number of connections each key used with getConnection(key) may have out. */
+	private int maxConnectionsPerKey;
+	/** Forget keys used with getConnection(key) that have had no connections out for x ms. */
+	private long keyIdleTimeoutInMs = 300000;
 	/** If true, track statements and close them if application forgot to do so. See also: 
 	 * detectUnclosedStatements. */
 	private boolean closeOpenStatements;
@@ -256,7 +292,6 @@ public class BoneCPConfig implements BoneCPConfigMBean, Cloneable, Serializable
 	 * i.e. pool[threadId % partition_count]. The higher this number, the better your performance will be for the case 
 	 * when you have plenty of short-lived threads. Beyond a certain threshold (approx 4), maintenance of these pools will start 
 	 * to have a negative effect on performance (and only for the case when connections on a partition start running out).
-	 * Has no effect in a CACHED strategy.
 	 *  
 	 * <p>Default: 1, minimum: 1, recommended: 2-4 (but very app specific)
 	 *
@@ -506,11 +541,13 @@ public class BoneCPConfig implements BoneCPConfigMBean, Cloneable, Serializable
 	 *The query to send to the DB to maintain keep-alives and test for dead connections. 
 	 *This is database specific and should be set to a query that consumes the minimal amount of load on the server. 
 	 *Examples: MySQL: "/* ping *\/ SELECT 1", PostgreSQL: "SELECT NOW()". 
-	 *If you do not set this, then BoneCP will issue a metadata request instead that should work on all databases but is probably slower.
+	 *If you do not set this, then BoneCP uses Connection.isValid() if the driver supports it, or else a trivial query
+	 *it knows of for the database in use (eg "SELECT 1 FROM DUAL" on Oracle), or failing that a metadata request that
+	 *should work on all databases but is probably slower. If you do set this, the statement is always used instead.
 	 *
 	 * (Note: In MySQL, prefixing the statement by /* ping *\/ makes the driver issue 1 fast packet instead. See 
 	 * http://blogs.sun.com/SDNChannel/entry/mysql_tips_for_java_developers )
-	 *<p>Default: Use metadata request
+	 *<p>Default: Use isValid(), a known query or a metadata request, in that order
 	 *
 	 * @param connectionTestStatement to set.
 	 */
@@ -587,6 +624,68 @@ public class BoneCPConfig implements BoneCPConfigMBean, Cloneable, Serializable
 		return this.statementsCacheSize;
 	}
 
+	/**
+	 * Returns the statementsCacheBudget field.
+	 * @return statementsCacheBudget
+	 */
+	public int getStatementsCacheBudget() {
+		return this.statementsCacheBudget;
+	}
+
+	/**
+	 * Sets the max number of statements cached across all connections of the pool, counting both prepared and
+	 * callable statements. statementsCacheSize limits each connection's caches on their own; once this limit
+	 * is reached as well, caching a new statement means evicting a less used statement from one of the connections
+	 * (or not caching the new one if there's none). That connection closes the evicted statement off the next time
+	 * it's checked out, released, tested or used, and it counts against the limit until then, so the new statement
+	 * only gets cached the next time it's asked for after that. Set to 0 for no limit. Default: 0.
+	 *
+	 * @param statementsCacheBudget to set.
+	 */
+	public void setStatementsCacheBudget(int statementsCacheBudget) {
+		this.statementsCacheBudget = statementsCacheBudget;
+	}
+
+	/**
+	 * Returns the statementsCacheWarmupSize field.
+	 * @return statementsCacheWarmupSize
+	 */
+	public int getStatementsCacheWarmupSize() {
+		return this.statementsCacheWarmupSize;
+	}
+
+	/**
+	 * Sets the number of statements to prepare on each new connection before it is handed out, picked from those
+	 * prepared most often across the pool so far. This saves every connection made to replace the ones lost
+	 * when the database goes down from having to prepare the same statements at the same moment. Only has an
+	 * effect with statement caching on, and no more than statementsCacheSize statements are prepared.
+	 * Set to 0 to disable. Default: 0.
+	 *
+	 * @param statementsCacheWarmupSize to set.
+	 */
+	public void setStatementsCacheWarmupSize(int statementsCacheWarmupSize) {
+		this.statementsCacheWarmupSize = statementsCacheWarmupSize;
+	}
+
+	/**
+	 * Returns the statementsCacheWarmupSql field.
+	 * @return statementsCacheWarmupSql
+	 */
+	public String getStatementsCacheWarmupSql() {
+		return this.statementsCacheWarmupSql;
+	}
+
+	/**
+	 * Sets statements, separated by ';', to prepare on each new connection ahead of the most used ones (see
+	 * {@link #setStatementsCacheWarmupSize(int)}), including those made when the pool starts. Only has an
+	 * effect with statement caching on.
+	 *
+	 * @param statementsCacheWarmupSql to set.
+	 */
+	public void setStatementsCacheWarmupSql(String statementsCacheWarmupSql) {
+		this.statementsCacheWarmupSql = statementsCacheWarmupSql;
+	}
+
 
 	/** {@inheritDoc}
 	 * @see com.jolbox.bonecp.BoneCPConfigMBean#getReleaseHelperThreads()
@@ -782,6 +881,140 @@ public class BoneCPConfig implements BoneCPConfigMBean, Cloneable, Serializable
 		this.lazyInit = lazyInit;
 	}
 
+	/** Returns true if the initial connections are obtained in the background.
+	 * @return initialFillAsync setting
+	 */
+	public boolean isInitialFillAsync() {
+		return this.initialFillAsync;
+	}
+
+	/** Set to true to have the pool obtain its initial connections in the background rather than in the
+	 * constructor. The database is still checked for being reachable before the constructor returns, and
+	 * getConnection() waits (up to connectionTimeout) for the first connection to be ready.
+	 * @param initialFillAsync the initialFillAsync setting to set
+	 */
+	public void setInitialFillAsync(boolean initialFillAsync) {
+		this.initialFillAsync = initialFillAsync;
+	}
+
+	/** Returns the connectionCreationThreads field.
+	 * @return connectionCreationThreads
+	 */
+	public int getConnectionCreationThreads() {
+		return this.connectionCreationThreads;
+	}
+
+	/** Sets the max number of connections opened at the same time when filling the pool at startup, and when
+	 * adding acquireIncrement connections to a partition that is running low. With a remote database, opening them
+	 * one after the other can take a long time. Default: 1.
+	 * @param connectionCreationThreads the connectionCreationThreads to set
+	 */
+	public void setConnectionCreationThreads(int connectionCreationThreads) {
+		this.connectionCreationThreads = connectionCreationThreads;
+	}
+
+	/** Returns the connectionTestThreads field.
+	 * @return connectionTestThreads
+	 */
+	public int getConnectionTestThreads() {
+		return this.connectionTestThreads;
+	}
+
+	/** Sets the max number of idle connections in a partition that are tested (see idleConnectionTestPeriod) at the
+	 * same time. Connections stay in the pool while they are tested. This is also the number of background tasks
+	 * each pool runs at once (at least 2), on worker threads shared by all pools. Default: 2.
+	 * @param connectionTestThreads the connectionTestThreads to set
+	 */
+	public void setConnectionTestThreads(int connectionTestThreads) {
+		this.connectionTestThreads = connectionTestThreads;
+	}
+
+	/** Returns the validationTrustWindowInMs field.
+	 * @return validationTrustWindowInMs
+	 */
+	public long getValidationTrustWindowInMs() {
+		return this.validationTrustWindowInMs;
+	}
+
+	/** Sets how long (in ms) a connection is trusted without testing it after one of its statements completed
+	 * successfully. A connection that has just talked to the database is known to be alive, so the pool skips the
+	 * round trip when it would otherwise test it (eg when releasing a connection that saw an SQL exception).
+	 * Trusting a connection costs a timestamp on every successful statement, so this is off unless set.
+	 * Set to 0 to always test. Default: 0.
+	 * @param validationTrustWindowInMs the validationTrustWindowInMs to set
+	 */
+	public void setValidationTrustWindowInMs(long validationTrustWindowInMs) {
+		this.validationTrustWindowInMs = validationTrustWindowInMs;
+	}
+
+	/** Sets how long a connection is trusted without testing it after one of its statements completed successfully.
+	 * @param validationTrustWindow the validationTrustWindow to set
+	 * @param timeUnit time granularity
+	 */
+	public void setValidationTrustWindow(long validationTrustWindow, TimeUnit timeUnit) {
+		this.validationTrustWindowInMs = TimeUnit.MILLISECONDS.convert(validationTrustWindow, timeUnit);
+	}
+
+	/** Returns the handoffThresholdInMs field.
+	 * @return handoffThresholdInMs
+	 */
+	public long getHandoffThresholdInMs() {
+		return this.handoffThresholdInMs;
+	}
+
+	/** Sets how long (in ms) a thread waits for a connection before one that is released is handed straight to it.
+	 * At 0, every connection released while threads are waiting goes to the one that has been waiting the longest,
+	 * so connections go out in the order they were asked for and the longest waits are kept short. Above 0, the
+	 * released connection is left in the pool for the oldest waiter to come and get, and a running thread that asks
+	 * for one in the meantime may take it first. That saves a context switch per connection when the pool is
+	 * exhausted, and so gets more work through it, but a thread can lose out over and over until it has waited for
+	 * this long. Default: 0.
+	 * @param handoffThresholdInMs the handoffThresholdInMs to set
+	 */
+	public void setHandoffThresholdInMs(long handoffThresholdInMs) {
+		this.handoffThresholdInMs = handoffThresholdInMs;
+	}
+
+	/** Sets how long a thread waits for a connection before one that is released is handed straight to it.
+	 * @param handoffThreshold the handoffThreshold to set
+	 * @param timeUnit time granularity
+	 */
+	public void setHandoffThreshold(long handoffThreshold, TimeUnit timeUnit) {
+		this.handoffThresholdInMs = TimeUnit.MILLISECONDS.convert(handoffThreshold, timeUnit);
+	}
+
+	/** Returns the connectionRetirementThreads field.
+	 * @return connectionRetirementThreads
+	 */
+	public int getConnectionRetirementThreads() {
+		return this.connectionRetirementThreads;
+	}
+
+	/** Sets the number of connections released while possibly broken, or expired, that are tested or closed off at
+	 * once in the background (on worker threads shared by all pools), so that Connection.close() doesn't have to
+	 * wait for the database. Set to 0 to do this on the thread releasing the connection. Default: 1.
+	 * @param connectionRetirementThreads the connectionRetirementThreads to set
+	 */
+	public void setConnectionRetirementThreads(int connectionRetirementThreads) {
+		this.connectionRetirementThreads = connectionRetirementThreads;
+	}
+
+	/** Returns the connectionRetirementQueueSize field.
+	 * @return connectionRetirementQueueSize
+	 */
+	public int getConnectionRetirementQueueSize() {
+		return this.connectionRetirementQueueSize;
+	}
+
+	/** Sets the max number of released connections waiting for the retirement threads. Once that many are waiting,
+	 * the thread releasing a connection tests or closes it off itself, as if there were no retirement threads.
+	 * Default: 100.
+	 * @param connectionRetirementQueueSize the connectionRetirementQueueSize to set
+	 */
+	public void setConnectionRetirementQueueSize(int connectionRetirementQueueSize) {
+		this.connectionRetirementQueueSize = connectionRetirementQueueSize;
+	}
+
 
 
 
@@ -947,6 +1180,28 @@ public class BoneCPConfig implements BoneCPConfigMBean, Cloneable, Serializable
 		this.poolAvailabilityThreshold = poolAvailabilityThreshold;
 	}
 
+	/** Returns the poolSizingPeriodInMs field.
+	 * @return poolSizingPeriodInMs
+	 */
+	public long getPoolSizingPeriodInMs() {
+		return this.poolSizingPeriodInMs;
+	}
+
+	/** Enables predictive sizing. Every so often, each partition updates a smoothed forecast (level plus trend) of
+	 * the number of connections leased out, from the peak seen at checkout time since the last update. Partitions
+	 * are then grown ahead of demand to the forecast plus acquireIncrement spare connections, rather than waiting
+	 * for poolAvailabilityThreshold to be hit, and shrunk back towards it (never below minConnectionsPerPartition)
+	 * once they have stayed well above it for a few periods. The forecast and the decisions taken are available
+	 * via the statistics MBean.
+	 * 
+	 * Default: 0 (disabled).
+	 * 
+	 * @param poolSizingPeriodInMs how often to resize partitions, in ms.
+	 */
+	public void setPoolSizingPeriodInMs(long poolSizingPeriodInMs) {
+		this.poolSizingPeriodInMs = poolSizingPeriodInMs;
+	}
+
 	/** Returns true if connection tracking has been disabled.
 	 * @return the disableConnectionTracking
 	 */
@@ -1200,6 +1455,22 @@ public class BoneCPConfig implements BoneCPConfigMBean, Cloneable, Serializable
 	public void setMaxConnectionAge(long maxConnectionAge, TimeUnit timeUnit) {
 		this.maxConnectionAgeInSeconds = TimeUnit.SECONDS.convert(maxConnectionAge, timeUnit);
 	}
+
+	/** Returns the maxConnectionAgeJitterPercent field.
+	 * @return maxConnectionAgeJitterPercent
+	 */
+	public int getMaxConnectionAgeJitterPercent() {
+		return this.maxConnectionAgeJitterPercent;
+	}
+
+	/** Sets by how much (as a % of maxConnectionAge) each connection's max age may be randomly cut short. Connections
+	 * opened together, such as those opened when the pool starts, would otherwise all expire together and have to be
+	 * replaced in one go. Range: 0 (no jitter) to 100. Default: 10.
+	 * @param maxConnectionAgeJitterPercent the maxConnectionAgeJitterPercent to set
+	 */
+	public void setMaxConnectionAgeJitterPercent(int maxConnectionAgeJitterPercent) {
+		this.maxConnectionAgeJitterPercent = maxConnectionAgeJitterPercent;
+	}
 	/**
 	 * Returns the configFile field.
 	 * @return configFile
@@ -1227,6 +1498,13 @@ public class BoneCPConfig implements BoneCPConfigMBean, Cloneable, Serializable
 
 	/**
 	 * Sets the queue serviceOrder. Values currently understood are FIFO and LIFO. 
+	 * 
+	 * FIFO spreads the load over all the free connections (strictly speaking, no particular order is kept). 
+	 * LIFO hands out the connection released most recently first, so the connections that are needed to meet the 
+	 * current demand are kept warm and the rest are left idle. Coupled with idleMaxAge, the idle ones are then closed 
+	 * off (down to minConnectionsPerPartition) which keeps the pool, and the number of sessions on the database, 
+	 * close to what is really needed.
+	 * 
 	 * @param serviceOrder the serviceOrder to set
 	 */
 	public void setServiceOrder(String serviceOrder) {
@@ -1250,6 +1528,43 @@ public class BoneCPConfig implements BoneCPConfigMBean, Cloneable, Serializable
 		this.statisticsEnabled = statisticsEnabled;
 	}
 
+	/**
+	 * Returns the statisticsSampleRate field.
+	 * @return statisticsSampleRate
+	 */
+	public int getStatisticsSampleRate() {
+		return this.statisticsSampleRate;
+	}
+
+	/**
+	 * When statistics are enabled, only time 1 in every statisticsSampleRate statements (prepare and execute).
+	 * Statements are still counted; the sampled times are scaled up so that the cumulative and average
+	 * figures remain estimates for all statements. Default: 1 (time every statement).
+	 * @param statisticsSampleRate the statisticsSampleRate to set
+	 */
+	public void setStatisticsSampleRate(int statisticsSampleRate) {
+		this.statisticsSampleRate = statisticsSampleRate;
+	}
+
+	/**
+	 * Returns the sqlProfileSize field.
+	 * @return sqlProfileSize
+	 */
+	public int getSqlProfileSize() {
+		return this.sqlProfileSize;
+	}
+
+	/**
+	 * When statistics are enabled, keep a count, total and max execution time and rows affected for up to this
+	 * many distinct SQL statements, retaining those that take up the most time (see
+	 * {@link StatisticsMBean#getTopStatements()}). Memory use is fixed regardless of how many distinct statements
+	 * are issued. Set to 0 to disable. Default: 100.
+	 * @param sqlProfileSize the sqlProfileSize to set
+	 */
+	public void setSqlProfileSize(int sqlProfileSize) {
+		this.sqlProfileSize = sqlProfileSize;
+	}
+
 	/**
 	 * Returns the defaultAutoCommit field.
 	 * @return defaultAutoCommit
@@ -1563,8 +1878,8 @@ public class BoneCPConfig implements BoneCPConfigMBean, Cloneable, Serializable
 			loadProperties(this.configFile);
 		}
 
-		if (this.poolStrategy == null || !(this.poolStrategy.equalsIgnoreCase("DEFAULT") || this.poolStrategy.equalsIgnoreCase("CACHED"))){
-			logger.warn("Unrecognised pool strategy. Allowed values are DEFAULT and CACHED. Setting to DEFAULT.");
+		if (this.poolStrategy == null || !(this.poolStrategy.equalsIgnoreCase("DEFAULT") || this.poolStrategy.equalsIgnoreCase("CACHED") || this.poolStrategy.equalsIgnoreCase("LIGHTWEIGHT"))){
+			logger.warn("Unrecognised pool strategy. Allowed values are DEFAULT, CACHED and LIGHTWEIGHT. Setting to DEFAULT.");
 			this.poolStrategy = "DEFAULT";
 		} 
 
@@ -1574,6 +1889,21 @@ public class BoneCPConfig implements BoneCPConfigMBean, Cloneable, Serializable
 			this.poolAvailabilityThreshold = 20;
 		}
 
+		if (this.poolSizingPeriodInMs < 0) {
+			logger.warn("poolSizingPeriodInMs < 0! Setting to 0 (disabled)");
+			this.poolSizingPeriodInMs = 0;
+		}
+
+		if (this.statisticsSampleRate < 1){
+			logger.warn("Statistics sample rate < 1. Setting to 1");
+			this.statisticsSampleRate = 1;
+		}
+
+		if (this.sqlProfileSize < 0){
+			logger.warn("SQL profile size < 0. Setting to 0 (disabled)");
+			this.sqlProfileSize = 0;
+		}
+
 		if (this.defaultTransactionIsolation != null){
 			this.defaultTransactionIsolation = this.defaultTransactionIsolation.trim().toUpperCase();
 
@@ -1629,6 +1959,71 @@ public class BoneCPConfig implements BoneCPConfigMBean, Cloneable, Serializable
 			this.statementsCacheSize = 0;
 		}
 
+		if (this.statementsCacheBudget < 0) {
+			logger.warn("statementsCacheBudget < 0! Setting to 0 (no limit)");
+			this.statementsCacheBudget = 0;
+		}
+
+		if (this.connectionCreationThreads < 1) {
+			logger.warn("connectionCreationThreads < 1! Setting to 1");
+			this.connectionCreationThreads = 1;
+		}
+
+		if (this.connectionTestThreads < 1) {
+			logger.warn("connectionTestThreads < 1! Setting to 1");
+			this.connectionTestThreads = 1;
+		}
+
+		if (this.validationTrustWindowInMs < 0) {
+			logger.warn("validationTrustWindowInMs < 0! Setting to 0 (always test)");
+			this.validationTrustWindowInMs = 0;
+		}
+
+		if (this.handoffThresholdInMs < 0) {
+			logger.warn("handoffThresholdInMs < 0! Setting to 0 (always hand over)");
+			this.handoffThresholdInMs = 0;
+		}
+
+		if (this.reservedConnectionsPerKey < 0) {
+			logger.warn("reservedConnectionsPerKey < 0! Setting to 0");
+			this.reservedConnectionsPerKey = 0;
+		}
+
+		if (this.maxConnectionsPerKey < 0) {
+			logger.warn("maxConnectionsPerKey < 0! Setting to 0 (no limit)");
+			this.maxConnectionsPerKey = 0;
+		}
+
+		if (this.maxConnectionsPerKey > 0 && this.maxConnectionsPerKey < this.reservedConnectionsPerKey) {
+			logger.warn("maxConnectionsPerKey < reservedConnectionsPerKey! Setting to "+this.reservedConnectionsPerKey);
+			this.maxConnectionsPerKey = this.reservedConnectionsPerKey;
+		}
+
+		if (this.keyIdleTimeoutInMs < 0) {
+			logger.warn("keyIdleTimeoutInMs < 0! Setting to 0 (remember keys for good)");
+			this.keyIdleTimeoutInMs = 0;
+		}
+
+		if (this.connectionRetirementThreads < 0) {
+			logger.warn("connectionRetirementThreads < 0! Setting to 0 (retire on the calling thread)");
+			this.connectionRetirementThreads = 0;
+		}
+
+		if (this.connectionRetirementQueueSize < 1) {
+			logger.warn("connectionRetirementQueueSize < 1! Setting to 1");
+			this.connectionRetirementQueueSize = 1;
+		}
+
+		if (this.maxConnectionAgeJitterPercent < 0 || this.maxConnectionAgeJitterPercent > 100) {
+			logger.warn("maxConnectionAgeJitterPercent must be between 0 and 100! Setting to 10");
+			this.maxConnectionAgeJitterPercent = 10;
+		}
+
+		if (this.statementsCacheWarmupSize < 0) {
+			logger.warn("statementsCacheWarmupSize < 0! Setting to 0 (disabled)");
+			this.statementsCacheWarmupSize = 0;
+		}
+
 		if (this.acquireRetryDelayInMs <= 0) {
 			this.acquireRetryDelayInMs = 1000;
 		}
@@ -1886,6 +2281,31 @@ public class BoneCPConfig implements BoneCPConfigMBean, Cloneable, Serializable
 		this.resetConnectionOnClose = resetConnectionOnClose;
 	}
 
+	/**
+	 * Returns the trackSessionState setting.
+	 * @return trackSessionState
+	 */
+	public boolean isTrackSessionState() {
+		return this.trackSessionState;
+	}
+
+	/**
+	 * If true, a connection remembers its auto-commit, read-only, catalog and transaction isolation settings
+	 * as set through the pool's Connection, and whether a statement ran since the last commit or rollback.
+	 * The getters are then answered without asking the driver, and a released connection is only rolled back
+	 * or reset to the configured defaults where that is needed.
+	 * 
+	 * Only turn this on if the application changes session state through the Connection interface alone:
+	 * changes made in SQL (eg "USE db" or "SET TRANSACTION ISOLATION LEVEL"), and work done through
+	 * updatable result sets or LOB writes, go unnoticed and might then not be rolled back or reset before the
+	 * connection is handed out again. Calling unwrap() or getInternalConnection() makes the connection
+	 * forget what it knows. Default: false.
+	 * @param trackSessionState the trackSessionState to set
+	 */
+	public void setTrackSessionState(boolean trackSessionState) {
+		this.trackSessionState = trackSessionState;
+	}
+
 	/**
 	 * Returns the detectUnresolvedTransactions field.
 	 * @return detectUnresolvedTransactions
@@ -1916,33 +2336,21 @@ public class BoneCPConfig implements BoneCPConfigMBean, Cloneable, Serializable
 
 
 	/**
-	 * Sets the poolStrategy. Currently supported strategies are DEFAULT and CACHED. This is an experimental feature!
+	 * Sets the poolStrategy. Currently supported strategies are DEFAULT, CACHED and LIGHTWEIGHT. This is an experimental feature!
 	 *
 	 * DEFAULT strategy operates in a manner that has been used in the pool since the very first
 	 * version: it tries to obtain a connection from a queue.
 	 *  
-	 * CACHED stores each connection in a thread-local variable so that next time the same thread
-	 * asks for a connection, it gets the same one assigned to it (if it asks for more than one, it
-	 * will be allocated a new one). This is very fast but you must ensure that the number of threads 
-	 * asking for a connection is less than or equal to the number  of connections you have made 
-	 * available. Should you exceed this limit, the pool will switch back (permanently) to the DEFAULT 
-	 * strategy which will cause a one-time performance hit. Use this strategy if your threads are 
-	 * managed eg in a Tomcat environment where you can limit the number of threads that it can 
-	 * handle. A typical use case would be a web service that always requires some form of database access, 
-	 * therefore a service would have little point in accepting a new incoming socket connection if it 
-	 * still has to wait in order to obtain a connection.
-	 *  
-	 * Essentially this means that you are pushing back the lock down to the socket or thread layer. 
-	 * While the first few thread hits will be slower than in the DEFAULT strategy, significant performance 
-	 * gains are to be expected as the thread gets increasingly re-used (i.e. initially you should expect
-	 * the first few rounds to be measurably slower than the DEFAULT strategy but once the caches
-	 * get more hits you should get >2x better performance).
-	 * 
-	 * Threads that are killed off are detected during the next garbage collection and result in 
-	 * their allocated connections from being taken back though since GC timing is not guaranteed
-	 * you should ideally set your minimum pool size to be equal to the maximum pool size.
+	 * CACHED remembers the connection each thread had last so that next time the same thread
+	 * asks for a connection, it gets the same one again if it's free. This is very fast when threads 
+	 * are managed eg in a Tomcat environment, where a small set of threads keeps coming back for a connection, 
+	 * and keeps each connection's statement cache warm for the thread using it. Connections still go back to 
+	 * the pool on close, so if another thread has taken ours in the meantime we simply get some other one as per 
+	 * the DEFAULT strategy (and prefer that one from then on). There is no penalty for having more threads than 
+	 * connections, other than these threads not getting their connection back as often.
 	 * 
-	 * Therefore for best results, make sure that the configured minConnectionPerPartition = maxConnectionPerPartition = min Threads = max Threads.
+	 * LIGHTWEIGHT works like DEFAULT but keeps no state whatsoever for each thread. Use it if the application runs 
+	 * very many short-lived threads (eg one per task, or virtual threads), where per-thread state is never reused.
 	 *   
 	 *   
 	 * @param poolStrategy the poolStrategy to set
@@ -1951,6 +2359,79 @@ public class BoneCPConfig implements BoneCPConfigMBean, Cloneable, Serializable
 		this.poolStrategy = poolStrategy;
 	}
 
+	/**
+	 * Returns the reservedConnectionsPerKey field.
+	 * @return reservedConnectionsPerKey
+	 */
+	public int getReservedConnectionsPerKey() {
+		return this.reservedConnectionsPerKey;
+	}
+
+	/**
+	 * Sets the number of connections set aside for each key used with getConnection(key). As long as a key has fewer
+	 * than this many connections out, that many of the free connections in its partition are kept for it: plain
+	 * getConnection() calls, asynchronous requests and other keys only get the free connections beyond those. Keys
+	 * that share a partition add up their reservations, up to maxConnectionsPerPartition: keys that come along
+	 * once a partition's connections are all set aside get nothing set aside. A key's connections are no longer set
+	 * aside for it once it has been idle for keyIdleTimeoutInMs. Only 1024 keys at a time get a reservation; any 
+	 * further keys get nothing set aside (see KeyedPartitions). Default: 0 (nothing set aside).
+	 *
+	 * @param reservedConnectionsPerKey the reservedConnectionsPerKey to set
+	 */
+	public void setReservedConnectionsPerKey(int reservedConnectionsPerKey) {
+		this.reservedConnectionsPerKey = reservedConnectionsPerKey;
+	}
+
+	/**
+	 * Returns the maxConnectionsPerKey field.
+	 * @return maxConnectionsPerKey
+	 */
+	public int getMaxConnectionsPerKey() {
+		return this.maxConnectionsPerKey;
+	}
+
+	/**
+	 * Sets the maximum number of connections each key used with getConnection(key) may have out at once. A key that
+	 * has that many out waits for one of them to be closed (or times out, as per getConnection()) even if there are
+	 * free connections, so one busy key can't take the whole pool. Should be no less than reservedConnectionsPerKey.
+	 * Like reservations, the maximum only applies to 1024 keys at a time; any further keys have no limit (see
+	 * KeyedPartitions). Default: 0 (no limit).
+	 *
+	 * @param maxConnectionsPerKey the maxConnectionsPerKey to set
+	 */
+	public void setMaxConnectionsPerKey(int maxConnectionsPerKey) {
+		this.maxConnectionsPerKey = maxConnectionsPerKey;
+	}
+
+	/**
+	 * Returns the keyIdleTimeoutInMs field.
+	 * @return keyIdleTimeoutInMs
+	 */
+	public long getKeyIdleTimeoutInMs() {
+		return this.keyIdleTimeoutInMs;
+	}
+
+	/**
+	 * Sets how long (in ms) a key used with getConnection(key) may go without any connections out before the pool
+	 * forgets it. Its reservedConnectionsPerKey connections are then no longer set aside, and count towards the
+	 * 1024 keys that get a reservation no more; should the key come back, it's treated as new. Set to 0 to remember
+	 * keys for as long as the pool is around. Default: 300000 (5 minutes).
+	 *
+	 * @param keyIdleTimeoutInMs the keyIdleTimeoutInMs to set
+	 */
+	public void setKeyIdleTimeoutInMs(long keyIdleTimeoutInMs) {
+		this.keyIdleTimeoutInMs = keyIdleTimeoutInMs;
+	}
+
+	/**
+	 * Sets how long a key used with getConnection(key) may go without any connections out before the pool forgets it.
+	 * @param keyIdleTimeout the keyIdleTimeout to set
+	 * @param timeUnit time granularity
+	 */
+	public void setKeyIdleTimeout(long keyIdleTimeout, TimeUnit timeUnit) {
+		this.keyIdleTimeoutInMs = TimeUnit.MILLISECONDS.convert(keyIdleTimeout, timeUnit);
+	}
+
 	/**
 	 * Returns the closeOpenStatements field.
 	 * @return closeOpenStatements
@@ -105,7 +105,24 @@ public class BoneCPDataSource extends BoneCPConfig implements DataSource, Object
 	 * @see javax.sql.DataSource#getConnection()
 	 */
 	public Connection getConnection() throws SQLException {
-		
+		return initPool().getConnection();
+	}
+
+	/**
+	 * Returns a connection for the given key, eg a tenant or schema name. See {@link BoneCP#getConnection(Object)}.
+	 * @param key affinity key
+	 * @return a connection
+	 * @throws SQLException on error
+	 */
+	public Connection getConnection(Object key) throws SQLException {
+		return initPool().getConnection(key);
+	}
+
+	/** Returns the pool, creating it if this is the first time round.
+	 * @return pool
+	 * @throws SQLException on error
+	 */
+	private BoneCP initPool() throws SQLException {
 		FinalWrapper<BoneCP> wrapper = this.pool;
 
         if (wrapper == null) {
@@ -128,7 +145,7 @@ public class BoneCPDataSource extends BoneCPConfig implements DataSource, Object
                 } 
         }
 
-        return wrapper.value.getConnection();
+        return wrapper.value;
      }
 	
 		
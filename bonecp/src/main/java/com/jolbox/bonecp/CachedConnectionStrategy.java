@@ -16,29 +16,19 @@
 
 package com.jolbox.bonecp;
 
-import java.lang.ref.Reference;
+import java.lang.ref.WeakReference;
 import java.sql.Connection;
 import java.sql.SQLException;
-import java.util.AbstractMap.SimpleEntry;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-import com.google.common.base.FinalizableReferenceQueue;
-import com.google.common.base.FinalizableWeakReference;
-import com.google.common.util.concurrent.Uninterruptibles;
-
-/** A connection strategy that is optimized to store/retrieve the connection inside a thread
- * local variable. This makes getting a connection in a managed thread environment such as Tomcat
- * very fast but has the limitation that it only works if # of threads <= # of connections. Should
- * it detect that this isn't the case anymore, this class will flip back permanently to the configured
- * fallback strategy (i.e. default strategy) and makes sure that currently assigned and unused
- * connections are taken back.
- * 
+/** A connection strategy that prefers to hand a thread the same connection it had last time. This makes getting
+ * a connection in a managed thread environment such as Tomcat very fast, and keeps each connection's statement
+ * cache warm for the thread that keeps coming back to it.
+ *
+ * The preference is just a hint though, threads don't own their connection: it goes back to the pool on close like
+ * any other. If some other thread has taken it in the meantime, we get one via the configured fallback strategy
+ * (i.e. default strategy) and prefer that one from then on. There is therefore nothing to switch over when threads
+ * start to outnumber connections, or back again once they no longer do.
+ *
  * @author wallacew
  *
  */
@@ -46,194 +36,105 @@ public class CachedConnectionStrategy extends AbstractConnectionStrategy {
 	/**  uid */
 	private static final long serialVersionUID = -4725640468699097218L;
 
-	/** Logger class. */
-	private static final Logger logger = LoggerFactory.getLogger(CachedConnectionStrategy.class);
+	/** Obtain connections using this fallback strategy whenever the thread's last connection isn't free. */
+	private AbstractConnectionStrategy fallbackStrategy;
+
+	/** Connection each thread obtained last, if any. Only weakly held: threads (eg those of an app server) can
+	 * outlive the pool, and a strong reference would keep the pool, and the classloader it came from, alive
+	 * for as long as they do. We hold on to the connection rather than its handle, which is recreated on every
+	 * close, so the reference only has to be replaced when a thread moves on to another connection. */
+	protected final ThreadLocal<WeakReference<ConnectionHandle.LatestHandle>> lastConnection = new ThreadLocal<WeakReference<ConnectionHandle.LatestHandle>>();
 
-	/** Just to give out a warning once. */
-	private volatile AtomicBoolean warnApp = new AtomicBoolean();
-	/** Keep track of connections tied to thread. */
-	final protected Map<ConnectionHandle, Reference<Thread>> threadFinalizableRefs = new ConcurrentHashMap<ConnectionHandle, Reference<Thread>>();
-	/** Keep track of connections tied to thread. */
-	private FinalizableReferenceQueue finalizableRefQueue = new FinalizableReferenceQueue();
-	/** Obtain connections using this fallback strategy at first (or if this strategy cannot
-	 * succeed.
-	 */
-	private ConnectionStrategy fallbackStrategy;
-	 
-	/** Connections are stored here. */
-	protected CachedConnectionStrategyThreadLocal<SimpleEntry<ConnectionHandle, Boolean>> tlConnections;
-	
 	/**
-	 * @param defaultConnectionStrategy 
-	 * @param boneCP 
+	 * @param pool pool handle
+	 * @param fallbackStrategy strategy to use if the thread's last connection is not available.
 	 */
-	public CachedConnectionStrategy(BoneCP pool, ConnectionStrategy fallbackStrategy){ 
+	public CachedConnectionStrategy(BoneCP pool, AbstractConnectionStrategy fallbackStrategy){
 		 this.pool = pool;
-		 this.fallbackStrategy = fallbackStrategy; 
-		 tlConnections = new CachedConnectionStrategyThreadLocal<SimpleEntry<ConnectionHandle, Boolean>>(this, this.fallbackStrategy); 
-	}
-	
-	
-	
-	
-	/**
-	 * Tries to close off all the unused assigned connections back to the pool. Assumes that
-	 * the strategy mode has already been flipped prior to calling this routine.
-	 * Called whenever our no of connection requests > no of threads. 
-	 */
-	protected synchronized void stealExistingAllocations(){
-		
-		for (ConnectionHandle handle: this.threadFinalizableRefs.keySet()){
-			// if they're not in use, pretend they are in use now and close them off.
-			// this method assumes that the strategy has been flipped back to non-caching mode
-			// prior to this method invocation.
-			if (handle.logicallyClosed.compareAndSet(true, false)){ 
-				try {
-					this.pool.releaseConnection(handle);
-				} catch (SQLException e) {
-					logger.error("Error releasing connection", e);
-				}
-			}
-		}
-		if (this.warnApp.compareAndSet(false, true)){ // only issue warning once.
-			logger.warn("Cached strategy chosen, but more threads are requesting a connection than are configured. Switching permanently to default strategy.");
-		}
-		this.threadFinalizableRefs.clear();
-		
-	}
-	
-	/** Keep track of this handle tied to which thread so that if the thread is terminated
-	 * we can reclaim our connection handle. We also 
-	 * @param c connection handle to track.
-	 */
-	protected void threadWatch(final ConnectionHandle c) {
-		this.threadFinalizableRefs.put(c, new FinalizableWeakReference<Thread>(Thread.currentThread(), this.finalizableRefQueue) {
-			public void finalizeReferent() {
-					try {
-						if (!CachedConnectionStrategy.this.pool.poolShuttingDown){
-							logger.debug("Monitored thread is dead, closing off allocated connection.");
-						}
-						c.internalClose();
-					} catch (SQLException e) {
-						e.printStackTrace();
-					}
-					CachedConnectionStrategy.this.threadFinalizableRefs.remove(c);
-			}
-		});
+		 this.fallbackStrategy = fallbackStrategy;
 	}
 
 	@Override
 	protected Connection getConnectionInternal() throws SQLException {
-		// try to get the connection from thread local storage.
-		SimpleEntry<ConnectionHandle, Boolean> result = this.tlConnections.get();
-		// we should always be successful. If not, it means we have more threads asking
-		// us for a connection than we've got available. This is not supported so we flip
-		// back our strategy.
+		ConnectionHandle result = pollPreferred(lastConnection());
 		if (result == null){
-			this.pool.cachedPoolStrategy = false;
-			this.pool.connectionStrategy = this.fallbackStrategy;
-			stealExistingAllocations();
-			// get a connection as if under our fallback strategy now.
-			return (ConnectionHandle) this.pool.connectionStrategy.getConnection();
+			result = (ConnectionHandle) this.fallbackStrategy.getConnectionInternal();
+			if (result != null){ // could be null on timeout
+				prefer(result);
+			}
 		}
-		
-		return result.getKey();
+
+		return result;
 	}
 
 	@Override
 	public ConnectionHandle pollConnection() {
-		throw new UnsupportedOperationException();
-	}
-
-
-
-	public void terminateAllConnections() {
-		for (ConnectionHandle conn : this.threadFinalizableRefs.keySet()){
-			this.pool.destroyConnection(conn);
+		ConnectionHandle result = pollPreferred(lastConnection());
+		if (result == null){
+			result = this.fallbackStrategy.pollConnection();
+			if (result != null){
+				prefer(result);
+			}
 		}
-		this.threadFinalizableRefs.clear();
-		
-		this.fallbackStrategy.terminateAllConnections();
+
+		return result;
 	}
-	
-	/* (non-Javadoc)
-	 * @see com.jolbox.bonecp.AbstractConnectionStrategy#cleanupConnection(com.jolbox.bonecp.ConnectionHandle)
+
+	/** Returns the connection this thread obtained last.
+	 * @return connection, or null if none (or it has since been garbage collected)
 	 */
-	@Override
-	public void cleanupConnection(ConnectionHandle oldHandle, ConnectionHandle newHandle) {
-		this.threadFinalizableRefs.remove(oldHandle);
-		this.threadWatch(newHandle);
+	private ConnectionHandle lastConnection(){
+		WeakReference<ConnectionHandle.LatestHandle> last = this.lastConnection.get();
+		ConnectionHandle.LatestHandle latest = last == null ? null : last.get();
+		return latest == null ? null : latest.handle;
 	}
 
-
-
-/**
- * This is moved here to aid testing by exposing a dumbGet() method.
- * @author wwadge
- *
- */
- protected class CachedConnectionStrategyThreadLocal<T> extends ThreadLocal<SimpleEntry<ConnectionHandle, Boolean>> {
-
-	private ConnectionStrategy fallbackStrategy;
-	private CachedConnectionStrategy ccs;
-
-	public CachedConnectionStrategyThreadLocal(CachedConnectionStrategy ccs, ConnectionStrategy fallbackStrategy){
-		this.fallbackStrategy = fallbackStrategy;
-		this.ccs = ccs;
+	/** Makes the given connection this thread's preference from now on.
+	 * @param handle connection obtained by this thread
+	 */
+	private void prefer(ConnectionHandle handle){
+		WeakReference<ConnectionHandle.LatestHandle> last = this.lastConnection.get();
+		if (last == null || last.get() != handle.latestHandle){
+			this.lastConnection.set(new WeakReference<ConnectionHandle.LatestHandle>(handle.latestHandle));
+		}
 	}
 
-	@Override
-	protected SimpleEntry<ConnectionHandle, Boolean> initialValue() {
-		SimpleEntry<ConnectionHandle, Boolean> result = null;
-		ConnectionHandle c = null;
-		// grab a connection from any other configured fallback strategy
-		for (int i=0; i < 4*3; i++){	// there is a slight race with the pool watch creation thread so spin for a bit
-			// no big deal if it keeps failing, we just switch to default connection strategy
-			c = (ConnectionHandle)this.fallbackStrategy.pollConnection();
-			if (c != null){
-				break;
-			}
-
-			// oh-huh? either we are racing while resizing the pool or else no of threads > no of connections. Let's wait a bit 
-			// and try again one last time
-			Uninterruptibles.sleepUninterruptibly(100, TimeUnit.MILLISECONDS);
+	/** Takes the given connection out of its partition's free queue, if it's still there.
+	 * @param preferred connection obtained by this thread last time, or null
+	 * @return the connection, claimed for use, or null if it's not free
+	 */
+	private ConnectionHandle pollPreferred(ConnectionHandle preferred){
+		if (preferred == null){
+			return null;
 		}
-
-
-		if (c != null){
-			result = new SimpleEntry<ConnectionHandle, Boolean>(c, false);
-			this.ccs.threadWatch(c);
+		ConnectionPartition partition = preferred.getOriginatingPartition();
+		// the bag looks in the slot this thread released into first, so normally this is just the one CAS. A 
+		// connection set aside for the partition's keys is left alone though, as with any other getConnection().
+		if (!partition.getFreeConnectionBag().removeUnreserved(preferred)){
+			return null;
 		}
-
-		return result;
-	}
-
-
-	public SimpleEntry<ConnectionHandle, Boolean> dumbGet(){
-		return super.get();
+		if (!preferred.claimForUse()){
+			return null; // a maintenance task is checking it and will put it back.
+		}
+		if (this.pool.statisticsEnabled){
+			partition.incrementHits();
+		}
+		if (!partition.isUnableToCreateMoreTransactions()){
+			this.pool.maybeSignalForMoreConnections(partition);
+		}
+		return preferred;
 	}
 
+	/** Same partition as the fallback strategy, which is where this thread waits when its connection is taken.
+	 * @see com.jolbox.bonecp.AbstractConnectionStrategy#homePartition()
+	 */
 	@Override
-	public SimpleEntry<ConnectionHandle, Boolean> get() {
-		SimpleEntry<ConnectionHandle, Boolean> result = super.get();
-		// have we got one that's cached and unused? Mark it as in use. 
-		if (result == null || result.getValue()){
-			// ... otherwise grab a new connection 
-			ConnectionHandle fallbackConnection = (ConnectionHandle)this.fallbackStrategy.pollConnection();
-			if (fallbackConnection == null){
-				return null;
-			}
-			result = new SimpleEntry<ConnectionHandle, Boolean>(fallbackConnection, false);
-		} 
-
-		result.setValue(true);
-
-		result.getKey().logicallyClosed.set(false);
-		return result;
+	protected int homePartition(){
+		return this.fallbackStrategy.homePartition();
 	}
-}
-
 
-	
-	
+	public void terminateAllConnections() {
+		this.lastConnection.remove(); // other threads' entries are only weakly held, they go once the pool is gone.
+		this.fallbackStrategy.terminateAllConnections();
+	}
 }
@@ -0,0 +1,563 @@
+/**
+ *  Copyright 2010 Wallace Wadge
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.jolbox.bonecp;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lock-free holder of free connections, used in place of a LinkedBlockingQueue.
+ *
+ * Items live in a fixed array of slots that are claimed and released via CAS so neither offer nor poll
+ * takes a lock or allocates a node. Each thread remembers the slot it last used and tries that one first,
+ * which means that a thread will normally get back the very connection it has just released. The memory is a small
+ * table in the bag, with threads picking their entry by thread id the way StripedCounter picks its cells, rather
+ * than a ThreadLocal: a thread that only ever asks for one connection then doesn't pay for setting one up, and
+ * threads that happen to share an entry merely start off from each other's slot. Threads that
+ * find the bag empty join a {@link ConnectionWaitQueue}, normally shared by every partition in the pool, and
+ * a releasing thread will then wake up the oldest of them to come and get its item. The item is only handed over
+ * directly, without going through the slots, to an asynchronous request or a thread that has been kept waiting too
+ * long already.
+ *
+ * The memory of the last slot used can be turned off for pools serving very many short-lived threads, where it
+ * would hardly ever pay off. Threads then start searching from a slot derived from their id instead.
+ *
+ * Ordering is not guaranteed, except in LIFO mode: there every thread takes the item in the lowest filled slot and
+ * places items in the lowest empty one, so the items released most recently are the ones handed out next. Items
+ * that aren't needed to meet the current demand collect in the high slots and are not touched at all. 
+ *
+ * Some of the items can be set aside (see reserve()) for callers that take them with pollReserved() or
+ * pollOwn(timeout, unit, true). Everyone else only gets the items beyond those: poll() and friends act as if the
+ * bag were empty once no more than the reserved number of items are left, and items released into the bag are no
+ * longer handed to waiters that can't have them.
+ *
+ * @author wallacew
+ * @param <E> item type
+ */
+public class ConnectionBag<E> extends AbstractQueue<E> implements BlockingQueue<E> {
+	/** Number of entries in lastUsedSlot (a power of 2). */
+	private static final int HINTS = 64;
+	/** Distance between two entries in lastUsedSlot, in ints. 16 ints = 64 bytes = one cache line. */
+	private static final int HINT_PADDING = 16;
+	/** Free items. A null slot is an empty slot. */
+	private final AtomicReferenceArray<E> slots;
+	/** Number of items held (or about to be held) in the slots. */
+	private final AtomicInteger count = new AtomicInteger();
+	/** Number of items set aside for pollReserved(). */
+	private final AtomicInteger reserved = new AtomicInteger();
+	/** Threads waiting for an item, possibly shared with other bags. */
+	private final ConnectionWaitQueue<E> waitQueue;
+	/** Slot last taken from or placed an item in by the threads sharing each entry (see hint()), or null if we don't
+	 * keep track. Plain ints: a stale or lost update only means starting the search somewhere else. */
+	private final int[] lastUsedSlot;
+	/** If true, always work from the lowest slot upwards. */
+	private final boolean lifo;
+	/** Used to wake up waiting threads when an item is placed in this bag. */
+	final ConnectionWaitQueue.Signal signal = new ConnectionWaitQueue.Signal(this);
+
+	/** Creates a bag that can hold the given number of items.
+	 * @param capacity max number of items.
+	 */
+	public ConnectionBag(int capacity) {
+		this(capacity, new ConnectionWaitQueue<E>(null));
+	}
+
+	/** Creates a bag that can hold the given number of items, handing them over to threads waiting on the given
+	 * queue.
+	 * @param capacity max number of items.
+	 * @param waitQueue waiting threads, usually shared by all the bags in a pool.
+	 */
+	public ConnectionBag(final int capacity, ConnectionWaitQueue<E> waitQueue) {
+		this(capacity, waitQueue, true);
+	}
+
+	/** Creates a bag that can hold the given number of items, handing them over to threads waiting on the given
+	 * queue.
+	 * @param capacity max number of items.
+	 * @param waitQueue waiting threads, usually shared by all the bags in a pool.
+	 * @param threadAffinity if true, remember the slot each thread last used and try that one first. If false, 
+	 * no per-thread state is kept.
+	 */
+	public ConnectionBag(final int capacity, ConnectionWaitQueue<E> waitQueue, boolean threadAffinity) {
+		this(capacity, waitQueue, threadAffinity, false);
+	}
+
+	/** Creates a bag that can hold the given number of items, handing them over to threads waiting on the given
+	 * queue.
+	 * @param capacity max number of items.
+	 * @param waitQueue waiting threads, usually shared by all the bags in a pool.
+	 * @param threadAffinity if true, remember the slot each thread last used and try that one first. If false, 
+	 * no per-thread state is kept.
+	 * @param lifo if true, hand out the items released most recently first. Threads then have no affinity to any
+	 * slot, whatever threadAffinity is set to. 
+	 */
+	public ConnectionBag(final int capacity, ConnectionWaitQueue<E> waitQueue, boolean threadAffinity, boolean lifo) {
+		if (capacity <= 0){
+			throw new IllegalArgumentException("Capacity must be > 0");
+		}
+		this.slots = new AtomicReferenceArray<E>(capacity);
+		this.lifo = lifo;
+		if (threadAffinity && !lifo){
+			this.lastUsedSlot = new int[HINTS * HINT_PADDING];
+			for (int i=0; i < HINTS; i++){
+				// spread threads out over the slots to start with.
+				this.lastUsedSlot[i * HINT_PADDING] = i % capacity;
+			}
+		} else {
+			this.lastUsedSlot = null;
+		}
+		this.waitQueue = waitQueue;
+		this.waitQueue.register(this);
+	}
+
+	/** Retrieves an item, trying the slot last used by this thread first. Items set aside by reserve() are left
+	 * alone.
+	 * @return an item or null if the bag is empty, or only holds reserved items.
+	 */
+	public E poll() {
+		return poll(false);
+	}
+
+	/** Retrieves an item, including one of those set aside by reserve().
+	 * @return an item or null if the bag is empty.
+	 */
+	public E pollReserved() {
+		return poll(true);
+	}
+
+	/** Retrieves the item in the highest filled slot, leaving items set aside by reserve() alone. In LIFO mode
+	 * that's the item that has gone unused the longest.
+	 * @return an item or null if the bag is empty, or only holds reserved items.
+	 */
+	public E pollLast() {
+		if (this.count.get() <= this.reserved.get()){
+			return null;
+		}
+		for (int idx = this.slots.length() - 1; idx >= 0; idx--){
+			E item = this.slots.get(idx);
+			if (item != null && this.slots.compareAndSet(idx, item, null)){
+				int left = this.count.decrementAndGet();
+				return putBackIfReserved(item, left) ? null : item;
+			}
+		}
+		return null;
+	}
+
+	/** Retrieves an item, trying the slot last used by this thread first.
+	 * @param reserved if true, the item may be one of those set aside by reserve().
+	 * @return an item or null if there's none to be had.
+	 */
+	private E poll(boolean reserved) {
+		if (this.count.get() <= (reserved ? 0 : this.reserved.get())){
+			return null;
+		}
+		int capacity = this.slots.length();
+		int hint = hint();
+		int idx = hint < 0 ? startSlot(capacity) : this.lastUsedSlot[hint];
+		for (int i=0; i < capacity; i++){
+			E item = this.slots.get(idx);
+			if (item != null && this.slots.compareAndSet(idx, item, null)){
+				int left = this.count.decrementAndGet();
+				remember(hint, idx);
+				if (!reserved && putBackIfReserved(item, left)){
+					return null;
+				}
+				return item;
+			}
+			if (++idx == capacity){
+				idx = 0;
+			}
+		}
+		return null;
+	}
+
+	/** Puts back an item just taken by a caller that may only take unreserved items, if others took the last of
+	 * those at the same time.
+	 * @param item item taken
+	 * @param left items left in the bag after taking it
+	 * @return true if the item went back, false if it's the caller's to keep.
+	 */
+	private boolean putBackIfReserved(E item, int left){
+		return left < this.reserved.get() && offer(item);
+	}
+
+	/** Sets aside (or, if negative, gives up) the given number of items for callers of pollReserved(). Setting
+	 * aside more items than the bag holds keeps everyone else waiting until it holds more.
+	 * @param items number of items to add to the reservation
+	 */
+	protected void reserve(int items){
+		this.reserved.addAndGet(items);
+		if (items < 0 && this.waitQueue.hasWaiters()){
+			// items set aside until now might be up for grabs.
+			this.waitQueue.signal(this);
+		}
+	}
+
+	/** Returns the number of items beyond those set aside by reserve().
+	 * @return unreserved items, 0 if there are none.
+	 */
+	public int unreservedSize(){
+		return Math.max(this.count.get() - this.reserved.get(), 0);
+	}
+
+	/** Retrieves an item, waiting up to the given time for one to be released into this or any other bag
+	 * sharing the same wait queue.
+	 * @param timeout how long to wait
+	 * @param unit time granularity
+	 * @return an item, or null on timeout
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+		E result = poll();
+		if (result == null){
+			result = this.waitQueue.poll(this, timeout, unit);
+		}
+		return result;
+	}
+
+	/** Retrieves an item from this bag, waiting up to the given time for one to be released into it. Unlike 
+	 * poll(timeout, unit), items released into other bags sharing the same wait queue are not taken.
+	 * @param timeout how long to wait
+	 * @param unit time granularity
+	 * @return an item, or null on timeout
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public E pollOwn(long timeout, TimeUnit unit) throws InterruptedException {
+		return pollOwn(timeout, unit, false);
+	}
+
+	/** Same as pollOwn(timeout, unit), but optionally taking one of the items set aside by reserve() as well.
+	 * @param timeout how long to wait
+	 * @param unit time granularity
+	 * @param reserved if true, the item may be one of those set aside.
+	 * @return an item, or null on timeout
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public E pollOwn(long timeout, TimeUnit unit, boolean reserved) throws InterruptedException {
+		E result = poll(reserved);
+		if (result == null){
+			result = this.waitQueue.pollOwn(this, reserved, timeout, unit);
+		}
+		return result;
+	}
+
+	/** Places an item in the bag and wakes up a waiting thread, or hands it over directly to a waiter that can't
+	 * wait any longer.
+	 * @param item to add
+	 * @return false if the bag is already full.
+	 */
+	public boolean offer(E item) {
+		return offer(item, false);
+	}
+
+	/** Places an item in the bag behind all the others, ie in the highest empty slot, or hands it over directly to
+	 * a waiting thread. In LIFO mode, this keeps an item that hasn't really been used (eg a connection that has just
+	 * been tested) from being handed out ahead of the ones that have. Otherwise this is the same as offer(item).
+	 * @param item to add
+	 * @return false if the bag is already full.
+	 */
+	public boolean offerLast(E item) {
+		return offer(item, this.lifo);
+	}
+
+	/** Places an item in the bag and wakes up a waiting thread, or hands it over directly to a waiter that can't
+	 * wait any longer.
+	 * @param item to add
+	 * @param last if true, store it in the highest empty slot.
+	 * @return false if the bag is already full.
+	 */
+	private boolean offer(E item, boolean last) {
+		if (item == null){
+			throw new NullPointerException();
+		}
+		if (this.waitQueue.hasWaiters() && this.waitQueue.handoff(this, item, this.count.get() >= this.reserved.get())){
+			return true;
+		}
+
+		if (this.count.incrementAndGet() > this.slots.length()){
+			this.count.decrementAndGet();
+			return false;
+		}
+		int idx = store(item, last);
+		if (this.waitQueue.hasWaiters() && stored(item, idx, last)){
+			return true;
+		}
+		this.waitQueue.itemQueued();
+		return true;
+	}
+
+	/** Lets the threads waiting for an item know that one has just been stored, or hands it over directly to an
+	 * asynchronous request that could otherwise miss it.
+	 * @param item item stored
+	 * @param idx slot it was stored in
+	 * @param last if true, store it in the highest empty slot should it have to go back.
+	 * @return true if the item was handed over, and so is no longer in the bag.
+	 */
+	private boolean stored(E item, int idx, boolean last){
+		// An asynchronous request might have started waiting after we checked but before we filled our slot, in
+		// which case it could have missed the item and has no thread to come and look again. If it's still there,
+		// hand it over directly instead.
+		if (this.waitQueue.hasAsyncWaiters() && this.slots.compareAndSet(idx, item, null)){
+			if (this.waitQueue.handoff(this, item, this.count.get() > this.reserved.get())){
+				this.count.decrementAndGet();
+				return true;
+			}
+			store(item, last); // the waiters have gone away in the meantime; our space is still reserved.
+		}
+		// a waiting thread might not get to it first, but then whoever does doesn't have to wait.
+		this.waitQueue.signal(this);
+		return false;
+	}
+
+	/** Stores the item in a free slot, starting with the one last used by this thread. The caller must
+	 * already have reserved space for it.
+	 * @param item to store
+	 * @param last if true, store it in the highest empty slot instead.
+	 * @return slot index used.
+	 */
+	private int store(E item, boolean last){
+		int capacity = this.slots.length();
+		if (last){
+			int idx = capacity - 1;
+			for (;;){
+				if (this.slots.get(idx) == null && this.slots.compareAndSet(idx, null, item)){
+					return idx;
+				}
+				if (--idx < 0){
+					idx = capacity - 1;
+				}
+			}
+		}
+		int hint = hint();
+		int idx = hint < 0 ? startSlot(capacity) : this.lastUsedSlot[hint];
+		for (;;){
+			if (this.slots.get(idx) == null && this.slots.compareAndSet(idx, null, item)){
+				remember(hint, idx);
+				return idx;
+			}
+			if (++idx == capacity){
+				idx = 0;
+			}
+		}
+	}
+
+	/** Returns the entry in lastUsedSlot that holds the slot the calling thread last used.
+	 * @return index into lastUsedSlot, or -1 if we don't keep track.
+	 */
+	private int hint(){
+		if (this.lastUsedSlot == null){
+			return -1;
+		}
+		return ((PoolUtil.threadHash() >>> 1) % HINTS) * HINT_PADDING;
+	}
+
+	/** Records the slot the calling thread has just used, unless it's the one recorded already.
+	 * @param hint entry in lastUsedSlot as returned by hint()
+	 * @param idx slot used
+	 */
+	private void remember(int hint, int idx){
+		if (hint >= 0 && this.lastUsedSlot[hint] != idx){
+			this.lastUsedSlot[hint] = idx;
+		}
+	}
+
+	/** Picks the slot to start searching from when we don't keep track of the slot each thread last used. In LIFO
+	 * mode, that's always the lowest one.
+	 * @param capacity number of slots
+	 * @return slot index
+	 */
+	private int startSlot(int capacity){
+		if (this.lifo){
+			return 0;
+		}
+		return (PoolUtil.threadHash() >>> 1) % capacity;
+	}
+
+	/** Same as offer(item). The bag never blocks on insertion.
+	 * @param item to add
+	 * @param timeout ignored
+	 * @param unit ignored
+	 * @return false if the bag is already full.
+	 */
+	public boolean offer(E item, long timeout, TimeUnit unit) {
+		return offer(item);
+	}
+
+	/** Adds the item to the bag.
+	 * @param item to add
+	 * @throws IllegalStateException if the bag is full.
+	 */
+	public void put(E item) {
+		if (!offer(item)){
+			throw new IllegalStateException("Bag full");
+		}
+	}
+
+	/** Retrieves an item, waiting for as long as it takes.
+	 * @return an item
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public E take() throws InterruptedException {
+		E result = null;
+		while (result == null){
+			result = poll(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		}
+		return result;
+	}
+
+	/** Returns any item without removing it.
+	 * @return an item or null if empty.
+	 */
+	public E peek() {
+		for (int i=0; i < this.slots.length(); i++){
+			E item = this.slots.get(i);
+			if (item != null){
+				return item;
+			}
+		}
+		return null;
+	}
+
+	/** Removes the given item if it's currently in the bag, starting with the slot last used by this thread (which
+	 * is where an item this thread has just released will be).
+	 * @param o item to remove
+	 * @return true if it was removed by this call.
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public boolean remove(Object o) {
+		if (o == null || this.count.get() == 0){
+			return false;
+		}
+		int capacity = this.slots.length();
+		int hint = hint();
+		int idx = hint < 0 ? 0 : this.lastUsedSlot[hint];
+		for (int i=0; i < capacity; i++){
+			if (this.slots.get(idx) == o && this.slots.compareAndSet(idx, (E)o, null)){
+				this.count.decrementAndGet();
+				return true;
+			}
+			if (++idx == capacity){
+				idx = 0;
+			}
+		}
+		return false;
+	}
+
+	/** Removes the given item if it's currently in the bag, unless it's needed to make up the items set aside by
+	 * reserve().
+	 * @param o item to remove
+	 * @return true if it was removed by this call.
+	 */
+	public boolean removeUnreserved(Object o) {
+		if (this.count.get() <= this.reserved.get() || !remove(o)){
+			return false;
+		}
+		@SuppressWarnings("unchecked")
+		E item = (E) o;
+		return !putBackIfReserved(item, this.count.get());
+	}
+
+	/** Number of items in the bag.
+	 * @return size
+	 */
+	@Override
+	public int size() {
+		return this.count.get();
+	}
+
+	/** Returns the number of items that can still be added.
+	 * @return free space.
+	 */
+	public int remainingCapacity() {
+		return this.slots.length() - this.count.get();
+	}
+
+	/** Returns the number of threads currently waiting for an item.
+	 * @return waiting threads.
+	 */
+	public int getWaitingThreadCount(){
+		return this.waitQueue.getWaitingThreadCount();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 *
+	 * @see java.util.concurrent.BlockingQueue#drainTo(java.util.Collection)
+	 */
+	public int drainTo(Collection<? super E> c) {
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 *
+	 * @see java.util.concurrent.BlockingQueue#drainTo(java.util.Collection, int)
+	 */
+	public int drainTo(Collection<? super E> c, int maxElements) {
+		int drained = 0;
+		E item;
+		while (drained < maxElements && (item = pollReserved()) != null){
+			c.add(item);
+			drained++;
+		}
+		return drained;
+	}
+
+	/** Returns an iterator over a snapshot of the items currently in the bag. Removing via the iterator
+	 * removes the item from the bag if it's still there.
+	 * @return iterator
+	 */
+	@Override
+	public Iterator<E> iterator() {
+		List<E> snapshot = new ArrayList<E>(this.count.get());
+		for (int i=0; i < this.slots.length(); i++){
+			E item = this.slots.get(i);
+			if (item != null){
+				snapshot.add(item);
+			}
+		}
+		final Iterator<E> it = snapshot.iterator();
+		return new Iterator<E>() {
+			/** Last item returned. */
+			private E last;
+
+			public boolean hasNext() {
+				return it.hasNext();
+			}
+
+			public E next() {
+				this.last = it.next();
+				return this.last;
+			}
+
+			public void remove() {
+				if (this.last == null){
+					throw new IllegalStateException();
+				}
+				ConnectionBag.this.remove(this.last);
+				this.last = null;
+			}
+		};
+	}
+}
@@ -43,6 +43,7 @@ import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -88,16 +89,22 @@ public class ConnectionHandle implements Connection,Serializable{
 	protected long connectionCreationTimeInMs;
 	/** Pool handle. */
 	private BoneCP pool; 
-	/** Config setting. */
-	private Boolean defaultReadOnly;
-	/** Config setting. */
-	private String defaultCatalog;
-	/** Config setting. */
-	private int defaultTransactionIsolationValue = -1;
-	/** Config setting. */
-	private Boolean defaultAutoCommit;
-	/** Config setting. */
-	protected boolean resetConnectionOnClose;
+	/** Config settings, shared by all the handles of the pool. */
+	@VisibleForTesting protected Settings settings;
+	/** Last time a statement completed successfully on this connection, or 0 if it has failed since. */
+	private volatile long lastStatementSucceededInMs;
+	/** Auto-commit mode as last set on (or read from) the connection, or null if we have to ask the driver. */
+	private Boolean autoCommitState;
+	/** Read-only mode as last set on (or read from) the connection, or null if we have to ask the driver. */
+	private Boolean readOnlyState;
+	/** Catalog as last set on (or read from) the connection. Only valid if catalogStateKnown is true. */
+	private String catalogState;
+	/** If true, catalogState holds the connection's catalog (which may legitimately be null). */
+	private boolean catalogStateKnown;
+	/** Transaction isolation as last set on (or read from) the connection, or -1 if we have to ask the driver. */
+	private int transactionIsolationState = -1;
+	/** If true, a statement may have run since the last commit or rollback so there might be work to roll back. */
+	private boolean transactionDirty = true;
 	/**
 	 * If true, this connection might have failed communicating with the
 	 * database. We assume that exceptions should be rare here i.e. the normal
@@ -106,6 +113,29 @@ public class ConnectionHandle implements Connection,Serializable{
 	protected boolean possiblyBroken;
 	/** If true, we've called close() on this connection. */
 	protected AtomicBoolean logicallyClosed = new AtomicBoolean();
+	/** Free, in use, or being checked in place by a maintenance task. Maintenance tasks check connections while
+	 * they sit in the free queue rather than taking them out of it. Shared by all handles on the same physical
+	 * connection, of which only the latest is ever in the free queue. */
+	private final AtomicInteger queueState;
+	/** Queue state: free (or about to be placed in the free queue). */
+	private static final int STATE_FREE = 0;
+	/** Queue state: handed out. */
+	private static final int STATE_IN_USE = 1;
+	/** Queue state: being checked while still in the free queue. */
+	private static final int STATE_CHECKING = 2;
+	/** Queue state: taken out of the free queue while being checked. The check puts it back if it passes. */
+	private static final int STATE_SKIPPED = 3;
+	/** Queue state: failed a check, will be closed. */
+	private static final int STATE_RETIRED = 4;
+	/** Progress in replacing this connection once it has expired. Shared by all handles on the same physical
+	 * connection. */
+	private final AtomicInteger replacementState;
+	/** Replacement state: nobody has dealt with this connection expiring (if it has). */
+	private static final int REPLACEMENT_NONE = 0;
+	/** Replacement state: a replacement is being opened. This connection stays in use until it's ready. */
+	private static final int REPLACEMENT_PENDING = 1;
+	/** Replacement state: the replacement is in the pool, so this connection is to be closed. */
+	private static final int REPLACEMENT_DONE = 2;
 	/** Original partition. */
 	private ConnectionPartition originatingPartition = null;
 	/** Prepared Statement Cache. */
@@ -116,13 +146,9 @@ public class ConnectionHandle implements Connection,Serializable{
 	protected static Logger logger = LoggerFactory.getLogger(ConnectionHandle.class);
 	/** An opaque handle for an application to use in any way it deems fit. */
 	private Object debugHandle;
-	/** Handle to the connection hook as defined in the config. */
-	private ConnectionHook connectionHook;
-	/** If true, give warnings if application tried to issue a close twice (for debugging only). */
-	protected boolean doubleCloseCheck;
 	/** exception trace if doubleCloseCheck is enabled. */  
 	protected volatile String doubleCloseException = null;
-	/** If true, log sql statements. */
+	/** If true, log sql statements. Starts out as configured for each lease, but the application may change it. */
 	private boolean logStatementsEnabled;
 	/** Set to true if we have statement caching enabled. */
 	protected boolean statementCachingEnabled;
@@ -132,34 +158,28 @@ public class ConnectionHandle implements Connection,Serializable{
 	private boolean inReplayMode;
 	/** Map of translations + result from last recovery. */
 	protected TransactionRecoveryResult recoveryResult;
-	/** Connection url. */
-	protected String url;	
 	/** Keep track of the thread. */
 	protected Thread threadUsingConnection;
-	/** Configured max connection age. */
+	/** Configured max connection age, less this connection's share of the jitter. */
 	@VisibleForTesting protected long maxConnectionAgeInMs;
-	/** if true, we care about statistics. */
-	private boolean statisticsEnabled;
 	/** Statistics handle. */
 	private Statistics statistics;
+	/** Statements to go before we time one again. */
+	private int statisticsSampleCountdown;
 	/** Pointer to a thread that is monitoring this connection (for the case where closeConnectionWatch) is
 	 * enabled.
 	 */
 	private volatile Thread threadWatch;
+	/** Reservation of the key this connection was obtained for (see KeyedPartitions), if it counts against it. */
+	protected KeyedPartitions.Reservation reservation;
+	/** True if this connection was one of those set aside for its key. */
+	protected boolean reservationClaimed;
 	/** Handle to pool.finalizationRefs. */
 	protected Map<Connection, Reference<ConnectionHandle>> finalizableRefs;
-	/** If true, connection tracking is disabled in the config. */
-	protected boolean connectionTrackingDisabled;
 	/** If true, transaction has been marked as COMMITed or ROLLBACKed. */
 	@VisibleForTesting protected boolean txResolved = true;
-	/** Config setting. */
-	@VisibleForTesting protected boolean detectUnresolvedTransactions;
 	/** Stack track dump. */
 	protected String autoCommitStackTrace;
-	/** Config setting. */
-	protected boolean detectUnclosedStatements;
-	/** Config setting. */
-	protected boolean closeOpenStatements;
 
 	/*
 	 * From: http://publib.boulder.ibm.com/infocenter/db2luw/v8/index.jsp?topic=/com.ibm.db2.udb.doc/core/r0sttmsg.htm
@@ -184,6 +204,89 @@ public class ConnectionHandle implements Connection,Serializable{
 	protected ConcurrentMap<Statement, String> trackedStatement;
 	/** Avoid creating a new string object each time. */
 	private final String noStackTrace = "";
+	/** Shared by all the handles our connection goes through, pointing to the latest one. */
+	protected LatestHandle latestHandle;
+
+	/** Follows a connection from one handle to the next as handles are recreated on close, so that something
+	 * holding on to the connection (eg the cached strategy's per-thread preference) doesn't need updating every time.
+	 */
+	protected static final class LatestHandle {
+		/** Handle the connection is currently in. */
+		protected volatile ConnectionHandle handle;
+
+		/** @param handle first handle of a connection */
+		LatestHandle(ConnectionHandle handle){
+			this.handle = handle;
+		}
+	}
+
+	/** The config settings a handle acts on, read from the config once per pool. Every handle of the pool
+	 * refers to the same instance, so recreating a handle on close only has to carry over the state of the
+	 * connection itself.
+	 */
+	protected static final class Settings {
+		/** Connection url. */
+		protected final String url;
+		/** Handle to the connection hook as defined in the config. */
+		protected final ConnectionHook connectionHook;
+		/** Config setting. */
+		protected final Boolean defaultReadOnly;
+		/** Config setting. */
+		protected final String defaultCatalog;
+		/** Config setting. */
+		protected final int defaultTransactionIsolationValue;
+		/** Config setting. */
+		protected final Boolean defaultAutoCommit;
+		/** Config setting. */
+		protected final boolean resetConnectionOnClose;
+		/** If true, trust the tracked session state to skip rollbacks and resets that aren't needed. */
+		protected final boolean trackSessionState;
+		/** If true, remember when the last statement completed successfully (validationTrustWindowInMs > 0). */
+		protected final boolean trackStatementSuccess;
+		/** If true, connection tracking is disabled in the config. */
+		protected final boolean connectionTrackingDisabled;
+		/** if true, we care about statistics. */
+		protected final boolean statisticsEnabled;
+		/** Config setting: only time 1 in every statisticsSampleRate statements. */
+		protected final int statisticsSampleRate;
+		/** Config setting. */
+		protected final boolean detectUnresolvedTransactions;
+		/** Config setting. */
+		protected final boolean detectUnclosedStatements;
+		/** Config setting. */
+		protected final boolean closeOpenStatements;
+		/** If true, give warnings if application tried to issue a close twice (for debugging only). */
+		protected final boolean doubleCloseCheck;
+		/** If true, log sql statements. */
+		protected final boolean logStatementsEnabled;
+		/** Configured max connection age. */
+		protected final long maxConnectionAgeInMs;
+		/** Config setting. */
+		protected final int maxConnectionAgeJitterPercent;
+
+		/** @param config pool config */
+		protected Settings(BoneCPConfig config){
+			this.url = config.getJdbcUrl();
+			this.connectionHook = config.getConnectionHook();
+			this.defaultReadOnly = config.getDefaultReadOnly();
+			this.defaultCatalog = config.getDefaultCatalog();
+			this.defaultTransactionIsolationValue = config.getDefaultTransactionIsolationValue();
+			this.defaultAutoCommit = config.getDefaultAutoCommit();
+			this.resetConnectionOnClose = config.isResetConnectionOnClose();
+			this.trackSessionState = config.isTrackSessionState();
+			this.trackStatementSuccess = config.getValidationTrustWindowInMs() > 0;
+			this.connectionTrackingDisabled = config.isDisableConnectionTracking();
+			this.statisticsEnabled = config.isStatisticsEnabled();
+			this.statisticsSampleRate = Math.max(1, config.getStatisticsSampleRate());
+			this.detectUnresolvedTransactions = config.isDetectUnresolvedTransactions();
+			this.detectUnclosedStatements = config.isDetectUnclosedStatements();
+			this.closeOpenStatements = config.isCloseOpenStatements();
+			this.doubleCloseCheck = config.isCloseConnectionWatch();
+			this.logStatementsEnabled = config.isLogStatementsEnabled();
+			this.maxConnectionAgeInMs = config.getMaxConnectionAge(TimeUnit.MILLISECONDS);
+			this.maxConnectionAgeJitterPercent = config.getMaxConnectionAgeJitterPercent();
+		}
+	}
 
 	/**
 	 * Internal constructor
@@ -197,9 +300,12 @@ public class ConnectionHandle implements Connection,Serializable{
 		boolean newConnection = connection == null;
 
 		
+		this.latestHandle = new LatestHandle(this);
+		this.queueState = new AtomicInteger(STATE_FREE);
+		this.replacementState = new AtomicInteger(REPLACEMENT_NONE);
 		this.originatingPartition = partition;
 		this.pool = pool;
-		this.connectionHook = pool.getConfig().getConnectionHook();
+		this.settings = pool.getConnectionHandleSettings();
 
 		if (!recreating){
 			connectionLastUsedInMs = System.currentTimeMillis();
@@ -207,32 +313,21 @@ public class ConnectionHandle implements Connection,Serializable{
 			connectionCreationTimeInMs = System.currentTimeMillis();
 		}
 
-		this.url = pool.getConfig().getJdbcUrl();
 		this.finalizableRefs = pool.getFinalizableRefs(); 
-		this.defaultReadOnly = pool.getConfig().getDefaultReadOnly();
-		this.defaultCatalog = pool.getConfig().getDefaultCatalog();
-		this.defaultTransactionIsolationValue = pool.getConfig().getDefaultTransactionIsolationValue();
-		this.defaultAutoCommit = pool.getConfig().getDefaultAutoCommit();
-		this.resetConnectionOnClose = pool.getConfig().isResetConnectionOnClose();
-		this.connectionTrackingDisabled = pool.getConfig().isDisableConnectionTracking();
-		this.statisticsEnabled = pool.getConfig().isStatisticsEnabled();
 		this.statistics = pool.getStatistics();
-		this.detectUnresolvedTransactions = pool.getConfig().isDetectUnresolvedTransactions();
-		this.detectUnclosedStatements = pool.getConfig().isDetectUnclosedStatements();
-		this.closeOpenStatements = pool.getConfig().isCloseOpenStatements();
-		if (this.closeOpenStatements){
+		if (this.settings.closeOpenStatements){
 			trackedStatement = new MapMaker().makeMap();
 		}
 		this.threadUsingConnection = null;
-		this.connectionHook = this.pool.getConfig().getConnectionHook();
 
-		this.maxConnectionAgeInMs = pool.getConfig().getMaxConnectionAge(TimeUnit.MILLISECONDS);
-		this.doubleCloseCheck = pool.getConfig().isCloseConnectionWatch();
-		this.logStatementsEnabled = pool.getConfig().isLogStatementsEnabled();
+		this.maxConnectionAgeInMs = this.settings.maxConnectionAgeInMs;
+		// spread expiry out so that connections opened together don't all have to be replaced together.
+		this.maxConnectionAgeInMs -= (long) (this.maxConnectionAgeInMs * Math.random() * this.settings.maxConnectionAgeJitterPercent / 100);
+		this.logStatementsEnabled = this.settings.logStatementsEnabled;
 		int cacheSize = pool.getConfig().getStatementsCacheSize();
 		if ( (cacheSize > 0) && newConnection ) {
-			this.preparedStatementCache = new StatementCache(cacheSize, pool.getConfig().isStatisticsEnabled(), pool.getStatistics());
-			this.callableStatementCache = new StatementCache(cacheSize, pool.getConfig().isStatisticsEnabled(), pool.getStatistics());
+			this.preparedStatementCache = new StatementCache(cacheSize, this.settings.statisticsEnabled, pool.getStatistics(), pool.getStatementCacheBudget(), pool.getStatementCacheWarmup());
+			this.callableStatementCache = new StatementCache(cacheSize, this.settings.statisticsEnabled, pool.getStatistics(), pool.getStatementCacheBudget());
 			this.statementCachingEnabled = true;
 		}
 
@@ -254,40 +349,130 @@ public class ConnectionHandle implements Connection,Serializable{
 		if(!newConnection && !connection.getAutoCommit() && !connection.isClosed()){
 			connection.rollback();
 		}
-		if (this.defaultAutoCommit != null){
-			setAutoCommit(this.defaultAutoCommit);
+		this.transactionDirty = false;
+		resetSessionState();
+	}
+
+	/**
+	 * Creates a handle for the next lease of the given handle's connection. The config settings are shared
+	 * with the previous handle, so only the state of the connection itself is carried over; a field added to
+	 * this class that isn't a config setting has to be copied here, unless it starts afresh for each lease.
+	 * @param handle previous handle
+	 * @throws SQLException
+	 */
+	private ConnectionHandle(ConnectionHandle handle) throws SQLException {
+		this.connection = handle.connection;
+		this.originatingPartition = handle.originatingPartition;
+		this.pool = handle.pool;
+		this.settings = handle.settings;
+		this.connectionCreationTimeInMs = handle.connectionCreationTimeInMs;
+		this.connectionLastResetInMs = handle.connectionLastResetInMs;
+		this.connectionLastUsedInMs = handle.connectionLastUsedInMs;
+		this.finalizableRefs = handle.finalizableRefs;
+		this.lastStatementSucceededInMs = handle.lastStatementSucceededInMs;
+		this.autoCommitState = handle.autoCommitState;
+		this.readOnlyState = handle.readOnlyState;
+		this.catalogState = handle.catalogState;
+		this.catalogStateKnown = handle.catalogStateKnown;
+		this.transactionIsolationState = handle.transactionIsolationState;
+		this.transactionDirty = handle.transactionDirty;
+		this.statistics = handle.statistics;
+		this.statisticsSampleCountdown = handle.statisticsSampleCountdown;
+		this.trackedStatement = handle.trackedStatement; // already emptied on close
+		this.maxConnectionAgeInMs = handle.maxConnectionAgeInMs;
+		this.queueState = handle.queueState; // in use until placed back in the free queue.
+		this.replacementState = handle.replacementState;
+		this.logStatementsEnabled = this.settings.logStatementsEnabled;
+		this.preparedStatementCache = handle.preparedStatementCache;
+		this.callableStatementCache = handle.callableStatementCache;
+		this.statementCachingEnabled = handle.statementCachingEnabled;
+		this.possiblyBroken = handle.possiblyBroken;
+		this.debugHandle = handle.debugHandle;
+		this.latestHandle = handle.latestHandle;
+		this.latestHandle.handle = this;
+		if (handle.replayLog != null){
+			this.replayLog = new ArrayList<ReplayLog>(30);
+			this.recoveryResult = new TransactionRecoveryResult();
 		}
-		if (this.defaultReadOnly != null){
-			setReadOnly(this.defaultReadOnly);
+
+		if (!this.settings.trackSessionState){
+			forgetSessionState(); // the application may have changed anything behind our back
 		}
-		if (this.defaultCatalog != null){
-			setCatalog(this.defaultCatalog);
+		// only roll back if there could be something to roll back: no statement since the last commit/rollback means no work.
+		if(this.transactionDirty && !this.connection.isClosed() && !getAutoCommitState()){
+			this.connection.rollback();
 		}
-		if (this.defaultTransactionIsolationValue != -1){
-			setTransactionIsolation(this.defaultTransactionIsolationValue);
+		this.transactionDirty = false;
+		resetSessionState();
+	}
+
+	/**
+	 * Sets the connection to the configured default state. Only the settings that differ from what we know the 
+	 * connection to have (i.e. those the application changed) are sent to the driver.
+	 * @throws SQLException
+	 */
+	private void resetSessionState() throws SQLException{
+		Settings settings = this.settings;
+		if (settings.defaultAutoCommit != null && !settings.defaultAutoCommit.equals(this.autoCommitState)){
+			setAutoCommit(settings.defaultAutoCommit);
 		}
+		if (settings.defaultReadOnly != null && !settings.defaultReadOnly.equals(this.readOnlyState)){
+			setReadOnly(settings.defaultReadOnly);
+		}
+		if (settings.defaultCatalog != null && !(this.catalogStateKnown && settings.defaultCatalog.equals(this.catalogState))){
+			setCatalog(settings.defaultCatalog);
+		}
+		if (settings.defaultTransactionIsolationValue != -1 && settings.defaultTransactionIsolationValue != this.transactionIsolationState){
+			setTransactionIsolation(settings.defaultTransactionIsolationValue);
+		}
+	}
+
+	/** Returns the auto-commit mode, only asking the driver if we don't know it already (or aren't tracking it).
+	 * @return auto-commit mode
+	 * @throws SQLException
+	 */
+	private boolean getAutoCommitState() throws SQLException{
+		if (this.autoCommitState == null || !this.settings.trackSessionState){
+			this.autoCommitState = this.connection.getAutoCommit();
+		}
+		return this.autoCommitState;
+	}
+
+	/** Forget everything we know about the session state, eg because the internal connection was swapped out or
+	 * handed to the application. */
+	private void forgetSessionState(){
+		this.autoCommitState = null;
+		this.readOnlyState = null;
+		this.catalogState = null;
+		this.catalogStateKnown = false;
+		this.transactionIsolationState = -1;
+		this.transactionDirty = true;
+	}
+
+	/** Notes that a statement is about to run on this connection, so there may be work to commit or roll back. */
+	protected void markStatementExecuted(){
+		this.transactionDirty = true;
+	}
 
+	/** Returns true if a statement may have run since the last commit or rollback.
+	 * @return true if there might be work to roll back 
+	 */
+	protected boolean isTransactionDirty(){
+		return this.transactionDirty;
 	}
 
 	/**
 	 * Creates the connection handle again. We use this method to create a brand new connection
 	 * handle. That way if the application (wrongly) tries to do something else with the connection
-	 * that has already been "closed", it will fail.
+	 * that has already been "closed", it will fail. Only the handle itself is new: the config settings,
+	 * caches, timestamps and queue state are shared with the old one. This still costs one handle (and its closed
+	 * flag) per close: handing out the same handle again under a lease token would let an application holding on
+	 * to a closed connection act on whoever has the connection next.
 	 * @return ConnectionHandle
 	 * @throws SQLException
 	 */
 	public ConnectionHandle recreateConnectionHandle() throws SQLException{
-		ConnectionHandle handle = new ConnectionHandle(this.connection, this.originatingPartition, this.pool, true);
-		handle.originatingPartition = this.originatingPartition;
-		handle.connectionCreationTimeInMs = this.connectionCreationTimeInMs;
-		handle.connectionLastResetInMs = this.connectionLastResetInMs;
-		handle.connectionLastUsedInMs = this.connectionLastUsedInMs;
-		handle.preparedStatementCache = this.preparedStatementCache;
-		handle.callableStatementCache = this.callableStatementCache;
-		handle.statementCachingEnabled = this.statementCachingEnabled;
-		handle.connectionHook = this.connectionHook;
-		handle.possiblyBroken = this.possiblyBroken;
-		handle.debugHandle = this.debugHandle;
+		ConnectionHandle handle = new ConnectionHandle(this);
 		this.connection = null;
 		
 		return handle;
@@ -306,6 +491,7 @@ public class ConnectionHandle implements Connection,Serializable{
 	 */
 	protected static ConnectionHandle createTestConnectionHandle(Connection connection, IStatementCache preparedStatementCache, IStatementCache callableStatementCache, BoneCP pool){
 		ConnectionHandle handle = new ConnectionHandle();
+		handle.latestHandle = new LatestHandle(handle);
 		handle.connection = connection;
 		handle.preparedStatementCache = preparedStatementCache;
 		handle.callableStatementCache = callableStatementCache;
@@ -314,11 +500,10 @@ public class ConnectionHandle implements Connection,Serializable{
 		handle.connectionCreationTimeInMs = System.currentTimeMillis();
 		handle.recoveryResult = new TransactionRecoveryResult();
 		handle.trackedStatement = new MapMaker().makeMap();
-		handle.url = "foo";
-		handle.closeOpenStatements = true;
 
 		handle.pool = pool;
-		handle.url=null;
+		handle.settings = new Settings(pool.getConfig());
+		handle.logStatementsEnabled = handle.settings.logStatementsEnabled;
 		int cacheSize = pool.getConfig().getStatementsCacheSize();
 		if (cacheSize > 0) {
 			handle.statementCachingEnabled = true;
@@ -332,6 +517,27 @@ public class ConnectionHandle implements Connection,Serializable{
 	 */
 	private ConnectionHandle(){
 		// for static factory.
+		this.queueState = new AtomicInteger(STATE_FREE);
+		this.replacementState = new AtomicInteger(REPLACEMENT_NONE);
+	}
+
+	/** Decides whether the next statement should be timed for statistics. Connections are only used by one
+	 * thread at a time so a plain countdown will do.
+	 * @return true if the statement should be timed.
+	 */
+	protected boolean sampleStatistics(){
+		if (--this.statisticsSampleCountdown > 0){
+			return false;
+		}
+		this.statisticsSampleCountdown = this.settings.statisticsSampleRate;
+		return true;
+	}
+
+	/** Returns the statisticsSampleRate config setting.
+	 * @return statisticsSampleRate
+	 */
+	protected int getStatisticsSampleRate(){
+		return this.settings.statisticsSampleRate;
 	}
 
 	/** Sends any configured SQL init statement. 
@@ -376,6 +582,7 @@ public class ConnectionHandle implements Connection,Serializable{
 	 */
 	protected SQLException markPossiblyBroken(SQLException e) {
 	    String state = e.getSQLState();
+	    this.lastStatementSucceededInMs = 0; // don't trust it anymore
 	    boolean alreadyDestroyed = false;
 
 		ConnectionState connectionState = this.getConnectionHook() != null ? this.getConnectionHook().onMarkPossiblyBroken(this, state, e) : ConnectionState.NOP; 
@@ -392,7 +599,7 @@ public class ConnectionHandle implements Connection,Serializable{
 
 			for (int i=0; i < this.pool.partitionCount; i++) {
 				// send a signal to try re-populating again.
-				this.pool.partitions[i].getPoolWatchThreadSignalQueue().offer(new Object()); // item being pushed is not important.
+				this.pool.partitions[i].signalPoolWatchThread();
 			}
 		}
 
@@ -404,7 +611,7 @@ public class ConnectionHandle implements Connection,Serializable{
 		    if (!alreadyDestroyed) {
 			this.pool.destroyConnection(this);
 			this.logicallyClosed.set(true);
-			getOriginatingPartition().getPoolWatchThreadSignalQueue().offer(new Object()); // item being pushed is not important.
+			getOriginatingPartition().signalPoolWatchThread();
 		    }
 		}
 		
@@ -469,17 +676,17 @@ public class ConnectionHandle implements Connection,Serializable{
 	public void close() throws SQLException {
 		try {
 
-			if (this.resetConnectionOnClose /*FIXME: && !getAutoCommit() && !isTxResolved() */){
+			if (this.settings.resetConnectionOnClose && !getAutoCommit()){
 				/*if (this.autoCommitStackTrace != null){
 						logger.debug(this.autoCommitStackTrace);
 						this.autoCommitStackTrace = null; 
 					} else {
 						logger.debug(DISABLED_AUTO_COMMIT_WARNING);
 					}*/
-				rollback();
-				if (!getAutoCommit()){
-					setAutoCommit(true);
+				if (this.transactionDirty || !this.settings.trackSessionState){
+					rollback();
 				}
+				setAutoCommit(true);
 			}
 
 			if (this.logicallyClosed.compareAndSet(false, true)) {
@@ -492,20 +699,27 @@ public class ConnectionHandle implements Connection,Serializable{
 					this.threadWatch = null;
 				}
 
-				if (this.closeOpenStatements){
+				if (this.settings.closeOpenStatements){
 					for (Entry<Statement, String> statementEntry: this.trackedStatement.entrySet()){
 						statementEntry.getKey().close();
-						if (this.detectUnclosedStatements){
+						if (this.settings.detectUnclosedStatements){
 							logger.warn(String.format(UNCLOSED_LOG_ERROR_MESSAGE, statementEntry.getValue()));		
 						}
 					}
 					this.trackedStatement.clear();
 				} 
 
-				if (!this.connectionTrackingDisabled){
+				if (!this.settings.connectionTrackingDisabled){
 					pool.getFinalizableRefs().remove(this.connection);
 				}
 
+				closeStatementsEvictedByBudget();
+
+				if (this.reservation != null){
+					this.reservation.release(this.reservationClaimed); // set aside again before anyone else can take it.
+					this.reservation = null;
+				}
+
 				ConnectionHandle handle = null;
 
 				//recreate can throw a SQLException in constructor on recreation
@@ -523,11 +737,11 @@ public class ConnectionHandle implements Connection,Serializable{
 				}
 				
 				
-				if (this.doubleCloseCheck){
+				if (this.settings.doubleCloseCheck){
 					this.doubleCloseException = this.pool.captureStackTrace(CLOSED_TWICE_EXCEPTION_MESSAGE);
 				}
 			} else {
-				if (this.doubleCloseCheck && this.doubleCloseException != null){
+				if (this.settings.doubleCloseCheck && this.doubleCloseException != null){
 					String currentLocation = this.pool.captureStackTrace("Last closed trace from thread ["+Thread.currentThread().getName()+"]:\n");
 					logger.error(String.format(LOG_ERROR_MESSAGE, this.doubleCloseException, currentLocation));
 				}
@@ -549,7 +763,7 @@ public class ConnectionHandle implements Connection,Serializable{
 			if (this.connection != null){ // safety!
 				this.connection.close();
 
-				if (!this.connectionTrackingDisabled && this.finalizableRefs != null){
+				if (!this.settings.connectionTrackingDisabled && this.finalizableRefs != null){
 					this.finalizableRefs.remove(this.connection);
 				}
 			}
@@ -564,6 +778,7 @@ public class ConnectionHandle implements Connection,Serializable{
 		try {
 			this.connection.commit();
 			this.txResolved = true;
+			this.transactionDirty = false;
 		} catch (SQLException e) {
 			throw markPossiblyBroken(e);
 		}
@@ -606,7 +821,13 @@ public class ConnectionHandle implements Connection,Serializable{
 		return this.connection.isWrapperFor(iface);
 	}
 
+	/** {@inheritDoc}
+	 * 
+	 * Whatever is done through the unwrapped connection can't be seen by this handle, so it forgets what it knows
+	 * of the session state.
+	 */
 	public <T> T unwrap(Class<T> iface) throws SQLException {
+		forgetSessionState();
 		return this.connection.unwrap(iface);
 	}
 
@@ -717,7 +938,7 @@ public class ConnectionHandle implements Connection,Serializable{
 		checkClosed();
 		try {
 			result =new StatementHandle(this.connection.createStatement(), this, this.logStatementsEnabled);
-			if (this.closeOpenStatements){
+			if (this.settings.closeOpenStatements){
 				this.trackedStatement.put(result, maybeCaptureStackTrace());
 			}
 		} catch (SQLException e) {
@@ -732,7 +953,7 @@ public class ConnectionHandle implements Connection,Serializable{
 		checkClosed();
 		try {
 			result = new StatementHandle(this.connection.createStatement(resultSetType, resultSetConcurrency), this, this.logStatementsEnabled);
-			if (this.closeOpenStatements){
+			if (this.settings.closeOpenStatements){
 				this.trackedStatement.put(result, maybeCaptureStackTrace());
 			}
 
@@ -749,7 +970,7 @@ public class ConnectionHandle implements Connection,Serializable{
 		checkClosed();
 		try {
 			result = new StatementHandle(this.connection.createStatement(resultSetType, resultSetConcurrency, resultSetHoldability), this, this.logStatementsEnabled);
-			if (this.closeOpenStatements){
+			if (this.settings.closeOpenStatements){
 				this.trackedStatement.put(result, maybeCaptureStackTrace());
 			}
 		} catch (SQLException e) {
@@ -765,18 +986,23 @@ public class ConnectionHandle implements Connection,Serializable{
 	 * @return stacktrace / empty string
 	 */
 	protected String maybeCaptureStackTrace() {
-		if (this.detectUnclosedStatements){
+		if (this.settings.detectUnclosedStatements){
 			return this.pool.captureStackTrace(STATEMENT_NOT_CLOSED);
 		}
 
 		return this.noStackTrace;
 	}
 
+	/** {@inheritDoc}
+	 * 
+	 * Answered from what we know of the connection; the driver is only asked if we don't know yet
+	 * (or trackSessionState is off).
+	 */
 	public boolean getAutoCommit() throws SQLException {
 		boolean result = false;
 		checkClosed();
 		try {
-			result = this.connection.getAutoCommit();
+			result = getAutoCommitState();
 		} catch (SQLException e) {
 			throw markPossiblyBroken(e);
 		}
@@ -784,15 +1010,22 @@ public class ConnectionHandle implements Connection,Serializable{
 	}
 
 
+	/** {@inheritDoc}
+	 * 
+	 * Answered from what we know of the connection; the driver is only asked if we don't know yet
+	 * (or trackSessionState is off).
+	 */
 	public String getCatalog() throws SQLException {
-		String result = null;
 		checkClosed();
-		try {
-			result = this.connection.getCatalog();
-		} catch (SQLException e) {
-			throw markPossiblyBroken(e);
+		if (!this.catalogStateKnown || !this.settings.trackSessionState){
+			try {
+				this.catalogState = this.connection.getCatalog();
+				this.catalogStateKnown = true;
+			} catch (SQLException e) {
+				throw markPossiblyBroken(e);
+			}
 		}
-		return result;
+		return this.catalogState;
 	}
 
 
@@ -819,15 +1052,21 @@ public class ConnectionHandle implements Connection,Serializable{
 		return result;
 	}
 
+	/** {@inheritDoc}
+	 * 
+	 * Answered from what we know of the connection; the driver is only asked if we don't know yet
+	 * (or trackSessionState is off).
+	 */
 	public int getTransactionIsolation() throws SQLException {
-		int result = 0;
 		checkClosed();
-		try {
-			result = this.connection.getTransactionIsolation();
-		} catch (SQLException e) {
-			throw markPossiblyBroken(e);
+		if (this.transactionIsolationState == -1 || !this.settings.trackSessionState){
+			try {
+				this.transactionIsolationState = this.connection.getTransactionIsolation();
+			} catch (SQLException e) {
+				throw markPossiblyBroken(e);
+			}
 		}
-		return result;
+		return this.transactionIsolationState;
 	}
 
 	public Map<String, Class<?>> getTypeMap() throws SQLException {
@@ -861,15 +1100,21 @@ public class ConnectionHandle implements Connection,Serializable{
 		return this.logicallyClosed.get();
 	}
 
+	/** {@inheritDoc}
+	 * 
+	 * Answered from what we know of the connection; the driver is only asked if we don't know yet
+	 * (or trackSessionState is off).
+	 */
 	public boolean isReadOnly() throws SQLException {
-		boolean result = false;
 		checkClosed();
-		try {
-			result = this.connection.isReadOnly();
-		} catch (SQLException e) {
-			throw markPossiblyBroken(e);
+		if (this.readOnlyState == null || !this.settings.trackSessionState){
+			try {
+				this.readOnlyState = this.connection.isReadOnly();
+			} catch (SQLException e) {
+				throw markPossiblyBroken(e);
+			}
 		}
-		return result;
+		return this.readOnlyState;
 	}
 
 	public String nativeSQL(String sql) throws SQLException {
@@ -885,38 +1130,42 @@ public class ConnectionHandle implements Connection,Serializable{
 
 	public CallableStatement prepareCall(String sql) throws SQLException {
 		CallableStatementHandle result = null;
-		String cacheKey = null;
+		StatementCacheKey cacheKey = null;
 
 		checkClosed();
 
 		try {
 			long statStart=0;
-			if (this.statisticsEnabled){
+			if (this.settings.statisticsEnabled && sampleStatistics()){
 				statStart = System.nanoTime();
 			}
 			if (this.statementCachingEnabled) {
-				cacheKey = sql;
-				result = (CallableStatementHandle) this.callableStatementCache.get(cacheKey);
+				result = (CallableStatementHandle) this.callableStatementCache.get(sql);
 			}
 
 			if (result == null){
+				if (this.statementCachingEnabled){
+					cacheKey = this.callableStatementCache.calculateCacheKey(sql);
+				}
 				result = new CallableStatementHandle(this.connection.prepareCall(sql),
 						sql, this, cacheKey, this.callableStatementCache);
 			} else {
 				result = new CallableStatementHandle(result.getInternalCallableStatement(),
-						result.sql, this, cacheKey, this.callableStatementCache);
+						result.sql, this, result.cacheKey, this.callableStatementCache);
 			}
 			result.setLogicallyOpen();
 
 			if (this.pool.closeConnectionWatch && this.statementCachingEnabled){ // debugging mode enabled?
 				result.setOpenStackTrace(this.pool.captureStackTrace(STATEMENT_NOT_CLOSED));
 			}
-			if (this.closeOpenStatements){
+			if (this.settings.closeOpenStatements){
 				this.trackedStatement.put(result, maybeCaptureStackTrace());
 			}
 
-			if (this.statisticsEnabled){
-				this.statistics.addStatementPrepareTime(System.nanoTime()-statStart);
+			if (this.settings.statisticsEnabled){
+				if (statStart != 0){ // only if this one was sampled
+					this.statistics.addStatementPrepareTime(System.nanoTime()-statStart, this.settings.statisticsSampleRate);
+				}
 				this.statistics.incrementStatementsPrepared();
 			}
 		} catch (SQLException e) {
@@ -928,38 +1177,42 @@ public class ConnectionHandle implements Connection,Serializable{
 
 	public CallableStatement prepareCall(String sql, int resultSetType,	int resultSetConcurrency) throws SQLException {
 		CallableStatementHandle result = null;
-		String cacheKey = null;
+		StatementCacheKey cacheKey = null;
 
 		checkClosed();
 
 		try {
 			long statStart=0;
-			if (this.statisticsEnabled){
+			if (this.settings.statisticsEnabled && sampleStatistics()){
 				statStart = System.nanoTime();
 			}
 			if (this.statementCachingEnabled) {
-				cacheKey = this.callableStatementCache.calculateCacheKey(sql, resultSetType, resultSetConcurrency);
-				result = (CallableStatementHandle) this.callableStatementCache.get(cacheKey);
+				result = (CallableStatementHandle) this.callableStatementCache.get(sql, resultSetType, resultSetConcurrency);
 			}
 
 			if (result == null){
+				if (this.statementCachingEnabled){
+					cacheKey = this.callableStatementCache.calculateCacheKey(sql, resultSetType, resultSetConcurrency);
+				}
 				result = new CallableStatementHandle(this.connection.prepareCall(sql, resultSetType, resultSetConcurrency),
 						sql, this, cacheKey, this.callableStatementCache);
 			} else {
 				result = new CallableStatementHandle(result.getInternalCallableStatement(),
-						result.sql, this, cacheKey, this.callableStatementCache);
+						result.sql, this, result.cacheKey, this.callableStatementCache);
 			}
 			result.setLogicallyOpen();
 
 			if (this.pool.closeConnectionWatch && this.statementCachingEnabled){ // debugging mode enabled?
 				result.setOpenStackTrace(this.pool.captureStackTrace(STATEMENT_NOT_CLOSED));
 			}
-			if (this.closeOpenStatements){
+			if (this.settings.closeOpenStatements){
 				this.trackedStatement.put(result, maybeCaptureStackTrace());
 			}
 
-			if (this.statisticsEnabled){
-				this.statistics.addStatementPrepareTime(System.nanoTime()-statStart);
+			if (this.settings.statisticsEnabled){
+				if (statStart != 0){ // only if this one was sampled
+					this.statistics.addStatementPrepareTime(System.nanoTime()-statStart, this.settings.statisticsSampleRate);
+				}
 				this.statistics.incrementStatementsPrepared();
 			}
 		} catch (SQLException e) {
@@ -973,38 +1226,42 @@ public class ConnectionHandle implements Connection,Serializable{
 			int resultSetConcurrency, int resultSetHoldability) throws SQLException {
 
 		CallableStatementHandle result = null;
-		String cacheKey = null;
+		StatementCacheKey cacheKey = null;
 
 		checkClosed();
 
 		try {
 			long statStart=0;
-			if (this.statisticsEnabled){
+			if (this.settings.statisticsEnabled && sampleStatistics()){
 				statStart = System.nanoTime();
 			}
 			if (this.statementCachingEnabled) {
-				cacheKey = this.callableStatementCache.calculateCacheKey(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
-				result = (CallableStatementHandle) this.callableStatementCache.get(cacheKey);
+				result = (CallableStatementHandle) this.callableStatementCache.get(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
 			}
 
 			if (result == null){
+				if (this.statementCachingEnabled){
+					cacheKey = this.callableStatementCache.calculateCacheKey(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+				}
 				result = new CallableStatementHandle(this.connection.prepareCall(sql, resultSetType, resultSetConcurrency, resultSetHoldability),
 						sql, this, cacheKey, this.callableStatementCache);
 			} else {
 				result = new CallableStatementHandle(result.getInternalCallableStatement(),
-						result.sql, this, cacheKey, this.callableStatementCache);
+						result.sql, this, result.cacheKey, this.callableStatementCache);
 			}
 			result.setLogicallyOpen();
 
 			if (this.pool.closeConnectionWatch && this.statementCachingEnabled){ // debugging mode enabled?
 				result.setOpenStackTrace(this.pool.captureStackTrace(STATEMENT_NOT_CLOSED));
 			}
-			if (this.closeOpenStatements){
+			if (this.settings.closeOpenStatements){
 				this.trackedStatement.put(result, maybeCaptureStackTrace());
 			}
 
-			if (this.statisticsEnabled){
-				this.statistics.addStatementPrepareTime(System.nanoTime()-statStart);
+			if (this.settings.statisticsEnabled){
+				if (statStart != 0){ // only if this one was sampled
+					this.statistics.addStatementPrepareTime(System.nanoTime()-statStart, this.settings.statisticsSampleRate);
+				}
 				this.statistics.incrementStatementsPrepared();
 			}
 		} catch (SQLException e) {
@@ -1016,36 +1273,40 @@ public class ConnectionHandle implements Connection,Serializable{
 
 	public PreparedStatement prepareStatement(String sql) throws SQLException {
 		PreparedStatementHandle result = null;
-		String cacheKey = null;
+		StatementCacheKey cacheKey = null;
 
 		checkClosed();
 
 		try {
 			long statStart=0;
-			if (this.statisticsEnabled){
+			if (this.settings.statisticsEnabled && sampleStatistics()){
 				statStart = System.nanoTime();
 			}
 			if (this.statementCachingEnabled) {
-				cacheKey = sql;
-				result = (PreparedStatementHandle) this.preparedStatementCache.get(cacheKey);
+				result = (PreparedStatementHandle) this.preparedStatementCache.get(sql);
 			}
 
 			if (result == null){
+				if (this.statementCachingEnabled){
+					cacheKey = this.preparedStatementCache.calculateCacheKey(sql);
+				}
 				result =  new PreparedStatementHandle(this.connection.prepareStatement(sql), sql, this, cacheKey, this.preparedStatementCache);
 			} else {
-				result = new PreparedStatementHandle(result.getInternalPreparedStatement(), result.sql, this, cacheKey, this.preparedStatementCache);
+				result = new PreparedStatementHandle(result.getInternalPreparedStatement(), result.sql, this, result.cacheKey, this.preparedStatementCache);
 			}
 			result.setLogicallyOpen();
 
 			if (this.pool.closeConnectionWatch && this.statementCachingEnabled){ // debugging mode enabled?
 				result.setOpenStackTrace(this.pool.captureStackTrace(STATEMENT_NOT_CLOSED));
 			}
-			if (this.closeOpenStatements){
+			if (this.settings.closeOpenStatements){
 				this.trackedStatement.put(result, maybeCaptureStackTrace());
 			}
 
-			if (this.statisticsEnabled){
-				this.statistics.addStatementPrepareTime(System.nanoTime()-statStart);
+			if (this.settings.statisticsEnabled){
+				if (statStart != 0){ // only if this one was sampled
+					this.statistics.addStatementPrepareTime(System.nanoTime()-statStart, this.settings.statisticsSampleRate);
+				}
 				this.statistics.incrementStatementsPrepared();
 			}
 
@@ -1058,24 +1319,26 @@ public class ConnectionHandle implements Connection,Serializable{
 
 	public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys) throws SQLException {
 		PreparedStatementHandle result = null;
-		String cacheKey = null;
+		StatementCacheKey cacheKey = null;
 
 		checkClosed();
 
 		try {
 			long statStart = 0;
-			if (this.statisticsEnabled){
+			if (this.settings.statisticsEnabled && sampleStatistics()){
 				statStart  = System.nanoTime();
 			}
 			if (this.statementCachingEnabled) {
-				cacheKey = this.preparedStatementCache.calculateCacheKey(sql, autoGeneratedKeys);
-				result = (PreparedStatementHandle) this.preparedStatementCache.get(cacheKey);
+				result = (PreparedStatementHandle) this.preparedStatementCache.get(sql, autoGeneratedKeys);
 			}
 
 			if (result == null){
+				if (this.statementCachingEnabled){
+					cacheKey = this.preparedStatementCache.calculateCacheKey(sql, autoGeneratedKeys);
+				}
 				result = new PreparedStatementHandle(this.connection.prepareStatement(sql, autoGeneratedKeys), sql, this, cacheKey, this.preparedStatementCache);
 			} else {
-				result = new PreparedStatementHandle(result.getInternalPreparedStatement(), result.sql, this, cacheKey, this.preparedStatementCache);
+				result = new PreparedStatementHandle(result.getInternalPreparedStatement(), result.sql, this, result.cacheKey, this.preparedStatementCache);
 			}
 			result.setLogicallyOpen();
 
@@ -1083,12 +1346,14 @@ public class ConnectionHandle implements Connection,Serializable{
 				result.setOpenStackTrace(this.pool.captureStackTrace(STATEMENT_NOT_CLOSED));
 			}
 
-			if (this.closeOpenStatements){
+			if (this.settings.closeOpenStatements){
 				this.trackedStatement.put(result, maybeCaptureStackTrace());
 			}
 
-			if (this.statisticsEnabled){
-				this.statistics.addStatementPrepareTime(System.nanoTime()-statStart);
+			if (this.settings.statisticsEnabled){
+				if (statStart != 0){ // only if this one was sampled
+					this.statistics.addStatementPrepareTime(System.nanoTime()-statStart, this.settings.statisticsSampleRate);
+				}
 				this.statistics.incrementStatementsPrepared();
 			}
 
@@ -1102,27 +1367,29 @@ public class ConnectionHandle implements Connection,Serializable{
 	public PreparedStatement prepareStatement(String sql, int[] columnIndexes)
 			throws SQLException {
 		PreparedStatementHandle result = null;
-		String cacheKey = null;
+		StatementCacheKey cacheKey = null;
 
 		checkClosed();
 
 		try {
 			long statStart=0;
-			if (this.statisticsEnabled){
+			if (this.settings.statisticsEnabled && sampleStatistics()){
 				statStart = System.nanoTime();
 			}
 
 			if (this.statementCachingEnabled) {
-				cacheKey = this.preparedStatementCache.calculateCacheKey(sql, columnIndexes);
-				result = (PreparedStatementHandle) this.preparedStatementCache.get(cacheKey);
+				result = (PreparedStatementHandle) this.preparedStatementCache.get(sql, columnIndexes);
 			}
 
 			if (result == null){
+				if (this.statementCachingEnabled){
+					cacheKey = this.preparedStatementCache.calculateCacheKey(sql, columnIndexes);
+				}
 				result = new PreparedStatementHandle(this.connection.prepareStatement(sql, columnIndexes),
 						sql, this, cacheKey, this.preparedStatementCache);
 			} else {
 				result = new PreparedStatementHandle(result.getInternalPreparedStatement(),
-						result.sql, this, cacheKey, this.preparedStatementCache);
+						result.sql, this, result.cacheKey, this.preparedStatementCache);
 			}
 			result.setLogicallyOpen();
 
@@ -1130,12 +1397,14 @@ public class ConnectionHandle implements Connection,Serializable{
 				result.setOpenStackTrace(this.pool.captureStackTrace(STATEMENT_NOT_CLOSED));
 			}
 
-			if (this.closeOpenStatements){
+			if (this.settings.closeOpenStatements){
 				this.trackedStatement.put(result, maybeCaptureStackTrace());
 			}
 
-			if (this.statisticsEnabled){
-				this.statistics.addStatementPrepareTime(System.nanoTime()-statStart);
+			if (this.settings.statisticsEnabled){
+				if (statStart != 0){ // only if this one was sampled
+					this.statistics.addStatementPrepareTime(System.nanoTime()-statStart, this.settings.statisticsSampleRate);
+				}
 				this.statistics.incrementStatementsPrepared();
 			}
 
@@ -1149,26 +1418,28 @@ public class ConnectionHandle implements Connection,Serializable{
 	public PreparedStatement prepareStatement(String sql, String[] columnNames)
 			throws SQLException {
 		PreparedStatementHandle result = null;
-		String cacheKey = null;
+		StatementCacheKey cacheKey = null;
 
 		checkClosed();
 
 		try {
 			long statStart=0;
-			if (this.statisticsEnabled){
+			if (this.settings.statisticsEnabled && sampleStatistics()){
 				statStart = System.nanoTime();
 			}
 			if (this.statementCachingEnabled) {
-				cacheKey = this.preparedStatementCache.calculateCacheKey(sql, columnNames);
-				result = (PreparedStatementHandle) this.preparedStatementCache.get(cacheKey);
+				result = (PreparedStatementHandle) this.preparedStatementCache.get(sql, columnNames);
 			}
 
 			if (result == null){
+				if (this.statementCachingEnabled){
+					cacheKey = this.preparedStatementCache.calculateCacheKey(sql, columnNames);
+				}
 				result = new PreparedStatementHandle(this.connection.prepareStatement(sql, columnNames),
 						sql, this, cacheKey, this.preparedStatementCache);
 			} else {
 				result = new PreparedStatementHandle(result.getInternalPreparedStatement(),
-						result.sql, this, cacheKey, this.preparedStatementCache);
+						result.sql, this, result.cacheKey, this.preparedStatementCache);
 			}
 			result.setLogicallyOpen();
 
@@ -1176,12 +1447,14 @@ public class ConnectionHandle implements Connection,Serializable{
 				result.setOpenStackTrace(this.pool.captureStackTrace(STATEMENT_NOT_CLOSED));
 			}
 
-			if (this.closeOpenStatements){
+			if (this.settings.closeOpenStatements){
 				this.trackedStatement.put(result, maybeCaptureStackTrace());
 			}
 
-			if (this.statisticsEnabled){
-				this.statistics.addStatementPrepareTime(System.nanoTime()-statStart);
+			if (this.settings.statisticsEnabled){
+				if (statStart != 0){ // only if this one was sampled
+					this.statistics.addStatementPrepareTime(System.nanoTime()-statStart, this.settings.statisticsSampleRate);
+				}
 				this.statistics.incrementStatementsPrepared();
 			}
 		} catch (SQLException e) {
@@ -1194,38 +1467,42 @@ public class ConnectionHandle implements Connection,Serializable{
 
 	public PreparedStatement prepareStatement(String sql, int resultSetType,  int resultSetConcurrency) throws SQLException {
 		PreparedStatementHandle result = null;
-		String cacheKey = null;
+		StatementCacheKey cacheKey = null;
 
 		checkClosed();
 
 		try {
 			long statStart=0;
-			if (this.statisticsEnabled){
+			if (this.settings.statisticsEnabled && sampleStatistics()){
 				statStart = System.nanoTime();
 			}
 			if (this.statementCachingEnabled) {
-				cacheKey = this.preparedStatementCache.calculateCacheKey(sql, resultSetType, resultSetConcurrency);
-				result = (PreparedStatementHandle) this.preparedStatementCache.get(cacheKey);
+				result = (PreparedStatementHandle) this.preparedStatementCache.get(sql, resultSetType, resultSetConcurrency);
 			}
 
 			if (result == null){
+				if (this.statementCachingEnabled){
+					cacheKey = this.preparedStatementCache.calculateCacheKey(sql, resultSetType, resultSetConcurrency);
+				}
 				result = new PreparedStatementHandle(this.connection.prepareStatement(sql, resultSetType, resultSetConcurrency),
 						sql, this, cacheKey, this.preparedStatementCache);
 			} else {
 				result = new PreparedStatementHandle(result.getInternalPreparedStatement(),
-						result.sql, this, cacheKey, this.preparedStatementCache);
+						result.sql, this, result.cacheKey, this.preparedStatementCache);
 			}
 			result.setLogicallyOpen();
 
 			if (this.pool.closeConnectionWatch && this.statementCachingEnabled){ // debugging mode enabled?
 				result.setOpenStackTrace(this.pool.captureStackTrace(STATEMENT_NOT_CLOSED));
 			}
-			if (this.closeOpenStatements){
+			if (this.settings.closeOpenStatements){
 				this.trackedStatement.put(result, maybeCaptureStackTrace());
 			}
 
-			if (this.statisticsEnabled){
-				this.statistics.addStatementPrepareTime(System.nanoTime()-statStart);
+			if (this.settings.statisticsEnabled){
+				if (statStart != 0){ // only if this one was sampled
+					this.statistics.addStatementPrepareTime(System.nanoTime()-statStart, this.settings.statisticsSampleRate);
+				}
 				this.statistics.incrementStatementsPrepared();
 			}
 		} catch (SQLException e) {
@@ -1239,39 +1516,43 @@ public class ConnectionHandle implements Connection,Serializable{
 	public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability)
 			throws SQLException {
 		PreparedStatementHandle result = null;
-		String cacheKey = null;
+		StatementCacheKey cacheKey = null;
 
 		checkClosed();
 
 		try {
 			long statStart=0;
-			if (this.statisticsEnabled){
+			if (this.settings.statisticsEnabled && sampleStatistics()){
 				statStart = System.nanoTime();
 			}
 
 			if (this.statementCachingEnabled) {
-				cacheKey = this.preparedStatementCache.calculateCacheKey(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
-				result = (PreparedStatementHandle) this.preparedStatementCache.get(cacheKey);
+				result = (PreparedStatementHandle) this.preparedStatementCache.get(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
 			}
 
 			if (result == null){
+				if (this.statementCachingEnabled){
+					cacheKey = this.preparedStatementCache.calculateCacheKey(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+				}
 				result = new PreparedStatementHandle(this.connection.prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability),
 						sql, this, cacheKey, this.preparedStatementCache);
 			} else {
 				result = new PreparedStatementHandle(result.getInternalPreparedStatement(),
-						result.sql, this, cacheKey, this.preparedStatementCache);
+						result.sql, this, result.cacheKey, this.preparedStatementCache);
 			}
 			result.setLogicallyOpen();
 
 			if (this.pool.closeConnectionWatch && this.statementCachingEnabled){ // debugging mode enabled?
 				result.setOpenStackTrace(this.pool.captureStackTrace(STATEMENT_NOT_CLOSED));
 			}
-			if (this.closeOpenStatements){
+			if (this.settings.closeOpenStatements){
 				this.trackedStatement.put(result, maybeCaptureStackTrace());
 			}
 
-			if (this.statisticsEnabled){
-				this.statistics.addStatementPrepareTime(System.nanoTime()-statStart);
+			if (this.settings.statisticsEnabled){
+				if (statStart != 0){ // only if this one was sampled
+					this.statistics.addStatementPrepareTime(System.nanoTime()-statStart, this.settings.statisticsSampleRate);
+				}
 				this.statistics.incrementStatementsPrepared();
 			}
 		} catch (SQLException e) {
@@ -1296,6 +1577,7 @@ public class ConnectionHandle implements Connection,Serializable{
 		try {
 			this.connection.rollback();
 			this.txResolved = true;
+			this.transactionDirty = false;
 		} catch (SQLException e) {
 			throw markPossiblyBroken(e);
 		}
@@ -1315,11 +1597,16 @@ public class ConnectionHandle implements Connection,Serializable{
 		checkClosed();
 		try {
 			this.connection.setAutoCommit(autoCommit);
+			this.autoCommitState = autoCommit;
 			this.txResolved = autoCommit;
-			if (this.detectUnresolvedTransactions && !autoCommit){
+			if (autoCommit){
+				this.transactionDirty = false; // switching auto-commit on commits any open transaction
+			}
+			if (this.settings.detectUnresolvedTransactions && !autoCommit){
 				this.autoCommitStackTrace = this.pool.captureStackTrace(SET_AUTO_COMMIT_FALSE_WAS_CALLED_MESSAGE);
 			}
 		} catch (SQLException e) {
+			this.autoCommitState = null;
 			throw markPossiblyBroken(e);
 		}
 	}
@@ -1328,7 +1615,10 @@ public class ConnectionHandle implements Connection,Serializable{
 		checkClosed();
 		try {
 			this.connection.setCatalog(catalog);
+			this.catalogState = catalog;
+			this.catalogStateKnown = true;
 		} catch (SQLException e) {
+			this.catalogStateKnown = false;
 			throw markPossiblyBroken(e);
 		}
 	}
@@ -1347,7 +1637,9 @@ public class ConnectionHandle implements Connection,Serializable{
 		checkClosed();
 		try {
 			this.connection.setReadOnly(readOnly);
+			this.readOnlyState = readOnly;
 		} catch (SQLException e) {
+			this.readOnlyState = null;
 			throw markPossiblyBroken(e);
 		}
 	}
@@ -1357,6 +1649,7 @@ public class ConnectionHandle implements Connection,Serializable{
 		Savepoint result = null;
 		try {
 			result = this.connection.setSavepoint();
+			this.transactionDirty = true;
 		} catch (SQLException e) {
 			throw markPossiblyBroken(e);
 		}
@@ -1368,6 +1661,7 @@ public class ConnectionHandle implements Connection,Serializable{
 		Savepoint result = null;
 		try {
 			result = this.connection.setSavepoint(name);
+			this.transactionDirty = true;
 		} catch (SQLException e) {
 			throw markPossiblyBroken(e);
 		}
@@ -1378,7 +1672,9 @@ public class ConnectionHandle implements Connection,Serializable{
 		checkClosed();
 		try {
 			this.connection.setTransactionIsolation(level);
+			this.transactionIsolationState = level;
 		} catch (SQLException e) {
+			this.transactionIsolationState = -1;
 			throw markPossiblyBroken(e);
 		}
 	}
@@ -1424,6 +1720,22 @@ public class ConnectionHandle implements Connection,Serializable{
 		return this.connectionLastResetInMs;
 	}
 
+	/** Records that a statement has just completed successfully on this connection, ie that it's alive.
+	 */
+	protected void markStatementSucceeded() {
+		if (this.settings.trackStatementSuccess){
+			this.lastStatementSucceededInMs = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * @return the last time a statement completed successfully on this connection, or 0 if none did since the
+	 * last failure.
+	 */
+	protected long getLastStatementSucceededInMs() {
+		return this.lastStatementSucceededInMs;
+	}
+
 	/** Deprecated. Use {@link #getConnectionLastResetInMs()} instead.
 	 * @return the connectionLastReset
 	 * @deprecated Please use {@link #getConnectionLastResetInMs()} instead
@@ -1451,6 +1763,71 @@ public class ConnectionHandle implements Connection,Serializable{
 		return this.possiblyBroken;
 	}
 
+	/** Called on taking this connection out of the free queue to hand it out. Returns false if a maintenance task is
+	 * checking it right now, in which case the caller should leave it alone and try another; the task will put it
+	 * back in the queue or close it once done.
+	 * @return true if the connection may be used.
+	 */
+	protected boolean claimForUse(){
+		for (;;){
+			int state = this.queueState.get();
+			if (state == STATE_RETIRED){
+				return false;
+			}
+			if (state == STATE_CHECKING){
+				if (this.queueState.compareAndSet(STATE_CHECKING, STATE_SKIPPED)){
+					return false;
+				}
+			} else if (this.queueState.compareAndSet(state, STATE_IN_USE)){
+				return true;
+			}
+		}
+	}
+
+	/** Marks this connection as free, just before it's placed back in the free queue. */
+	protected void markFree(){
+		this.queueState.set(STATE_FREE);
+	}
+
+	/** Marks this connection, which must be sitting in the free queue, as being checked by a maintenance task.
+	 * @return false if it's no longer free or some other task is already checking it.
+	 */
+	protected boolean startMaintenance(){
+		return this.queueState.compareAndSet(STATE_FREE, STATE_CHECKING);
+	}
+
+	/** Ends a check started with startMaintenance(). A connection that passed is free again; one that failed can no
+	 * longer be handed out.
+	 * @param passed result of the check.
+	 * @return true if the connection is still in the free queue, false if it was taken out in the meantime. If it
+	 * passed and was taken out, the caller must put it back. If it failed and is still in the queue, the caller must
+	 * remove it.
+	 */
+	protected boolean endMaintenance(boolean passed){
+		return this.queueState.getAndSet(passed ? STATE_FREE : STATE_RETIRED) == STATE_CHECKING;
+	}
+
+	/** Called on finding that this connection has expired. 
+	 * @return true if the caller should go ahead and open a replacement, false if someone else already has.
+	 */
+	protected boolean requestReplacement(){
+		return this.replacementState.compareAndSet(REPLACEMENT_NONE, REPLACEMENT_PENDING);
+	}
+
+	/** Called once the replacement for this expired connection is in the pool (or could not be opened). From then
+	 * on this connection is closed as soon as it's free.
+	 */
+	protected void replacementDone(){
+		this.replacementState.set(REPLACEMENT_DONE);
+	}
+
+	/** Returns true if this expired connection has been replaced and should be closed.
+	 * @return true if replaced.
+	 */
+	protected boolean isReplaced(){
+		return this.replacementState.get() == REPLACEMENT_DONE;
+	}
+
 
 	/**
 	 * Gets the partition this came from.
@@ -1476,14 +1853,46 @@ public class ConnectionHandle implements Connection,Serializable{
 	 * (although it was never really physically closed)
 	 */
 	protected void renewConnection() {
+		closeStatementsEvictedByBudget();
 		this.logicallyClosed.set(false);
 		this.threadUsingConnection = Thread.currentThread();
-		if (this.doubleCloseCheck){
+		if (this.settings.doubleCloseCheck){
 			this.doubleCloseException = null;
 		}
 	}
 
 
+	/** Closes off any cached statements given up to make room in the pool-wide statement cache budget (see
+	 * StatementCacheBudget) since this connection was last used, so that they don't stay open at the database for
+	 * as long as the connection sits idle. Only to be called by the thread using the connection.
+	 */
+	protected void closeStatementsEvictedByBudget() {
+		if (this.preparedStatementCache instanceof StatementCache){
+			((StatementCache) this.preparedStatementCache).closeEvictedByBudget();
+		}
+		if (this.callableStatementCache instanceof StatementCache){
+			((StatementCache) this.callableStatementCache).closeEvictedByBudget();
+		}
+	}
+
+	/** Prepares the given statements and leaves them in the prepared statement cache, ready for use. Meant for a
+	 * new connection that hasn't been handed out yet; statements that can't be prepared are skipped.
+	 * @param statements SQL of the statements to prepare
+	 */
+	protected void warmUpStatementCache(List<String> statements) {
+		if (!this.statementCachingEnabled){
+			return;
+		}
+		for (String sql: statements){
+			try {
+				StatementCacheKey cacheKey = this.preparedStatementCache.calculateCacheKey(sql);
+				new PreparedStatementHandle(this.connection.prepareStatement(sql), sql, this, cacheKey, this.preparedStatementCache).close();
+			} catch (SQLException e) {
+				logger.debug("Unable to prepare statement during warm-up: "+sql, e);
+			}
+		}
+	}
+
 	/** Clears out the statement handles.
 	 * @param internalClose if true, close the inner statement handle too. 
 	 */
@@ -1527,18 +1936,29 @@ public class ConnectionHandle implements Connection,Serializable{
 		return getInternalConnection();
 	}
 
-	/** Returns the internal connection as obtained via the JDBC driver.
+	/** Returns the internal connection as obtained via the JDBC driver. Session settings (auto-commit etc) changed
+	 * directly on it are not seen by this handle, so it forgets what it knows of them and asks the driver again.
 	 * @return the raw connection
 	 */
 	public Connection getInternalConnection() {
+		forgetSessionState();
 		return this.connection;
 	}
 
+	/** Returns true if both handles are on the same physical connection. Unlike getInternalConnection(), this
+	 * leaves the session state of a handle that might be in use by someone else alone.
+	 * @param handle handle to compare with
+	 * @return true if both handles wrap the same internal connection
+	 */
+	protected boolean isSameConnection(ConnectionHandle handle) {
+		return this.connection == handle.connection;
+	}
+
 	/** Returns the configured connection hook object.
 	 * @return the connectionHook that was set in the config
 	 */
 	public ConnectionHook getConnectionHook() {
-		return this.connectionHook;
+		return this.settings.connectionHook;
 	}
 
 	/** Returns true if logging of statements is enabled
@@ -1582,6 +2002,7 @@ public class ConnectionHandle implements Connection,Serializable{
 	 */
 	public void setInternalConnection(Connection rawConnection) {
 		this.connection = rawConnection;
+		forgetSessionState();
 	}
 
 	/** Returns a handle to the global pool from where this connection was obtained.
@@ -1715,7 +2136,7 @@ public class ConnectionHandle implements Connection,Serializable{
 	 * @param statement
 	 */
 	protected void untrackStatement(StatementHandle statement){
-		if (this.closeOpenStatements){
+		if (this.settings.closeOpenStatements){
 			this.trackedStatement.remove(statement);
 		}
 	}
@@ -1726,7 +2147,7 @@ public class ConnectionHandle implements Connection,Serializable{
 	 * @return url
 	 */
 	public String getUrl() {
-		return this.url;
+		return this.settings.url;
 	}
 
 	public String toString(){
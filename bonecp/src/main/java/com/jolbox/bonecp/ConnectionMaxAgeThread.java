@@ -55,53 +55,32 @@ public class ConnectionMaxAgeThread implements Runnable {
 	}
 
 
-	/** Invoked periodically. */
+	/** Invoked periodically. Expired connections are replaced: the replacement is opened first and the expired
+	 * connection carries on being used until then. Expired connections that have already been replaced are retired
+	 * straight out of the free queue; the rest are left where they are.
+	 */
 	public void run() {
-		ConnectionHandle connection = null;
-		long tmp;
-		long nextCheckInMs = this.maxAgeInMs;
-
-		int partitionSize= this.partition.getAvailableConnections();
 		long currentTime = System.currentTimeMillis();
-		for (int i=0; i < partitionSize; i++){
+		// go thru a snapshot of the free connections, looking for expired ones.
+		for (ConnectionHandle connection: this.partition.getFreeConnections()){
 			try {
-				connection = this.partition.getFreeConnections().poll();
-
-				if (connection != null){
-					connection.setOriginatingPartition(this.partition);
-
-					tmp = this.maxAgeInMs - (currentTime - connection.getConnectionCreationTimeInMs()); 
-
-					if (tmp < nextCheckInMs){
-						nextCheckInMs = tmp; 
-					}
-
-					if (connection.isExpired(currentTime)){
-						// kill off this connection
-						closeConnection(connection);
-						continue;
-					}
-
-
-					
-					if (this.lifoMode){
-						// we can't put it back normally or it will end up in front again.
-						if (!(connection.getOriginatingPartition().getFreeConnections().offer(connection))){
-							connection.internalClose();
-						}
-					} else {
-						this.pool.putConnectionBackInPartition(connection);
+				if (!connection.isExpired(currentTime)){
+					continue;
+				}
+				connection.setOriginatingPartition(this.partition);
+				if (!connection.isReplaced()){
+					this.pool.replaceExpiredConnection(connection);
+				} else if (connection.startMaintenance()){
+					if (connection.endMaintenance(false)){
+						this.partition.getFreeConnections().remove(connection);
 					}
-
-
-					Thread.sleep(20L); // test slowly, this is not an operation that we're in a hurry to deal with (avoid CPU spikes)...
+					// kill off this connection
+					closeConnection(connection);
 				}
 			}  catch (Throwable e) {
 					logger.error("Connection max age thread exception.", e);
 			}
-
-		} // throw it back on the queue
-
+		}
 	}
 
 
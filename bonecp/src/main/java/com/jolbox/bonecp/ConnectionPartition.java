@@ -20,10 +20,9 @@ import java.io.Serializable;
 import java.lang.reflect.Proxy;
 import java.sql.Connection;
 import java.sql.SQLException;
-import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 import org.slf4j.Logger;
@@ -44,16 +43,16 @@ public class ConnectionPartition implements Serializable{
 	private static final Logger logger = LoggerFactory.getLogger(ConnectionPartition.class);
 	/**  Connections available to be taken  */
 	private BlockingQueue<ConnectionHandle> freeConnections;
+	/** Same as freeConnections, if they're held in a ConnectionBag (which they always are outside of tests). */
+	private ConnectionBag<ConnectionHandle> freeConnectionBag;
 	/** When connections start running out, add these number of new connections. */
 	private final int acquireIncrement;
 	/** Minimum number of connections to start off with. */
 	private final int minConnections;
 	/** Maximum number of connections that will ever be created. */
 	private final int maxConnections;
-	/** Statistics lock. */
-	protected ReentrantReadWriteLock statsLock = new ReentrantReadWriteLock();
 	/** Number of connections that have been created. */
-	private int createdConnections=0;
+	protected AtomicInteger createdConnections = new AtomicInteger();
 	/** DB details. */
 	private final String url;
 	/** DB details. */
@@ -66,37 +65,83 @@ public class ConnectionPartition implements Serializable{
 	private volatile boolean unableToCreateMoreTransactions=false;
 	/** Config setting. */
 	private boolean disableTracking;
-	/** Signal trigger to pool watch thread. Making it a queue means our signal is persistent. */
-	private BlockingQueue<Object> poolWatchThreadSignalQueue = new ArrayBlockingQueue<Object>(1);
+	/** Pool watch task state: neither queued nor running. */
+	private static final int POOL_WATCH_IDLE = 0;
+	/** Pool watch task state: running, and not signalled since it started. */
+	private static final int POOL_WATCH_RUNNING = 1;
+	/** Pool watch task state: queued, or signalled while running so it has to go round again. */
+	private static final int POOL_WATCH_PENDING = 2;
+	/** State of the pool watch task. Making this a state rather than a flag means our signal is persistent. */
+	private final AtomicInteger poolWatchState = new AtomicInteger(POOL_WATCH_IDLE);
+	/** Task that creates new connections for this partition when signalled. */
+	private final PoolWatchThread poolWatchThread;
 	/** Store the unit translation here to avoid recalculating it in statement handles. */
 	private long queryExecuteTimeLimitInNanoSeconds;
 	/** Cached copy of the config-specified pool name. */
 	private String poolName;
 	/** Handle to the pool. */
 	protected BoneCP pool;
+	/** No of connections obtained by threads assigned to this partition. */
+	private final StripedCounter hits = new StripedCounter();
+	/** No of connections taken from this partition by threads assigned to another one. */
+	private final StripedCounter steals = new StripedCounter();
+	/** No of times a thread assigned to this partition found no free connection in any partition. */
+	private final StripedCounter misses = new StripedCounter();
+	/** Forecast of the number of connections leased, for predictive sizing. */
+	private final DemandForecast demandForecast = new DemandForecast();
 
 
 
-	/** Returns a handle to the poolWatchThreadSignalQueue
-	 * @return the poolWatchThreadSignal
+	/** Asks the pool watch task to check whether this partition needs more connections, queueing it on the
+	 * pool's maintenance threads unless it's already queued or running. Once signalled, further calls only read the
+	 * state (no locking or allocation) until the task gets round to it, so this is cheap to call on every checkout.
 	 */
-	protected BlockingQueue<Object> getPoolWatchThreadSignalQueue() {
-		return this.poolWatchThreadSignalQueue;
+	protected void signalPoolWatchThread() {
+		int state;
+		do {
+			state = this.poolWatchState.get();
+			if (state == POOL_WATCH_PENDING){
+				return;
+			}
+		} while (!this.poolWatchState.compareAndSet(state, POOL_WATCH_PENDING));
+
+		if (state == POOL_WATCH_IDLE){
+			this.pool.executeMaintenance(this.poolWatchThread);
+		}
+	}
+
+	/** Called by the pool watch task before it looks at the state of the partition, so that any change after that
+	 * point signals it again.
+	 */
+	protected void startPoolWatch() {
+		this.poolWatchState.set(POOL_WATCH_RUNNING);
+	}
+
+	/** Called by the pool watch task when done.
+	 * @return true if it may stop, false if it was signalled in the meantime and must go round again.
+	 */
+	protected boolean finishPoolWatch() {
+		return this.poolWatchState.compareAndSet(POOL_WATCH_RUNNING, POOL_WATCH_IDLE);
+	}
+
+	/** Holds back the pool watch task until resumePoolWatch() is called, e.g. while the initial connections are
+	 * being opened. Signals in the meantime aren't lost.
+	 */
+	protected void suspendPoolWatch() {
+		this.poolWatchState.set(POOL_WATCH_PENDING);
+	}
+
+	/** Undoes suspendPoolWatch() and has the pool watch task check the partition. */
+	protected void resumePoolWatch() {
+		this.poolWatchState.set(POOL_WATCH_IDLE);
+		signalPoolWatchThread();
 	}
 
 	/** Updates leased connections statistics
 	 * @param increment value to add/subtract
 	 */
 	protected void updateCreatedConnections(int increment) {
-
-		try{
-			this.statsLock.writeLock().lock();
-			this.createdConnections+=increment;
-	//		assert this.createdConnections >= 0 : "Created connections < 0!";
-			
-		} finally { 
-			this.statsLock.writeLock().unlock();
-		}
+		this.createdConnections.addAndGet(increment);
 	}
 
 	/**
@@ -106,10 +151,45 @@ public class ConnectionPartition implements Serializable{
 	 * @throws SQLException on error
 	 */
 	protected void addFreeConnection(ConnectionHandle connectionHandle) throws SQLException{
-		connectionHandle.setOriginatingPartition(this);
 		// assume success to avoid racing where we insert an item in a queue and having that item immediately
 		// taken and closed off thus decrementing the created connection count.
 		updateCreatedConnections(1);
+		offerNewConnection(connectionHandle);
+	}
+
+	/** Counts one more connection against maxConnections ahead of opening it, unless the partition is full.
+	 * A successful call has to be followed by addReservedConnection(), or by updateCreatedConnections(-1) if the
+	 * connection can't be opened after all.
+	 * @return true if there was room for one more connection.
+	 */
+	protected boolean reserveConnection(){
+		int created;
+		do {
+			created = this.createdConnections.get();
+			if (created >= this.maxConnections){
+				return false;
+			}
+		} while (!this.createdConnections.compareAndSet(created, created+1));
+		return true;
+	}
+
+	/** Adds a free connection that has already been counted by reserveConnection().
+	 * @param connectionHandle connection to add
+	 * @return true if added, false if it had to be closed off instead (the reservation is given back).
+	 * @throws SQLException on error
+	 */
+	protected boolean addReservedConnection(ConnectionHandle connectionHandle) throws SQLException{
+		return offerNewConnection(connectionHandle);
+	}
+
+	/** Puts a new connection in the free queue. The created connection count has been updated for it already and is
+	 * rolled back if the queue doesn't take it.
+	 * @param connectionHandle connection to add
+	 * @return true if added, false if it had to be closed off instead.
+	 * @throws SQLException on error
+	 */
+	private boolean offerNewConnection(ConnectionHandle connectionHandle) throws SQLException{
+		connectionHandle.setOriginatingPartition(this);
 		if (!this.disableTracking){
 			trackConnectionFinalizer(connectionHandle); 
 		}
@@ -125,7 +205,9 @@ public class ConnectionPartition implements Serializable{
 			}
 			// terminate the internal handle.
 			connectionHandle.internalClose();
+			return false;
 		}
+		return true;
 	}
 
 	/** This method is a replacement for finalize() but avoids all its pitfalls (see Joshua Bloch et. all).
@@ -184,6 +266,23 @@ public class ConnectionPartition implements Serializable{
 	 */
 	protected void setFreeConnections(BlockingQueue<ConnectionHandle> freeConnections) {
 		this.freeConnections = freeConnections;
+		this.freeConnectionBag = null;
+	}
+
+	/** Returns the free connections as a bag, for the calls a BlockingQueue doesn't have: waiting on this
+	 * partition only, queueing up asynchronous requests, putting connections back behind the others.
+	 * @return the free connections, or null if they're not held in a ConnectionBag.
+	 */
+	protected ConnectionBag<ConnectionHandle> getFreeConnectionBag() {
+		return this.freeConnectionBag;
+	}
+
+	/**
+	 * @param freeConnections the freeConnections to set
+	 */
+	protected void setFreeConnections(ConnectionBag<ConnectionHandle> freeConnections) {
+		this.freeConnections = freeConnections;
+		this.freeConnectionBag = freeConnections;
 	}
 
 
@@ -205,6 +304,7 @@ public class ConnectionPartition implements Serializable{
 		
 		this.disableTracking = config.isDisableConnectionTracking();
 		this.queryExecuteTimeLimitInNanoSeconds = TimeUnit.NANOSECONDS.convert(config.getQueryExecuteTimeLimitInMs(), TimeUnit.MILLISECONDS);
+		this.poolWatchThread = new PoolWatchThread(this, pool);
 	}
 
 	/**
@@ -233,12 +333,7 @@ public class ConnectionPartition implements Serializable{
 	 * @return the leasedConnections
 	 */
 	protected int getCreatedConnections() {
-		try{
-			this.statsLock.readLock().lock();
-			return this.createdConnections;
-		} finally {
-			this.statsLock.readLock().unlock();
-		}
+		return this.createdConnections.get();
 	}
 
 	/**
@@ -292,6 +387,14 @@ public class ConnectionPartition implements Serializable{
 		return this.freeConnections.size();
 	}
 
+	/** Returns the number of avail connections beyond those set aside for keys (see KeyedPartitions), ie those
+	 * that any caller can have.
+	 * @return unreserved avail connections.
+	 */
+	protected int getUnreservedConnections() {
+		return this.freeConnectionBag == null ? this.freeConnections.size() : this.freeConnectionBag.unreservedSize();
+	}
+
 	/** Returns no of free slots.
 	 * @return remaining capacity.
 	 */
@@ -299,6 +402,64 @@ public class ConnectionPartition implements Serializable{
 		return this.freeConnections.remainingCapacity();
 	}
 
+	/** Records a connection obtained by a thread assigned to this partition. */
+	protected void incrementHits() {
+		this.hits.increment();
+	}
+
+	/** Records a connection taken from this partition by a thread assigned to another one. */
+	protected void incrementSteals() {
+		this.steals.increment();
+	}
+
+	/** Records a thread assigned to this partition finding no free connection anywhere. */
+	protected void incrementMisses() {
+		this.misses.increment();
+	}
+
+	/** Returns the number of connections obtained by threads assigned to this partition.
+	 * @return hits
+	 */
+	protected long getHits() {
+		return this.hits.sum();
+	}
+
+	/** Returns the number of connections taken from this partition by threads assigned to another one.
+	 * @return steals
+	 */
+	protected long getSteals() {
+		return this.steals.sum();
+	}
+
+	/** Returns the number of times a thread assigned to this partition found no free connection anywhere.
+	 * @return misses
+	 */
+	protected long getMisses() {
+		return this.misses.sum();
+	}
+
+	/** Resets the hit/steal/miss counters and the sizing decision counters. */
+	protected void resetStats() {
+		this.hits.reset();
+		this.steals.reset();
+		this.misses.reset();
+		this.demandForecast.resetStats();
+	}
+
+	/** Returns the forecast of the number of connections leased from this partition.
+	 * @return demandForecast
+	 */
+	protected DemandForecast getDemandForecast() {
+		return this.demandForecast;
+	}
+
+	/** Returns the number of connections predictive sizing wants this partition to have (0 if not enabled).
+	 * @return target connections
+	 */
+	protected int getTargetConnections() {
+		return this.demandForecast.getTargetConnections();
+	}
+
 	/** Store the unit translation here to avoid recalculating it in the constructor of StatementHandle. 
 	 * @return value
 	 */
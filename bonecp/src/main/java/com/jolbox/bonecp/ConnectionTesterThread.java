@@ -17,6 +17,9 @@
 package com.jolbox.bonecp;
 
 import java.sql.SQLException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -24,6 +27,11 @@ import org.slf4j.LoggerFactory;
 /**
  * Periodically sends a keep-alive statement to idle threads
  * and kills off any connections that have been unused for a long time (or broken).
+ * 
+ * Connections are checked in place: those that are due are marked as being tested but stay in the free queue, so
+ * the partition doesn't look empty while a sweep is running. Up to connectionTestThreads of them are tested at the
+ * same time, on the pool's maintenance threads. If the application asks for a connection that is being tested it is 
+ * given another one, and the tester puts the connection back once it's done.
  * @author wwadge
  *
  */
@@ -39,6 +47,19 @@ public class ConnectionTesterThread implements Runnable {
 	private BoneCP pool;
 	/** If true, we're operating in a LIFO fashion. */ 
 	private boolean lifoMode;
+	/** Max no of connections to test at the same time. */
+	private int connectionTestThreads;
+	/** Connections marked as due for a test but not yet tested. */
+	private final Queue<ConnectionHandle> dueConnections = new ConcurrentLinkedQueue<ConnectionHandle>();
+	/** Number of tasks testing connections right now. */
+	private final AtomicInteger activeTesters = new AtomicInteger();
+	/** Tests due connections until there are none left. */
+	private final Runnable tester = new Runnable() {
+		// @Override
+		public void run() {
+			testDueConnections();
+		}
+	};
 	/** Logger handle. */
 	private static final Logger logger = LoggerFactory.getLogger(ConnectionTesterThread.class);
 
@@ -56,101 +77,125 @@ public class ConnectionTesterThread implements Runnable {
 		this.idleConnectionTestPeriodInMs = idleConnectionTestPeriodInMs;
 		this.pool = pool;
 		this.lifoMode = lifoMode;
+		this.connectionTestThreads = Math.max(pool.getConfig().getConnectionTestThreads(), 1);
 	}
 
 
-	/** Invoked periodically. */
+	/** Invoked periodically. Retires broken and idle connections, and hands those due for a keep-alive over to
+	 * the testers. Connections that aren't due are left alone.
+	 */
 	public void run() {
-		ConnectionHandle connection = null;
-		long tmp;
 		try {
-				long nextCheckInMs = this.idleConnectionTestPeriodInMs;
-				if (this.idleMaxAgeInMs > 0){
-					if (this.idleConnectionTestPeriodInMs == 0){
-						nextCheckInMs = this.idleMaxAgeInMs;
-					} else {
-						nextCheckInMs = Math.min(nextCheckInMs, this.idleMaxAgeInMs);
-					}
-				}
-				
-				int partitionSize= this.partition.getAvailableConnections();
 				long currentTimeInMs = System.currentTimeMillis();
-				// go thru all partitions
-				for (int i=0; i < partitionSize; i++){
-					// grab connections one by one.
-					connection = this.partition.getFreeConnections().poll();
-					if (connection != null){
+				// go thru a snapshot of the free connections, marking those that need looking at.
+				for (ConnectionHandle connection: this.partition.getFreeConnections()){
+					// check if connection has been idle for too long (or is marked as broken). Idle ones are kept if
+					// that would take us below min since the pool watch thread would only create new ones in their place.
+					boolean retire = connection.isPossiblyBroken() || 
+							((this.idleMaxAgeInMs > 0) && this.partition.getCreatedConnections() > this.partition.getMinConnections()
+									&& ( currentTimeInMs-connection.getConnectionLastUsedInMs() > this.idleMaxAgeInMs));
+
+					// check if it's time to send a new keep-alive test statement.
+					boolean due = this.idleConnectionTestPeriodInMs > 0 && (currentTimeInMs-connection.getConnectionLastUsedInMs() > this.idleConnectionTestPeriodInMs) &&
+							(currentTimeInMs-connection.getConnectionLastResetInMs() >= this.idleConnectionTestPeriodInMs);
+
+					if ((retire || due) && connection.startMaintenance()){
 						connection.setOriginatingPartition(this.partition);
-						
-						// check if connection has been idle for too long (or is marked as broken)
-						if (connection.isPossiblyBroken() || 
-								((this.idleMaxAgeInMs > 0) && ( System.currentTimeMillis()-connection.getConnectionLastUsedInMs() > this.idleMaxAgeInMs))){
+						if (retire){
 							// kill off this connection - it's broken or it has been idle for too long
-							closeConnection(connection);
-							continue;
-						}
-						
-						// check if it's time to send a new keep-alive test statement.
-						if (this.idleConnectionTestPeriodInMs > 0 && (currentTimeInMs-connection.getConnectionLastUsedInMs() > this.idleConnectionTestPeriodInMs) &&
-								(currentTimeInMs-connection.getConnectionLastResetInMs() >= this.idleConnectionTestPeriodInMs)) {
-							// send a keep-alive, close off connection if we fail.
-							if (!this.pool.isConnectionHandleAlive(connection)){
-								closeConnection(connection);
-								continue; 
-							}
-							// calculate the next time to wake up
-							tmp = this.idleConnectionTestPeriodInMs;
-							if (this.idleMaxAgeInMs > 0){ // wake up earlier for the idleMaxAge test?
-								tmp = Math.min(tmp, this.idleMaxAgeInMs);
-							}
+							retire(connection);
 						} else {
-							// determine the next time to wake up (connection test time or idle Max age?) 
-							tmp = Math.abs(this.idleConnectionTestPeriodInMs-(currentTimeInMs - connection.getConnectionLastResetInMs()));
-							long tmp2 = Math.abs(this.idleMaxAgeInMs - (currentTimeInMs-connection.getConnectionLastUsedInMs()));
-							if (this.idleMaxAgeInMs > 0){
-								tmp = Math.min(tmp, tmp2);
-							}
-							
-						}
-						if (tmp < nextCheckInMs){
-							nextCheckInMs = tmp; 
+							this.dueConnections.add(connection);
 						}
-						
-						if (this.lifoMode){
-							// we can't put it back normally or it will end up in front again.
-							if (!(connection.getOriginatingPartition().getFreeConnections().offer(connection))){
-								connection.internalClose();
-							}
-						} else {
-							this.pool.putConnectionBackInPartition(connection);
-						}
-
-						Thread.sleep(20L); // test slowly, this is not an operation that we're in a hurry to deal with (avoid CPU spikes)...
 					}
-
-				} // throw it back on the queue
-				// offset by a bit to avoid firing a lot for slightly offset connections
-//				logger.debug("Next check in "+nextCheckInMs);
-				
+				}
+				startTesters();
 		} catch (Throwable e) {
 				logger.error("Connection tester thread interrupted", e);
 		}
 	}
 
+	/** Starts more testers on the pool's maintenance threads while there are due connections, up to 
+	 * connectionTestThreads.
+	 */
+	private void startTesters(){
+		while (!this.dueConnections.isEmpty()){
+			int active = this.activeTesters.get();
+			if (active >= this.connectionTestThreads){
+				return; // the running testers will get to them.
+			}
+			if (this.activeTesters.compareAndSet(active, active+1)){
+				this.pool.executeMaintenance(this.tester);
+			}
+		}
+	}
+
+	/** Tests due connections until there are none left. */
+	private void testDueConnections(){
+		try {
+			ConnectionHandle connection;
+			while ((connection = this.dueConnections.poll()) != null){
+				try {
+					if (this.pool.isConnectionHandleAlive(connection)){
+						if (!connection.endMaintenance(true)){
+							// it was asked for while we were testing it, so it's no longer in the queue.
+							putBack(connection);
+						}
+					} else {
+						// send a keep-alive, close off connection if we fail.
+						retire(connection);
+					}
+				} catch (Throwable e) {
+					logger.error("Connection tester thread interrupted", e);
+				}
+			}
+		} finally {
+			this.activeTesters.decrementAndGet();
+		}
+		startTesters(); // in case more were marked while we were finishing off.
+	}
+
+	/** Takes a connection we're checking out of the free queue, and closes it.
+	 * @param connection to retire
+	 */
+	private void retire(ConnectionHandle connection){
+		if (connection.endMaintenance(false)){
+			this.partition.getFreeConnections().remove(connection);
+		}
+		closeConnection(connection);
+	}
+
+	/** Places a connection we've tested back in the free queue.
+	 * @param connection to put back
+	 * @throws SQLException on error
+	 */
+	private void putBack(ConnectionHandle connection) throws SQLException{
+		if (this.pool.poolShuttingDown){
+			closeConnection(connection);
+		} else if (this.lifoMode){
+			// we can't put it back normally or it will end up in front again, ahead of those in real use.
+			if (!connection.getOriginatingPartition().getFreeConnectionBag().offerLast(connection)){
+				connection.internalClose();
+			}
+		} else {
+			this.pool.putConnectionBackInPartition(connection);
+		}
+	}
+
 
 	/** Closes off this connection
 	 * @param connection to close
 	 */
 	protected void closeConnection(ConnectionHandle connection) {
 
-		if (connection != null && !connection.isClosed()) {
+		if (connection != null) {
 			try {
 				connection.internalClose();
 			} catch (SQLException e) {
 				logger.error("Destroy connection exception", e);
 			} finally {
 				this.pool.postDestroyConnection(connection);
-				connection.getOriginatingPartition().getPoolWatchThreadSignalQueue().offer(new Object()); // item being pushed is not important.
+				connection.getOriginatingPartition().signalPoolWatchThread();
 			}
 		}
 	}
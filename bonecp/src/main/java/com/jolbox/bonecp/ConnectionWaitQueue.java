@@ -0,0 +1,468 @@
+/**
+ *  Copyright 2010 Wallace Wadge
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.jolbox.bonecp;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Threads waiting for a free connection, shared by all the bags (partitions) of a pool.
+ *
+ * A thread that finds every bag empty joins the queue and parks. Whichever bag an item is subsequently
+ * released into, the thread that has been waiting the longest is woken up to go and get it, so a waiter
+ * does not sit out its timeout while another partition has a connection available.
+ *
+ * By default the released item is handed straight to that thread, so connections go out strictly in the order
+ * they were asked for and no thread waits longer than it has to. A pool can instead set a handoff threshold (see
+ * BoneCPConfig.setHandoffThresholdInMs()): the item then stays in the bag, the oldest waiter is woken up to go
+ * and get it, and any running thread that comes along in the meantime may take it instead (barging), as with a
+ * lock that isn't fair. That saves a context switch per release under contention, at the price of longer waits
+ * for the unlucky: a woken thread that finds the item gone simply waits again, until it has been waiting for
+ * longer than the threshold and is handed the next item directly. Asynchronous requests, which have no thread to
+ * go looking with, are always handed items directly.
+ *
+ * Asynchronous requests queue up in the same way but, instead of a parked thread, leave behind a callback
+ * that the releasing thread calls with the item.
+ *
+ * A thread can also wait for an item from one bag only (see pollOwn()), eg when partitions are set aside for a
+ * particular tenant. Items released into other bags pass such a waiter by. Likewise, waiters other than those that
+ * asked for reserved items are passed by while the bag holds no more than the items it has set aside (see
+ * ConnectionBag.reserve()).
+ *
+ * @author wallacew
+ * @param <E> item type
+ */
+public class ConnectionWaitQueue<E> {
+	/** Marks a waiter that has given up. */
+	private static final Object CANCELLED = new Object();
+	/** Number of threads currently waiting. */
+	private final AtomicInteger waiters = new AtomicInteger();
+	/** Number of asynchronous requests currently waiting. */
+	private final AtomicInteger asyncWaiters = new AtomicInteger();
+	/** Threads waiting for an item, oldest first. */
+	private final ConcurrentLinkedQueue<Waiter> waitQueue = new ConcurrentLinkedQueue<Waiter>();
+	/** Bags that release into this queue. */
+	private final CopyOnWriteArrayList<ConnectionBag<E>> bags = new CopyOnWriteArrayList<ConnectionBag<E>>();
+	/** Statistics handle, null if we're not keeping stats. */
+	private final Statistics statistics;
+	/** A thread that has been waiting for this long (in ns) gets the next item handed over rather than having to race
+	 * for it. 0 to always hand over. */
+	private final long handoffThresholdInNanos;
+
+	/** Creates a new wait queue that hands released items straight to the oldest waiter.
+	 * @param statistics handle to record handoffs in or null to disable.
+	 */
+	public ConnectionWaitQueue(Statistics statistics) {
+		this(statistics, 0);
+	}
+
+	/** Creates a new wait queue.
+	 * @param statistics handle to record handoffs in or null to disable.
+	 * @param handoffThresholdInNanos how long (in ns) a thread waits before released items are handed to it rather
+	 * than left for it to race for. 0 to always hand over.
+	 */
+	public ConnectionWaitQueue(Statistics statistics, long handoffThresholdInNanos) {
+		this.statistics = statistics;
+		this.handoffThresholdInNanos = handoffThresholdInNanos;
+	}
+
+	/** Adds a bag to the set searched by waiting threads.
+	 * @param bag to add
+	 */
+	protected void register(ConnectionBag<E> bag){
+		this.bags.add(bag);
+	}
+
+	/** Returns true if there is at least one thread waiting for an item.
+	 * @return true if threads are waiting.
+	 */
+	protected boolean hasWaiters(){
+		return this.waiters.get() > 0;
+	}
+
+	/** Returns true if there is at least one asynchronous request waiting for an item.
+	 * @return true if asynchronous requests are waiting.
+	 */
+	protected boolean hasAsyncWaiters(){
+		return this.asyncWaiters.get() > 0;
+	}
+
+	/** Returns the number of threads currently waiting for an item.
+	 * @return waiting threads.
+	 */
+	public int getWaitingThreadCount(){
+		return this.waiters.get();
+	}
+
+	/** Gives the item directly to the waiter that has been waiting the longest unless it hasn't been waiting long
+	 * enough to be handed items yet (see handoffThresholdInNanos), in which case it goes to the oldest asynchronous
+	 * request, if any. Waiters for an item from some
+	 * other bag are passed over, as are those that can't have a reserved item if that's what this is.
+	 * @param from bag the item is being released into
+	 * @param item to hand over
+	 * @param spare true if the bag can spare the item, false if it's needed to make up the bag's reserved items
+	 * @return true if a waiter took the item, false if it should go into the bag (followed by a call to signal()).
+	 */
+	protected boolean handoff(ConnectionBag<E> from, E item, boolean spare){
+		boolean oldest = true;
+		Iterator<Waiter> it = this.waitQueue.iterator();
+		while (it.hasNext()){
+			Waiter waiter = it.next();
+			Object state = waiter.get();
+			if ((waiter.bag != null && waiter.bag != from) || (!spare && !waiter.reserved) 
+					|| (state != null && !(state instanceof Signal))){
+				continue; // not interested, or already on its way out.
+			}
+			if (waiter.thread == null || (oldest && (this.handoffThresholdInNanos == 0 
+					|| System.nanoTime() - waiter.since >= this.handoffThresholdInNanos))){
+				if (waiter.compareAndSet(state, item)){
+					it.remove();
+					if (this.statistics != null){
+						this.statistics.incrementConnectionsHandedOff();
+					}
+					if (state != null){
+						// it had been woken up for an item that's still there for all we know: wake up someone else.
+						signal(((Signal) state).bag);
+					}
+					waiter.handedOver();
+					return true;
+				}
+			} else if (this.asyncWaiters.get() == 0){
+				return false;
+			}
+			oldest = false;
+		}
+		return false;
+	}
+
+	/** Wakes up the thread that has been waiting the longest (and hasn't been woken up already) to come and look
+	 * for the item just placed in the given bag. Asynchronous requests and waiters for an item from some other bag
+	 * are passed over, as are those that can't have a reserved item if the bag has none to spare.
+	 * @param from bag an item has been placed in
+	 * @return true if a thread was woken up
+	 */
+	protected boolean signal(ConnectionBag<?> from){
+		boolean spare = from.unreservedSize() > 0;
+		for (Waiter waiter: this.waitQueue){
+			if (waiter.thread != null && (waiter.bag == null || waiter.bag == from) && (spare || waiter.reserved)
+					&& waiter.compareAndSet(null, from.signal)){
+				LockSupport.unpark(waiter.thread);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** Records that a released item went into a bag rather than to a waiting thread. */
+	protected void itemQueued(){
+		if (this.statistics != null){
+			this.statistics.incrementConnectionsQueued();
+		}
+	}
+
+	/** Waits up to the given time for an item to show up in any of the registered bags.
+	 * @param home bag to search first
+	 * @param timeout how long to wait
+	 * @param unit time granularity
+	 * @return an item, or null on timeout
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	protected E poll(ConnectionBag<E> home, long timeout, TimeUnit unit) throws InterruptedException {
+		return poll(home, false, false, timeout, unit);
+	}
+
+	/** Waits up to the given time for an item to show up in the given bag. Items released into any other bag are
+	 * left for others.
+	 * @param home bag to take the item from
+	 * @param reserved if true, the item may be one of those the bag has set aside
+	 * @param timeout how long to wait
+	 * @param unit time granularity
+	 * @return an item, or null on timeout
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	protected E pollOwn(ConnectionBag<E> home, boolean reserved, long timeout, TimeUnit unit) throws InterruptedException {
+		return poll(home, true, reserved, timeout, unit);
+	}
+
+	/** Waits up to the given time for an item.
+	 * @param home bag to search first
+	 * @param homeOnly if true, only take an item from the home bag
+	 * @param reserved if true, the item may be one of those the home bag has set aside (only if homeOnly)
+	 * @param timeout how long to wait
+	 * @param unit time granularity
+	 * @return an item, or null on timeout
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	@SuppressWarnings("unchecked")
+	private E poll(ConnectionBag<E> home, boolean homeOnly, boolean reserved, long timeout, TimeUnit unit) throws InterruptedException {
+		long now = System.nanoTime();
+		long remaining = unit.toNanos(timeout);
+		long deadline = now + remaining;
+		Waiter waiter = new Waiter(Thread.currentThread(), homeOnly ? home : null, homeOnly && reserved, now);
+		this.waiters.incrementAndGet();
+		this.waitQueue.offer(waiter);
+		try{
+			for (;;){
+				Object state = waiter.get();
+				if (state instanceof Signal){
+					if (!waiter.compareAndSet(state, null)){
+						continue; // handed an item in the meantime.
+					}
+					// woken up to look for an item. Re-arm first so that anything released from now on wakes us again.
+					state = null;
+				}
+				if (state != null){
+					return (E) state; // handed over
+				}
+				// look again: anything released from now on either wakes us up or is handed over.
+				E result = homeOnly ? (reserved ? home.pollReserved() : home.poll()) : pollAny(home);
+				if (result != null){
+					return leave(waiter, home, result);
+				}
+				boolean interrupted = Thread.interrupted();
+				if (remaining <= 0 || interrupted){
+					result = leave(waiter, home, null);
+					if (interrupted){
+						if (result == null){
+							throw new InterruptedException();
+						}
+						Thread.currentThread().interrupt(); // we got an item anyway, let the caller see the flag.
+					}
+					return result;
+				}
+				if (waiter.get() == null){
+					LockSupport.parkNanos(remaining);
+				}
+				remaining = deadline - System.nanoTime();
+			}
+		} finally {
+			this.waiters.decrementAndGet();
+			if (waiter.get() == CANCELLED){
+				this.waitQueue.remove(waiter);
+			}
+		}
+	}
+
+	/** Stops the given thread waiting, eg because it found an item itself.
+	 * @param waiter waiting thread
+	 * @param home bag to put the found item back into if the waiter has been handed one in the meantime as well
+	 * @param found item found, or null
+	 * @return the item to go with: the one found, or the one handed over
+	 */
+	@SuppressWarnings("unchecked")
+	private E leave(Waiter waiter, ConnectionBag<E> home, E found){
+		for (;;){
+			Object state = waiter.get();
+			if (state == null || state instanceof Signal){
+				if (waiter.compareAndSet(state, CANCELLED)){
+					if (state != null){
+						// we were woken up for an item that we're not taking, so someone else might want it.
+						signal(((Signal) state).bag);
+					}
+					return found;
+				}
+			} else {
+				if (found != null){
+					// we were handed one in the meantime as well. Keep that one, put this back.
+					putBack(home, found);
+				}
+				return (E) state;
+			}
+		}
+	}
+
+	/** Queues up the given callback to be handed the next item released into any of the registered bags. Unlike
+	 * poll(), no thread waits: the callback is called by whichever thread releases the item (or by this thread, if
+	 * an item is available straight away).
+	 * @param home bag to search first
+	 * @param callback to hand the item to
+	 * @return handle to give up waiting with
+	 */
+	protected AsyncWaiter pollAsync(ConnectionBag<E> home, Callback<E> callback){
+		AsyncWaiter waiter = new AsyncWaiter(callback);
+		this.waiters.incrementAndGet();
+		this.asyncWaiters.incrementAndGet();
+		this.waitQueue.offer(waiter);
+		// look again: anything released from now on sees us as a waiter and will hand it over.
+		E result = pollAny(home);
+		if (result != null){
+			if (waiter.cancel()){
+				callback.handedOver(result);
+			} else {
+				putBack(home, result); // we were handed one in the meantime as well. Keep that one, put this back.
+			}
+		}
+		return waiter;
+	}
+
+	/** Gives up on all the asynchronous requests still waiting, eg because the pool is shutting down. Threads
+	 * waiting in poll() are not affected.
+	 */
+	protected void cancelAsyncWaiters(){
+		List<Waiter> waiting = new ArrayList<Waiter>(this.waitQueue);
+		for (Waiter waiter: waiting){
+			waiter.cancelAsync();
+		}
+	}
+
+	/** Puts back an item that a waiter took from a bag just as it was handed another one, and so doesn't need. By
+	 * default the item goes into the given bag, or any other one with room if that is full. Pools whose items
+	 * belong in a particular bag should override this.
+	 * @param home bag the waiter searched first
+	 * @param item to put back
+	 */
+	protected void putBack(ConnectionBag<E> home, E item){
+		if (!home.offer(item)){
+			for (ConnectionBag<E> bag: this.bags){
+				if (bag != home && bag.offer(item)){
+					break;
+				}
+			}
+		}
+	}
+
+	/** Tries the given bag, then all the others.
+	 * @param home bag to try first
+	 * @return an item or null if all bags are empty.
+	 */
+	private E pollAny(ConnectionBag<E> home){
+		E result = home.poll();
+		if (result == null){
+			for (ConnectionBag<E> bag: this.bags){
+				if (bag != home && (result = bag.poll()) != null){
+					break;
+				}
+			}
+		}
+		return result;
+	}
+
+	/** Receives the items handed over to an asynchronous request.
+	 * @param <E> item type
+	 */
+	protected interface Callback<E> {
+		/** Called with the item handed over, normally on the thread that released it.
+		 * @param item handed over
+		 */
+		void handedOver(E item);
+
+		/** Called if the request is dropped without an item, see cancelAsyncWaiters(). */
+		void waitCancelled();
+	}
+
+	/** Tells a waiting thread that an item has been placed in a bag. Each bag has one. */
+	protected static final class Signal {
+		/** The bag. */
+		final ConnectionBag<?> bag;
+
+		/** Default constructor.
+		 * @param bag the bag this signal is for.
+		 */
+		Signal(ConnectionBag<?> bag){
+			this.bag = bag;
+		}
+	}
+
+	/** A thread blocked in poll(). Holds null while waiting, a Signal once woken up to go and look for an item, the
+	 * item it has been handed or CANCELLED. */
+	private static class Waiter extends AtomicReference<Object> {
+		/** uid */
+		private static final long serialVersionUID = 3371372458735367563L;
+		/** Thread to wake up, null for an asynchronous request. */
+		final Thread thread;
+		/** Only take items released into this bag, or null to take items from any bag. */
+		final ConnectionBag<?> bag;
+		/** If true, the item may be one of those the bag has set aside. */
+		final boolean reserved;
+		/** When the thread started waiting, in ns. */
+		final long since;
+
+		/** Default constructor.
+		 * @param thread waiting thread.
+		 * @param bag only take items released into this bag, or null to take items from any bag.
+		 * @param reserved if true, the item may be one of those the bag has set aside.
+		 * @param since when the thread started waiting, as per System.nanoTime().
+		 */
+		Waiter(Thread thread, ConnectionBag<?> bag, boolean reserved, long since){
+			this.thread = thread;
+			this.bag = bag;
+			this.reserved = reserved;
+			this.since = since;
+		}
+
+		/** Called once an item has been placed in this waiter. */
+		void handedOver(){
+			LockSupport.unpark(this.thread);
+		}
+
+		/** Gives up waiting if this is an asynchronous request, see cancelAsyncWaiters(). A waiting thread is left
+		 * alone. */
+		void cancelAsync(){
+			// nothing to do
+		}
+	}
+
+	/** An asynchronous request waiting in the queue, see pollAsync(). */
+	protected final class AsyncWaiter extends Waiter {
+		/** uid */
+		private static final long serialVersionUID = -4316367410526327713L;
+		/** Where to deliver the item. */
+		final Callback<E> callback;
+
+		/** Default constructor.
+		 * @param callback where to deliver the item.
+		 */
+		AsyncWaiter(Callback<E> callback){
+			super(null, null, false, 0);
+			this.callback = callback;
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		void handedOver(){
+			ConnectionWaitQueue.this.waiters.decrementAndGet();
+			ConnectionWaitQueue.this.asyncWaiters.decrementAndGet();
+			this.callback.handedOver((E) get());
+		}
+
+		@Override
+		void cancelAsync(){
+			if (cancel()){
+				this.callback.waitCancelled();
+			}
+		}
+
+		/** Gives up waiting.
+		 * @return true if the request was still waiting, false if it has already been handed an item.
+		 */
+		protected boolean cancel(){
+			if (compareAndSet(null, CANCELLED)){
+				ConnectionWaitQueue.this.waiters.decrementAndGet();
+				ConnectionWaitQueue.this.asyncWaiters.decrementAndGet();
+				ConnectionWaitQueue.this.waitQueue.remove(this);
+				return true;
+			}
+			return false;
+		}
+	}
+}
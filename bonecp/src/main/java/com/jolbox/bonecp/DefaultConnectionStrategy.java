@@ -31,55 +31,74 @@ public class DefaultConnectionStrategy extends AbstractConnectionStrategy {
 
 	/** uid */
 	private static final long serialVersionUID = 962520166486807512L;
+	/** Per-thread partition probe, initially derived from the thread id and rehashed whenever the thread's partition
+	 * turns out to have no free connections. Shared by all pools. */
+	private static final ThreadLocal<int[]> partitionProbe = new ThreadLocal<int[]>(){
+		@Override
+		protected int[] initialValue() {
+			int h = PoolUtil.threadHash();
+			return new int[]{ h == 0 ? 1 : h };
+		}
+	};
 
 	public DefaultConnectionStrategy(BoneCP pool){
 		this.pool = pool;
 	}
 	
 	@Override
-  public ConnectionHandle pollConnection(){
-    ConnectionHandle result = null;
+	public ConnectionHandle pollConnection(){
+		return pollConnection(homePartition());
+	}
 
-    int partition = (int) (Thread.currentThread().getId() % this.pool.partitionCount);
-    ConnectionPartition connectionPartition = this.pool.partitions[partition];
-    
-    result = connectionPartition.getFreeConnections().poll();
+	/** Moves the calling thread on to some other partition for next time, and has it look for a free connection
+	 * elsewhere starting from a random point, so that threads spread out instead of all hitting the same partitions
+	 * in the same order.
+	 * @param home partition that had no free connection
+	 * @return partition index
+	 */
+	@Override
+	protected int fallbackPartition(int home){
+		return (rehash(partitionProbe.get()) & Integer.MAX_VALUE) % this.pool.partitionCount;
+	}
 
-    if (result == null) {
-      // we ran out of space on this partition, pick another free one
-      for (int i=0; i < this.pool.partitionCount; i++){
-        if (i == partition) {
-          continue; // we already determined it's not here
-        }
-        result = this.pool.partitions[i].getFreeConnections().poll(); // try our luck with this partition
-       
-        if (result != null) {
-          connectionPartition = this.pool.partitions[i]; // we found it here
-          break;  // we found a connection
-        }
-      }
-    }
-		
-    if (!connectionPartition.isUnableToCreateMoreTransactions()){ // unless we can't create any more connections...
-      this.pool.maybeSignalForMoreConnections(connectionPartition);  // see if we need to create more
-    }
-		
-    return result;
+	/** Returns the partition the calling thread looks in first, and waits on if there are no free connections.
+	 * @return partition index
+	 */
+	@Override
+	protected int homePartition(){
+		return (partitionProbe.get()[0] & Integer.MAX_VALUE) % this.pool.partitionCount;
+	}
 
-  }
+	/** Moves the given thread probe on to a new pseudo-random value (xorshift).
+	 * @param probe probe to update
+	 * @return new probe value
+	 */
+	private static int rehash(int[] probe){
+		int h = probe[0];
+		h ^= h << 13;
+		h ^= h >>> 17;
+		h ^= h << 5;
+		probe[0] = h;
+		return h;
+	}
 
 	@Override
 	protected Connection getConnectionInternal() throws SQLException {
 		
 		ConnectionHandle result = pollConnection();
 		
-		// we still didn't find an empty one, wait forever (or as per config) until our partition is free
+		// we still didn't find an empty one, wait forever (or as per config) until a connection is released in any partition
 		if (result == null) {
-			int partition = (int) (Thread.currentThread().getId() % this.pool.partitionCount);
-			ConnectionPartition connectionPartition = this.pool.partitions[partition];
+			ConnectionPartition connectionPartition = this.pool.partitions[homePartition()];
 
 			try {
-				result = connectionPartition.getFreeConnections().poll(this.pool.connectionTimeoutInMs, TimeUnit.MILLISECONDS);
+				// a connection we can't claim doesn't give us more time to wait for another.
+				long remainingInNanos = TimeUnit.MILLISECONDS.toNanos(this.pool.connectionTimeoutInMs);
+				long deadline = System.nanoTime() + remainingInNanos;
+				do {
+					result = connectionPartition.getFreeConnections().poll(remainingInNanos, TimeUnit.NANOSECONDS);
+					remainingInNanos = deadline - System.nanoTime();
+				} while (result != null && !result.claimForUse());
 				if (result == null){
 					if (this.pool.nullOnConnectionTimeout){
 						return null;
@@ -0,0 +1,136 @@
+/**
+ *  Copyright 2010 Wallace Wadge
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.jolbox.bonecp;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Smoothed forecast of the number of connections a partition will have leased out, and the sizing decisions
+ * taken from it.
+ *
+ * Checkouts report the number of connections leased at that moment; only the peak is kept, so this costs a
+ * single read unless a new peak was reached. Once every sizing period, the peak is fed into a double exponential
+ * smoothing (Holt's method): an EWMA of the level plus an EWMA of its trend, so that a steady ramp is followed
+ * rather than lagged behind. The forecast looks a couple of periods ahead of the last sample.
+ *
+ * @author wallacew
+ */
+public class DemandForecast {
+	/** Weight given to the latest sample when updating the level. */
+	private static final double LEVEL_ALPHA = 0.3;
+	/** Weight given to the latest change in level when updating the trend. */
+	private static final double TREND_BETA = 0.2;
+	/** Number of periods ahead to forecast, so that connections are ready before they're asked for. */
+	private static final int HORIZON = 2;
+	/** Highest number of connections leased since the last period. */
+	private final AtomicInteger peakLeased = new AtomicInteger();
+	/** Smoothed number of connections leased. */
+	private double level;
+	/** Smoothed change in level per period. */
+	private double trend;
+	/** False until the first sample is in. */
+	private boolean initialized;
+	/** Latest forecast. */
+	private volatile double forecast;
+	/** Number of connections the partition should have, as last decided by the sizing thread. 0 = no opinion. */
+	private volatile int targetConnections;
+	/** Number of times the partition was asked to grow ahead of demand. */
+	private final AtomicLong growths = new AtomicLong();
+	/** Number of connections retired because the forecast no longer called for them. */
+	private final AtomicLong shrinks = new AtomicLong();
+
+	/** Records the number of connections leased at checkout time.
+	 * @param leased connections currently leased out
+	 */
+	protected void recordLeased(int leased){
+		int peak = this.peakLeased.get();
+		while (leased > peak && !this.peakLeased.compareAndSet(peak, leased)){
+			peak = this.peakLeased.get();
+		}
+	}
+
+	/** Closes off a period: feeds the peak number of connections leased during it into the forecast and starts
+	 * the next period off at the given number.
+	 * @param leased connections currently leased out
+	 * @return the new forecast
+	 */
+	protected synchronized double update(int leased){
+		double sample = Math.max(this.peakLeased.getAndSet(leased), leased);
+		if (!this.initialized){
+			this.level = sample;
+			this.trend = 0;
+			this.initialized = true;
+		} else {
+			double previous = this.level;
+			this.level = LEVEL_ALPHA * sample + (1 - LEVEL_ALPHA) * (this.level + this.trend);
+			this.trend = TREND_BETA * (this.level - previous) + (1 - TREND_BETA) * this.trend;
+		}
+		this.forecast = Math.max(this.level + HORIZON * this.trend, 0);
+		return this.forecast;
+	}
+
+	/** Returns the latest forecast of the number of connections leased.
+	 * @return forecast
+	 */
+	public double getForecast() {
+		return this.forecast;
+	}
+
+	/** Returns the number of connections the partition should have (0 = no opinion).
+	 * @return targetConnections
+	 */
+	public int getTargetConnections() {
+		return this.targetConnections;
+	}
+
+	/** Sets the number of connections the partition should have.
+	 * @param targetConnections the targetConnections to set
+	 */
+	protected void setTargetConnections(int targetConnections) {
+		this.targetConnections = targetConnections;
+	}
+
+	/** Records a decision to grow the partition. */
+	protected void incrementGrowths() {
+		this.growths.incrementAndGet();
+	}
+
+	/** Records a connection retired by the sizing thread. */
+	protected void incrementShrinks() {
+		this.shrinks.incrementAndGet();
+	}
+
+	/** Returns the number of times the partition was asked to grow ahead of demand.
+	 * @return growths
+	 */
+	public long getGrowths() {
+		return this.growths.get();
+	}
+
+	/** Returns the number of connections retired because the forecast no longer called for them.
+	 * @return shrinks
+	 */
+	public long getShrinks() {
+		return this.shrinks.get();
+	}
+
+	/** Resets the decision counters. */
+	protected void resetStats() {
+		this.growths.set(0);
+		this.shrinks.set(0);
+	}
+}
@@ -0,0 +1,137 @@
+/**
+ *  Copyright 2010 Wallace Wadge
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.jolbox.bonecp;
+
+/**
+ * Approximate, ageing count of how often each key has been seen (a count-min sketch of 4-bit counters, as used
+ * by TinyLFU).
+ *
+ * Each key maps to 4 counters spread over a table of longs holding 16 counters each; its frequency is the
+ * smallest of the 4, which can only ever overstate the real count. Counters stop at 15 and once the number of
+ * increments reaches 10x the number of items being tracked, every counter is halved so that things that
+ * used to be popular fade away. Memory use is fixed at roughly 8 bytes per item tracked.
+ *
+ * Not thread-safe.
+ *
+ * @author wallacew
+ */
+public class FrequencySketch {
+	/** Hash seeds, one per counter row. */
+	private static final long[] SEEDS = new long[]{ 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+	/** Clears the top bit of every counter after a shift. */
+	private static final long RESET_MASK = 0x7777777777777777L;
+	/** Picks out the bottom bit of every counter. */
+	private static final long ONE_MASK = 0x1111111111111111L;
+	/** The counters, 16 to a long. */
+	private final long[] table;
+	/** table.length - 1 */
+	private final int tableMask;
+	/** Number of increments after which all counters are halved. */
+	private final int sampleSize;
+	/** Number of increments since the last halving. */
+	private int size;
+
+	/** Creates a sketch sized for the given number of items.
+	 * @param maximumSize number of items that will be tracked at any one time.
+	 */
+	public FrequencySketch(int maximumSize) {
+		int max = Math.max(maximumSize, 1);
+		int length = 8;
+		while (length < max && length < (1 << 30)){
+			length <<= 1;
+		}
+		this.table = new long[length];
+		this.tableMask = length - 1;
+		this.sampleSize = (max >= Integer.MAX_VALUE / 10) ? Integer.MAX_VALUE : 10 * max;
+	}
+
+	/** Returns the estimated number of times the given key has been seen (0..15).
+	 * @param key to look up
+	 * @return frequency
+	 */
+	public int frequency(Object key){
+		int hash = spread(key.hashCode());
+		int start = (hash & 3) << 2;
+		int result = 15;
+		for (int i=0; i < 4; i++){
+			int index = indexOf(hash, i);
+			int count = (int) ((this.table[index] >>> ((start + i) << 2)) & 0xfL);
+			result = Math.min(result, count);
+		}
+		return result;
+	}
+
+	/** Records one sighting of the given key.
+	 * @param key seen
+	 */
+	public void increment(Object key){
+		int hash = spread(key.hashCode());
+		int start = (hash & 3) << 2;
+		boolean added = false;
+		for (int i=0; i < 4; i++){
+			added |= incrementAt(indexOf(hash, i), start + i);
+		}
+		if (added && (++this.size == this.sampleSize)){
+			reset();
+		}
+	}
+
+	/** Increments the given counter unless it's already maxed out.
+	 * @param i table index
+	 * @param j counter within that long (0..15)
+	 * @return true if incremented
+	 */
+	private boolean incrementAt(int i, int j){
+		int offset = j << 2;
+		long mask = 0xfL << offset;
+		if ((this.table[i] & mask) != mask){
+			this.table[i] += 1L << offset;
+			return true;
+		}
+		return false;
+	}
+
+	/** Halves every counter. */
+	private void reset(){
+		int odd = 0;
+		for (int i=0; i < this.table.length; i++){
+			odd += Long.bitCount(this.table[i] & ONE_MASK);
+			this.table[i] = (this.table[i] >>> 1) & RESET_MASK;
+		}
+		this.size = (this.size >>> 1) - (odd >>> 2);
+	}
+
+	/** Returns the table index of the given row for the given hash.
+	 * @param hash spread hash of the key
+	 * @param i row (0..3)
+	 * @return table index
+	 */
+	private int indexOf(int hash, int i){
+		long h = (hash + SEEDS[i]) * SEEDS[i];
+		h += h >>> 32;
+		return ((int) h) & this.tableMask;
+	}
+
+	/** Spreads out a poor-quality hash code.
+	 * @param x hash code
+	 * @return better hash
+	 */
+	private static int spread(int x){
+		x = ((x >>> 16) ^ x) * 0x45d9f3b;
+		x = ((x >>> 16) ^ x) * 0x45d9f3b;
+		return (x >>> 16) ^ x;
+	}
+}
@@ -16,6 +16,8 @@
 
 package com.jolbox.bonecp;
 
+import java.sql.Statement;
+
 
 
 /**
@@ -25,6 +27,14 @@ package com.jolbox.bonecp;
  */
 public interface IStatementCache {
 	
+	/**
+	 * Retrieves the cached statement identified by the given key
+	 *
+	 * @param key cache key
+	 * @return Statement, or null if not found.
+	 */
+	StatementHandle get(StatementCacheKey key);
+
 	/**
 	 * Retrieves the cached statement identified by the given key
 	 *
@@ -97,26 +107,32 @@ public interface IStatementCache {
 	StatementHandle get(String sql, String[] columnNames);
 
 	
+	/** Returns a cache key.
+	 * @param sql SQL Statement
+	 * @return cache key
+	 */
+	StatementCacheKey calculateCacheKey(String sql);
+
 	/** Calculates a cache key. 
 	 * @param sql SQL Statement
 	 * @param columnNames an array of column names indicating the columns that should be returned from the inserted row or rows
 	 * @return cache key
 	 */
-	String calculateCacheKey(String sql, String[] columnNames);
+	StatementCacheKey calculateCacheKey(String sql, String[] columnNames);
 
 	/** Returns a cache key.
 	 * @param sql SQL Statement
 	 * @param columnIndexes an array of column indexes indicating the columns that should be returned from the inserted row or rows
 	 * @return cache key
 	 */
-	String calculateCacheKey(String sql, int[] columnIndexes);
+	StatementCacheKey calculateCacheKey(String sql, int[] columnIndexes);
 
 	/** Returns a cache key.
 	 * @param sql SQL Statement
 	 * @param autoGeneratedKeys
 	 * @return cache key.
 	 */
-	String calculateCacheKey(String sql, int autoGeneratedKeys);
+	StatementCacheKey calculateCacheKey(String sql, int autoGeneratedKeys);
 
 	/** Returns a cache key.
 	 * @param sql SQL Statement
@@ -124,7 +140,7 @@ public interface IStatementCache {
 	 * @param resultSetConcurrency a concurrency type; one of ResultSet.CONCUR_READ_ONLY or ResultSet.CONCUR_UPDATABLE
 	 * @return cache key.
 	 */
-	String calculateCacheKey(String sql, int resultSetType,
+	StatementCacheKey calculateCacheKey(String sql, int resultSetType,
 			int resultSetConcurrency);
 
 	/** Returns a cache key.
@@ -134,7 +150,7 @@ public interface IStatementCache {
 	 * @param resultSetHoldability a ResultSet holdability constant; one of ResultSet.HOLD_CURSORS_OVER_COMMIT or ResultSet.CLOSE_CURSORS_AT_COMMIT
 	 * @return cache key.
 	 */
-	String calculateCacheKey(String sql, int resultSetType,
+	StatementCacheKey calculateCacheKey(String sql, int resultSetType,
 			int resultSetConcurrency, int resultSetHoldability);
 
 	
@@ -148,7 +164,15 @@ public interface IStatementCache {
 	 * @param cacheKey
 	 * @param statementHandle
 	 */
-	void putIfAbsent(String cacheKey, StatementHandle statementHandle);
+	void putIfAbsent(StatementCacheKey cacheKey, StatementHandle statementHandle);
+
+	/**
+	 * Returns a statement obtained from the cache once the application is done with it.
+	 * @param cacheKey key the statement was cached under
+	 * @param statement driver statement
+	 * @return true if the statement is back in the cache, false if it's no longer cached and should be closed.
+	 */
+	boolean release(StatementCacheKey cacheKey, Statement statement);
 
 
 }
\ No newline at end of file
@@ -0,0 +1,475 @@
+/**
+ *  Copyright 2010 Wallace Wadge
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.jolbox.bonecp;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hands out connections by a caller-supplied key, such as a tenant or schema name, rather than just by thread.
+ *
+ * Each key is given a partition of its own the first time it shows up (keys take turns if there are more keys
+ * than partitions), and is then served from that partition first. Its connections therefore keep their session
+ * state and server-side caches warm for that key.
+ *
+ * A key can also have connections set aside for it (see BoneCPConfig.setReservedConnectionsPerKey()). While the
+ * key has fewer than that many connections out, its partition keeps that many of its free connections for it:
+ * plain getConnection() calls, asynchronous requests and other keys only get the free connections beyond those
+ * (see ConnectionBag.reserve()), and a busy neighbour can't leave the key waiting for more than its reservation.
+ * The reservations of the keys sharing a partition never add up to more than the partition's maximum size: once
+ * they would, a new key gets whatever is left, if anything.
+ * Beyond its reservation, a key is on an equal footing with everyone else, up to its maximum (see 
+ * BoneCPConfig.setMaxConnectionsPerKey()): a key that already has that many connections out waits for one of them
+ * to be closed, or times out as per getConnection(), however many connections are free. One busy key therefore
+ * can't drain the pool for all the others.
+ *
+ * If a key's partition has nothing free for it, it takes a free connection from some other partition that can
+ * spare one, ie one that isn't set aside for that partition's own keys. The borrowed connection goes back to the
+ * partition it came from once closed. If nothing can be borrowed, the caller waits for a connection to be released
+ * into its own partition.
+ *
+ * Keys are assigned partitions in turn and remembered until they have had no connections out for a while (see
+ * BoneCPConfig.setKeyIdleTimeoutInMs()), at which point their connections are no longer set aside for them. A key
+ * that shows up again later is treated as new. Up to MAX_REMEMBERED_KEYS keys are remembered at once. Any further
+ * keys are not remembered but spread over the partitions by hash code instead, so a key that is, say, generated 
+ * per request costs nothing to keep track of but shares its partition with more keys and has neither anything 
+ * set aside for it nor a maximum. We log a warning the first time that happens.
+ *
+ * @author wallacew
+ */
+public class KeyedPartitions {
+	/** Logger class. */
+	private static final Logger logger = LoggerFactory.getLogger(KeyedPartitions.class);
+	/** Number of keys we remember the partition of. */
+	protected static final int MAX_REMEMBERED_KEYS = 1024;
+	/** Pool handle. */
+	private final BoneCP pool;
+	/** Number of free connections set aside for each remembered key. */
+	private final int reservedConnectionsPerKey;
+	/** Maximum number of connections each remembered key may have out, 0 for no limit. */
+	private final int maxConnectionsPerKey;
+	/** Keys that have had no connections out for this long (in ms) are forgotten, 0 to remember them for good. */
+	private final long keyIdleTimeoutInMs;
+	/** Partition (and reservation) assigned to each key remembered. */
+	private final ConcurrentMap<Object, Reservation> partitionsByKey = new ConcurrentHashMap<Object, Reservation>();
+	/** Number of keys assigned a partition so far, used to hand out partitions in turn. */
+	private final AtomicInteger keysAssigned = new AtomicInteger();
+	/** Number of keys remembered right now. */
+	private final AtomicInteger keysRemembered = new AtomicInteger();
+	/** Number of connections set aside for keys in each partition, by partition index. */
+	private final AtomicInteger[] setAsideByPartition;
+	/** Set once we've warned about a key we have no room to remember. */
+	private volatile boolean warnedTooManyKeys;
+	/** Set once we've warned about a key we have no room to set connections aside for. */
+	private volatile boolean warnedPartitionFull;
+
+	/** Default constructor.
+	 * @param pool pool handle
+	 */
+	protected KeyedPartitions(BoneCP pool) {
+		this.pool = pool;
+		this.reservedConnectionsPerKey = pool.getConfig().getReservedConnectionsPerKey();
+		this.maxConnectionsPerKey = pool.getConfig().getMaxConnectionsPerKey();
+		this.keyIdleTimeoutInMs = pool.getConfig().getKeyIdleTimeoutInMs();
+		this.setAsideByPartition = new AtomicInteger[pool.partitionCount];
+		for (int i=0; i < this.setAsideByPartition.length; i++){
+			this.setAsideByPartition[i] = new AtomicInteger();
+		}
+	}
+
+	/** Returns the partition serving the given key, assigning one if this is the first time we see the key.
+	 * @param key key
+	 * @return partition
+	 */
+	protected ConnectionPartition partitionFor(Object key){
+		Reservation reservation = reservationFor(key);
+		if (reservation == null){
+			// too many keys to keep track of.
+			int h = key.hashCode() * 0x9E3779B9;
+			return this.pool.partitions[((h ^ (h >>> 16)) & Integer.MAX_VALUE) % this.pool.partitionCount];
+		}
+		return reservation.partition;
+	}
+
+	/** Returns what we keep track of for the given key, assigning it a partition (and setting aside its connections
+	 * there) if this is the first time we see the key.
+	 * @param key key
+	 * @return the key's reservation, or null if there are too many keys to remember this one.
+	 */
+	private Reservation reservationFor(Object key){
+		Reservation result = this.partitionsByKey.get(key);
+		if (result == null){
+			if (this.keysRemembered.incrementAndGet() > MAX_REMEMBERED_KEYS){
+				this.keysRemembered.decrementAndGet();
+				if (!this.warnedTooManyKeys && (this.reservedConnectionsPerKey > 0 || this.maxConnectionsPerKey > 0)){
+					this.warnedTooManyKeys = true;
+					logger.warn("More than "+MAX_REMEMBERED_KEYS+" keys in use with getConnection(key). Further keys get no connections set aside and no maximum.");
+				}
+				return null;
+			}
+			int next = (this.keysAssigned.getAndIncrement() & Integer.MAX_VALUE) % this.pool.partitionCount;
+			result = new Reservation(this.pool.partitions[next], this.setAsideByPartition[next], this.maxConnectionsPerKey);
+			Reservation existing = this.partitionsByKey.putIfAbsent(key, result);
+			if (existing != null){
+				this.keysRemembered.decrementAndGet();
+				result = existing;
+			} else if (result.setAside(this.reservedConnectionsPerKey) < this.reservedConnectionsPerKey && !this.warnedPartitionFull){
+				this.warnedPartitionFull = true;
+				logger.warn("Connections set aside for keys would add up to more than maxConnectionsPerPartition. Keys that come along once a partition is full get fewer connections set aside, or none.");
+			}
+		}
+		return result;
+	}
+
+	/** Forgets the given key, if it's still remembered with the given reservation.
+	 * @param key key
+	 * @param reservation the key's reservation, already dropped
+	 */
+	private void forget(Object key, Reservation reservation){
+		if (this.partitionsByKey.remove(key, reservation)){
+			this.keysRemembered.decrementAndGet();
+		}
+	}
+
+	/** Forgets the keys that have had no connections out for keyIdleTimeoutInMs, giving up the connections set
+	 * aside for them. Called periodically by the pool.
+	 */
+	protected void releaseIdleKeys(){
+		if (this.keyIdleTimeoutInMs <= 0){
+			return;
+		}
+		long idleSince = System.currentTimeMillis() - this.keyIdleTimeoutInMs;
+		for (Map.Entry<Object, Reservation> entry: this.partitionsByKey.entrySet()){
+			if (entry.getValue().dropIfIdle(idleSince)){
+				forget(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	/** Obtains a connection for the given key.
+	 * @param key key
+	 * @param strategy strategy in use by the pool, for the usual pre and post connection steps
+	 * @return a connection, or null on timeout if so configured
+	 * @throws SQLException on timeout or error
+	 */
+	protected Connection getConnection(Object key, AbstractConnectionStrategy strategy) throws SQLException {
+		long statsObtainTime = strategy.preConnection();
+		Reservation reservation = reservationFor(key);
+		while (reservation != null){
+			if (!reservation.acquire(this.pool.connectionTimeoutInMs, this.pool.nullOnConnectionTimeout)){
+				return null;
+			}
+			if (!reservation.isDropped()){
+				break;
+			}
+			// the key was found idle just now: start again as a new key.
+			reservation.giveBack();
+			forget(key, reservation);
+			reservation = reservationFor(key);
+		}
+		ConnectionPartition partition = reservation == null ? partitionFor(key) : reservation.partition;
+		boolean done = false;
+		try {
+			ConnectionHandle result = getConnection(reservation, partition);
+			if (result != null){
+				if (reservation != null && (result.reservationClaimed || reservation.quota != null)){
+					result.reservation = reservation;
+				}
+				done = true;
+				strategy.postConnection(result, statsObtainTime);
+			}
+			return result;
+		} finally {
+			if (!done && reservation != null){
+				reservation.giveBack();
+			}
+		}
+	}
+
+	/** Obtains a connection for a key that is within its maximum.
+	 * @param reservation the key's reservation, or null if the key isn't remembered
+	 * @param partition partition serving the key
+	 * @return a connection, or null on timeout if so configured
+	 * @throws SQLException on timeout or error
+	 */
+	private ConnectionHandle getConnection(Reservation reservation, ConnectionPartition partition) throws SQLException {
+		// a key with connections set aside takes one of those, or any other free one in its partition.
+		boolean claimed = reservation != null && reservation.claim();
+		ConnectionHandle result = claimed ? pollReserved(partition) : AbstractConnectionStrategy.pollFree(partition);
+		if (result != null){
+			if (this.pool.statisticsEnabled){
+				partition.incrementHits();
+			}
+		} else {
+			if (claimed){
+				reservation.unclaim(); // the partition has nothing free at all.
+				claimed = false;
+			}
+			result = borrow(partition);
+			if (result == null && this.pool.statisticsEnabled){
+				partition.incrementMisses();
+			}
+		}
+
+		if (!partition.isUnableToCreateMoreTransactions()){ // unless we can't create any more connections...
+			this.pool.maybeSignalForMoreConnections(partition);  // see if we need to create more
+		}
+
+		if (result == null){
+			claimed = reservation != null && reservation.claim();
+			try {
+				result = waitFor(partition, claimed);
+			} finally {
+				if (claimed && result == null){
+					reservation.unclaim();
+				}
+			}
+			if (result == null){
+				return null;
+			}
+		}
+
+		if (claimed){
+			reservation.taken();
+		}
+		result.reservationClaimed = claimed;
+		return result;
+	}
+
+	/** Takes a free connection from the given partition, including those set aside for its keys.
+	 * @param partition partition to take from
+	 * @return a connection, or null if none is free
+	 */
+	private static ConnectionHandle pollReserved(ConnectionPartition partition){
+		ConnectionHandle result;
+		do {
+			result = partition.getFreeConnectionBag().pollReserved();
+		} while (result != null && !result.claimForUse());
+		return result;
+	}
+
+	/** Takes a free connection from some other partition that can spare one.
+	 * @param home partition of the key asking
+	 * @return a connection or null if no other partition can spare one
+	 */
+	private ConnectionHandle borrow(ConnectionPartition home){
+		for (ConnectionPartition lender: this.pool.partitions){
+			if (lender != home){
+				ConnectionHandle result = AbstractConnectionStrategy.pollFree(lender); // leaves the lender's reservations be
+				if (result != null){
+					if (this.pool.statisticsEnabled){
+						lender.incrementSteals();
+					}
+					return result;
+				}
+			}
+		}
+		return null;
+	}
+
+	/** Waits (as configured) for a connection to be released into the given partition.
+	 * @param partition partition to wait on
+	 * @param reserved if true, the connection may be one of those set aside for the partition's keys
+	 * @return a connection, or null on timeout if so configured
+	 * @throws SQLException on timeout or if interrupted
+	 */
+	private ConnectionHandle waitFor(ConnectionPartition partition, boolean reserved) throws SQLException {
+		ConnectionBag<ConnectionHandle> freeConnections = partition.getFreeConnectionBag();
+		ConnectionHandle result;
+		try {
+			// a connection we can't claim doesn't give us more time to wait for another.
+			long remainingInNanos = TimeUnit.MILLISECONDS.toNanos(this.pool.connectionTimeoutInMs);
+			long deadline = System.nanoTime() + remainingInNanos;
+			do {
+				result = freeConnections.pollOwn(remainingInNanos, TimeUnit.NANOSECONDS, reserved);
+				remainingInNanos = deadline - System.nanoTime();
+			} while (result != null && !result.claimForUse());
+		} catch (InterruptedException e) {
+			if (this.pool.nullOnConnectionTimeout){
+				return null;
+			}
+			throw PoolUtil.generateSQLException(e.getMessage(), e);
+		}
+		if (result == null && !this.pool.nullOnConnectionTimeout){
+			// 08001 = The application requester is unable to establish the connection.
+			throw new SQLException("Timed out waiting for a free available connection.", "08001");
+		}
+		return result;
+	}
+
+	/** The partition a key is served from, the connections set aside for it there, and how many it may have out. */
+	protected static final class Reservation {
+		/** Marks a reservation dropped by dropIfIdle() in place of the number of claimed connections. */
+		private static final int DROPPED = -1;
+		/** Partition serving the key. */
+		final ConnectionPartition partition;
+		/** Number of connections set aside for keys in the partition, this one included. */
+		private final AtomicInteger partitionSetAside;
+		/** Number of connections set aside for the key. */
+		private volatile int size;
+		/** Number of the key's connections out (or being obtained) against its reservation, or DROPPED. */
+		private final AtomicInteger claimed = new AtomicInteger();
+		/** One permit per connection the key may have out, or null if there's no limit. */
+		final Semaphore quota;
+		/** Maximum number of connections the key may have out, 0 for no limit. */
+		private final int max;
+		/** Last time the key asked for or gave back a connection, in ms. */
+		private volatile long lastUsedInMs = System.currentTimeMillis();
+
+		/** Default constructor.
+		 * @param partition partition serving the key
+		 * @param partitionSetAside number of connections set aside for keys in the partition
+		 * @param max maximum number of connections the key may have out, 0 for no limit
+		 */
+		Reservation(ConnectionPartition partition, AtomicInteger partitionSetAside, int max){
+			this.partition = partition;
+			this.partitionSetAside = partitionSetAside;
+			this.max = max;
+			this.quota = max > 0 ? new Semaphore(max) : null;
+		}
+
+		/** Books a connection against the key's maximum, waiting (as configured) for one of its connections to be
+		 * closed if it's got as many out as it may.
+		 * @param timeoutInMs how long to wait, as per connectionTimeoutInMs
+		 * @param nullOnTimeout if true, return false on timeout rather than throw
+		 * @return true if booked (or there is no maximum), false on timeout if so configured
+		 * @throws SQLException on timeout or if interrupted
+		 */
+		boolean acquire(long timeoutInMs, boolean nullOnTimeout) throws SQLException{
+			this.lastUsedInMs = System.currentTimeMillis();
+			if (this.quota == null || this.quota.tryAcquire()){
+				return true;
+			}
+			try {
+				if (this.quota.tryAcquire(timeoutInMs, TimeUnit.MILLISECONDS)){
+					return true;
+				}
+			} catch (InterruptedException e) {
+				if (nullOnTimeout){
+					return false;
+				}
+				throw PoolUtil.generateSQLException(e.getMessage(), e);
+			}
+			if (nullOnTimeout){
+				return false;
+			}
+			// 08001 = The application requester is unable to establish the connection.
+			throw new SQLException("Timed out waiting for one of the connections out for this key to be closed.", "08001");
+		}
+
+		/** Cancels an acquire() that didn't get a connection after all, or gives back a closed connection's booking. */
+		void giveBack(){
+			if (this.quota != null){
+				this.quota.release();
+			}
+		}
+
+		/** Sets aside the key's connections in its partition, as many as the partition has room for. Called once,
+		 * when the key is first seen.
+		 * @param wanted number of connections to set aside
+		 * @return number of connections set aside
+		 */
+		int setAside(int wanted){
+			int limit = this.partition.getMaxConnections();
+			int current;
+			int granted;
+			do {
+				current = this.partitionSetAside.get();
+				granted = Math.max(0, Math.min(wanted, limit - current));
+			} while (granted > 0 && !this.partitionSetAside.compareAndSet(current, current + granted));
+			if (granted > 0){
+				this.partition.getFreeConnectionBag().reserve(granted);
+				this.size = granted;
+			}
+			return granted;
+		}
+
+		/** Gives up the connections set aside for the key and stops anything else being booked against the
+		 * reservation, provided the key has had no connections out since the given time.
+		 * @param idleSince time in ms
+		 * @return true if dropped, in which case the key should be forgotten.
+		 */
+		boolean dropIfIdle(long idleSince){
+			if (this.lastUsedInMs > idleSince || !this.claimed.compareAndSet(0, DROPPED)){
+				return false;
+			}
+			// nothing can be claimed from now on. Connections out beyond the reservation still hold a permit.
+			if (this.quota != null && this.quota.availablePermits() < this.max){
+				this.claimed.set(0);
+				return false;
+			}
+			int setAside = this.size;
+			if (setAside > 0){
+				this.partition.getFreeConnectionBag().reserve(-setAside);
+				this.partitionSetAside.addAndGet(-setAside);
+			}
+			return true;
+		}
+
+		/** Returns true once dropIfIdle() has dropped the reservation.
+		 * @return true if dropped
+		 */
+		boolean isDropped(){
+			return this.claimed.get() == DROPPED;
+		}
+
+		/** Books a connection against the reservation, if the key hasn't used it all up yet.
+		 * @return true if booked: the connection may be one of those set aside.
+		 */
+		boolean claim(){
+			int current;
+			do {
+				current = this.claimed.get();
+				if (current == DROPPED || current >= this.size){
+					return false;
+				}
+			} while (!this.claimed.compareAndSet(current, current + 1));
+			return true;
+		}
+
+		/** Cancels a claim() that didn't get a connection after all. */
+		void unclaim(){
+			this.claimed.decrementAndGet();
+		}
+
+		/** Called once a claimed connection has been taken: it no longer has to be kept free for the key. */
+		void taken(){
+			this.partition.getFreeConnectionBag().reserve(-1);
+		}
+
+		/** Called as a connection obtained for the key is being closed, before it goes back in the partition, so 
+		 * that it's set aside again by the time anyone else can get to it.
+		 * @param claimed true if the connection was booked against the reservation
+		 */
+		protected void release(boolean claimed){
+			this.lastUsedInMs = System.currentTimeMillis();
+			if (claimed){
+				this.partition.getFreeConnectionBag().reserve(1);
+				this.claimed.decrementAndGet();
+			}
+			giveBack();
+		}
+	}
+}
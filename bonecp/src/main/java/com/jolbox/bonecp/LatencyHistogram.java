@@ -0,0 +1,213 @@
+/**
+ *  Copyright 2010 Wallace Wadge
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.jolbox.bonecp;
+
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size latency histogram over a rolling time window.
+ *
+ * Values are kept in microseconds in log-linear buckets: every power of 2 is split into 8 equally wide
+ * buckets, so any value is reported to within 1/16th (about 6%) of what was recorded, from 1us up to several
+ * days, using a few hundred counters. Recording is a couple of shifts and one atomic increment; nothing
+ * is allocated and no lock is taken.
+ *
+ * The window is made up of a ring of slices. Values go into the slice for the current interval and a slice
+ * is cleared as soon as it comes round again, so queries only ever see the last window's worth of data
+ * (plus the part of the current slice that has elapsed) without anyone having to reset anything.
+ *
+ * @author wallacew
+ */
+public class LatencyHistogram implements Serializable {
+	/** uid */
+	private static final long serialVersionUID = 4720497237358224839L;
+	/** log2 of the number of buckets each power of 2 is split into. */
+	private static final int SUB_BUCKET_BITS = 3;
+	/** Number of buckets each power of 2 is split into. */
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	/** Largest value tracked, in microseconds (about 12 days). Anything larger is counted as this. */
+	private static final long MAX_TRACKABLE = (1L << 40) - 1;
+	/** Number of buckets needed to cover 0..MAX_TRACKABLE. */
+	private static final int BUCKETS = bucketIndex(MAX_TRACKABLE) + 1;
+	/** Stride of one slice in the counts array: the buckets followed by the max value seen. */
+	private static final int SLICE_LENGTH = BUCKETS + 1;
+	/** Length of one slice in nanoseconds. */
+	private final long sliceNanos;
+	/** Number of slices in the ring. */
+	private final int slices;
+	/** Bucket counts for all slices, then each slice's max, laid out one slice after another. */
+	private final AtomicLongArray counts;
+	/** Interval number that each slice currently holds data for. */
+	private final AtomicLongArray sliceEpochs;
+
+	/** Creates a histogram covering the given window, split up into the given number of slices.
+	 * @param window length of window
+	 * @param unit time unit of window
+	 * @param slices number of slices the window is split into. Data ages out one slice at a time.
+	 */
+	public LatencyHistogram(long window, TimeUnit unit, int slices) {
+		if (slices <= 0 || window <= 0){
+			throw new IllegalArgumentException("Window and slices must be > 0");
+		}
+		this.slices = slices;
+		this.sliceNanos = Math.max(1, unit.toNanos(window) / slices);
+		this.counts = new AtomicLongArray(slices * SLICE_LENGTH);
+		this.sliceEpochs = new AtomicLongArray(slices);
+		long epoch = currentEpoch();
+		for (int i=0; i < slices; i++){
+			this.sliceEpochs.set(i, epoch);
+		}
+	}
+
+	/** Records a value.
+	 * @param nanos latency, in nanoseconds.
+	 */
+	public void record(long nanos){
+		long value = Math.min(Math.max(nanos / 1000, 0), MAX_TRACKABLE);
+		int base = currentSlice() * SLICE_LENGTH;
+		this.counts.incrementAndGet(base + bucketIndex(value));
+
+		int maxIdx = base + BUCKETS;
+		long max;
+		while (value > (max = this.counts.get(maxIdx)) && !this.counts.compareAndSet(maxIdx, max, value)){
+			// retry
+		}
+	}
+
+	/** Returns the value below which the given percentage of the values recorded over the window fall.
+	 * @param percentile 0..100
+	 * @return latency in ms, or 0 if nothing was recorded.
+	 */
+	public double getPercentile(double percentile){
+		long[] merged = merge();
+		long total = 0;
+		for (int i=0; i < BUCKETS; i++){
+			total += merged[i];
+		}
+		if (total == 0){
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(Math.min(100.0, Math.max(0.0, percentile)) / 100.0 * total));
+		long seen = 0;
+		for (int i=0; i < BUCKETS; i++){
+			seen += merged[i];
+			if (seen >= rank){
+				// don't report more than we've actually seen.
+				return Math.min(bucketMidpoint(i), merged[BUCKETS]) / 1000.0;
+			}
+		}
+		return merged[BUCKETS] / 1000.0;
+	}
+
+	/** Returns the largest value recorded over the window.
+	 * @return latency in ms, or 0 if nothing was recorded.
+	 */
+	public double getMax(){
+		return merge()[BUCKETS] / 1000.0;
+	}
+
+	/** Returns the number of values recorded over the window.
+	 * @return count
+	 */
+	public long getCount(){
+		long[] merged = merge();
+		long result = 0;
+		for (int i=0; i < BUCKETS; i++){
+			result += merged[i];
+		}
+		return result;
+	}
+
+	/** Clears all recorded values. */
+	public void reset(){
+		for (int i=0; i < this.counts.length(); i++){
+			this.counts.set(i, 0);
+		}
+	}
+
+	/** Adds up the slices that are still within the window.
+	 * @return bucket counts followed by the max.
+	 */
+	private long[] merge(){
+		long[] result = new long[SLICE_LENGTH];
+		long epoch = currentEpoch();
+		for (int s=0; s < this.slices; s++){
+			if (epoch - this.sliceEpochs.get(s) >= this.slices){
+				continue; // stale, will be cleared when it next gets written to.
+			}
+			int base = s * SLICE_LENGTH;
+			for (int i=0; i < BUCKETS; i++){
+				result[i] += this.counts.get(base + i);
+			}
+			result[BUCKETS] = Math.max(result[BUCKETS], this.counts.get(base + BUCKETS));
+		}
+		return result;
+	}
+
+	/** Returns the slice to record into, clearing it out first if it still holds data from an earlier lap
+	 * round the ring.
+	 * @return slice index
+	 */
+	private int currentSlice(){
+		long epoch = currentEpoch();
+		int slice = (int) (epoch % this.slices);
+		long sliceEpoch = this.sliceEpochs.get(slice);
+		if (sliceEpoch != epoch && this.sliceEpochs.compareAndSet(slice, sliceEpoch, epoch)){
+			// we won the race to recycle it. A value or two recorded by others while we clear may get lost,
+			// which is fine for what this is used for.
+			int base = slice * SLICE_LENGTH;
+			for (int i=0; i < SLICE_LENGTH; i++){
+				this.counts.set(base + i, 0);
+			}
+		}
+		return slice;
+	}
+
+	/** Returns the number of the interval we're currently in.
+	 * @return interval number
+	 */
+	private long currentEpoch(){
+		return System.nanoTime() / this.sliceNanos;
+	}
+
+	/** Returns the bucket the given value falls in.
+	 * @param value in microseconds
+	 * @return bucket index
+	 */
+	protected static int bucketIndex(long value){
+		if (value < SUB_BUCKETS){
+			return (int) value;
+		}
+		// values in [2^n, 2^(n+1)) are split into SUB_BUCKETS buckets of width 2^(n - SUB_BUCKET_BITS).
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return (shift << SUB_BUCKET_BITS) + (int) (value >>> shift);
+	}
+
+	/** Returns the value in the middle of the given bucket.
+	 * @param index bucket index
+	 * @return value in microseconds
+	 */
+	protected static long bucketMidpoint(int index){
+		if (index < SUB_BUCKETS){
+			return index;
+		}
+		int shift = (index >>> SUB_BUCKET_BITS) - 1;
+		long lower = (long) ((index & (SUB_BUCKETS - 1)) + SUB_BUCKETS) << shift;
+		return lower + ((1L << shift) >>> 1);
+	}
+}
@@ -0,0 +1,59 @@
+/**
+ *  Copyright 2010 Wallace Wadge
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jolbox.bonecp;
+
+/** getConnection() strategy for applications running very many short-lived (eg virtual) threads.
+ *
+ * The other strategies keep some state for each thread: the default strategy remembers which partition a thread
+ * should look in first, the cached strategy holds on to a connection per thread. That pays off with a small set of
+ * long-lived threads but, when every task runs on a thread of its own, it only costs an allocation per thread and
+ * never gets reused. This strategy keeps nothing per thread: a thread's first partition is derived from its id, and
+ * the pool's free connection bags don't remember the slot each thread used last either.
+ *
+ * Threads that have to wait park in the pool's wait queue without holding any lock or monitor, same as with the
+ * default strategy.
+ *
+ * @author wallacew
+ *
+ */
+public class LightweightConnectionStrategy extends DefaultConnectionStrategy {
+
+	/** uid */
+	private static final long serialVersionUID = -3268741206127497314L;
+
+	public LightweightConnectionStrategy(BoneCP pool){
+		super(pool);
+	}
+
+	/** Derives the partition from the thread's id rather than from any state kept for the thread.
+	 * @return partition index
+	 */
+	@Override
+	protected int homePartition(){
+		return threadPartition(this.pool.partitionCount);
+	}
+
+	/** Looks in all the other partitions in order, keeping no state. Threads start off from different partitions
+	 * anyway.
+	 * @param home partition that had no free connection
+	 * @return partition index
+	 */
+	@Override
+	protected int fallbackPartition(int home){
+		return home + 1;
+	}
+}
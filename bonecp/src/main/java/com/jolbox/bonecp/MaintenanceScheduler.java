@@ -0,0 +1,590 @@
+/**
+ *  Copyright 2010 Wallace Wadge
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.jolbox.bonecp;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps time for the background work of every pool in the JVM (idle connection testing, max age checks, pool
+ * sizing, retrying failed connection attempts) on a single thread, however many pools and partitions there are.
+ *
+ * Timed tasks sit on a hashed timer wheel: a ring of buckets, each covering one tick, turned by a single
+ * thread. Scheduling a task only adds it to a queue that the wheel thread drains into the right bucket on its
+ * next tick, so it never blocks, and the wheel thread only ever looks at the one bucket that is due. Deadlines are
+ * accurate to a tick (20ms), which is plenty for maintenance work.
+ *
+ * The scheduler only says when a task is due; the task itself runs on the executor it was scheduled with, normally
+ * one the pool it belongs to got from newExecutor(). Those all share one set of worker threads, started as needed 
+ * and let go once idle for a while, so a pool with nothing to do costs no threads. Maintenance work opens 
+ * connections and makes round trips to the database, so it can block for as long as the database cares to take,
+ * and a pool whose database is slow or down must not hold up the work of every other pool in the JVM. Each
+ * executor therefore runs at most a set number of tasks at once, and the workers may number as many as the
+ * executors' limits add up to: however many workers the tasks of a hung pool are stuck in, they are only ever its
+ * own share. Should all the workers be busy for a moment anyway (eg one that has just finished a task is yet to
+ * go back to the thread pool), each one moves on to the executors kept waiting for a worker after every task 
+ * rather than sticking with its own.
+ *
+ * Pools share one instance through acquire() and release(); the threads go away when the last pool lets go.
+ *
+ * @author wallacew
+ */
+public class MaintenanceScheduler {
+	/** Length of one tick of the wheel, in ms. */
+	private static final long TICK_IN_MS = 20;
+	/** Number of buckets in the wheel (a power of 2). One turn of the wheel covers about 10 seconds. */
+	private static final int WHEEL_SIZE = 512;
+	/** How long an idle worker thread hangs around for, in seconds. */
+	private static final long WORKER_KEEP_ALIVE_IN_SECONDS = 60;
+	/** Logger class. */
+	private static final Logger logger = LoggerFactory.getLogger(MaintenanceScheduler.class);
+	/** Instance shared by all pools, if any pool is using it. */
+	private static MaintenanceScheduler instance;
+	/** Number of pools using the shared instance. */
+	private static int users;
+	/** Tick length in ns. */
+	private final long tickInNanos = TimeUnit.MILLISECONDS.toNanos(TICK_IN_MS);
+	/** The wheel, one bucket per tick. Only touched by the wheel thread. */
+	private final List<LinkedList<Timeout>> wheel = new ArrayList<LinkedList<Timeout>>(WHEEL_SIZE);
+	/** Timeouts scheduled since the last tick. */
+	private final Queue<Timeout> newTimeouts = new ConcurrentLinkedQueue<Timeout>();
+	/** Time the wheel started turning, in ns. Deadlines are relative to this. */
+	private final long startTime;
+	/** Thread turning the wheel. */
+	private final Thread wheelThread;
+	/** Set to false to stop the wheel. */
+	private volatile boolean running = true;
+	/** Threads running the tasks of every executor handed out by newExecutor(). */
+	private final ThreadPoolExecutor workers;
+	/** Most tasks the executors handed out by newExecutor() and not shut down yet may run at once, all told. Guarded
+	 * by this. */
+	private int maxWorkers;
+	/** Executors with tasks waiting that couldn't get a worker because they were all busy. */
+	private final Queue<PoolExecutor> starved = new ConcurrentLinkedQueue<PoolExecutor>();
+
+	/** Returns the instance shared by all pools, starting it if need be. Each call must be matched by a call
+	 * to release() once the caller is done with it.
+	 * @return the shared scheduler
+	 */
+	protected static synchronized MaintenanceScheduler acquire(){
+		if (instance == null){
+			instance = new MaintenanceScheduler();
+		}
+		users++;
+		return instance;
+	}
+
+	/** Gives up a reference obtained through acquire(). The shared thread stops when the last user lets go. */
+	protected void release(){
+		synchronized (MaintenanceScheduler.class){
+			if (instance == this && --users == 0){
+				instance = null;
+				shutdown();
+			}
+		}
+	}
+
+	/** Creates a new scheduler and starts its thread. */
+	protected MaintenanceScheduler() {
+		for (int i=0; i < WHEEL_SIZE; i++){
+			this.wheel.add(new LinkedList<Timeout>());
+		}
+		this.startTime = System.nanoTime();
+		this.workers = new ThreadPoolExecutor(0, 1, WORKER_KEEP_ALIVE_IN_SECONDS, TimeUnit.SECONDS, 
+				new SynchronousQueue<Runnable>(), new CustomThreadFactory("BoneCP-maintenance-worker", true));
+		this.wheelThread = new CustomThreadFactory("BoneCP-maintenance-timer", true).newThread(new Runnable() {
+			// @Override
+			public void run() {
+				turnWheel();
+			}
+		});
+		this.wheelThread.start();
+	}
+
+	/** Returns a new executor running its tasks on the shared worker threads. Room is made for as many more worker
+	 * threads as the executor may use, until it's shut down.
+	 * @param maxThreads most tasks to run at once
+	 * @param maxQueued most tasks to keep waiting, 0 for no limit. Any more are rejected.
+	 * @return executor, to shut down once done with
+	 */
+	protected ExecutorService newExecutor(int maxThreads, int maxQueued){
+		PoolExecutor result = new PoolExecutor(Math.max(maxThreads, 1), maxQueued);
+		addWorkers(result.getMaxThreads());
+		return result;
+	}
+
+	/** Changes the number of worker threads that may run at once.
+	 * @param workers number of threads to add, or if negative, to take away
+	 */
+	private synchronized void addWorkers(int workers){
+		this.maxWorkers += workers;
+		this.workers.setMaximumPoolSize(Math.max(this.maxWorkers, 1));
+	}
+
+	/** Returns the number of worker threads that may run at once.
+	 * @return the sum of the limits of the executors not shut down yet
+	 */
+	protected synchronized int getMaxWorkers(){
+		return this.maxWorkers;
+	}
+
+	/** Runs the given task once after the given delay.
+	 * @param executor to run the task on once due
+	 * @param task to run
+	 * @param delay delay
+	 * @param unit unit of delay
+	 * @return handle to cancel the task with
+	 */
+	protected Timeout schedule(Executor executor, Runnable task, long delay, TimeUnit unit){
+		Timeout timeout = new Timeout(executor, task, 0);
+		timeout.arm(unit.toNanos(delay));
+		return timeout;
+	}
+
+	/** Runs the given task after the initial delay, then again every time the given delay has passed since it
+	 * last finished, until cancelled.
+	 * @param executor to run the task on each time it's due
+	 * @param task to run
+	 * @param initialDelay delay before the first run
+	 * @param delay delay between the end of one run and the start of the next
+	 * @param unit unit of the delays
+	 * @return handle to cancel the task with
+	 */
+	protected Timeout scheduleWithFixedDelay(Executor executor, Runnable task, long initialDelay, long delay, TimeUnit unit){
+		Timeout timeout = new Timeout(executor, task, unit.toNanos(delay));
+		timeout.arm(unit.toNanos(initialDelay));
+		return timeout;
+	}
+
+	/** Turns the wheel until shut down, handing due tasks to their executors. */
+	private void turnWheel(){
+		long tick = 0;
+		while (this.running){
+			long sleepInNanos = this.startTime + (tick + 1) * this.tickInNanos - System.nanoTime();
+			if (sleepInNanos > 0){
+				try {
+					Thread.sleep(TimeUnit.NANOSECONDS.toMillis(sleepInNanos) + 1);
+				} catch (InterruptedException e) {
+					continue; // check running
+				}
+			}
+			addNewTimeouts(tick);
+			expireTimeouts(this.wheel.get((int) (tick & (WHEEL_SIZE - 1))));
+			if (!this.starved.isEmpty()){
+				retryStarved();
+			}
+			tick++;
+		}
+	}
+
+	/** Moves the timeouts scheduled since the last tick into their buckets.
+	 * @param tick current tick
+	 */
+	private void addNewTimeouts(long tick){
+		Timeout timeout;
+		while ((timeout = this.newTimeouts.poll()) != null){
+			if (timeout.isCancelled()){
+				continue;
+			}
+			long dueTick = Math.max(timeout.deadline / this.tickInNanos, tick);
+			timeout.remainingRounds = (dueTick - tick) / WHEEL_SIZE;
+			this.wheel.get((int) (dueTick & (WHEEL_SIZE - 1))).add(timeout);
+		}
+	}
+
+	/** Hands the timeouts in the given bucket that are due to their executors.
+	 * @param bucket bucket for the current tick
+	 */
+	private void expireTimeouts(LinkedList<Timeout> bucket){
+		Iterator<Timeout> it = bucket.iterator();
+		while (it.hasNext()){
+			Timeout timeout = it.next();
+			if (timeout.isCancelled()){
+				it.remove();
+			} else if (timeout.remainingRounds <= 0){
+				it.remove();
+				timeout.submit();
+			} else {
+				timeout.remainingRounds--;
+			}
+		}
+	}
+
+	/** Stops the threads. Tasks still waiting won't run. */
+	protected void shutdown(){
+		this.running = false;
+		this.wheelThread.interrupt();
+		this.workers.shutdown();
+	}
+
+	/** Starts workers for the given executor, as many as it has tasks waiting, up to its limit. If no more workers
+	 * can be started, it waits its turn for one to come free.
+	 * @param executor executor with tasks waiting
+	 */
+	private void dispatch(PoolExecutor executor){
+		while (executor.tryStart()){
+			try {
+				this.workers.execute(new Worker(executor));
+			} catch (RejectedExecutionException e) {
+				executor.finish();
+				starve(executor);
+				return;
+			}
+		}
+	}
+
+	/** Queues up the given executor to be given the next worker that comes free.
+	 * @param executor executor with tasks waiting
+	 */
+	private void starve(PoolExecutor executor){
+		if (executor.starving.compareAndSet(false, true)){
+			this.starved.add(executor);
+		}
+	}
+
+	/** Returns the executor that has been waiting for a worker the longest.
+	 * @return executor or null if none are waiting
+	 */
+	private PoolExecutor pollStarved(){
+		PoolExecutor result = this.starved.poll();
+		if (result != null){
+			result.starving.set(false);
+		}
+		return result;
+	}
+
+	/** Tries again to start workers for the executors waiting for one, in case none has come free in the meantime
+	 * because they're all waiting on the database. */
+	private void retryStarved(){
+		for (int i = this.starved.size(); i > 0; i--){
+			PoolExecutor executor = pollStarved();
+			if (executor == null){
+				break;
+			}
+			dispatch(executor);
+		}
+	}
+
+	/**
+	 * Runs tasks on one of the shared threads: those of the executor it was started for until there are none left,
+	 * but giving way after each task to any executor that couldn't get a worker.
+	 *
+	 * @author wallacew
+	 */
+	private class Worker implements Runnable {
+		/** Executor to run tasks of first. */
+		private final PoolExecutor first;
+
+		/** Default constructor.
+		 * @param first executor to run tasks of first, which has counted this worker in already.
+		 */
+		Worker(PoolExecutor first) {
+			this.first = first;
+		}
+
+		// @Override
+		public void run() {
+			PoolExecutor executor = this.first;
+			while (executor != null){
+				executor.runOne();
+				executor.finish();
+				PoolExecutor next = pollStarved();
+				if (next != null && next.tryStart()){
+					if (executor.hasTasks()){
+						starve(executor); // our turn again once a worker comes free.
+					}
+					executor = next;
+				} else if (!executor.tryStart()){
+					executor = null;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Executor for one pool's maintenance work, running its tasks on the shared workers, no more than a set number
+	 * at a time.
+	 *
+	 * @author wallacew
+	 */
+	protected class PoolExecutor extends AbstractExecutorService {
+		/** Tasks waiting to run. */
+		private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+		/** Number of tasks waiting to run. */
+		private final AtomicInteger queued = new AtomicInteger();
+		/** Most tasks to run at once. */
+		private final int maxThreads;
+		/** Most tasks to keep waiting, 0 for no limit. */
+		private final int maxQueued;
+		/** Number of workers running our tasks at the moment. */
+		private final AtomicInteger active = new AtomicInteger();
+		/** Threads running one of our tasks right now, to interrupt on shutdownNow(). Guarded by this. */
+		private final Set<Thread> threads = new HashSet<Thread>();
+		/** Set while waiting for a worker to come free. */
+		final AtomicBoolean starving = new AtomicBoolean();
+		/** Set once shut down. */
+		private volatile boolean shutdown;
+
+		/** Default constructor.
+		 * @param maxThreads most tasks to run at once
+		 * @param maxQueued most tasks to keep waiting, 0 for no limit
+		 */
+		PoolExecutor(int maxThreads, int maxQueued) {
+			this.maxThreads = maxThreads;
+			this.maxQueued = maxQueued;
+		}
+
+		// @Override
+		public void execute(Runnable task) {
+			if (this.shutdown){
+				throw new RejectedExecutionException("Executor has been shut down");
+			}
+			if (this.queued.incrementAndGet() > this.maxQueued && this.maxQueued > 0){
+				this.queued.decrementAndGet();
+				throw new RejectedExecutionException("Too many tasks waiting");
+			}
+			this.tasks.add(task);
+			dispatch(this);
+		}
+
+		/** Counts in another worker, if we have tasks waiting and aren't running as many as we may yet.
+		 * @return true if the caller should go on to run our tasks
+		 */
+		boolean tryStart(){
+			int current;
+			do {
+				current = this.active.get();
+				if (current >= this.maxThreads || this.tasks.isEmpty()){
+					return false;
+				}
+			} while (!this.active.compareAndSet(current, current + 1));
+			return true;
+		}
+
+		/** Counts out a worker started through tryStart(). */
+		void finish(){
+			if (this.active.decrementAndGet() == 0 && this.shutdown){
+				synchronized (this) {
+					notifyAll();
+				}
+			}
+		}
+
+		/** Returns true if we have tasks waiting.
+		 * @return true if tasks are waiting
+		 */
+		boolean hasTasks(){
+			return !this.tasks.isEmpty();
+		}
+
+		/** Runs the next task waiting, if any, on the calling thread. */
+		void runOne(){
+			Runnable task = this.tasks.poll();
+			if (task == null){
+				return;
+			}
+			this.queued.decrementAndGet();
+			Thread current = Thread.currentThread();
+			synchronized (this) {
+				this.threads.add(current);
+			}
+			try {
+				task.run();
+			} catch (Throwable t) {
+				logger.error("Maintenance task failed", t);
+			} finally {
+				synchronized (this) {
+					this.threads.remove(current);
+				}
+				Thread.interrupted(); // the worker moves on to other tasks, maybe of another pool.
+			}
+		}
+
+		/** Returns the most tasks this executor runs at once.
+		 * @return maxThreads
+		 */
+		protected int getMaxThreads(){
+			return this.maxThreads;
+		}
+
+		// @Override
+		public void shutdown() {
+			stop();
+			synchronized (this) {
+				notifyAll();
+			}
+		}
+
+		/** Stops taking tasks and gives up this executor's share of the workers, the first time round. */
+		private void stop(){
+			synchronized (this) {
+				if (this.shutdown){
+					return;
+				}
+				this.shutdown = true;
+			}
+			addWorkers(-this.maxThreads);
+		}
+
+		// @Override
+		public List<Runnable> shutdownNow() {
+			stop();
+			List<Runnable> result = new ArrayList<Runnable>();
+			Runnable task;
+			while ((task = this.tasks.poll()) != null){
+				this.queued.decrementAndGet();
+				result.add(task);
+			}
+			synchronized (this) {
+				for (Thread thread: this.threads){
+					thread.interrupt();
+				}
+				notifyAll();
+			}
+			return result;
+		}
+
+		// @Override
+		public boolean isShutdown() {
+			return this.shutdown;
+		}
+
+		// @Override
+		public boolean isTerminated() {
+			return this.shutdown && this.active.get() == 0 && this.tasks.isEmpty();
+		}
+
+		// @Override
+		public synchronized boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+			long deadline = System.nanoTime() + unit.toNanos(timeout);
+			while (!isTerminated()){
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0){
+					return false;
+				}
+				TimeUnit.NANOSECONDS.timedWait(this, remaining);
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * A task waiting on the wheel.
+	 *
+	 * @author wallacew
+	 */
+	protected class Timeout implements Runnable {
+		/** Where to run the task. */
+		private final Executor executor;
+		/** Task to run. */
+		private final Runnable task;
+		/** Delay between runs in ns, or 0 to run once. */
+		private final long periodInNanos;
+		/** When to run next, in ns since the wheel started. */
+		private volatile long deadline;
+		/** Number of turns of the wheel to wait before running. Only touched by the wheel thread. */
+		private long remainingRounds;
+		/** Set once cancelled. */
+		private volatile boolean cancelled;
+		/** Set while the task is running. */
+		private volatile boolean taskRunning;
+
+		/** Creates a new timeout.
+		 * @param executor where to run the task
+		 * @param task to run
+		 * @param periodInNanos delay between runs, or 0 to run once
+		 */
+		Timeout(Executor executor, Runnable task, long periodInNanos) {
+			this.executor = executor;
+			this.task = task;
+			this.periodInNanos = periodInNanos;
+		}
+
+		/** Puts this timeout on the wheel.
+		 * @param delayInNanos delay before running
+		 */
+		void arm(long delayInNanos){
+			this.deadline = System.nanoTime() - MaintenanceScheduler.this.startTime + Math.max(delayInNanos, 0);
+			MaintenanceScheduler.this.newTimeouts.add(this);
+		}
+
+		/** Hands this timeout, now due, to its executor. Does nothing if the executor has been shut down, ie the
+		 * pool it belongs to is going away. */
+		void submit(){
+			try {
+				this.executor.execute(this);
+			} catch (RejectedExecutionException e) {
+				logger.debug("Executor has been shut down, ignoring maintenance task");
+			}
+		}
+
+		/** Runs the task, then puts it back on the wheel if it's periodic. */
+		// @Override
+		public void run() {
+			if (this.cancelled){
+				return;
+			}
+			this.taskRunning = true;
+			try {
+				this.task.run();
+			} catch (Throwable t) {
+				logger.error("Maintenance task failed", t);
+			} finally {
+				this.taskRunning = false;
+			}
+			if (this.periodInNanos > 0 && !this.cancelled){
+				arm(this.periodInNanos);
+			}
+		}
+
+		/** Stops the task from running again. A run in progress carries on. */
+		protected void cancel(){
+			this.cancelled = true;
+		}
+
+		/** Returns true if cancelled.
+		 * @return cancelled
+		 */
+		protected boolean isCancelled(){
+			return this.cancelled;
+		}
+
+		/** Returns true if the task is running right now.
+		 * @return true if running
+		 */
+		protected boolean isRunning(){
+			return this.taskRunning;
+		}
+	}
+}
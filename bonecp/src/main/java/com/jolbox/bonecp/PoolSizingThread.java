@@ -0,0 +1,116 @@
+/**
+ *  Copyright 2010 Wallace Wadge
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.jolbox.bonecp;
+
+import java.sql.SQLException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Periodically updates a partition's demand forecast and sizes the partition from it: the target is the
+ * forecast number of leased connections plus acquireIncrement spare, kept within min/max connections.
+ *
+ * If the partition is below target, the pool watch thread is signalled to grow it straight away instead of
+ * waiting for poolAvailabilityThreshold to be hit. Shrinking has hysteresis so that the pool doesn't flap: the
+ * partition must have been more than acquireIncrement over target for a few periods running, and then at most
+ * acquireIncrement free connections are retired per period.
+ *
+ * @author wallacew
+ */
+public class PoolSizingThread implements Runnable {
+	/** Number of periods running the partition must be over target before we shrink it. */
+	private static final int SHRINK_AFTER_PERIODS = 3;
+	/** Partition being handled. */
+	private ConnectionPartition partition;
+	/** Handle to connection pool. */
+	private BoneCP pool;
+	/** Number of periods running the partition has been over target. */
+	private int surplusPeriods;
+	/** Logger handle. */
+	private static final Logger logger = LoggerFactory.getLogger(PoolSizingThread.class);
+
+	/** Constructor
+	 * @param connectionPartition partition to work on
+	 * @param pool pool handle
+	 */
+	protected PoolSizingThread(ConnectionPartition connectionPartition, BoneCP pool){
+		this.partition = connectionPartition;
+		this.pool = pool;
+	}
+
+	/** Invoked periodically. */
+	public void run() {
+		try {
+			DemandForecast demand = this.partition.getDemandForecast();
+			int created = this.partition.getCreatedConnections();
+			int leased = Math.max(created - this.partition.getAvailableConnections(), 0);
+			double forecast = demand.update(leased);
+
+			int target = (int) Math.ceil(forecast) + this.partition.getAcquireIncrement();
+			target = Math.min(Math.max(target, this.partition.getMinConnections()), this.partition.getMaxConnections());
+			demand.setTargetConnections(target);
+
+			if (target > created){
+				this.surplusPeriods = 0;
+				logger.debug("Forecast of {} leased connections, growing partition to {}", forecast, target);
+				demand.incrementGrowths();
+				this.partition.signalPoolWatchThread();
+			} else if (created - target > this.partition.getAcquireIncrement()){
+				if (++this.surplusPeriods >= SHRINK_AFTER_PERIODS){
+					this.surplusPeriods = 0;
+					logger.debug("Forecast of {} leased connections, shrinking partition to {}", forecast, target);
+					shrink(target);
+				}
+			} else {
+				this.surplusPeriods = 0;
+			}
+		} catch (Throwable t) {
+			logger.error("Pool sizing thread failed", t);
+		}
+	}
+
+	/** Retires up to acquireIncrement free connections, but not below the given target.
+	 * @param target number of connections to keep
+	 */
+	private void shrink(int target){
+		for (int i=0; i < this.partition.getAcquireIncrement(); i++){
+			if (this.partition.getCreatedConnections() <= target || this.pool.poolShuttingDown){
+				break;
+			}
+			// let go of the coldest connection: in LIFO mode the warm ones are those handed out first.
+			ConnectionBag<ConnectionHandle> bag = this.partition.getFreeConnectionBag();
+			ConnectionHandle connection = bag == null ? this.partition.getFreeConnections().poll() : bag.pollLast();
+			if (connection == null){
+				break; // all in use after all
+			}
+			if (!connection.claimForUse()){
+				// a connection tester has it: if it passes the test the tester puts it back, and if it failed (or has
+				// failed already, i.e. it's retired) the tester closes it off, accounts for it and signals the pool
+				// watch. Either way it isn't ours to close or to drop.
+				continue;
+			}
+			try {
+				connection.internalClose();
+			} catch (SQLException e) {
+				logger.error("Destroy connection exception", e);
+			} finally {
+				this.pool.postDestroyConnection(connection);
+				this.partition.getDemandForecast().incrementShrinks();
+			}
+		}
+	}
+}
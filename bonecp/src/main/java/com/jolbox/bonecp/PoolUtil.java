@@ -198,4 +198,13 @@ public class PoolUtil {
 
 	}
 
+	/** Returns a hash of the current thread's id, spread out so that threads created one after the other (and so
+	 * with ids that are close together) don't all end up next to each other once the hash is reduced to a slot.
+	 * @return hash, possibly negative
+	 */
+	protected static int threadHash(){
+		long id = Thread.currentThread().getId();
+		return (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+	}
+
 }
\ No newline at end of file
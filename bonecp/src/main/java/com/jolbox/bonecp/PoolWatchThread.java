@@ -16,11 +16,23 @@
 
 package com.jolbox.bonecp;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Watches a partition to create new connections when required.
+ * Watches a partition to create new connections when required. Rather than having a thread of its own, this is
+ * run on the pool's maintenance threads whenever the partition is signalled.
  * @author wwadge
  *
  */
@@ -29,14 +41,25 @@ public class PoolWatchThread implements Runnable {
 	private ConnectionPartition partition;
 	/** Pool handle. */
 	private BoneCP pool;
-	/** Mostly used to break out easily in unit testing. */
-	private boolean signalled;
 	/** How long to wait before retrying to add a connection upon failure. */
 	private long acquireRetryDelayInMs = 1000L;
-	/** Start off lazily. */
-	protected boolean lazyInit;
 	/** Occupancy% threshold. */
 	private int poolAvailabilityThreshold;
+	/** Max number of connections to create at the same time. */
+	private int connectionCreationThreads;
+	/** Number of connections still to create in the current round. */
+	private final AtomicInteger connectionsToCreate = new AtomicInteger();
+	/** Number of connections created so far in the current round. */
+	private final AtomicInteger connectionsCreated = new AtomicInteger();
+	/** Set if creating a connection failed in the current round. */
+	private final AtomicBoolean creationFailed = new AtomicBoolean();
+	/** Signals the partition again once acquireRetryDelay is up after a failure. */
+	private final Runnable retry = new Runnable() {
+		// @Override
+		public void run() {
+			PoolWatchThread.this.partition.signalPoolWatchThread();
+		}
+	};
 	/** Logger handle. */
 	private static final Logger logger = LoggerFactory.getLogger(PoolWatchThread.class);
 
@@ -48,77 +71,162 @@ public class PoolWatchThread implements Runnable {
 	public PoolWatchThread(ConnectionPartition connectionPartition, BoneCP pool) {
 		this.partition = connectionPartition;
 		this.pool = pool;
-		this.lazyInit = this.pool.getConfig().isLazyInit();
 		this.acquireRetryDelayInMs = this.pool.getConfig().getAcquireRetryDelayInMs();
 		this.poolAvailabilityThreshold = this.pool.getConfig().getPoolAvailabilityThreshold();
+		this.connectionCreationThreads = Math.max(this.pool.getConfig().getConnectionCreationThreads(), 1);
 	}
 
 
+	/** Invoked whenever the partition is signalled. Keeps going for as long as the partition calls for more
+	 * connections, or until creating them fails, in which case we'll be signalled again after acquireRetryDelay.
+	 */
 	public void run() {
-		int maxNewConnections;
-		while (!this.signalled){
-			maxNewConnections=0;
-
-			try{
-				if (this.lazyInit){ // block the first time if this is on.
-					this.partition.getPoolWatchThreadSignalQueue().take();
+		boolean finished = false;
+		try {
+			boolean again;
+			do {
+				this.partition.startPoolWatch();
+				again = false;
+				try {
+					again = checkPartition();
+				} catch (InterruptedException e) {
+					logger.debug("Terminating pool watch task");
+					return; // we've been asked to terminate.
+				} catch (Exception e) {
+					logger.error("Error in pool watch task", e);
 				}
- 
+			} while (again || !(finished = this.partition.finishPoolWatch()));
+		} finally {
+			if (!finished){
+				// terminated or blown up: don't leave the partition thinking we're still running.
+				this.partition.finishPoolWatch();
+			}
+		}
+	}
 
-				maxNewConnections = this.partition.getMaxConnections()-this.partition.getCreatedConnections();
-				// loop for spurious interrupt
-				while (maxNewConnections == 0 || (this.partition.getAvailableConnections() *100/this.partition.getMaxConnections() > this.poolAvailabilityThreshold)){
-					if (maxNewConnections == 0){
-						this.partition.setUnableToCreateMoreTransactions(true);
-					}
-					
-					this.partition.getPoolWatchThreadSignalQueue().take();
-					maxNewConnections = this.partition.getMaxConnections()-this.partition.getCreatedConnections();
-					
-				}
+	/** Creates new connections if the partition is below min or the predicted size, or short of free connections.
+	 * @return true if connections were created, so it's worth checking again straight away.
+	 * @throws InterruptedException
+	 */
+	private boolean checkPartition() throws InterruptedException {
+		if (this.pool.poolShuttingDown){
+			return false;
+		}
 
-				if (maxNewConnections > 0 
-						&& !this.pool.poolShuttingDown){
-					fillConnections(Math.min(maxNewConnections, this.partition.getAcquireIncrement()));
-					// for the case where we have killed off all our connections due to network/db error
-					if (this.partition.getCreatedConnections() < this.partition.getMinConnections()){
-						fillConnections(this.partition.getMinConnections() - this.partition.getCreatedConnections() );
-							
-					}
-				}
-				
-				if (this.pool.poolShuttingDown){
-					return;
-				}
+		int maxNewConnections = this.partition.getMaxConnections()-this.partition.getCreatedConnections();
+		if (maxNewConnections <= 0){
+			this.partition.setUnableToCreateMoreTransactions(true);
+			return false;
+		}
+
+		int wanted = Math.max(this.partition.getTargetConnections(), this.partition.getMinConnections());
+		if (this.partition.getCreatedConnections() >= wanted
+				&& this.partition.getUnreservedConnections() *100/this.partition.getMaxConnections() > this.poolAvailabilityThreshold){
+			return false;
+		}
 
+		// grow by acquireIncrement, or straight up to min/the predicted size if that's further.
+		int shortfall = wanted - this.partition.getCreatedConnections();
+		fillConnections(Math.min(maxNewConnections, Math.max(this.partition.getAcquireIncrement(), shortfall)));
 
-			} catch (InterruptedException e) {
-				logger.debug("Terminating pool watch thread");
-				return; // we've been asked to terminate.
+		if (this.connectionsCreated.get() == 0){
+			if (this.creationFailed.get() && !this.pool.poolShuttingDown){
+				this.pool.getMaintenanceScheduler().schedule(this.pool.getMaintenanceExecutor(), this.retry, this.acquireRetryDelayInMs, TimeUnit.MILLISECONDS);
 			}
+			return false;
 		}
+		return true;
 	}
 
-
-
-	/** Adds new connections to the partition.
+	/** Adds new connections to the partition, up to connectionCreationThreads at a time. Creation stops early once
+	 * the connections are no longer needed, e.g. because enough have been released back to the partition in the
+	 * meantime.
 	 * @param connectionsToCreate number of connections to create
 	 * @throws InterruptedException 
 	 */
 	private void fillConnections(int connectionsToCreate) throws InterruptedException  {
-		try {
-			for (int i=0; i < connectionsToCreate; i++){
-			//	boolean dbDown = this.pool.getDbIsDown().get();
-				if (this.pool.poolShuttingDown){
-					break;
+		this.connectionsToCreate.set(connectionsToCreate);
+		this.connectionsCreated.set(0);
+		this.creationFailed.set(false);
+
+		ExecutorService executor = this.pool.getConnectionCreationExecutor();
+		int workers = Math.min(this.connectionCreationThreads, connectionsToCreate);
+		if (executor == null || workers <= 1){
+			createConnections();
+		} else {
+			List<Future<Object>> results = new ArrayList<Future<Object>>(workers);
+			try {
+				for (int i=1; i < workers; i++){
+					results.add(executor.submit(new Callable<Object>() {
+						public Object call() {
+							createConnections();
+							return null;
+						}
+					}));
+				}
+				// we lend a hand too, so that the round gets done even if the shared workers are all busy.
+				createConnections();
+				for (Future<Object> result: results){
+					if (!result.cancel(false)){ // no need to wait for a helper that hasn't started yet
+						result.get();
+					}
+				}
+			} catch (RejectedExecutionException e) {
+				// pool is shutting down
+				this.connectionsToCreate.set(0);
+			} catch (ExecutionException e) {
+				logger.error("Error in trying to obtain a connection", e.getCause());
+			} catch (InterruptedException e) {
+				this.connectionsToCreate.set(0);
+				for (Future<Object> result: results){
+					result.cancel(true);
+				}
+				throw e;
+			}
+		}
+	}
+
+	/** Creates connections, one at a time, for as long as the current round calls for more. Several threads may
+	 * run this together.
+	 */
+	private void createConnections(){
+		while (this.connectionsToCreate.getAndDecrement() > 0 && isStillNeeded()){
+			try {
+				ConnectionHandle handle = new ConnectionHandle(null, this.partition, this.pool, false);
+				this.pool.warmUpStatementCache(handle);
+				this.partition.addFreeConnection(handle);
+				this.connectionsCreated.incrementAndGet();
+			} catch (Exception e) {
+				this.connectionsToCreate.set(0); // give the database a break; the next round will try again.
+				if (this.creationFailed.compareAndSet(false, true)){
+					logger.error("Error in trying to obtain a connection. Retrying in "+this.acquireRetryDelayInMs+"ms", e);
+				} else {
+					logger.debug("Error in trying to obtain a connection", e);
 				}
-				this.partition.addFreeConnection(new ConnectionHandle(null, this.partition, this.pool, false));
 			}
-		} catch (Exception e) {
-			logger.error("Error in trying to obtain a connection. Retrying in "+this.acquireRetryDelayInMs+"ms", e);
-			Thread.sleep(this.acquireRetryDelayInMs);
 		}
+	}
 
+	/** Returns true if the partition still calls for more connections: it's below min or the predicted size, or
+	 * short of free connections. Those created in the current round are not counted as available so that a round
+	 * still gets to add its acquireIncrement connections, but connections released back to the partition in the
+	 * meantime are.
+	 * @return true if we should carry on creating connections.
+	 */
+	private boolean isStillNeeded(){
+		if (this.pool.poolShuttingDown){
+			return false;
+		}
+		int maxConnections = this.partition.getMaxConnections();
+		int createdConnections = this.partition.getCreatedConnections();
+		if (createdConnections >= maxConnections){
+			return false;
+		}
+		if (createdConnections < this.partition.getMinConnections() || createdConnections < this.partition.getTargetConnections()){
+			return true;
+		}
+		int available = this.partition.getUnreservedConnections() - this.connectionsCreated.get();
+		return available * 100 / maxConnections <= this.poolAvailabilityThreshold;
 	}
 
-}
\ No newline at end of file
+}
@@ -69,7 +69,7 @@ public class PreparedStatementHandle extends StatementHandle implements
 	 * @param cacheKey 
 	 */
 	public PreparedStatementHandle(PreparedStatement internalPreparedStatement,
-			String sql, ConnectionHandle connectionHandle, String cacheKey, IStatementCache cache) {
+			String sql, ConnectionHandle connectionHandle, StatementCacheKey cacheKey, IStatementCache cache) {
 		super(internalPreparedStatement, sql, cache, connectionHandle, cacheKey, connectionHandle.isLogStatementsEnabled());
 		this.internalPreparedStatement = internalPreparedStatement;
 		this.connectionHandle = connectionHandle;
@@ -207,7 +207,7 @@ public class PreparedStatementHandle extends StatementHandle implements
 				this.connectionHook.onAfterStatementExecute(this.connectionHandle, this, this.sql, this.logParams);
 			}
 
-			queryTimerEnd(this.sql, queryStartTime);
+			queryTimerEnd(this.sql, queryStartTime, result);
 
 			return result;
 		} catch (SQLException e) {
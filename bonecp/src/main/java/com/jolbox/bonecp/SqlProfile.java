@@ -0,0 +1,229 @@
+/**
+ *  Copyright 2010 Wallace Wadge
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.jolbox.bonecp;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Execution profile of the SQL statements that take up the most database time, in a fixed amount of memory.
+ *
+ * Keeps at most a given number of statements, keyed by SQL text, using the space-saving algorithm weighted by
+ * execution time: once full, a statement that isn't being tracked takes over the entry with the least total
+ * time and starts off with that entry's total. This means statements that matter are never pushed out by a
+ * stream of one-off SQL, at the cost of the total time of a statement that was admitted late being overstated
+ * by at most {@link Entry#getTotalTimeError()}. Count, max and rows are counted from the time the statement
+ * was admitted.
+ *
+ * Recording a statement already being tracked takes no lock; admitting a new one takes a lock and, when full,
+ * a scan over the entries.
+ *
+ * @author wallacew
+ */
+public class SqlProfile implements Serializable {
+	/** uid */
+	private static final long serialVersionUID = 5291373541426178462L;
+	/** Max number of statements tracked. */
+	private final int capacity;
+	/** Statements tracked, keyed by SQL. */
+	private final ConcurrentHashMap<String, Entry> entries;
+
+	/** Creates a profile tracking up to the given number of statements.
+	 * @param capacity max number of statements.
+	 */
+	public SqlProfile(int capacity) {
+		if (capacity <= 0){
+			throw new IllegalArgumentException("Capacity must be > 0");
+		}
+		this.capacity = capacity;
+		this.entries = new ConcurrentHashMap<String, Entry>(capacity * 2);
+	}
+
+	/** Records an execution of the given statement.
+	 * @param sql statement
+	 * @param nanos execution time
+	 * @param rowsAffected rows affected (or 0 if not known)
+	 * @param weight number of executions this one stands for (when only some are being timed)
+	 */
+	public void record(String sql, long nanos, int rowsAffected, int weight){
+		if (sql == null || sql.length() == 0){
+			return;
+		}
+		Entry entry = this.entries.get(sql);
+		if (entry == null){
+			entry = admit(sql);
+		}
+		entry.add(nanos, rowsAffected, weight);
+	}
+
+	/** Starts tracking the given statement, taking over the entry with the least total time if full.
+	 * @param sql statement
+	 * @return new entry
+	 */
+	private synchronized Entry admit(String sql){
+		Entry result = this.entries.get(sql);
+		if (result == null){
+			long error = 0;
+			if (this.entries.size() >= this.capacity){
+				Entry min = null;
+				for (Entry entry: this.entries.values()){
+					if (min == null || entry.totalTime.get() < min.totalTime.get()){
+						min = entry;
+					}
+				}
+				this.entries.remove(min.sql);
+				error = min.totalTime.get();
+			}
+			result = new Entry(sql, error);
+			this.entries.put(sql, result);
+		}
+		return result;
+	}
+
+	/** Returns the statements with the highest total time, highest first.
+	 * @param n max number of statements to return
+	 * @return statements
+	 */
+	public List<Entry> getTopStatements(int n){
+		List<Entry> result = new ArrayList<Entry>(this.entries.values());
+		Collections.sort(result, new Comparator<Entry>() {
+			public int compare(Entry o1, Entry o2) {
+				long t1 = o1.totalTime.get();
+				long t2 = o2.totalTime.get();
+				return t1 > t2 ? -1 : (t1 == t2 ? 0 : 1);
+			}
+		});
+		return result.size() > n ? new ArrayList<Entry>(result.subList(0, n)) : result;
+	}
+
+	/** Returns the max number of statements tracked.
+	 * @return capacity
+	 */
+	public int getCapacity() {
+		return this.capacity;
+	}
+
+	/** Stops tracking all statements. */
+	public synchronized void reset(){
+		this.entries.clear();
+	}
+
+	/** Profile of one statement. */
+	public static class Entry implements Serializable {
+		/** uid */
+		private static final long serialVersionUID = -7165463264718766587L;
+		/** Statement. */
+		final String sql;
+		/** Total time taken up that may belong to statements previously held in this entry, in ns. */
+		private final long totalTimeError;
+		/** Number of executions. */
+		final AtomicLong count = new AtomicLong();
+		/** Total execution time in ns, including totalTimeError. */
+		final AtomicLong totalTime;
+		/** Longest execution in ns. */
+		final AtomicLong maxTime = new AtomicLong();
+		/** Total rows affected. */
+		final AtomicLong rowsAffected = new AtomicLong();
+
+		/** Creates a new entry.
+		 * @param sql statement
+		 * @param totalTimeError time inherited from the entry being replaced.
+		 */
+		Entry(String sql, long totalTimeError){
+			this.sql = sql;
+			this.totalTimeError = totalTimeError;
+			this.totalTime = new AtomicLong(totalTimeError);
+		}
+
+		/** Records an execution.
+		 * @param nanos execution time
+		 * @param rows rows affected
+		 * @param weight number of executions this one stands for
+		 */
+		void add(long nanos, int rows, int weight){
+			this.count.addAndGet(weight);
+			this.totalTime.addAndGet(nanos * weight);
+			if (rows > 0){
+				this.rowsAffected.addAndGet((long) rows * weight);
+			}
+			long max;
+			while (nanos > (max = this.maxTime.get()) && !this.maxTime.compareAndSet(max, nanos)){
+				// retry
+			}
+		}
+
+		/** Returns the SQL of this statement.
+		 * @return sql
+		 */
+		public String getSql() {
+			return this.sql;
+		}
+
+		/** Returns the number of executions.
+		 * @return count
+		 */
+		public long getCount() {
+			return this.count.get();
+		}
+
+		/** Returns the total execution time (in ms). May be overstated by up to getTotalTimeError().
+		 * @return time in ms
+		 */
+		public double getTotalTime() {
+			return this.totalTime.get() / 1000000.0;
+		}
+
+		/** Returns the max amount by which getTotalTime() may be overstated (in ms).
+		 * @return time in ms
+		 */
+		public double getTotalTimeError() {
+			return this.totalTimeError / 1000000.0;
+		}
+
+		/** Returns the average execution time (in ms).
+		 * @return time in ms
+		 */
+		public double getAverageTime() {
+			long n = this.count.get();
+			return n == 0 ? 0 : (this.totalTime.get() - this.totalTimeError) / (1.0 * n) / 1000000.0;
+		}
+
+		/** Returns the longest execution time (in ms).
+		 * @return time in ms
+		 */
+		public double getMaxTime() {
+			return this.maxTime.get() / 1000000.0;
+		}
+
+		/** Returns the total number of rows affected by updates.
+		 * @return rows
+		 */
+		public long getRowsAffected() {
+			return this.rowsAffected.get();
+		}
+
+		@Override
+		public String toString() {
+			return String.format("total=%.3fms (overstated by <= %.3fms) count=%d avg=%.3fms max=%.3fms rows=%d sql=%s",
+					getTotalTime(), getTotalTimeError(), getCount(), getAverageTime(), getMaxTime(), getRowsAffected(), this.sql);
+		}
+	}
+}
@@ -16,31 +16,72 @@
 package com.jolbox.bonecp;
 
 import java.sql.SQLException;
-import java.util.concurrent.ConcurrentMap;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.collect.MapMaker;
+import com.google.common.annotations.VisibleForTesting;
 
 
 /**
  * JDBC statement cache.
  *
+ * Once full, the least recently used statement that isn't currently checked out makes way for a new one, provided
+ * the new one has been asked for more often of late (TinyLFU admission), so that a burst of one-off statements
+ * doesn't flush out the ones in regular use. An evicted statement is closed off at the driver.
+ *
+ * A cache may also share a {@link StatementCacheBudget} with the other caches of the pool, which caps the
+ * number of statements cached across all connections and keeps a single copy of each SQL key string, and
+ * report a sample of the statements it's asked for to a {@link StatementCacheWarmup}. Under a capped budget, a
+ * statement given up to make room on another connection is only taken out of the cache by that connection's
+ * thread; it's closed off here, on our own connection, as soon as the connection is next used (see 
+ * closeEvictedByBudget()).
+ *
+ * A cache belongs to a single connection so there is normally just the one thread using it; methods are
+ * synchronized only to cover the odd call from elsewhere (eg connection close), which costs next to nothing
+ * when uncontended.
+ *
  * @author wallacew
  */
 public class StatementCache implements IStatementCache {
 	/** Logger class. */
 	private static final Logger logger = LoggerFactory.getLogger(StatementCache.class);
-	/** The cache of our statements. */
-	private ConcurrentMap<String, StatementHandle> cache;
+	/** Only 1 in every this many lookups is reported to the warm-up tracker. */
+	private static final int WARMUP_SAMPLE_RATE = 16;
+	/** The cache of our statements, least recently used first. */
+	private final LinkedHashMap<StatementCacheKey, Entry> cache;
+	/** Key reused for every lookup so that lookups don't allocate. */
+	private final StatementCacheKey probe = new StatementCacheKey();
+	/** How often each key has been asked for recently. */
+	private final FrequencySketch frequency;
 	/** How many items to cache. */
 	private int cacheSize;
 	/** If true, keep statistics. */
 	private final boolean maintainStats;
 	/** Statistics handle. */
 	private final Statistics statistics;
-	
+	/** Pool-wide budget shared with other caches, or null if none. */
+	private final StatementCacheBudget budget;
+	/** True if the budget keeps track of our statements. */
+	private final boolean limited;
+	/** True while the budget should ask us for statements to evict. */
+	private boolean registered;
+	/** True while we're in the budget's line of caches to ask, which we may be for a while after we've stopped
+	 * being registered. */
+	private boolean queued;
+	/** Statements given up to the budget that are yet to be closed off, or null if none. Still counted by the
+	 * budget. */
+	@VisibleForTesting protected volatile List<Statement> evictedByBudget;
+	/** Pool-wide tracker of the most used statements, or null if we don't report to one. */
+	private final StatementCacheWarmup warmup;
+	/** Lookups since we last reported one to the warm-up tracker. */
+	private int lookups;
+
 	/**
 	 * Creates a statement cache of given size. 
 	 *
@@ -49,74 +90,94 @@ public class StatementCache implements IStatementCache {
 	 * @param statistics statistics handle.
 	 */
 	public StatementCache(int size, boolean maintainStats, Statistics statistics){
+		this(size, maintainStats, statistics, null);
+	}
+
+	/**
+	 * Creates a statement cache of given size, sharing the given pool-wide budget.
+	 *
+	 * @param size of cache.
+	 * @param maintainStats if true, keep track of statistics.
+	 * @param statistics statistics handle.
+	 * @param budget pool-wide budget, or null for none.
+	 */
+	public StatementCache(int size, boolean maintainStats, Statistics statistics, StatementCacheBudget budget){
+		this(size, maintainStats, statistics, budget, null);
+	}
+
+	/**
+	 * Creates a statement cache of given size, sharing the given pool-wide budget and reporting the statements
+	 * it's asked for to the given warm-up tracker.
+	 *
+	 * @param size of cache.
+	 * @param maintainStats if true, keep track of statistics.
+	 * @param statistics statistics handle.
+	 * @param budget pool-wide budget, or null for none.
+	 * @param warmup pool-wide warm-up tracker, or null for none.
+	 */
+	public StatementCache(int size, boolean maintainStats, Statistics statistics, StatementCacheBudget budget, StatementCacheWarmup warmup){
 		this.maintainStats = maintainStats;
 		this.statistics = statistics;
-		this.cache = new MapMaker()
-		.concurrencyLevel(32)
-		.makeMap();
-
+		this.cache = new LinkedHashMap<StatementCacheKey, Entry>(16, 0.75f, true);
+		this.limited = budget != null && budget.isLimited();
+		this.frequency = new FrequencySketch(size);
 		this.cacheSize = size;
+		this.budget = budget;
+		this.warmup = warmup;
 	}
 
-	/** Simply appends the given parameters and returns it to obtain a cache key
-	 * @param sql
-	 * @param resultSetConcurrency
-	 * @param resultSetHoldability
-	 * @param resultSetType
-	 * @return cache key to use
+	/** Returns how often the given key has been asked for recently.
+	 * @param key to look up
+	 * @return frequency
 	 */
-	public String calculateCacheKey(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability){
-		StringBuilder tmp = calculateCacheKeyInternal(sql, resultSetType,
-				resultSetConcurrency);
+	private int frequency(StatementCacheKey key){
+		return this.frequency.frequency(key);
+	}
 
-		tmp.append(", H:");
-		tmp.append(resultSetHoldability);
+	/** Returns the shared copy of the given SQL if we have a budget, or the SQL as is otherwise.
+	 * @param sql SQL
+	 * @return sql to key on
+	 */
+	private String intern(String sql){
+		return this.budget == null ? sql : this.budget.intern(sql);
+	}
 
-		return tmp.toString();
+	/** Returns a cache key for the given parameters.
+	 * @param sql
+	 * @return cache key to use
+	 */
+	public StatementCacheKey calculateCacheKey(String sql){
+		return new StatementCacheKey(intern(sql));
 	}
 
-	/** Cache key calculation.
-	 * @param sql string
-	 * @param resultSetType
+	/** Returns a cache key for the given parameters.
+	 * @param sql
 	 * @param resultSetConcurrency
-	 * @return cache key
+	 * @param resultSetHoldability
+	 * @param resultSetType
+	 * @return cache key to use
 	 */
-	public String calculateCacheKey(String sql, int resultSetType, int resultSetConcurrency){
-		StringBuilder tmp = calculateCacheKeyInternal(sql, resultSetType,
-				resultSetConcurrency);
-
-		return tmp.toString();
+	public StatementCacheKey calculateCacheKey(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability){
+		return new StatementCacheKey().set(intern(sql), resultSetType, resultSetConcurrency, resultSetHoldability);
 	}
 
 	/** Cache key calculation.
-	 * @param sql
+	 * @param sql string
 	 * @param resultSetType
 	 * @param resultSetConcurrency
 	 * @return cache key
 	 */
-	private StringBuilder calculateCacheKeyInternal(String sql,
-			int resultSetType, int resultSetConcurrency) {
-		StringBuilder tmp = new StringBuilder(sql.length()+20);
-		tmp.append(sql);
-
-		tmp.append(", T");
-		tmp.append(resultSetType);
-		tmp.append(", C");
-		tmp.append(resultSetConcurrency);
-		return tmp;
+	public StatementCacheKey calculateCacheKey(String sql, int resultSetType, int resultSetConcurrency){
+		return new StatementCacheKey().set(intern(sql), resultSetType, resultSetConcurrency);
 	}
 
-
 	/** Alternate version of autoGeneratedKeys.
 	 * @param sql
 	 * @param autoGeneratedKeys
 	 * @return cache key to use.
 	 */
-	public String calculateCacheKey(String sql, int autoGeneratedKeys) {
-		StringBuilder tmp = new StringBuilder(sql.length()+4);
-		tmp.append(sql);
-		tmp.append(autoGeneratedKeys);
-		return tmp.toString();
+	public StatementCacheKey calculateCacheKey(String sql, int autoGeneratedKeys) {
+		return new StatementCacheKey().set(intern(sql), autoGeneratedKeys);
 	}
 
 	/** Calculate a cache key.
@@ -124,14 +185,8 @@ public class StatementCache implements IStatementCache {
 	 * @param columnIndexes to use
 	 * @return cache key to use.
 	 */
-	public String calculateCacheKey(String sql, int[] columnIndexes) {
-		StringBuilder tmp = new StringBuilder(sql.length()+4);
-		tmp.append(sql);
-		for (int i=0; i < columnIndexes.length; i++){
-			tmp.append(columnIndexes[i]);
-			tmp.append("CI,");
-		}
-		return tmp.toString();
+	public StatementCacheKey calculateCacheKey(String sql, int[] columnIndexes) {
+		return new StatementCacheKey().set(intern(sql), columnIndexes).copy();
 	}
 
 	/** Calculate a cache key.
@@ -139,29 +194,30 @@ public class StatementCache implements IStatementCache {
 	 * @param columnNames to use
 	 * @return cache key to use.
 	 */
-	public String calculateCacheKey(String sql, String[] columnNames) {
-		StringBuilder tmp = new StringBuilder(sql.length()+4);
-		tmp.append(sql);
-		for (int i=0; i < columnNames.length; i++){
-			tmp.append(columnNames[i]);
-			tmp.append("CN,");
-		}
-		return tmp.toString();
-
+	public StatementCacheKey calculateCacheKey(String sql, String[] columnNames) {
+		return new StatementCacheKey().set(intern(sql), columnNames).copy();
 	}
 
 	/** 
 	 * {@inheritDoc}
 	 *
-	 * @see com.jolbox.bonecp.IStatementCache#get(java.lang.String)
+	 * @see com.jolbox.bonecp.IStatementCache#get(com.jolbox.bonecp.StatementCacheKey)
 	 */
 //	@Override
-	public StatementHandle get(String key){
-		StatementHandle statement = this.cache.get(key);
-		
-		if (statement != null && !statement.logicallyClosed.compareAndSet(true, false)){
-			statement = null;
+	public synchronized StatementHandle get(StatementCacheKey key){
+		closeEvictedByBudget();
+		StatementHandle statement = null;
+		if (this.warmup != null && key.isSqlOnly() && ++this.lookups == WARMUP_SAMPLE_RATE){
+			this.lookups = 0;
+			this.warmup.record(key.getSql(), WARMUP_SAMPLE_RATE);
+		}
+		Entry entry = this.cache.get(key);
+		if (entry != null && !entry.checkedOut){
+			entry.checkedOut = true;
+			statement = entry.handle;
 		}
+		this.frequency.increment(key);
+		this.probe.clear(); // don't hang on to the caller's SQL/arrays
 		
 		if (this.maintainStats){
 			if (statement != null){
@@ -174,34 +230,34 @@ public class StatementCache implements IStatementCache {
 	}
 
 	// @Override
-	public StatementHandle get(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability) {
-		return get(calculateCacheKey(sql, resultSetType, resultSetConcurrency, resultSetHoldability));
+	public synchronized StatementHandle get(String sql) {
+		return get(this.probe.set(sql));
 	}
 
-
 	// @Override
-	public StatementHandle get(String sql, int resultSetType, int resultSetConcurrency) {
-		return get(calculateCacheKey(sql, resultSetType, resultSetConcurrency));
+	public synchronized StatementHandle get(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability) {
+		return get(this.probe.set(sql, resultSetType, resultSetConcurrency, resultSetHoldability));
 	}
 
 	// @Override
-	public StatementHandle get(String sql, int autoGeneratedKeys) {
-		return get(calculateCacheKey(sql, autoGeneratedKeys));
+	public synchronized StatementHandle get(String sql, int resultSetType, int resultSetConcurrency) {
+		return get(this.probe.set(sql, resultSetType, resultSetConcurrency));
 	}
 
-
 	// @Override
-	public StatementHandle get(String sql, int[] columnIndexes) {
-		return get(calculateCacheKey(sql, columnIndexes));
+	public synchronized StatementHandle get(String sql, int autoGeneratedKeys) {
+		return get(this.probe.set(sql, autoGeneratedKeys));
 	}
 
-
 	// @Override
-	public StatementHandle get(String sql, String[] columnNames) {
-		return get(calculateCacheKey(sql, columnNames));
+	public synchronized StatementHandle get(String sql, int[] columnIndexes) {
+		return get(this.probe.set(sql, columnIndexes));
 	}
 
-
+	// @Override
+	public synchronized StatementHandle get(String sql, String[] columnNames) {
+		return get(this.probe.set(sql, columnNames));
+	}
 
 	/**
 	 * {@inheritDoc}
@@ -209,7 +265,7 @@ public class StatementCache implements IStatementCache {
 	 * @see com.jolbox.bonecp.IStatementCache#size()
 	 */
 	// @Override
-	public int size(){
+	public synchronized int size(){
 		return this.cache.size();
 	}
 
@@ -222,39 +278,238 @@ public class StatementCache implements IStatementCache {
 	 */
 	// @Override
 	public void clear() {
-		for (StatementHandle statement: this.cache.values()){
+		List<Entry> entries;
+		List<Statement> evicted;
+		synchronized (this) {
+			entries = new ArrayList<Entry>(this.cache.values());
+			this.cache.clear();
+			evicted = this.evictedByBudget;
+			this.evictedByBudget = null;
+			this.registered = false; // the budget skips us from now on.
+		}
+		if (evicted != null){
+			for (Statement statement: evicted){
+				closeEvicted(statement);
+			}
+		}
+		if (this.budget != null){
+			this.budget.release(entries.size() + (evicted == null ? 0 : evicted.size()));
+		}
+		// statements that are still out get closed off for real; the rest go away with the connection.
+		for (Entry entry: entries){
 			try {
-				if (!statement.isClosed()){ 
-					statement.close();
+				if (entry.checkedOut && !entry.owner.isClosed()){ 
+					entry.owner.close();
 				}
 			} catch (SQLException e) {
 				// don't log, we might fail if the connection link has died
 				// logger.error("Error closing off statement", e);
 			}
 		}
-		this.cache.clear();
 	}
 
 	// @Override
-	public void checkForProperClosure() {
-		for (StatementHandle statement: this.cache.values()){
-			if (!statement.isClosed()){
-				logger.error("Statement not closed properly in application\n\n"+statement.getOpenStackTrace());
+	public synchronized void checkForProperClosure() {
+		for (Entry entry: this.cache.values()){
+			if (entry.checkedOut && !entry.owner.isClosed()){
+				logger.error("Statement not closed properly in application\n\n"+entry.owner.getOpenStackTrace());
 			}
 		}		
 	}
 
 //	@Override
-	public void putIfAbsent(String key, StatementHandle handle) {
-		if (this.cache.size() <  this.cacheSize && key != null){ // perhaps use LRU in future?? Worth the overhead? Hmm....
-			if (this.cache.putIfAbsent(key, handle) == null){
-				handle.inCache = true;
-				if (this.maintainStats){
-					this.statistics.incrementStatementsCached();
+	public void putIfAbsent(StatementCacheKey key, StatementHandle handle) {
+		if (key == null || this.cacheSize <= 0){
+			return;
+		}
+		boolean grow;
+		int candidateFrequency;
+		closeEvictedByBudget();
+		synchronized (this) {
+			Entry entry = this.cache.get(key);
+			if (entry != null){
+				if (entry.statement == handle.internalStatement){
+					// a new handle wrapping the statement we've just handed out.
+					entry.owner = handle;
+					handle.inCache = true;
+				}
+				return;
+			}
+			grow = this.cache.size() < this.cacheSize;
+			candidateFrequency = frequency(key);
+		}
+		// a full cache swaps one statement for another, anything else needs room in the pool-wide budget. That may
+		// mean evicting from other caches, so don't hold our lock while getting it.
+		boolean acquired = grow && this.budget != null;
+		if (acquired && !this.budget.acquire(candidateFrequency)){
+			return;
+		}
+		synchronized (this) {
+			boolean evicted = false;
+			if (this.cache.containsKey(key) || (this.cache.size() >= this.cacheSize && !(evicted = evict(key)))){
+				if (acquired){
+					this.budget.release(1);
+				}
+				return;
+			}
+			if (this.budget != null && evicted == acquired){
+				// our size changed while we weren't holding the lock: either we took room we no longer need, or
+				// the budget evicted from us after we decided a swap was enough (in which case we go over by one).
+				this.budget.release(evicted ? 1 : -1);
+			}
+			Entry entry = new Entry(key, handle, !handle.isClosed());
+			this.cache.put(key, entry);
+			if (this.limited && !this.registered){
+				this.registered = true;
+				if (!this.queued){
+					this.queued = true;
+					this.budget.register(this);
 				}
 			}
+			handle.sql = key.getSql();
+			handle.inCache = true;
 		}
+		if (this.maintainStats){
+			this.statistics.incrementStatementsCached();
+		}
+	}
+
+//	@Override
+	public synchronized boolean release(StatementCacheKey key, Statement statement) {
+		Entry entry = key == null ? null : this.cache.get(key);
+		if (entry != null && entry.statement == statement){
+			entry.checkedOut = false;
+			return true;
+		}
+		return false;
+	}
 
+	/** Makes room for the given key by closing off the least recently used statement that isn't checked out,
+	 * unless that one is asked for at least as often as the new one.
+	 * @param key to make room for
+	 * @return true if an entry was evicted
+	 */
+	private boolean evict(StatementCacheKey key){
+		Map.Entry<StatementCacheKey, Entry> victim = evictionCandidate();
+		if (victim == null || frequency(victim.getKey()) >= frequency(key)){
+			return false;
+		}
+		Entry entry = this.cache.remove(victim.getKey());
+		entry.handle.inCache = false;
+		entry.owner.inCache = false;
+		closeEvicted(entry.statement);
+		return true;
+	}
+
+	/** Gives up the least recently used statement that isn't checked out on behalf of another cache that needs
+	 * room in the budget, unless it's asked for at least as often as the given frequency. It stops being handed
+	 * out straight away, but we only close it off (and give back its room in the budget) once our connection is next
+	 * used, from the thread using it.
+	 * @param frequency how often the other cache's new statement has been asked for
+	 * @return true if a statement was given up
+	 */
+	protected synchronized boolean evictForBudget(int frequency){
+		Map.Entry<StatementCacheKey, Entry> victim = evictionCandidate();
+		if (victim == null || frequency(victim.getKey()) >= frequency){
+			return false;
+		}
+		Entry entry = this.cache.remove(victim.getKey());
+		entry.handle.inCache = false;
+		entry.owner.inCache = false;
+		if (this.evictedByBudget == null){
+			this.evictedByBudget = new ArrayList<Statement>(1);
+		}
+		this.evictedByBudget.add(entry.statement);
+		return true;
+	}
+
+	/** Returns true if the budget should ask us for statements to evict, false if it should just drop us from its
+	 * line, eg because our connection has been closed.
+	 * @return true if registered
+	 */
+	protected synchronized boolean isRegistered(){
+		return this.registered;
+	}
+
+	/** Tells the budget, which has just taken us out of its line, whether to put us back in, ie whether we're still
+	 * registered and have statements left. Once we say no, we register again when we next take one on.
+	 * @return true if we still hold statements.
+	 */
+	protected synchronized boolean keepRegistered(){
+		this.registered = this.registered && !this.cache.isEmpty();
+		this.queued = this.registered;
+		return this.registered;
+	}
+
+	/** Closes off the statements given up to the budget since our connection was last used, if any, and gives back
+	 * their room in the budget. Called by the connection whenever it's safe to use it from the calling thread: as
+	 * it's checked out, released, tested or asked for a statement.
+	 */
+	protected void closeEvictedByBudget(){
+		if (this.evictedByBudget == null){
+			return; // usual case, no need to lock.
+		}
+		List<Statement> evicted;
+		synchronized (this) {
+			evicted = this.evictedByBudget;
+			this.evictedByBudget = null;
+		}
+		if (evicted != null){
+			for (Statement statement: evicted){
+				closeEvicted(statement);
+			}
+			this.budget.release(evicted.size());
+		}
+	}
+
+	/** Returns the least recently used entry that isn't checked out.
+	 * @return entry, or null if none.
+	 */
+	private Map.Entry<StatementCacheKey, Entry> evictionCandidate(){
+		for (Map.Entry<StatementCacheKey, Entry> candidate: this.cache.entrySet()){
+			if (!candidate.getValue().checkedOut){
+				return candidate;
+			}
+		}
+		return null;
+	}
+
+	/** Closes off an evicted statement.
+	 * @param statement to close
+	 */
+	private void closeEvicted(Statement statement){
+		try {
+			statement.close();
+		} catch (SQLException e) {
+			logger.debug("Error closing off evicted statement", e);
+		}
+	}
+
+	/** A cached statement. */
+	static final class Entry {
+		/** Key the statement is cached under. */
+		final StatementCacheKey key;
+		/** The driver statement. */
+		final Statement statement;
+		/** Handle the statement was first cached under; handed out again on a hit. */
+		final StatementHandle handle;
+		/** Handle the application is using (or last used) this statement through. */
+		StatementHandle owner;
+		/** True while the application has the statement. */
+		boolean checkedOut;
+
+		/** Creates a new entry.
+		 * @param key key the statement is cached under
+		 * @param handle statement handle
+		 * @param checkedOut true if the application currently has this statement
+		 */
+		Entry(StatementCacheKey key, StatementHandle handle, boolean checkedOut){
+			this.key = key;
+			this.statement = handle.internalStatement;
+			this.handle = handle;
+			this.owner = handle;
+			this.checkedOut = checkedOut;
+		}
 	}
 
 }
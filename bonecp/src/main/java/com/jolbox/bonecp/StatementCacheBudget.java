@@ -0,0 +1,175 @@
+/**
+ *  Copyright 2010 Wallace Wadge
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.jolbox.bonecp;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+/**
+ * State shared by all the statement caches of one pool: a limit on the number of statements cached across
+ * all connections, and a single copy of each SQL string used as a cache key.
+ *
+ * statementsCacheSize applies to each cache on its own, and every connection has two of them, so on a large
+ * pool the number of statements held open at the database can get very big. With a pool-wide limit set, a cache
+ * wanting to take on a new statement once the limit is reached must first get some other cache to give one up.
+ * The budget goes round the caches holding statements in turn, and asks each to give up its least recently used
+ * statement that isn't checked out, provided that one is asked for less often (on its own connection) than the
+ * newcomer is on the one asking. A few caches are asked before giving up, in which case the new statement simply
+ * isn't cached.
+ *
+ * Nothing is recorded here when a cache hands out a statement: caches keep their own recency order and frequency
+ * counts, under their own lock, and the budget only comes into it when a statement is added or dropped. A cache
+ * giving up a statement for someone else doesn't close it either, since that would mean using its connection from
+ * another thread: it only stops handing the statement out, and closes it off itself as soon as its connection is
+ * next used, ie checked out, released, tested, or asked for a statement (see StatementCache.closeEvictedByBudget()).
+ * The statement is still open at the database until then, so it still counts against the limit, and the newcomer
+ * it made way for only gets in the next time it's asked for once the room has actually been freed. The limit thus
+ * holds for the statements open at the database, not just for those that can be handed out.
+ *
+ * A cache that has dropped all its statements, eg because its connection has been closed, is not taken out of line
+ * straight away, which would mean a walk through the whole line each time. It's just flagged (see
+ * StatementCache.keepRegistered()) and skipped once its turn comes.
+ *
+ * The budget takes no lock of its own. It calls in to a cache (taking that cache's lock) only while not holding
+ * any other cache's lock.
+ *
+ * @author wallacew
+ */
+public class StatementCacheBudget {
+	/** Number of caches we'll ask to give up a statement before giving up. */
+	private static final int MAX_VICTIM_SCAN = 16;
+	/** Max number of statements cached across all caches, or 0 for no limit. */
+	private final int maxStatements;
+	/** Number of statements currently cached across all caches. */
+	private final AtomicInteger statementsCached = new AtomicInteger();
+	/** Caches holding statements, in the order they'll be asked to give one up. Null if there's no limit. */
+	private final Queue<StatementCache> caches;
+	/** One copy of each SQL string in use as a cache key. */
+	private final Interner<String> sqlStrings = Interners.newWeakInterner();
+
+	/** Creates a new budget.
+	 * @param maxStatements max number of statements cached across all caches, or 0 for no limit.
+	 */
+	public StatementCacheBudget(int maxStatements) {
+		this.maxStatements = Math.max(maxStatements, 0);
+		this.caches = this.maxStatements > 0 ? new ConcurrentLinkedQueue<StatementCache>() : null;
+	}
+
+	/** Returns true if there's a limit on the number of statements cached, in which case caches must register
+	 * with the budget once they hold a statement.
+	 * @return true if limited
+	 */
+	protected boolean isLimited(){
+		return this.maxStatements > 0;
+	}
+
+	/** Returns the shared copy of the given SQL string.
+	 * @param sql SQL
+	 * @return a string equal to sql
+	 */
+	protected String intern(String sql){
+		return this.sqlStrings.intern(sql);
+	}
+
+	/** Adds a cache that has just taken on a statement to those asked to give one up (limited budgets only). The
+	 * cache must not call this again until the budget has found it empty and let it go (see 
+	 * StatementCache.keepRegistered()).
+	 * @param cache cache holding statements
+	 */
+	protected void register(StatementCache cache){
+		this.caches.offer(cache);
+	}
+
+	/** Takes space for one more statement. If the budget is used up, the least valuable statement of some cache is
+	 * given up instead, but its space is only freed once that cache has closed it off, so the new statement doesn't
+	 * get in this time round.
+	 * @param frequency how often the new statement has been asked for.
+	 * @return true if there is now room for the statement, false if it shouldn't be cached.
+	 */
+	protected boolean acquire(int frequency){
+		if (this.maxStatements == 0){
+			this.statementsCached.incrementAndGet();
+			return true;
+		}
+		boolean evicted = false;
+		while (true){
+			int current = this.statementsCached.get();
+			if (current < this.maxStatements){
+				if (this.statementsCached.compareAndSet(current, current + 1)){
+					return true;
+				}
+				continue;
+			}
+			if (evicted || !evictLeastValuable(frequency)){
+				return false;
+			}
+			evicted = true; // look once more, in case some other cache has freed up room meanwhile.
+		}
+	}
+
+	/** Gives back space for the given number of statements (or, if negative, takes space regardless of the limit).
+	 * @param statements number of statements no longer cached
+	 */
+	protected void release(int statements){
+		this.statementsCached.addAndGet(-statements);
+	}
+
+	/** Asks the caches in turn to give up a statement asked for less often than the given frequency, moving each
+	 * one asked to the back of the line, or dropping it if it has nothing left. Caches flagged as empty are dropped
+	 * without counting as asked. Must not be called while holding a cache lock.
+	 * @param frequency frequency to beat
+	 * @return true if a statement was evicted
+	 */
+	private boolean evictLeastValuable(int frequency){
+		int asked = 0;
+		while (asked < MAX_VICTIM_SCAN){
+			StatementCache cache = this.caches.poll();
+			if (cache == null){
+				return false;
+			}
+			boolean ask = cache.isRegistered();
+			boolean evicted = ask && cache.evictForBudget(frequency);
+			if (cache.keepRegistered()){
+				this.caches.offer(cache);
+			}
+			if (evicted){
+				return true;
+			}
+			if (ask){
+				asked++;
+			}
+		}
+		return false;
+	}
+
+	/** Returns the max number of statements cached across all caches (0 = no limit).
+	 * @return maxStatements
+	 */
+	public int getMaxStatements() {
+		return this.maxStatements;
+	}
+
+	/** Returns the number of statements currently cached across all caches.
+	 * @return statements cached
+	 */
+	public int getStatementsCached() {
+		return this.statementsCached.get();
+	}
+}
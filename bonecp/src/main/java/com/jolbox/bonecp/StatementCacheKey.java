@@ -0,0 +1,210 @@
+/**
+ *  Copyright 2010 Wallace Wadge
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.jolbox.bonecp;
+
+import java.util.Arrays;
+
+/**
+ * Statement cache key: the SQL plus whichever extra prepareStatement/prepareCall arguments were given.
+ *
+ * The hash is worked out once when the key is set up, from the SQL string's own (cached) hash code and the
+ * other arguments, so nothing needs to be concatenated or rehashed. A cache keeps one key around as a probe
+ * and overwrites it on every lookup, which means a lookup doesn't allocate anything; a key of its own is only
+ * created when a statement actually goes into the cache.
+ *
+ * @author wallacew
+ */
+public class StatementCacheKey {
+	/** Key kind: SQL only. */
+	private static final int SQL = 0;
+	/** Key kind: SQL, resultSetType and resultSetConcurrency. */
+	private static final int RESULT_SET = 1;
+	/** Key kind: SQL, resultSetType, resultSetConcurrency and resultSetHoldability. */
+	private static final int RESULT_SET_HOLDABILITY = 2;
+	/** Key kind: SQL and autoGeneratedKeys. */
+	private static final int AUTO_GENERATED_KEYS = 3;
+	/** Key kind: SQL and columnIndexes. */
+	private static final int COLUMN_INDEXES = 4;
+	/** Key kind: SQL and columnNames. */
+	private static final int COLUMN_NAMES = 5;
+	/** SQL statement. */
+	private String sql;
+	/** Which of the prepare variants this key is for. */
+	private int kind;
+	/** resultSetType or autoGeneratedKeys. */
+	private int arg1;
+	/** resultSetConcurrency. */
+	private int arg2;
+	/** resultSetHoldability. */
+	private int arg3;
+	/** Column indexes, if given. */
+	private int[] columnIndexes;
+	/** Column names, if given. */
+	private String[] columnNames;
+	/** Precomputed hash. */
+	private int hash;
+
+	/** Creates an empty key, to be filled in by one of the set methods. */
+	protected StatementCacheKey() {
+		// nothing to do
+	}
+
+	/** Creates a key for a statement prepared with SQL only.
+	 * @param sql SQL statement
+	 */
+	public StatementCacheKey(String sql) {
+		set(sql);
+	}
+
+	/** Sets this key to the given SQL only.
+	 * @param sql SQL statement
+	 * @return this
+	 */
+	protected StatementCacheKey set(String sql){
+		return set(sql, SQL, 0, 0, 0, null, null);
+	}
+
+	/** Sets this key to the given SQL and result set type and concurrency.
+	 * @param sql SQL statement
+	 * @param resultSetType result set type
+	 * @param resultSetConcurrency result set concurrency
+	 * @return this
+	 */
+	protected StatementCacheKey set(String sql, int resultSetType, int resultSetConcurrency){
+		return set(sql, RESULT_SET, resultSetType, resultSetConcurrency, 0, null, null);
+	}
+
+	/** Sets this key to the given SQL and result set type, concurrency and holdability.
+	 * @param sql SQL statement
+	 * @param resultSetType result set type
+	 * @param resultSetConcurrency result set concurrency
+	 * @param resultSetHoldability result set holdability
+	 * @return this
+	 */
+	protected StatementCacheKey set(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability){
+		return set(sql, RESULT_SET_HOLDABILITY, resultSetType, resultSetConcurrency, resultSetHoldability, null, null);
+	}
+
+	/** Sets this key to the given SQL and autoGeneratedKeys flag.
+	 * @param sql SQL statement
+	 * @param autoGeneratedKeys autoGeneratedKeys flag
+	 * @return this
+	 */
+	protected StatementCacheKey set(String sql, int autoGeneratedKeys){
+		return set(sql, AUTO_GENERATED_KEYS, autoGeneratedKeys, 0, 0, null, null);
+	}
+
+	/** Sets this key to the given SQL and column indexes. The array is referenced, not copied.
+	 * @param sql SQL statement
+	 * @param columnIndexes column indexes
+	 * @return this
+	 */
+	protected StatementCacheKey set(String sql, int[] columnIndexes){
+		return set(sql, COLUMN_INDEXES, 0, 0, 0, columnIndexes, null);
+	}
+
+	/** Sets this key to the given SQL and column names. The array is referenced, not copied.
+	 * @param sql SQL statement
+	 * @param columnNames column names
+	 * @return this
+	 */
+	protected StatementCacheKey set(String sql, String[] columnNames){
+		return set(sql, COLUMN_NAMES, 0, 0, 0, null, columnNames);
+	}
+
+	/** Sets all fields and works out the hash.
+	 * @param sql SQL statement
+	 * @param kind key kind
+	 * @param arg1 first int argument
+	 * @param arg2 second int argument
+	 * @param arg3 third int argument
+	 * @param columnIndexes column indexes or null
+	 * @param columnNames column names or null
+	 * @return this
+	 */
+	private StatementCacheKey set(String sql, int kind, int arg1, int arg2, int arg3, int[] columnIndexes, String[] columnNames){
+		this.sql = sql;
+		this.kind = kind;
+		this.arg1 = arg1;
+		this.arg2 = arg2;
+		this.arg3 = arg3;
+		this.columnIndexes = columnIndexes;
+		this.columnNames = columnNames;
+		int h = sql.hashCode();
+		h = 31 * h + kind;
+		h = 31 * h + arg1;
+		h = 31 * h + arg2;
+		h = 31 * h + arg3;
+		h = 31 * h + Arrays.hashCode(columnIndexes);
+		h = 31 * h + Arrays.hashCode(columnNames);
+		this.hash = h;
+		return this;
+	}
+
+	/** Returns a key of its own with the same contents as this one, copying any arrays.
+	 * @return new key
+	 */
+	protected StatementCacheKey copy(){
+		return new StatementCacheKey().set(this.sql, this.kind, this.arg1, this.arg2, this.arg3,
+				this.columnIndexes == null ? null : this.columnIndexes.clone(),
+				this.columnNames == null ? null : this.columnNames.clone());
+	}
+
+	/** Drops references to the SQL and any arrays. */
+	protected void clear(){
+		this.sql = null;
+		this.columnIndexes = null;
+		this.columnNames = null;
+	}
+
+	/** Returns true if this key is for a statement prepared with SQL only.
+	 * @return true if there are no other arguments
+	 */
+	protected boolean isSqlOnly() {
+		return this.kind == SQL;
+	}
+
+	/** Returns the SQL statement.
+	 * @return sql
+	 */
+	public String getSql() {
+		return this.sql;
+	}
+
+	@Override
+	public int hashCode() {
+		return this.hash;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj){
+			return true;
+		}
+		if (!(obj instanceof StatementCacheKey)){
+			return false;
+		}
+		StatementCacheKey other = (StatementCacheKey) obj;
+		return this.hash == other.hash && this.kind == other.kind && this.arg1 == other.arg1 && this.arg2 == other.arg2
+				&& this.arg3 == other.arg3 && this.sql.equals(other.sql)
+				&& Arrays.equals(this.columnIndexes, other.columnIndexes) && Arrays.equals(this.columnNames, other.columnNames);
+	}
+
+	@Override
+	public String toString() {
+		return this.sql;
+	}
+}
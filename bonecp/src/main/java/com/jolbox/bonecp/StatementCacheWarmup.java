@@ -0,0 +1,133 @@
+/**
+ *  Copyright 2010 Wallace Wadge
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.jolbox.bonecp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of the pool's most frequently prepared statements so that new connections can have them prepared
+ * and cached before they're handed out.
+ *
+ * When the database goes away, every connection is thrown out along with its statement cache, and those made
+ * to replace them would otherwise all have to prepare the same statements over again at the same moment.
+ * This tracker belongs to the pool rather than any one connection so what it has learned survives that.
+ *
+ * The prepared statement caches report a sample of their lookups (of statements prepared with SQL only).
+ * Counts are kept for a fixed number of statements using the space-saving algorithm: once full, a statement
+ * that isn't being tracked takes over the entry with the lowest count. Statements given in the config are
+ * always prepared first, which covers a pool that has only just started.
+ *
+ * @author wallacew
+ */
+public class StatementCacheWarmup {
+	/** Number of statements tracked for each one we prepare, so that newcomers have room to prove themselves. */
+	private static final int TRACKED_PER_STATEMENT = 4;
+	/** Number of most frequently used statements to prepare. */
+	private final int size;
+	/** Max number of statements tracked. */
+	private final int capacity;
+	/** Statements to always prepare, in order. */
+	private final List<String> seedStatements;
+	/** Lookup counts of the statements tracked, keyed by SQL. */
+	private final ConcurrentHashMap<String, AtomicLong> counts;
+
+	/** Creates a new tracker.
+	 * @param size number of most frequently used statements to prepare on a new connection.
+	 * @param seedStatements statements to always prepare, ahead of the others.
+	 */
+	public StatementCacheWarmup(int size, List<String> seedStatements) {
+		this.size = Math.max(size, 0);
+		this.capacity = Math.max(this.size * TRACKED_PER_STATEMENT, 1);
+		this.seedStatements = new ArrayList<String>(seedStatements);
+		this.counts = new ConcurrentHashMap<String, AtomicLong>(this.capacity * 2);
+	}
+
+	/** Records a lookup of the given statement.
+	 * @param sql statement
+	 * @param weight number of lookups this one stands for
+	 */
+	public void record(String sql, int weight){
+		if (this.size == 0){
+			return;
+		}
+		AtomicLong count = this.counts.get(sql);
+		if (count == null){
+			count = admit(sql);
+		}
+		count.addAndGet(weight);
+	}
+
+	/** Starts tracking the given statement, taking over the entry with the lowest count if full.
+	 * @param sql statement
+	 * @return count to add to
+	 */
+	private synchronized AtomicLong admit(String sql){
+		AtomicLong result = this.counts.get(sql);
+		if (result == null){
+			long inherited = 0;
+			if (this.counts.size() >= this.capacity){
+				Map.Entry<String, AtomicLong> min = null;
+				for (Map.Entry<String, AtomicLong> entry: this.counts.entrySet()){
+					if (min == null || entry.getValue().get() < min.getValue().get()){
+						min = entry;
+					}
+				}
+				this.counts.remove(min.getKey());
+				inherited = min.getValue().get();
+			}
+			result = new AtomicLong(inherited);
+			this.counts.put(sql, result);
+		}
+		return result;
+	}
+
+	/** Returns the statements a new connection should prepare: the seed statements followed by the most
+	 * frequently used ones, most frequent first.
+	 * @param max max number of statements to return
+	 * @return statements
+	 */
+	public List<String> getStatements(int max){
+		Set<String> result = new LinkedHashSet<String>(this.seedStatements);
+		List<Map.Entry<String, AtomicLong>> entries = new ArrayList<Map.Entry<String, AtomicLong>>(this.counts.entrySet());
+		Collections.sort(entries, new Comparator<Map.Entry<String, AtomicLong>>() {
+			public int compare(Map.Entry<String, AtomicLong> o1, Map.Entry<String, AtomicLong> o2) {
+				long c1 = o1.getValue().get();
+				long c2 = o2.getValue().get();
+				return c1 > c2 ? -1 : (c1 == c2 ? 0 : 1);
+			}
+		});
+		for (int i=0; i < Math.min(this.size, entries.size()); i++){
+			result.add(entries.get(i).getKey());
+		}
+		List<String> statements = new ArrayList<String>(result);
+		return statements.size() > max ? new ArrayList<String>(statements.subList(0, max)) : statements;
+	}
+
+	/** Returns the number of most frequently used statements prepared on a new connection.
+	 * @return size
+	 */
+	public int getSize() {
+		return this.size;
+	}
+}
@@ -48,7 +48,7 @@ public class StatementHandle implements Statement{
 	/** Handle to the connection holding this statement. */
 	protected ConnectionHandle connectionHandle;
 	/** The key to use in the cache. */
-	private String cacheKey ;
+	protected StatementCacheKey cacheKey;
 	/** If enabled, log all statements being executed. */
 	protected boolean logStatementsEnabled;
 	/** If true, this statement is in the cache. */
@@ -67,6 +67,10 @@ public class StatementHandle implements Statement{
 	private boolean statisticsEnabled;
 	/** Statistics handle. */
 	private Statistics statistics;
+	/** Config setting: only time 1 in every statisticsSampleRate statements. */
+	private int statisticsSampleRate;
+	/** If true, the statement currently executing is being timed for statistics. */
+	private boolean statisticsSampled;
 	
 	/** For logging purposes - stores parameters to be used for execution. */
 	protected Map<Object, Object> logParams = new TreeMap<Object, Object>();
@@ -86,7 +90,7 @@ public class StatementHandle implements Statement{
 	 * @param logStatementsEnabled set to true to log statements. 
 	 */
 	public StatementHandle(Statement internalStatement, String sql, IStatementCache cache, 
-						   ConnectionHandle connectionHandle, String cacheKey, 
+						   ConnectionHandle connectionHandle, StatementCacheKey cacheKey, 
 						   boolean logStatementsEnabled) {
 		this.sql = sql;
 		this.internalStatement = internalStatement;
@@ -98,6 +102,7 @@ public class StatementHandle implements Statement{
 		this.connectionHook = config.getConnectionHook();
 		this.statistics = connectionHandle.getPool().getStatistics();
 		this.statisticsEnabled = config.isStatisticsEnabled();
+		this.statisticsSampleRate = Math.max(1, config.getStatisticsSampleRate());
 
 		try{
 			
@@ -134,7 +139,7 @@ public class StatementHandle implements Statement{
 			this.logParams.clear();
 			this.batchSQL = new StringBuilder();
 		}
-		if (this.cache == null || !this.inCache){ // no cache = throw it away right now
+		if (this.cache == null || !this.inCache || !this.cache.release(this.cacheKey, this.internalStatement)){ // no cache = throw it away right now
 			this.internalStatement.close();
 		}
 	
@@ -272,6 +277,16 @@ public class StatementHandle implements Statement{
 	 * @param queryStartTime time when query was started.
 	 */
 	protected void queryTimerEnd(String sql, long queryStartTime) {
+		queryTimerEnd(sql, queryStartTime, 0);
+	}
+
+	/** Call the onQueryExecuteTimeLimitExceeded hook if necessary and record the execution in the statistics.
+	 * @param sql sql statement that took too long
+	 * @param queryStartTime time when query was started.
+	 * @param rowsAffected rows affected by the statement, or 0 if not known.
+	 */
+	protected void queryTimerEnd(String sql, long queryStartTime, int rowsAffected) {
+		this.connectionHandle.markStatementSucceeded();
 		if ((this.queryExecuteTimeLimit != 0) 
 				&& (this.connectionHook != null)){
 			long timeElapsed = (System.nanoTime() - queryStartTime);
@@ -283,8 +298,12 @@ public class StatementHandle implements Statement{
 		
 		if (this.statisticsEnabled){
 			this.statistics.incrementStatementsExecuted();
-			this.statistics.addStatementExecuteTime(System.nanoTime() - queryStartTime);
-			
+			if (this.statisticsSampled){
+				// scale up so that the totals remain an estimate for all statements
+				long timeElapsed = System.nanoTime() - queryStartTime;
+				this.statistics.addStatementExecuteTime(timeElapsed, this.statisticsSampleRate);
+				this.statistics.addStatementProfile(sql, timeElapsed, rowsAffected, this.statisticsSampleRate);
+			}
 		}
 
 	}
@@ -325,11 +344,29 @@ public class StatementHandle implements Statement{
 	}
 
 
-	/** Start off a timer if necessary
+	/** Returns the total number of rows affected by a batch, ignoring entries that don't say.
+	 * @param updateCounts as returned by executeBatch()
+	 * @return rows affected
+	 */
+	private static int sumUpdateCounts(int[] updateCounts){
+		int result = 0;
+		if (updateCounts != null){
+			for (int count: updateCounts){
+				if (count > 0){
+					result += count;
+				}
+			}
+		}
+		return result;
+	}
+
+	/** Start off a timer if necessary. Also tells the connection that it might now have work to commit or roll back.
 	 * @return Start time
 	 */
 	protected long queryTimerStart() {
-		return this.statisticsEnabled || ((this.queryExecuteTimeLimit != 0) && (this.connectionHook != null)) ? System.nanoTime() : Long.MAX_VALUE;
+		this.connectionHandle.markStatementExecuted();
+		this.statisticsSampled = this.statisticsEnabled && (this.statisticsSampleRate == 1 || this.connectionHandle.sampleStatistics());
+		return this.statisticsSampled || ((this.queryExecuteTimeLimit != 0) && (this.connectionHook != null)) ? System.nanoTime() : Long.MAX_VALUE;
 	}
 
 	/**
@@ -427,7 +464,7 @@ public class StatementHandle implements Statement{
 				this.connectionHook.onAfterStatementExecute(this.connectionHandle, this, query, this.logParams);
 			}
 
-			queryTimerEnd(this.logStatementsEnabled ? this.batchSQL.toString() : "", queryStartTime);
+			queryTimerEnd(this.sql != null ? this.sql : (this.logStatementsEnabled ? this.batchSQL.toString() : ""), queryStartTime, sumUpdateCounts(result));
 
 
 			if (this.logStatementsEnabled){
@@ -499,7 +536,7 @@ public class StatementHandle implements Statement{
 				this.connectionHook.onAfterStatementExecute(this.connectionHandle, this, sql, this.logParams);
 			}
 
-			queryTimerEnd(sql, queryStartTime);
+			queryTimerEnd(sql, queryStartTime, result);
 		} catch (SQLException e) {
 			throw this.connectionHandle.markPossiblyBroken(e);
 
@@ -532,7 +569,7 @@ public class StatementHandle implements Statement{
 				this.connectionHook.onAfterStatementExecute(this.connectionHandle, this, sql, this.logParams);
 			}
 
-			queryTimerEnd(sql, queryStartTime);
+			queryTimerEnd(sql, queryStartTime, result);
 		} catch (SQLException e) {
 			throw this.connectionHandle.markPossiblyBroken(e);
 
@@ -565,7 +602,7 @@ public class StatementHandle implements Statement{
 				this.connectionHook.onAfterStatementExecute(this.connectionHandle, this, sql, this.logParams);
 			}
 
-			queryTimerEnd(sql, queryStartTime);
+			queryTimerEnd(sql, queryStartTime, result);
 		} catch (SQLException e) {
 			throw this.connectionHandle.markPossiblyBroken(e);
 
@@ -598,7 +635,7 @@ public class StatementHandle implements Statement{
 				this.connectionHook.onAfterStatementExecute(this.connectionHandle, this, sql, this.logParams);
 			}
 
-			queryTimerEnd(sql, queryStartTime);
+			queryTimerEnd(sql, queryStartTime, result);
 		} catch (SQLException e) {
 			throw this.connectionHandle.markPossiblyBroken(e);
 		}
@@ -16,7 +16,8 @@
 package com.jolbox.bonecp;
 
 import java.io.Serializable;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Statistics class.
@@ -28,24 +29,52 @@ public class Statistics implements StatisticsMBean, Serializable{
 	 * uid
 	 */
 	private static final long serialVersionUID = -5819368300823149669L;
+	/** Length of the window the latency percentiles are taken over, in seconds. */
+	private static final int LATENCY_WINDOW_IN_SECONDS = 60;
+	/** Number of slices the latency window is split into; data ages out one slice at a time. */
+	private static final int LATENCY_WINDOW_SLICES = 6;
 	/** No of cache hits. */
-	private final AtomicLong cacheHits = new AtomicLong(0);
+	private final StripedCounter cacheHits = new StripedCounter();
 	/** No of cache misses. */
-	private final AtomicLong cacheMiss = new AtomicLong(0);
+	private final StripedCounter cacheMiss = new StripedCounter();
 	/** No of statements cached. */
-	private final AtomicLong statementsCached = new AtomicLong(0);
+	private final StripedCounter statementsCached = new StripedCounter();
 	/** Connections obtained. */
-	private final AtomicLong connectionsRequested = new AtomicLong(0);
+	private final StripedCounter connectionsRequested = new StripedCounter();
 	/** Time taken to give a connection to the application. */  
-	private final AtomicLong cumulativeConnectionWaitTime = new AtomicLong(0);
+	private final StripedCounter cumulativeConnectionWaitTime = new StripedCounter();
 	/** Time taken to execute statements. */  
-	private final AtomicLong cumulativeStatementExecuteTime = new AtomicLong(0);
+	private final StripedCounter cumulativeStatementExecuteTime = new StripedCounter();
 	/** Time taken to prepare statements (or obtain from cache). */  
-	private final AtomicLong cumulativeStatementPrepareTime = new AtomicLong(0);
+	private final StripedCounter cumulativeStatementPrepareTime = new StripedCounter();
 	/** Number of statements that have been executed. */
-	private final AtomicLong statementsExecuted = new AtomicLong(0);
+	private final StripedCounter statementsExecuted = new StripedCounter();
 	/** Number of statements that have been prepared. */
-	private final AtomicLong statementsPrepared = new AtomicLong(0);
+	private final StripedCounter statementsPrepared = new StripedCounter();
+	/** Number of released connections handed over directly to a waiting thread. */
+	private final StripedCounter connectionsHandedOff = new StripedCounter();
+	/** Number of released connections placed in a free queue. */
+	private final StripedCounter connectionsQueued = new StripedCounter();
+	/** Number of connection tests sent to the database. */
+	private final StripedCounter connectionValidations = new StripedCounter();
+	/** Number of connection tests skipped because the connection was trusted. */
+	private final StripedCounter connectionValidationsSkipped = new StripedCounter();
+	/** Number of connection tests that failed. */
+	private final StripedCounter connectionValidationFailures = new StripedCounter();
+	/** Time taken by all connection tests. */
+	private final StripedCounter cumulativeConnectionValidationTime = new StripedCounter();
+	/** Recent connection wait times. */
+	private final LatencyHistogram connectionWaitTimes = newLatencyHistogram();
+	/** Recent statement execute times. */
+	private final LatencyHistogram statementExecuteTimes = newLatencyHistogram();
+	/** Recent statement prepare times. */
+	private final LatencyHistogram statementPrepareTimes = newLatencyHistogram();
+	/** Recent times taken to open a new physical connection. */
+	private final LatencyHistogram connectionCreationTimes = newLatencyHistogram();
+	/** Recent times taken to test a connection. */
+	private final LatencyHistogram connectionValidationTimes = newLatencyHistogram();
+	/** Statements taking up the most time, null if not enabled. */
+	private volatile SqlProfile sqlProfile;
 	
 	/** Pool handle. */
 	private BoneCP pool;
@@ -56,41 +85,68 @@ public class Statistics implements StatisticsMBean, Serializable{
 	public Statistics(BoneCP pool){
 		this.pool = pool;
 	}
+
+	/** Creates a histogram over the latency window.
+	 * @return a new histogram
+	 */
+	private static LatencyHistogram newLatencyHistogram(){
+		return new LatencyHistogram(LATENCY_WINDOW_IN_SECONDS, TimeUnit.SECONDS, LATENCY_WINDOW_SLICES);
+	}
 	
 	/* (non-Javadoc)
 	 * @see com.jolbox.bonecp.StatisticsMBean#resetStats()
 	 */
 	public void resetStats(){
-		this.cacheHits.set(0);
-		this.cacheMiss.set(0);
-		this.statementsCached.set(0);
-		this.connectionsRequested.set(0);
-		this.cumulativeConnectionWaitTime.set(0);
-		this.cumulativeStatementExecuteTime.set(0);
-		this.cumulativeStatementPrepareTime.set(0);
-		this.statementsExecuted.set(0);
-		this.statementsPrepared.set(0);
+		this.cacheHits.reset();
+		this.cacheMiss.reset();
+		this.statementsCached.reset();
+		this.connectionsRequested.reset();
+		this.cumulativeConnectionWaitTime.reset();
+		this.cumulativeStatementExecuteTime.reset();
+		this.cumulativeStatementPrepareTime.reset();
+		this.statementsExecuted.reset();
+		this.statementsPrepared.reset();
+		this.connectionsHandedOff.reset();
+		this.connectionsQueued.reset();
+		this.connectionValidations.reset();
+		this.connectionValidationsSkipped.reset();
+		this.connectionValidationFailures.reset();
+		this.cumulativeConnectionValidationTime.reset();
+		this.connectionWaitTimes.reset();
+		this.statementExecuteTimes.reset();
+		this.statementPrepareTimes.reset();
+		this.connectionCreationTimes.reset();
+		this.connectionValidationTimes.reset();
+		SqlProfile profile = this.sqlProfile;
+		if (profile != null){
+			profile.reset();
+		}
+		if (this.pool.partitions != null){
+			for (ConnectionPartition partition: this.pool.partitions){
+				partition.resetStats();
+			}
+		}
 	}
 	
 	/* (non-Javadoc)
 	 * @see com.jolbox.bonecp.StatisticsMBean#getConnectionWaitTimeAvg()
 	 */
 	public double getConnectionWaitTimeAvg(){
-		return this.connectionsRequested.get() == 0 ? 0 : this.cumulativeConnectionWaitTime.get() / (1.0*this.connectionsRequested.get()) / 1000000.0;
+		return this.connectionsRequested.sum() == 0 ? 0 : this.cumulativeConnectionWaitTime.sum() / (1.0*this.connectionsRequested.sum()) / 1000000.0;
 	}
 	
 	/* (non-Javadoc)
 	 * @see com.jolbox.bonecp.StatisticsMBean#getStatementWaitTimeAvg()
 	 */
 	public double getStatementExecuteTimeAvg(){
-		return this.statementsExecuted.get() == 0 ? 0 : this.cumulativeStatementExecuteTime.get() / (1.0*this.statementsExecuted.get()) / 1000000.0;
+		return this.statementsExecuted.sum() == 0 ? 0 : this.cumulativeStatementExecuteTime.sum() / (1.0*this.statementsExecuted.sum()) / 1000000.0;
 	}
 
 	/* (non-Javadoc)
 	 * @see com.jolbox.bonecp.StatisticsMBean#getStatementPrepareTimeAvg()
 	 */
 	public double getStatementPrepareTimeAvg(){
-		return this.cumulativeStatementPrepareTime.get() == 0 ? 0 : this.cumulativeStatementPrepareTime.get() / (1.0*this.statementsPrepared.get()) / 1000000.0;
+		return this.cumulativeStatementPrepareTime.sum() == 0 ? 0 : this.cumulativeStatementPrepareTime.sum() / (1.0*this.statementsPrepared.sum()) / 1000000.0;
 	}
 
 	
@@ -119,14 +175,14 @@ public class Statistics implements StatisticsMBean, Serializable{
 	 * @see com.jolbox.bonecp.StatisticsMBean#getCacheHits()
 	 */
 	public long getCacheHits() {
-		return this.cacheHits.get();
+		return this.cacheHits.sum();
 	}
 
 	/* (non-Javadoc)
 	 * @see com.jolbox.bonecp.StatisticsMBean#getCacheMiss()
 	 */
 	public long getCacheMiss() {
-		return this.cacheMiss.get();
+		return this.cacheMiss.sum();
 	}
 
 	
@@ -134,54 +190,82 @@ public class Statistics implements StatisticsMBean, Serializable{
 	 * @see com.jolbox.bonecp.StatisticsMBean#getStatementsCached()
 	 */
 	public long getStatementsCached() {
-		return this.statementsCached.get();
+		return this.statementsCached.sum();
 	}
 	
 	/* (non-Javadoc)
 	 * @see com.jolbox.bonecp.StatisticsMBean#getConnectionsRequested()
 	 */
 	public long getConnectionsRequested() {
-		return this.connectionsRequested.get();
+		return this.connectionsRequested.sum();
 	}
 
 	/* (non-Javadoc)
 	 * @see com.jolbox.bonecp.StatisticsMBean#getCumulativeConnectionWaitTime()
 	 */
 	public long getCumulativeConnectionWaitTime() {
-		return this.cumulativeConnectionWaitTime.get() / 1000000;
+		return this.cumulativeConnectionWaitTime.sum() / 1000000;
 	}
 
 	/** Adds connection wait time.
 	 * @param increment
 	 */
 	protected void addCumulativeConnectionWaitTime(long increment) {
-		this.cumulativeConnectionWaitTime.addAndGet(increment);
+		this.cumulativeConnectionWaitTime.add(increment);
+		this.connectionWaitTimes.record(increment);
+	}
+
+	/** Adds the time taken to open a new physical connection.
+	 * @param time in nanoseconds
+	 */
+	protected void addConnectionCreationTime(long time) {
+		this.connectionCreationTimes.record(time);
+	}
+
+	/** Adds a connection test sent to the database.
+	 * @param time in nanoseconds
+	 * @param passed false if the connection turned out to be broken
+	 */
+	protected void addConnectionValidation(long time, boolean passed) {
+		this.connectionValidations.increment();
+		if (!passed){
+			this.connectionValidationFailures.increment();
+		}
+		this.cumulativeConnectionValidationTime.add(time);
+		this.connectionValidationTimes.record(time);
+	}
+
+	/**
+	 * Accessor method.
+	 */
+	protected void incrementConnectionValidationsSkipped() {
+		this.connectionValidationsSkipped.increment();
 	}
 
 	/** Adds statements executed.
 	 */
 	protected void incrementStatementsExecuted() {
-		this.statementsExecuted.incrementAndGet();
+		this.statementsExecuted.increment();
 	}
 	
 	/** Adds statements executed.
 	 */
 	protected void incrementStatementsPrepared() {
-		this.statementsPrepared.incrementAndGet();
+		this.statementsPrepared.increment();
 	}
 	
 	/**
 	 * Accessor method.
 	 */
 	protected void incrementStatementsCached() {
-		this.statementsCached.incrementAndGet();
+		this.statementsCached.increment();
 	}
 
 	/**
 	 * Accessor method.
 	 */
 	protected void incrementCacheMiss() {
-		this.cacheMiss.incrementAndGet();
+		this.cacheMiss.increment();
 	}
 
 
@@ -189,35 +273,35 @@ public class Statistics implements StatisticsMBean, Serializable{
 	 * Accessor method.
 	 */
 	protected void incrementCacheHits() {
-		this.cacheHits.incrementAndGet();
+		this.cacheHits.increment();
 	}
 
 	/**
 	 * Accessor method.
 	 */
 	protected void incrementConnectionsRequested() {
-		this.connectionsRequested.incrementAndGet();
+		this.connectionsRequested.increment();
 	}
 
 	/* (non-Javadoc)
 	 * @see com.jolbox.bonecp.StatisticsMBean#getCacheHitRatio()
 	 */
 	public double getCacheHitRatio() {
-		return this.cacheHits.get()+this.cacheMiss.get() == 0 ? 0 : this.cacheHits.get() / (1.0*this.cacheHits.get()+this.cacheMiss.get());
+		return this.cacheHits.sum()+this.cacheMiss.sum() == 0 ? 0 : this.cacheHits.sum() / (1.0*this.cacheHits.sum()+this.cacheMiss.sum());
 	}
 
 	/* (non-Javadoc)
 	 * @see com.jolbox.bonecp.StatisticsMBean#getStatementsExecuted()
 	 */
 	public long getStatementsExecuted() {
-		return this.statementsExecuted.get();
+		return this.statementsExecuted.sum();
 	}
 
 	/* (non-Javadoc)
 	 * @see com.jolbox.bonecp.StatisticsMBean#getCumulativeStatementExecutionTime()
 	 */
 	public long getCumulativeStatementExecutionTime() {
-		return this.cumulativeStatementExecuteTime.get() / 1000000;
+		return this.cumulativeStatementExecuteTime.sum() / 1000000;
 	}
 
 	/**
@@ -225,7 +309,17 @@ public class Statistics implements StatisticsMBean, Serializable{
 	 * @param time
 	 */
 	protected void addStatementExecuteTime(long time) {
-		this.cumulativeStatementExecuteTime.addAndGet(time);
+		addStatementExecuteTime(time, 1);
+	}
+
+	/** Adds the execute time of a statement that stands in for the given number of statements (when only
+	 * some of them are being timed).
+	 * @param time in nanoseconds
+	 * @param weight number of statements this one represents
+	 */
+	protected void addStatementExecuteTime(long time, int weight) {
+		this.cumulativeStatementExecuteTime.add(time * weight);
+		this.statementExecuteTimes.record(time);
 	}
 	
 	/**
@@ -233,21 +327,389 @@ public class Statistics implements StatisticsMBean, Serializable{
 	 * @param time
 	 */
 	protected void addStatementPrepareTime(long time) {
-		this.cumulativeStatementPrepareTime.addAndGet(time);
+		addStatementPrepareTime(time, 1);
+	}
+
+	/** Adds the prepare time of a statement that stands in for the given number of statements (when only
+	 * some of them are being timed).
+	 * @param time in nanoseconds
+	 * @param weight number of statements this one represents
+	 */
+	protected void addStatementPrepareTime(long time, int weight) {
+		this.cumulativeStatementPrepareTime.add(time * weight);
+		this.statementPrepareTimes.record(time);
 	}
 
 	/* (non-Javadoc)
 	 * @see com.jolbox.bonecp.StatisticsMBean#getCumulativeStatementPrepareTime()
 	 */
 	public long getCumulativeStatementPrepareTime() {
-		return this.cumulativeStatementPrepareTime.get() / 1000000;
+		return this.cumulativeStatementPrepareTime.sum() / 1000000;
+	}
+
+	/** Records an execution of the given statement in the SQL profile, if enabled.
+	 * @param sql statement
+	 * @param time execution time in nanoseconds
+	 * @param rowsAffected rows affected, or 0 if not known
+	 * @param weight number of statements this one represents
+	 */
+	protected void addStatementProfile(String sql, long time, int rowsAffected, int weight) {
+		SqlProfile profile = this.sqlProfile;
+		if (profile != null){
+			profile.record(sql, time, rowsAffected, weight);
+		}
+	}
+
+	/** Returns the SQL profile, if enabled.
+	 * @return the profile or null
+	 */
+	public SqlProfile getSqlProfile() {
+		return this.sqlProfile;
+	}
+
+	/** Starts keeping a profile of up to the given number of distinct SQL statements.
+	 * @param size max number of statements, or 0 to disable.
+	 */
+	protected void setSqlProfileSize(int size) {
+		this.sqlProfile = size > 0 ? new SqlProfile(size) : null;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jolbox.bonecp.StatisticsMBean#getTopStatements()
+	 */
+	public String[] getTopStatements() {
+		SqlProfile profile = this.sqlProfile;
+		if (profile == null){
+			return new String[0];
+		}
+		List<SqlProfile.Entry> top = profile.getTopStatements(profile.getCapacity());
+		String[] result = new String[top.size()];
+		for (int i=0; i < result.length; i++){
+			result[i] = top.get(i).toString();
+		}
+		return result;
 	}
 
 	/* (non-Javadoc)
 	 * @see com.jolbox.bonecp.StatisticsMBean#getStatementsPrepared()
 	 */
 	public long getStatementsPrepared() {
-		return this.statementsPrepared.get();
+		return this.statementsPrepared.sum();
 	}
-	
+
+	/**
+	 * Accessor method.
+	 */
+	protected void incrementConnectionsHandedOff() {
+		this.connectionsHandedOff.increment();
+	}
+
+	/**
+	 * Accessor method.
+	 */
+	protected void incrementConnectionsQueued() {
+		this.connectionsQueued.increment();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jolbox.bonecp.StatisticsMBean#getConnectionsHandedOff()
+	 */
+	public long getConnectionsHandedOff() {
+		return this.connectionsHandedOff.sum();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jolbox.bonecp.StatisticsMBean#getConnectionsQueued()
+	 */
+	public long getConnectionsQueued() {
+		return this.connectionsQueued.sum();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jolbox.bonecp.StatisticsMBean#getConnectionHandoffRatio()
+	 */
+	public double getConnectionHandoffRatio() {
+		return this.connectionsHandedOff.sum()+this.connectionsQueued.sum() == 0 ? 0 : this.connectionsHandedOff.sum() / (1.0*this.connectionsHandedOff.sum()+this.connectionsQueued.sum());
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jolbox.bonecp.StatisticsMBean#getPartitionHits()
+	 */
+	public long[] getPartitionHits() {
+		long[] result = new long[this.pool.partitionCount];
+		for (int i=0; i < result.length; i++){
+			result[i] = this.pool.partitions[i].getHits();
+		}
+		return result;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jolbox.bonecp.StatisticsMBean#getPartitionSteals()
+	 */
+	public long[] getPartitionSteals() {
+		long[] result = new long[this.pool.partitionCount];
+		for (int i=0; i < result.length; i++){
+			result[i] = this.pool.partitions[i].getSteals();
+		}
+		return result;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jolbox.bonecp.StatisticsMBean#getPartitionMisses()
+	 */
+	public long[] getPartitionMisses() {
+		long[] result = new long[this.pool.partitionCount];
+		for (int i=0; i < result.length; i++){
+			result[i] = this.pool.partitions[i].getMisses();
+		}
+		return result;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jolbox.bonecp.StatisticsMBean#getPartitionDemandForecast()
+	 */
+	public double[] getPartitionDemandForecast() {
+		double[] result = new double[this.pool.partitionCount];
+		for (int i=0; i < result.length; i++){
+			result[i] = this.pool.partitions[i].getDemandForecast().getForecast();
+		}
+		return result;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jolbox.bonecp.StatisticsMBean#getPartitionTargetConnections()
+	 */
+	public int[] getPartitionTargetConnections() {
+		int[] result = new int[this.pool.partitionCount];
+		for (int i=0; i < result.length; i++){
+			result[i] = this.pool.partitions[i].getTargetConnections();
+		}
+		return result;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jolbox.bonecp.StatisticsMBean#getPredictiveGrowths()
+	 */
+	public long getPredictiveGrowths() {
+		long result = 0;
+		for (int i=0; i < this.pool.partitionCount; i++){
+			result += this.pool.partitions[i].getDemandForecast().getGrowths();
+		}
+		return result;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jolbox.bonecp.StatisticsMBean#getPredictiveShrinks()
+	 */
+	public long getPredictiveShrinks() {
+		long result = 0;
+		for (int i=0; i < this.pool.partitionCount; i++){
+			result += this.pool.partitions[i].getDemandForecast().getShrinks();
+		}
+		return result;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jolbox.bonecp.StatisticsMBean#getConnectionWaitTimeP50()
+	 */
+	public double getConnectionWaitTimeP50() {
+		return this.connectionWaitTimes.getPercentile(50);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jolbox.bonecp.StatisticsMBean#getConnectionWaitTimeP90()
+	 */
+	public double getConnectionWaitTimeP90() {
+		return this.connectionWaitTimes.getPercentile(90);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jolbox.bonecp.StatisticsMBean#getConnectionWaitTimeP99()
+	 */
+	public double getConnectionWaitTimeP99() {
+		return this.connectionWaitTimes.getPercentile(99);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jolbox.bonecp.StatisticsMBean#getConnectionWaitTimeP999()
+	 */
+	public double getConnectionWaitTimeP999() {
+		return this.connectionWaitTimes.getPercentile(99.9);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jolbox.bonecp.StatisticsMBean#getConnectionWaitTimeMax()
+	 */
+	public double getConnectionWaitTimeMax() {
+		return this.connectionWaitTimes.getMax();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jolbox.bonecp.StatisticsMBean#getStatementExecuteTimeP50()
+	 */
+	public double getStatementExecuteTimeP50() {
+		return this.statementExecuteTimes.getPercentile(50);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jolbox.bonecp.StatisticsMBean#getStatementExecuteTimeP90()
+	 */
+	public double getStatementExecuteTimeP90() {
+		return this.statementExecuteTimes.getPercentile(90);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jolbox.bonecp.StatisticsMBean#getStatementExecuteTimeP99()
+	 */
+	public double getStatementExecuteTimeP99() {
+		return this.statementExecuteTimes.getPercentile(99);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jolbox.bonecp.StatisticsMBean#getStatementExecuteTimeP999()
+	 */
+	public double getStatementExecuteTimeP999() {
+		return this.statementExecuteTimes.getPercentile(99.9);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jolbox.bonecp.StatisticsMBean#getStatementExecuteTimeMax()
+	 */
+	public double getStatementExecuteTimeMax() {
+		return this.statementExecuteTimes.getMax();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jolbox.bonecp.StatisticsMBean#getStatementPrepareTimeP50()
+	 */
+	public double getStatementPrepareTimeP50() {
+		return this.statementPrepareTimes.getPercentile(50);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jolbox.bonecp.StatisticsMBean#getStatementPrepareTimeP90()
+	 */
+	public double getStatementPrepareTimeP90() {
+		return this.statementPrepareTimes.getPercentile(90);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jolbox.bonecp.StatisticsMBean#getStatementPrepareTimeP99()
+	 */
+	public double getStatementPrepareTimeP99() {
+		return this.statementPrepareTimes.getPercentile(99);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jolbox.bonecp.StatisticsMBean#getStatementPrepareTimeP999()
+	 */
+	public double getStatementPrepareTimeP999() {
+		return this.statementPrepareTimes.getPercentile(99.9);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jolbox.bonecp.StatisticsMBean#getStatementPrepareTimeMax()
+	 */
+	public double getStatementPrepareTimeMax() {
+		return this.statementPrepareTimes.getMax();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jolbox.bonecp.StatisticsMBean#getConnectionCreationTimeP50()
+	 */
+	public double getConnectionCreationTimeP50() {
+		return this.connectionCreationTimes.getPercentile(50);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jolbox.bonecp.StatisticsMBean#getConnectionCreationTimeP90()
+	 */
+	public double getConnectionCreationTimeP90() {
+		return this.connectionCreationTimes.getPercentile(90);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jolbox.bonecp.StatisticsMBean#getConnectionCreationTimeP99()
+	 */
+	public double getConnectionCreationTimeP99() {
+		return this.connectionCreationTimes.getPercentile(99);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jolbox.bonecp.StatisticsMBean#getConnectionCreationTimeP999()
+	 */
+	public double getConnectionCreationTimeP999() {
+		return this.connectionCreationTimes.getPercentile(99.9);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jolbox.bonecp.StatisticsMBean#getConnectionCreationTimeMax()
+	 */
+	public double getConnectionCreationTimeMax() {
+		return this.connectionCreationTimes.getMax();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jolbox.bonecp.StatisticsMBean#getConnectionValidations()
+	 */
+	public long getConnectionValidations() {
+		return this.connectionValidations.sum();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jolbox.bonecp.StatisticsMBean#getConnectionValidationsSkipped()
+	 */
+	public long getConnectionValidationsSkipped() {
+		return this.connectionValidationsSkipped.sum();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jolbox.bonecp.StatisticsMBean#getConnectionValidationFailures()
+	 */
+	public long getConnectionValidationFailures() {
+		return this.connectionValidationFailures.sum();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jolbox.bonecp.StatisticsMBean#getConnectionValidationTimeAvg()
+	 */
+	public double getConnectionValidationTimeAvg() {
+		return this.connectionValidations.sum() == 0 ? 0 : this.cumulativeConnectionValidationTime.sum() / (1.0*this.connectionValidations.sum()) / 1000000.0;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jolbox.bonecp.StatisticsMBean#getConnectionValidationTimeP50()
+	 */
+	public double getConnectionValidationTimeP50() {
+		return this.connectionValidationTimes.getPercentile(50);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jolbox.bonecp.StatisticsMBean#getConnectionValidationTimeP90()
+	 */
+	public double getConnectionValidationTimeP90() {
+		return this.connectionValidationTimes.getPercentile(90);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jolbox.bonecp.StatisticsMBean#getConnectionValidationTimeP99()
+	 */
+	public double getConnectionValidationTimeP99() {
+		return this.connectionValidationTimes.getPercentile(99);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jolbox.bonecp.StatisticsMBean#getConnectionValidationTimeP999()
+	 */
+	public double getConnectionValidationTimeP999() {
+		return this.connectionValidationTimes.getPercentile(99.9);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jolbox.bonecp.StatisticsMBean#getConnectionValidationTimeMax()
+	 */
+	public double getConnectionValidationTimeMax() {
+		return this.connectionValidationTimes.getMax();
+	}
+
 }
@@ -121,7 +121,214 @@ public interface StatisticsMBean {
 	 * @return number of statements. 
 	 */
 	long getStatementsExecuted();
-	
-	
 
-}
\ No newline at end of file
+	/** Returns the number of released connections that were handed over directly to a thread waiting for one.
+	 * @return number of handoffs.
+	 */
+	long getConnectionsHandedOff();
+
+	/** Returns the number of released connections that were placed in a free queue because no thread was
+	 * waiting for one.
+	 * @return number of connections queued.
+	 */
+	long getConnectionsQueued();
+
+	/** Returns the fraction of released connections that were handed over directly to a waiting thread,
+	 * calculated as handoffs/(handoffs+queued).
+	 * @return handoff ratio
+	 */
+	double getConnectionHandoffRatio();
+
+	/** Returns, for each partition, the number of connections obtained straight away by threads assigned to it.
+	 * @return hits per partition
+	 */
+	long[] getPartitionHits();
+
+	/** Returns, for each partition, the number of connections taken from it by threads assigned to another
+	 * partition that had run dry.
+	 * @return steals per partition
+	 */
+	long[] getPartitionSteals();
+
+	/** Returns, for each partition, the number of times a thread assigned to it found no free connection in any
+	 * partition and had to wait.
+	 * @return misses per partition
+	 */
+	long[] getPartitionMisses();
+
+	/** Returns, for each partition, the forecast number of connections leased out a couple of sizing periods from
+	 * now. Always 0 unless poolSizingPeriodInMs is set.
+	 * @return forecast per partition
+	 */
+	double[] getPartitionDemandForecast();
+
+	/** Returns, for each partition, the number of connections predictive sizing last decided it should have.
+	 * Always 0 unless poolSizingPeriodInMs is set.
+	 * @return target connections per partition
+	 */
+	int[] getPartitionTargetConnections();
+
+	/** Returns the number of times predictive sizing asked a partition to grow ahead of demand.
+	 * @return no of grow decisions
+	 */
+	long getPredictiveGrowths();
+
+	/** Returns the number of connections retired by predictive sizing because the forecast no longer called
+	 * for them.
+	 * @return no of connections retired
+	 */
+	long getPredictiveShrinks();
+
+	/** Returns the SQL statements that have taken up the most execution time, highest first, each with its
+	 * execution count, total, average and max time and rows affected. Empty if the SQL profile is disabled.
+	 * @return one line per statement
+	 */
+	String[] getTopStatements();
+
+	/** Returns the 50th percentile of the time taken to obtain a connection over the last minute (in ms).
+	 * @return time in ms
+	 */
+	double getConnectionWaitTimeP50();
+
+	/** Returns the 90th percentile of the time taken to obtain a connection over the last minute (in ms).
+	 * @return time in ms
+	 */
+	double getConnectionWaitTimeP90();
+
+	/** Returns the 99th percentile of the time taken to obtain a connection over the last minute (in ms).
+	 * @return time in ms
+	 */
+	double getConnectionWaitTimeP99();
+
+	/** Returns the 99.9th percentile of the time taken to obtain a connection over the last minute (in ms).
+	 * @return time in ms
+	 */
+	double getConnectionWaitTimeP999();
+
+	/** Returns the longest time taken to obtain a connection over the last minute (in ms).
+	 * @return time in ms
+	 */
+	double getConnectionWaitTimeMax();
+
+	/** Returns the 50th percentile of the time taken to execute a statement over the last minute (in ms).
+	 * @return time in ms
+	 */
+	double getStatementExecuteTimeP50();
+
+	/** Returns the 90th percentile of the time taken to execute a statement over the last minute (in ms).
+	 * @return time in ms
+	 */
+	double getStatementExecuteTimeP90();
+
+	/** Returns the 99th percentile of the time taken to execute a statement over the last minute (in ms).
+	 * @return time in ms
+	 */
+	double getStatementExecuteTimeP99();
+
+	/** Returns the 99.9th percentile of the time taken to execute a statement over the last minute (in ms).
+	 * @return time in ms
+	 */
+	double getStatementExecuteTimeP999();
+
+	/** Returns the longest time taken to execute a statement over the last minute (in ms).
+	 * @return time in ms
+	 */
+	double getStatementExecuteTimeMax();
+
+	/** Returns the 50th percentile of the time taken to prepare a statement (or obtain it from cache) over the last minute (in ms).
+	 * @return time in ms
+	 */
+	double getStatementPrepareTimeP50();
+
+	/** Returns the 90th percentile of the time taken to prepare a statement (or obtain it from cache) over the last minute (in ms).
+	 * @return time in ms
+	 */
+	double getStatementPrepareTimeP90();
+
+	/** Returns the 99th percentile of the time taken to prepare a statement (or obtain it from cache) over the last minute (in ms).
+	 * @return time in ms
+	 */
+	double getStatementPrepareTimeP99();
+
+	/** Returns the 99.9th percentile of the time taken to prepare a statement (or obtain it from cache) over the last minute (in ms).
+	 * @return time in ms
+	 */
+	double getStatementPrepareTimeP999();
+
+	/** Returns the longest time taken to prepare a statement (or obtain it from cache) over the last minute (in ms).
+	 * @return time in ms
+	 */
+	double getStatementPrepareTimeMax();
+
+	/** Returns the 50th percentile of the time taken to open a new physical connection over the last minute (in ms).
+	 * @return time in ms
+	 */
+	double getConnectionCreationTimeP50();
+
+	/** Returns the 90th percentile of the time taken to open a new physical connection over the last minute (in ms).
+	 * @return time in ms
+	 */
+	double getConnectionCreationTimeP90();
+
+	/** Returns the 99th percentile of the time taken to open a new physical connection over the last minute (in ms).
+	 * @return time in ms
+	 */
+	double getConnectionCreationTimeP99();
+
+	/** Returns the 99.9th percentile of the time taken to open a new physical connection over the last minute (in ms).
+	 * @return time in ms
+	 */
+	double getConnectionCreationTimeP999();
+
+	/** Returns the longest time taken to open a new physical connection over the last minute (in ms).
+	 * @return time in ms
+	 */
+	double getConnectionCreationTimeMax();
+
+	/** Returns the number of times a connection was tested against the database.
+	 * @return number of connection tests.
+	 */
+	long getConnectionValidations();
+
+	/** Returns the number of connection tests skipped because the connection had successfully completed a statement
+	 * within the validation trust window.
+	 * @return number of connection tests skipped.
+	 */
+	long getConnectionValidationsSkipped();
+
+	/** Returns the number of connection tests that found a broken connection.
+	 * @return number of failed connection tests.
+	 */
+	long getConnectionValidationFailures();
+
+	/** Returns the average time taken to test a connection against the database (in ms).
+	 * @return time in ms
+	 */
+	double getConnectionValidationTimeAvg();
+
+	/** Returns the 50th percentile of the time taken to test a connection against the database over the last minute (in ms).
+	 * @return time in ms
+	 */
+	double getConnectionValidationTimeP50();
+
+	/** Returns the 90th percentile of the time taken to test a connection against the database over the last minute (in ms).
+	 * @return time in ms
+	 */
+	double getConnectionValidationTimeP90();
+
+	/** Returns the 99th percentile of the time taken to test a connection against the database over the last minute (in ms).
+	 * @return time in ms
+	 */
+	double getConnectionValidationTimeP99();
+
+	/** Returns the 99.9th percentile of the time taken to test a connection against the database over the last minute (in ms).
+	 * @return time in ms
+	 */
+	double getConnectionValidationTimeP999();
+
+	/** Returns the longest time taken to test a connection against the database over the last minute (in ms).
+	 * @return time in ms
+	 */
+	double getConnectionValidationTimeMax();
+
+}
@@ -0,0 +1,95 @@
+/**
+ *  Copyright 2010 Wallace Wadge
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.jolbox.bonecp;
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that is cheap to update from many threads at once (along the lines of JDK8's LongAdder).
+ *
+ * The count is spread over a number of cells, one per CPU or so, each padded out to its own pair of cache
+ * lines. Threads add to the cell picked by their thread id and the cells are only summed up when the value
+ * is read, so concurrent updates don't keep bouncing the same cache line between cores.
+ *
+ * @author wallacew
+ */
+public class StripedCounter implements Serializable {
+	/** uid */
+	private static final long serialVersionUID = -2591425342236624582L;
+	/** Distance between two cells, in longs. 16 longs = 128 bytes = two cache lines, so that neither a
+	 * neighbouring cell nor the adjacent-line prefetcher drags in another cell. */
+	private static final int PADDING = 16;
+	/** Number of cells (a power of 2). */
+	private static final int STRIPES = stripes(Runtime.getRuntime().availableProcessors());
+	/** The cells. Cell i lives at index i * PADDING. */
+	private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+	/** Returns the number of cells to use for the given CPU count: the next power of 2, capped at 64.
+	 * @param cpus available processors
+	 * @return number of cells
+	 */
+	private static int stripes(int cpus){
+		int result = 1;
+		while (result < cpus && result < 64){
+			result <<= 1;
+		}
+		return result;
+	}
+
+	/** Adds the given value.
+	 * @param x value to add
+	 */
+	public void add(long x){
+		this.cells.getAndAdd(cell(), x);
+	}
+
+	/** Adds one. */
+	public void increment(){
+		this.cells.getAndIncrement(cell());
+	}
+
+	/** Returns the current total. Not an atomic snapshot if updates are going on at the same time.
+	 * @return sum of all cells
+	 */
+	public long sum(){
+		long result = 0;
+		for (int i=0; i < STRIPES; i++){
+			result += this.cells.get(i * PADDING);
+		}
+		return result;
+	}
+
+	/** Resets the counter to zero. */
+	public void reset(){
+		for (int i=0; i < STRIPES; i++){
+			this.cells.set(i * PADDING, 0);
+		}
+	}
+
+	/** Returns the index of the cell used by the current thread.
+	 * @return array index
+	 */
+	private static int cell(){
+		int h = PoolUtil.threadHash();
+		return ((h ^ (h >>> 16)) & (STRIPES - 1)) * PADDING;
+	}
+
+	@Override
+	public String toString() {
+		return Long.toString(sum());
+	}
+}
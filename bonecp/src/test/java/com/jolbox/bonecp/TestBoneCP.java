@@ -16,6 +16,7 @@
 
 package com.jolbox.bonecp;
 
+import static org.easymock.EasyMock.anyInt;
 import static org.easymock.EasyMock.anyLong;
 import static org.easymock.EasyMock.anyObject;
 import static org.easymock.EasyMock.expect;
@@ -40,15 +41,13 @@ import java.sql.Connection;
 import java.sql.DatabaseMetaData;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
 import java.sql.Statement;
 import java.util.Map;
 import java.util.Properties;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.Lock;
@@ -88,9 +87,7 @@ public class TestBoneCP {
 	/** Mock handle. */
 	private ConnectionPartition mockPartition;
 	/** Mock handle. */
-	private ScheduledExecutorService mockKeepAliveScheduler;
-	/** Mock handle. */
-	private ExecutorService mockConnectionsScheduler;
+	private MaintenanceScheduler mockMaintenanceScheduler;
 	/** Mock handle. */
 	private LinkedBlockingQueue<ConnectionHandle> mockConnectionHandles;
 	/** Mock handle. */
@@ -167,15 +164,9 @@ public class TestBoneCP {
 		Array.set(field.get(testClass), 0, mockPartition);
 		Array.set(field.get(testClass), 1, mockPartition);
 
-		mockKeepAliveScheduler = EasyMock.createNiceMock(ScheduledExecutorService.class); 
-		field = testClass.getClass().getDeclaredField("keepAliveScheduler");
-		field.setAccessible(true);
-		field.set(testClass, mockKeepAliveScheduler);
-
-		field = testClass.getClass().getDeclaredField("connectionsScheduler");
-		field.setAccessible(true);
-		mockConnectionsScheduler = EasyMock.createNiceMock(ExecutorService.class);
-		field.set(testClass, mockConnectionsScheduler);
+		testClass.maintenanceScheduler.release();
+		mockMaintenanceScheduler = EasyMock.createNiceMock(MaintenanceScheduler.class); 
+		testClass.maintenanceScheduler = mockMaintenanceScheduler;
 
 		mockConnectionHandles = EasyMock.createNiceMock(LinkedBlockingQueue.class);
 		mockConnection = EasyMock.createNiceMock(ConnectionHandle.class);
@@ -189,7 +180,7 @@ public class TestBoneCP {
 		expectLastCall().anyTimes();
 
 		mockPool = EasyMock.createNiceMock(BoneCP.class);
-		reset(mockConfig, mockKeepAliveScheduler, mockConnectionsScheduler, mockPartition, 
+		reset(mockConfig, mockMaintenanceScheduler, mockPartition, 
 				mockConnectionHandles, mockConnection, mockLock);
 	}
 
@@ -384,8 +375,8 @@ public class TestBoneCP {
 		expect(mockConfig.isDisableJMX()).andReturn(false).anyTimes();
 		expect(mockConfig.getPoolName()).andReturn("foo").anyTimes();
 		
-		expect(mockKeepAliveScheduler.shutdownNow()).andReturn(null).once();
-		expect(mockConnectionsScheduler.shutdownNow()).andReturn(null).once();
+		mockMaintenanceScheduler.release();
+		expectLastCall().once();
 
 //		expect(mockConnectionHandles.poll()).andReturn(null).once();
 		expect(mockPartition.getFreeConnections()).andReturn(mockConnectionHandles).anyTimes();
@@ -394,14 +385,14 @@ public class TestBoneCP {
 		ExecutorService mockReleaseHelper = EasyMock.createNiceMock(ExecutorService.class);
 
 
-		replay(mockConfig, mockConnectionsScheduler,  mockKeepAliveScheduler, mockPartition, mockConnectionHandles, mockReleaseHelper);
+		replay(mockConfig, mockMaintenanceScheduler, mockPartition, mockConnectionHandles, mockReleaseHelper);
 		
 		if (doShutdown){
 			testClass.shutdown();
 		} else {
 			testClass.close();
 		}
-		verify(mockConnectionsScheduler, mockKeepAliveScheduler, mockPartition, mockConnectionHandles);
+		verify(mockMaintenanceScheduler, mockPartition, mockConnectionHandles);
 	}
 
 
@@ -411,11 +402,14 @@ public class TestBoneCP {
 	 */
 	@Test
 	public void testShutdownCoverageClose() throws SecurityException, NoSuchFieldException, IllegalArgumentException, IllegalAccessException, InterruptedException {
+		Field field = testClass.getClass().getDeclaredField("closeConnectionExecutor");
+		field.setAccessible(true);
+		ExecutorService mockExecutor = EasyMock.createNiceMock(ExecutorService.class);
+		field.set(testClass, mockExecutor);
 
+		expect(mockExecutor.awaitTermination(5, TimeUnit.SECONDS)).andThrow(new InterruptedException()).once();
 
-		expect(mockConnectionsScheduler.awaitTermination(5, TimeUnit.SECONDS)).andThrow(new InterruptedException()).once();
-
-		replay(mockConnectionsScheduler);
+		replay(mockExecutor);
 		try{
 			testClass.shutdown();
 		} catch(Exception e){
@@ -450,11 +444,11 @@ public class TestBoneCP {
 //		expect(mockConnection.getOriginatingPartition()).andReturn(mockPartition).anyTimes();
 //		Connection mockRealConnection = EasyMock.createNiceMock(Connection.class);
 //		expect(mockConnection.getInternalConnection()).andReturn(mockRealConnection).anyTimes();
-//		replay(mockRealConnection, mockConnectionsScheduler, mockKeepAliveScheduler, mockPartition, mockConnectionHandles, mockConnection);
+//		replay(mockRealConnection, mockMaintenanceScheduler, mockPartition, mockConnectionHandles, mockConnection);
 //
 //		// test.
 //		testClass.connectionStrategy.terminateAllConnections();
-//		verify(mockConnectionsScheduler, mockKeepAliveScheduler, mockPartition, mockConnectionHandles, mockConnection);
+//		verify(mockMaintenanceScheduler, mockPartition, mockConnectionHandles, mockConnection);
 //	}
 
 
@@ -467,10 +461,10 @@ public class TestBoneCP {
 		Connection mockRealConnection = EasyMock.createNiceMock(Connection.class);
 
 		// same test but to cover the finally section
-		reset(mockRealConnection, mockConnectionsScheduler, mockKeepAliveScheduler, mockPartition, mockConnectionHandles, mockConnection);
+		reset(mockRealConnection, mockMaintenanceScheduler, mockPartition, mockConnectionHandles, mockConnection);
 		expect(mockPartition.getFreeConnections()).andThrow(new RuntimeException()).once();
 		expect(mockConnection.getOriginatingPartition()).andReturn(mockPartition).anyTimes();
-		replay(mockRealConnection, mockConnectionsScheduler, mockKeepAliveScheduler, mockPartition, mockConnectionHandles, mockConnection);
+		replay(mockRealConnection, mockMaintenanceScheduler, mockPartition, mockConnectionHandles, mockConnection);
 
 		// test.
 		try{
@@ -479,7 +473,7 @@ public class TestBoneCP {
 		} catch (RuntimeException e){
 			// do nothing
 		}
-		verify(mockConnectionsScheduler, mockKeepAliveScheduler, mockPartition, mockConnectionHandles, mockConnection);
+		verify(mockMaintenanceScheduler, mockPartition, mockConnectionHandles, mockConnection);
 	}
 	/**
 	 * Mostly for coverage.
@@ -521,6 +515,7 @@ public class TestBoneCP {
 		expect(mockPartition.isUnableToCreateMoreTransactions()).andReturn(true).once();
 		expect(mockPartition.getFreeConnections()).andReturn(mockConnectionHandles).anyTimes();
 		expect(mockPartition.getAvailableConnections()).andReturn(1).anyTimes();
+		expect(mockPartition.getUnreservedConnections()).andReturn(1).anyTimes();
 		expect(mockConnectionHandles.poll()).andReturn(mockConnection).once();
 		mockConnection.renewConnection();
 		expectLastCall().once();
@@ -624,7 +619,7 @@ public class TestBoneCP {
 	@Test
 	public void testGetRawConnectionCoverage() throws SQLException, InterruptedException, IllegalArgumentException, IllegalAccessException, SecurityException, NoSuchFieldException {
 		testClass.config = mockConfig;
-		testClass.driverInitialized = false;
+		testClass.driver = null;
 		// coverage
 		reset(mockConfig);
 		expect(mockConfig.isExternalAuth()).andReturn(false).once();
@@ -753,9 +748,9 @@ public class TestBoneCP {
 		expect(mockPartition.getFreeConnections()).andReturn(mockConnectionHandles).anyTimes();
 		expect(mockPartition.getMaxConnections()).andReturn(10).anyTimes();
 		expect(mockPartition.getAvailableConnections()).andReturn(1).anyTimes();
-		BlockingQueue<Object> bq = new ArrayBlockingQueue<Object>(1);
-		bq.add(new Object());
-		expect(mockPartition.getPoolWatchThreadSignalQueue()).andReturn(bq);
+		expect(mockPartition.getUnreservedConnections()).andReturn(1).anyTimes();
+		mockPartition.signalPoolWatchThread();
+		expectLastCall();
 
 
 		//		mockPartition.almostFullSignal();
@@ -860,9 +855,8 @@ public class TestBoneCP {
 		expect(mockPartition.getMaxConnections()).andReturn(100).anyTimes();
 		expect(mockPartition.getFreeConnections()).andReturn(mockConnectionHandles).anyTimes();
 		expect(mockConnectionHandles.poll(Long.MAX_VALUE, TimeUnit.MILLISECONDS)).andThrow(new InterruptedException()).once();
-		BlockingQueue<Object> bq = new ArrayBlockingQueue<Object>(1);
-		bq.add(new Object());
-		expect(mockPartition.getPoolWatchThreadSignalQueue()).andReturn(bq);
+		mockPartition.signalPoolWatchThread();
+		expectLastCall();
 		replay(mockPartition, mockConnectionHandles, mockConnection);
 		try{ 
 			testClass.getConnection();
@@ -886,10 +880,9 @@ public class TestBoneCP {
 		expect(mockPartition.getMaxConnections()).andReturn(100).anyTimes();
 		expect(mockPartition.getFreeConnections()).andReturn(mockConnectionHandles).anyTimes();
 		expect(mockConnectionHandles.poll(Long.MAX_VALUE, TimeUnit.MILLISECONDS)).andReturn(null).once();
-		BlockingQueue<Object> bq = new ArrayBlockingQueue<Object>(1);
-		bq.add(new Object());
 		testClass.nullOnConnectionTimeout = true;
-		expect(mockPartition.getPoolWatchThreadSignalQueue()).andReturn(bq);
+		mockPartition.signalPoolWatchThread();
+		expectLastCall();
 		replay(mockPartition, mockConnectionHandles, mockConnection);
 		try{ 
 			assertNull(testClass.getConnection());
@@ -913,6 +906,7 @@ public class TestBoneCP {
 		expect(mockPartition.isUnableToCreateMoreTransactions()).andReturn(true).once();
 		expect(mockPartition.getFreeConnections()).andReturn(mockConnectionHandles).anyTimes();
 		expect(mockPartition.getAvailableConnections()).andReturn(1).anyTimes();
+		expect(mockPartition.getUnreservedConnections()).andReturn(1).anyTimes();
 		expect(mockConnectionHandles.poll()).andReturn(null).once();
 		expect(mockConnectionHandles.poll(Long.MAX_VALUE, TimeUnit.MILLISECONDS)).andReturn(mockConnection).once();
 
@@ -933,11 +927,14 @@ public class TestBoneCP {
 		expect(mockPartition.isUnableToCreateMoreTransactions()).andReturn(true).once();
 		expect(mockPartition.getFreeConnections()).andReturn(mockConnectionHandles).anyTimes();
 		expect(mockPartition.getAvailableConnections()).andReturn(1).anyTimes();
+		expect(mockPartition.getUnreservedConnections()).andReturn(1).anyTimes();
 		expect(mockConnectionHandles.poll()).andReturn(mockConnection).once();
+		expect(mockConnection.claimForUse()).andReturn(true).once();
 		mockConnection.renewConnection();
 		expectLastCall().once();
 
 		replay(mockPartition, mockConnectionHandles, mockConnection);
+		// a connection is free, so the future is completed straight away.
 		assertEquals(mockConnection, testClass.getAsyncConnection().get());
 		verify(mockPartition, mockConnectionHandles, mockConnection);
  
@@ -959,6 +956,7 @@ public class TestBoneCP {
 		expect(mockConnection.getOriginatingPartition()).andReturn(mockPartition).anyTimes();
 		expect(mockPartition.getFreeConnections()).andReturn(mockConnectionHandles).anyTimes();
 		expect(mockPartition.getAvailableConnections()).andReturn(1).anyTimes();
+		expect(mockPartition.getUnreservedConnections()).andReturn(1).anyTimes();
 
 		//		expect(mockConnectionHandles.offer(mockConnection)).andReturn(true).once();
 
@@ -990,6 +988,7 @@ public class TestBoneCP {
 		expect(mockConnection.getOriginatingPartition()).andReturn(mockPartition).anyTimes();
 		expect(mockPartition.getFreeConnections()).andReturn(mockConnectionHandles).anyTimes();
 		expect(mockPartition.getAvailableConnections()).andReturn(1).anyTimes();
+		expect(mockPartition.getUnreservedConnections()).andReturn(1).anyTimes();
 		Connection mockRealConnection = EasyMock.createNiceMock(Connection.class);
 		expect(mockConnection.getInternalConnection()).andReturn(mockRealConnection).anyTimes();
 	
@@ -1015,7 +1014,7 @@ public class TestBoneCP {
 		expect(mockConnection.isPossiblyBroken()).andReturn(true).once();
 		expect(mockConfig.getConnectionTestStatement()).andReturn(null).once();
 		// make it fail to return false
-		expect(mockConnection.getMetaData()).andThrow(new SQLException()).once();
+		expect(mockConnection.isValid(anyInt())).andReturn(false).once();
 
 		expect(mockConnection.getOriginatingPartition()).andReturn(mockPartition).anyTimes();
 		// we're about to destroy this connection, so we can create new ones.
@@ -1033,6 +1032,32 @@ public class TestBoneCP {
 		verify(mockPartition, mockConnection);
 	}
 
+	/**
+	 * Test method for {@link com.jolbox.bonecp.BoneCP#internalReleaseConnection(ConnectionHandle)}.
+	 * @throws Exception 
+	 */
+	@Test
+	public void testInternalReleaseConnectionWhereConnectionIsBrokenRetiredInBackground() throws Exception {
+		// With retirement threads, the connection is tested and closed off on one of those instead of the caller.
+		ExecutorService mockRetirementExecutor = EasyMock.createNiceMock(ExecutorService.class);
+		Field field = testClass.getClass().getDeclaredField("connectionRetirementExecutor");
+		field.setAccessible(true);
+		field.set(testClass, mockRetirementExecutor);
+
+		mockConnection.logicallyClosed = new AtomicBoolean(false);
+		reset(mockConnection,mockPartition, mockConnectionHandles);
+		expect(mockConnection.isPossiblyBroken()).andReturn(true).anyTimes();
+		expect(mockConnection.isValid(anyInt())).andThrow(new AssertionError("tested on the caller")).anyTimes();
+		mockConnection.internalClose();
+		expectLastCall().andThrow(new AssertionError("closed on the caller")).anyTimes();
+		mockRetirementExecutor.execute((Runnable)anyObject());
+		expectLastCall().once();
+
+		replay(mockPartition, mockConnection, mockRetirementExecutor);
+		testClass.internalReleaseConnection(mockConnection);
+		verify(mockPartition, mockConnection, mockRetirementExecutor);
+	}
+
 	/**
 	 * Test method for {@link com.jolbox.bonecp.BoneCP#internalReleaseConnection(ConnectionHandle)}.
 	 * @throws InterruptedException 
@@ -1045,10 +1070,11 @@ public class TestBoneCP {
 		reset(mockConnection,mockPartition, mockConnectionHandles);
 		expect(mockConnection.isPossiblyBroken()).andReturn(true).once();
 		expect(mockConfig.getConnectionTestStatement()).andReturn(null).once();
-		expect(mockConnection.getMetaData()).andReturn(EasyMock.createNiceMock(DatabaseMetaData.class)).once();
+		expect(mockConnection.isValid(anyInt())).andReturn(true).once();
 
 		expect(mockPartition.getFreeConnections()).andReturn(mockConnectionHandles).anyTimes();
 		expect(mockPartition.getAvailableConnections()).andReturn(1).anyTimes();
+		expect(mockPartition.getUnreservedConnections()).andReturn(1).anyTimes();
 
 
 		expect(mockConnection.getOriginatingPartition()).andReturn(mockPartition).anyTimes();
@@ -1093,7 +1119,7 @@ public class TestBoneCP {
      */
     @Test
     public void testInternalReleaseConnectionWhereConnectionIsExpired() throws InterruptedException, SQLException {
-        // Test case where connection is expired
+        // Test case where connection is expired and its replacement is already in the pool
         reset(mockConnection, mockPartition, mockConnectionHandles);
 
         Connection mockRealConnection = EasyMock.createNiceMock(Connection.class);
@@ -1105,6 +1131,7 @@ public class TestBoneCP {
         expect(mockPartition.isUnableToCreateMoreTransactions()).andReturn(true).once();
 
         expect(mockConnection.isExpired()).andReturn(true).anyTimes();
+        expect(mockConnection.isReplaced()).andReturn(true).anyTimes();
         mockConnection.internalClose();
         expectLastCall();
 
@@ -1113,6 +1140,36 @@ public class TestBoneCP {
         verify(mockPartition, mockConnection, mockRealConnection);
     }
 
+    /**
+     * Test method for {@link com.jolbox.bonecp.BoneCP#internalReleaseConnection(ConnectionHandle)}.
+     *
+     * @throws InterruptedException
+     * @throws SQLException
+     */
+    @Test
+    public void testInternalReleaseConnectionWhereConnectionIsExpiredNotReplaced() throws InterruptedException, SQLException {
+        // An expired connection goes back in the pool until its replacement is ready.
+        reset(mockConnection, mockPartition, mockConnectionHandles);
+        ExecutorService mockMaintenanceExecutor = EasyMock.createNiceMock(ExecutorService.class);
+        testClass.maintenanceExecutor.shutdownNow();
+        testClass.maintenanceExecutor = mockMaintenanceExecutor;
+
+        expect(mockConnection.getOriginatingPartition()).andReturn(mockPartition).anyTimes();
+        expect(mockPartition.getFreeConnections()).andReturn(mockConnectionHandles).anyTimes();
+        expect(mockConnection.isExpired()).andReturn(true).anyTimes();
+        expect(mockConnection.isReplaced()).andReturn(false).anyTimes();
+        expect(mockConnection.requestReplacement()).andReturn(true).once();
+        mockMaintenanceExecutor.execute((Runnable)anyObject());
+        expectLastCall().once();
+        expect(mockConnectionHandles.offer(mockConnection)).andReturn(true).once();
+        mockConnection.internalClose();
+        expectLastCall().andThrow(new AssertionError("should not have been closed")).anyTimes();
+
+        replay(mockPartition, mockConnection, mockConnectionHandles, mockMaintenanceExecutor);
+        testClass.internalReleaseConnection(mockConnection);
+        verify(mockPartition, mockConnection, mockConnectionHandles, mockMaintenanceExecutor);
+    }
+
     /**
 	 * Test method for {@link com.jolbox.bonecp.BoneCP#putConnectionBackInPartition(com.jolbox.bonecp.ConnectionHandle)}.
 	 * @throws InterruptedException 
@@ -1122,6 +1179,7 @@ public class TestBoneCP {
 	public void testPutConnectionBackInPartition() throws InterruptedException, SQLException {
 		expect(mockPartition.getFreeConnections()).andReturn(mockConnectionHandles).anyTimes();
 		expect(mockPartition.getAvailableConnections()).andReturn(1).anyTimes();
+		expect(mockPartition.getUnreservedConnections()).andReturn(1).anyTimes();
 		Connection mockRealConnection = EasyMock.createNiceMock(Connection.class);
 		expect(mockConnection.getInternalConnection()).andReturn(mockRealConnection).anyTimes();
 	
@@ -1144,6 +1202,7 @@ public class TestBoneCP {
 	public void testPutConnectionBackInPartitionWithResetConnectionOnClose() throws InterruptedException, SQLException {
 		expect(mockPartition.getFreeConnections()).andReturn(mockConnectionHandles).anyTimes();
 		expect(mockPartition.getAvailableConnections()).andReturn(1).anyTimes();
+		expect(mockPartition.getUnreservedConnections()).andReturn(1).anyTimes();
 
 		expect(mockConnection.getOriginatingPartition()).andReturn(mockPartition).anyTimes();
 		expect(mockConnectionHandles.offer(mockConnection)).andReturn(true).once();
@@ -1167,19 +1226,88 @@ public class TestBoneCP {
 	 */
 	@Test
 	public void testIsConnectionHandleAlive() throws SQLException {
-		// Test 1: Normal case (+ without connection test statement)
-		expect(mockConfig.getConnectionTestStatement()).andReturn(null).once();
+		// Test 1: Normal case (+ without connection test statement, driver without isValid support)
+		expect(mockConfig.getConnectionTestStatement()).andReturn(null).anyTimes();
 		mockConnection.logicallyClosed=new AtomicBoolean();
-		expect(mockConnection.getMetaData()).andReturn(mockDatabaseMetadata).once();
-		expect(mockDatabaseMetadata.getTables((String)anyObject(), (String)anyObject(), (String)anyObject(), (String[])anyObject())).andReturn(mockResultSet).once();
+		expect(mockConnection.isValid(anyInt())).andThrow(new SQLFeatureNotSupportedException()).once();
+		// once to look up the product name (unknown, so no ping query), then once per test
+		expect(mockConnection.getMetaData()).andReturn(mockDatabaseMetadata).times(3);
+		expect(mockDatabaseMetadata.getDatabaseProductName()).andReturn("SomeDB").once();
+		expect(mockDatabaseMetadata.getTables((String)anyObject(), (String)anyObject(), (String)anyObject(), (String[])anyObject())).andReturn(mockResultSet).times(2);
 		mockResultSet.close();
-		expectLastCall().once();
+		expectLastCall().times(2);
 
 		replay(mockConfig, mockConnection, mockDatabaseMetadata, mockResultSet);
 		assertTrue(testClass.isConnectionHandleAlive(mockConnection));
+		// isValid() is not tried again
+		assertTrue(testClass.isConnectionHandleAlive(mockConnection));
 		verify(mockConfig, mockConnection, mockResultSet,mockDatabaseMetadata);
 	}
+
+	/**
+	 * Test method for com.jolbox.bonecp.BoneCP isConnectionHandleAlive.
+	 * @throws SQLException 
+	 */
+	@Test
+	public void testIsConnectionHandleAliveIsValid() throws SQLException {
+		// Without a connection test statement, JDBC4 isValid() is used when the driver supports it
+		expect(mockConfig.getConnectionTestStatement()).andReturn(null).anyTimes();
+		mockConnection.logicallyClosed=new AtomicBoolean();
+		expect(mockConnection.isValid(anyInt())).andReturn(true).once().andReturn(false).once();
+
+		replay(mockConfig, mockConnection, mockDatabaseMetadata);
+		assertTrue(testClass.isConnectionHandleAlive(mockConnection));
+		assertFalse(testClass.isConnectionHandleAlive(mockConnection));
+		verify(mockConfig, mockConnection, mockDatabaseMetadata);
+	}
 	
+	/**
+	 * Test method for com.jolbox.bonecp.BoneCP isConnectionHandleAlive.
+	 * @throws SQLException 
+	 */
+	@Test
+	public void testIsConnectionHandleAlivePing() throws SQLException {
+		// Driver without isValid support on a known database: send a trivial query rather than a metadata one.
+		Statement mockStatement = EasyMock.createNiceMock(Statement.class);
+		expect(mockConfig.getConnectionTestStatement()).andReturn(null).anyTimes();
+		mockConnection.logicallyClosed=new AtomicBoolean();
+		expect(mockConnection.isValid(anyInt())).andThrow(new SQLFeatureNotSupportedException()).once();
+		expect(mockConnection.getMetaData()).andReturn(mockDatabaseMetadata).once();
+		expect(mockDatabaseMetadata.getDatabaseProductName()).andReturn("PostgreSQL").once();
+		expect(mockConnection.createStatement()).andReturn(mockStatement).times(2);
+		expect(mockStatement.execute("SELECT 1")).andReturn(true).times(2);
+
+		replay(mockConfig, mockConnection, mockDatabaseMetadata, mockStatement);
+		assertTrue(testClass.isConnectionHandleAlive(mockConnection));
+		// product name is not looked up again
+		assertTrue(testClass.isConnectionHandleAlive(mockConnection));
+		verify(mockConfig, mockConnection, mockDatabaseMetadata, mockStatement);
+	}
+
+	/**
+	 * Test method for com.jolbox.bonecp.BoneCP isConnectionHandleAlive.
+	 * @throws SQLException 
+	 */
+	@Test
+	public void testIsConnectionHandleAliveTrusted() throws SQLException {
+		// A connection that has just completed a statement is not tested.
+		testClass.validationTrustWindowInMs = 1000;
+		expect(mockConnection.getLastStatementSucceededInMs()).andReturn(System.currentTimeMillis()).once();
+
+		replay(mockConfig, mockConnection, mockDatabaseMetadata);
+		assertTrue(testClass.isConnectionHandleAlive(mockConnection));
+		verify(mockConfig, mockConnection, mockDatabaseMetadata);
+
+		// ...unless it's been a while.
+		reset(mockConfig, mockConnection);
+		expect(mockConnection.getLastStatementSucceededInMs()).andReturn(System.currentTimeMillis() - 2000).once();
+		mockConnection.logicallyClosed=new AtomicBoolean();
+		expect(mockConnection.isValid(anyInt())).andReturn(false).once();
+		replay(mockConfig, mockConnection);
+		assertFalse(testClass.isConnectionHandleAlive(mockConnection));
+		verify(mockConfig, mockConnection);
+	}
+
 	/**
 	 * Test method for com.jolbox.bonecp.BoneCP isConnectionHandleAlive.
 	 * @throws SQLException 
@@ -1190,6 +1318,7 @@ public class TestBoneCP {
 		// Test 2: Same test as testIsConnectionHandleAlive but triggers an exception
 		reset(mockConfig, mockConnection, mockDatabaseMetadata, mockResultSet);
 		expect(mockConfig.getConnectionTestStatement()).andReturn(null).once();
+		expect(mockConnection.isValid(anyInt())).andThrow(new SQLFeatureNotSupportedException()).once();
 		expect(mockConnection.getMetaData()).andThrow(new SQLException()).once();
 		mockConnection.logicallyClosed = new AtomicBoolean(false);
 
@@ -1206,11 +1335,13 @@ public class TestBoneCP {
 	@Test
 	public void testIsConnectionHandleAliveNormalCaseWithConnectionTestStatement() throws SQLException {
 	
-		// Test 3: Normal case (+ with connection test statement)
+		// Test 3: Normal case (+ with connection test statement, which replaces isValid() and the known queries)
 		reset(mockConfig, mockConnection, mockDatabaseMetadata, mockResultSet);
 
 		Statement mockStatement = EasyMock.createNiceMock(Statement.class);
 		expect(mockConfig.getConnectionTestStatement()).andReturn("whatever").once();
+		expect(mockConnection.isValid(anyInt())).andThrow(new AssertionError("isValid() used")).anyTimes();
+		expect(mockConnection.getMetaData()).andThrow(new AssertionError("product name looked up")).anyTimes();
 		expect(mockConnection.createStatement()).andReturn(mockStatement).once();
 		expect(mockStatement.execute((String)anyObject())).andReturn(true).once();
 		//		mockResultSet.close();
@@ -1293,9 +1424,10 @@ public class TestBoneCP {
 		expect(mockPartition.getFreeConnections()).andReturn(mockConnectionHandles).anyTimes();
 		//		expect(mockConnectionHandles.size()).andReturn(1).anyTimes();
 		expect(mockPartition.getAvailableConnections()).andReturn(1).anyTimes();
+		expect(mockPartition.getUnreservedConnections()).andReturn(1).anyTimes();
 		expect(mockPartition.getMaxConnections()).andReturn(10).anyTimes();
-		BlockingQueue<Object> bq = new ArrayBlockingQueue<Object>(1);
-		expect(mockPartition.getPoolWatchThreadSignalQueue()).andReturn(bq).anyTimes();
+		mockPartition.signalPoolWatchThread();
+		expectLastCall().anyTimes();
 		//		mockPartition.lockAlmostFullLock();
 		//		expectLastCall().once();
 		//		mockPartition.almostFullSignal();
@@ -1319,13 +1451,13 @@ public class TestBoneCP {
 	 */
 	@Test
 	public void testMaybeSignalForMoreConnectionsWithException() throws SecurityException, NoSuchMethodException, IllegalArgumentException, IllegalAccessException, InvocationTargetException{
-		BlockingQueue<Object> bq = new ArrayBlockingQueue<Object>(1);
 		Method method = testClass.getClass().getDeclaredMethod("maybeSignalForMoreConnections", ConnectionPartition.class);
 		method.setAccessible(true);
 		
 		// Test 2, same test but fake an exception
 		reset(mockPartition, mockConnectionHandles);
-		expect(mockPartition.getPoolWatchThreadSignalQueue()).andReturn(bq).anyTimes();
+		mockPartition.signalPoolWatchThread();
+		expectLastCall().anyTimes();
 		expect(mockPartition.isUnableToCreateMoreTransactions()).andReturn(false).anyTimes();
 		expect(mockPartition.getFreeConnections()).andReturn(mockConnectionHandles).anyTimes();
 		expect(mockConnectionHandles.size()).andReturn(1).anyTimes();
@@ -1354,6 +1486,7 @@ public class TestBoneCP {
 		expect(mockPartition.getCreatedConnections()).andReturn(5).anyTimes();
 		expect(mockPartition.getFreeConnections()).andReturn(mockConnectionHandles).anyTimes();
 		expect(mockPartition.getAvailableConnections()).andReturn(3).anyTimes();
+		expect(mockPartition.getUnreservedConnections()).andReturn(3).anyTimes();
 		replay(mockPartition, mockConnectionHandles);
 		ConnectionPartition cp = testClass.partitions[1]; 
 		assertEquals(4, testClass.getTotalLeased());
@@ -1370,6 +1503,7 @@ public class TestBoneCP {
 	public void testGetTotalFree() {
 		expect(mockPartition.getFreeConnections()).andReturn(mockConnectionHandles).anyTimes();
 		expect(mockPartition.getAvailableConnections()).andReturn(3).anyTimes();
+		expect(mockPartition.getUnreservedConnections()).andReturn(3).anyTimes();
 
 		// expect(mockConnectionHandles.size()).andReturn(3).anyTimes();
 		replay(mockPartition, mockConnectionHandles);
@@ -1453,8 +1587,8 @@ public class TestBoneCP {
 		expect(config.clone()).andReturn(config).anyTimes();
 		expect(config.getIdleConnectionTestPeriod((TimeUnit)anyObject())).andReturn(5L).times(2).andReturn(0L).times(2);
 		expect(config.getIdleMaxAge(TimeUnit.SECONDS)).andReturn(0L).times(2).andReturn(4L).times(2);
-		reset(mockKeepAliveScheduler);
-		replay(config, mockKeepAliveScheduler);
+		reset(mockMaintenanceScheduler);
+		replay(config, mockMaintenanceScheduler);
 		
 		BoneCP pool = new BoneCP(config); // test idleConnectionTestPeriod > 0. max age = 0
 //		assertEquals(1, pool.keepAliveScheduler.shutdownNow().size());
@@ -1463,7 +1597,7 @@ public class TestBoneCP {
 //		assertEquals(1, pool.keepAliveScheduler.shutdownNow().size());
 		
 		
-		verify(config, mockKeepAliveScheduler);
+		verify(config, mockMaintenanceScheduler);
 	}
 
 
@@ -1482,14 +1616,15 @@ public class TestBoneCP {
 		expect(config.clone()).andReturn(config).anyTimes();
 		expect(config.getIdleConnectionTestPeriod((TimeUnit)anyObject())).andReturn(5L).anyTimes();
 		expect(config.getIdleMaxAge(TimeUnit.SECONDS)).andReturn(4L).anyTimes();
-		reset(mockKeepAliveScheduler);
-		replay(config, mockKeepAliveScheduler);
+		reset(mockMaintenanceScheduler);
+		replay(config, mockMaintenanceScheduler);
 		
 		
 		BoneCP pool = new BoneCP(config); // test idleConnectionTestPeriod > 0. max age > 0
-		assertEquals(1, pool.keepAliveScheduler.shutdownNow().size());
+		assertEquals(2, pool.maintenanceTasks.size()); // connection tester + max age tester
+		pool.shutdown();
 
-		verify(config, mockKeepAliveScheduler);
+		verify(config, mockMaintenanceScheduler);
 	}
 
 	
@@ -321,6 +321,10 @@ public class TestBoneCPConfig {
 		config.setPoolStrategy("CACHED");
 		config.sanitize();
 		assertEquals("CACHED", config.getPoolStrategy());
+
+		config.setPoolStrategy("lightweight");
+		config.sanitize();
+		assertEquals("LIGHTWEIGHT", config.getPoolStrategy());
 		
 		config.setReleaseHelperThreads(-1);
 		config.sanitize();
@@ -335,6 +339,55 @@ public class TestBoneCPConfig {
 		config.sanitize();
 		assertEquals(20, config.getPoolAvailabilityThreshold());
 
+		config.setStatisticsSampleRate(0);
+		config.sanitize();
+		assertEquals(1, config.getStatisticsSampleRate());
+		config.setStatisticsSampleRate(10);
+		config.sanitize();
+		assertEquals(10, config.getStatisticsSampleRate());
+
+		config.setSqlProfileSize(-1);
+		config.sanitize();
+		assertEquals(0, config.getSqlProfileSize());
+
+		config.setStatementsCacheBudget(-1);
+		config.sanitize();
+		assertEquals(0, config.getStatementsCacheBudget());
+
+		config.setStatementsCacheWarmupSize(-1);
+		config.sanitize();
+		assertEquals(0, config.getStatementsCacheWarmupSize());
+
+		config.setPoolSizingPeriodInMs(-1);
+		config.sanitize();
+		assertEquals(0, config.getPoolSizingPeriodInMs());
+
+		config.setConnectionTestThreads(0);
+		config.sanitize();
+		assertEquals(1, config.getConnectionTestThreads());
+
+		config.setValidationTrustWindowInMs(-1);
+		config.sanitize();
+		assertEquals(0, config.getValidationTrustWindowInMs());
+
+		config.setHandoffThresholdInMs(-1);
+		config.sanitize();
+		assertEquals(0, config.getHandoffThresholdInMs());
+
+		config.setKeyIdleTimeoutInMs(-1);
+		config.sanitize();
+		assertEquals(0, config.getKeyIdleTimeoutInMs());
+
+		config.setMaxConnectionAgeJitterPercent(101);
+		config.sanitize();
+		assertEquals(10, config.getMaxConnectionAgeJitterPercent());
+
+		config.setConnectionRetirementThreads(-1);
+		config.setConnectionRetirementQueueSize(0);
+		config.sanitize();
+		assertEquals(0, config.getConnectionRetirementThreads());
+		assertEquals(1, config.getConnectionRetirementQueueSize());
+
 		assertEquals(config.getMinConnectionsPerPartition(), config.getMaxConnectionsPerPartition());
 		assertEquals(20, config.getPoolAvailabilityThreshold());
 		
@@ -516,6 +569,13 @@ public class TestBoneCPConfig {
 		config.loadProperties("bonecp-config.xml");
 	}
 	
+	/** The validation trust window is opt-in.
+	 */
+	@Test
+	public void testValidationTrustWindowOffByDefault(){
+		assertEquals(0, new BoneCPConfig().getValidationTrustWindowInMs());
+	}
+	
 	/** See how the config handles a garbage filled file.
 	 * @throws CloneNotSupportedException
 	 * @throws IOException
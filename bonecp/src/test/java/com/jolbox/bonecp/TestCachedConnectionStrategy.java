@@ -23,25 +23,18 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
+import java.lang.ref.WeakReference;
 import java.sql.Connection;
 import java.sql.SQLException;
-import java.util.AbstractMap.SimpleEntry;
 import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.atomic.AtomicBoolean;
 
-import junit.framework.Assert;
-
-import org.easymock.EasyMock;
 import org.junit.After;
 import org.junit.Before;
-import org.junit.Ignore;
 import org.junit.Test;
 
-import com.google.common.base.FinalizableReferenceQueue;
-import com.google.common.base.FinalizableWeakReference;
-import com.jolbox.bonecp.CachedConnectionStrategy.CachedConnectionStrategyThreadLocal;
-
 /**
  * @author wwadge
  *
@@ -80,43 +73,13 @@ public class TestCachedConnectionStrategy {
 		driver.unregister();
 	}
 
-	@Test
-	@Ignore
-	public void testThreadDies() throws CloneNotSupportedException, SQLException, InterruptedException{
-		BoneCPConfig config = this.config.clone();
-
-
-		poolClass = new BoneCP(config);
-		
-		Thread t = new Thread(){
-
-			public void run() {
-				try {
-					 poolClass.getConnection();
-						System.gc();
-						System.gc();
-						System.gc();
-
-				} catch (SQLException e) {
-					e.printStackTrace();
-				}
-			}
-		};
-		
-		t.start();
-		t.join();
-		t = null;
-		System.gc(); System.gc(); System.gc(); System.gc(); 
-		assertEquals(5, poolClass.partitions[0].getFreeConnections().size());
-		
-	}
-
-	
 	@Test
 	public void testNormalCase() throws SQLException {
 		poolClass = new BoneCP(config);
 		ConnectionHandle c = (ConnectionHandle) poolClass.getConnection();
 		Connection handle = c.getInternalConnection();
+		CachedConnectionStrategy strategy = (CachedConnectionStrategy) poolClass.connectionStrategy;
+		WeakReference<ConnectionHandle.LatestHandle> preference = strategy.lastConnection.get();
 		c.close();
 
 		// getting it again in this thread should give us the exact same object
@@ -124,40 +87,36 @@ public class TestCachedConnectionStrategy {
 		assertEquals(handle, c2.getInternalConnection());
 		c2.close();
 
+		// nothing to update as the connection moves from one handle to the next.
+		assertSame(preference, strategy.lastConnection.get());
+		// the thread doesn't keep hold of anything from a pool that's gone.
+		assertSame(handle, strategy.lastConnection.get().get().handle.getInternalConnection());
 		poolClass.close();
+		assertNull(strategy.lastConnection.get());
 	}
 
 	@Test
-	@SuppressWarnings({ "rawtypes", "unchecked" })
 	public void testOneThreadTwoConnections() throws SQLException{	
 		poolClass = new BoneCP(config);
 		ConnectionHandle c1 = (ConnectionHandle) poolClass.getConnection();
-		c1.setDebugHandle(123);
 		assertFalse(c1.logicallyClosed.get());
 
 		ConnectionHandle c2 = (ConnectionHandle) poolClass.getConnection();
-		c2.setDebugHandle(456);
 		assertFalse(c2.logicallyClosed.get());
-		assertNotSame(c1.getDebugHandle(), c2.getDebugHandle());
 		assertNotSame(c1.getInternalConnection(), c2.getInternalConnection());
 
-		Connection c1Conn = c1.getInternalConnection();
+		Connection c2Conn = c2.getInternalConnection();
 
-		// closing off a connection should result in:
-		// that connectionHandle having a blank internal
-		// the old internal = in TL
-		// the TL contains a new CH
+		// connections aren't held on to by the thread, closing them puts them back in the pool straight away
 		c1.close();
-		SimpleEntry<ConnectionHandle, Boolean> handle = ((CachedConnectionStrategyThreadLocal)(((CachedConnectionStrategy)c1.getPool().connectionStrategy).tlConnections)).dumbGet();
-//		assertNotSame(c1.getDebugHandle(), handle.getKey().getDebugHandle()); // still here?
-		assertNotSame(c1.getInternalConnection(), handle.getKey().getInternalConnection());
-		assertNull(c1.getInternalConnection());
-		assertEquals(c1Conn,handle.getKey().getInternalConnection());
-
-		assertEquals(3, poolClass.partitions[0].getFreeConnections().size());
-		c2.close();
 		assertEquals(4, poolClass.partitions[0].getFreeConnections().size());
+		c2.close();
+		assertEquals(5, poolClass.partitions[0].getFreeConnections().size());
 
+		// we should be given the last one we had
+		ConnectionHandle c3 = (ConnectionHandle) poolClass.getConnection();
+		assertSame(c2Conn, c3.getInternalConnection());
+		c3.close();
 
 		poolClass.close();
 
@@ -193,7 +152,7 @@ public class TestCachedConnectionStrategy {
 		}
 		cdl.await();
 
-		// this next request should make the pool switch over (permanently) to the fallback strategy
+		// nothing left for us
 		Connection c = poolClass.getConnection();
 		assertNull(c); // we've run out
 		cdlTerminate.countDown(); // release the threads holding the lock
@@ -201,8 +160,8 @@ public class TestCachedConnectionStrategy {
 		c = poolClass.getConnection();
 		assertNotNull(c); // we can get new connections again
 
-		// by the time 1 thread times out, we'd already have flipped. Check to make sure
-		assertFalse(poolClass.cachedPoolStrategy);
+		// running short of connections doesn't make us switch strategies
+		assertTrue(poolClass.connectionStrategy instanceof CachedConnectionStrategy);
 		c.close();
 		crudeJoin.await(); // wait till everyone said close
 		assertEquals(5, poolClass.partitions[0].getFreeConnections().size());
@@ -211,23 +170,22 @@ public class TestCachedConnectionStrategy {
 
 	}
 
-	/** Same test as above but this time the threads are done from using it. All connections should go back to the normal queue in the fallback
-	 * strategy.
+	/** Same test as above but this time the threads are done with their connections, so they should all be back
+	 * in the pool and we should be able to settle on one again.
 	 * @throws SQLException
 	 * @throws InterruptedException
 	 * @throws CloneNotSupportedException 
 	 */
 	@Test 
-	@Ignore
-	public void testMoreThreadsThanConnectionsSteal() throws SQLException, InterruptedException, CloneNotSupportedException{
+	public void testMoreThreadsThanConnectionsRecovers() throws SQLException, InterruptedException, CloneNotSupportedException{
 		BoneCPConfig config = this.config.clone();
 
 		config.setNullOnConnectionTimeout(false);
 		config.setConnectionTimeoutInMs(Long.MAX_VALUE);
 
 		poolClass = new BoneCP(config);
-		final CountDownLatch cdl = new CountDownLatch(5);
-		for (int i=0; i < 5; i++){
+		final CountDownLatch cdl = new CountDownLatch(10);
+		for (int i=0; i < 10; i++){
 			new Thread(){
 
 				public void run() {
@@ -242,38 +200,36 @@ public class TestCachedConnectionStrategy {
 			}.start();
 		}
 		cdl.await();
+		assertEquals(5, poolClass.partitions[0].getFreeConnections().size());
 
-		// this next request should make the pool switch over (permanently) to the fallback strategy
-		poolClass.getConnection().close();
-		// by the time 1 thread times out, we'd already have flipped. Check to make sure
-		assertFalse(poolClass.cachedPoolStrategy);
+		// once the rush is over we should keep getting the same one again.
+		ConnectionHandle c = (ConnectionHandle) poolClass.getConnection();
+		Connection cConn = c.getInternalConnection();
+		c.close();
+		c = (ConnectionHandle) poolClass.getConnection();
+		assertSame(cConn, c.getInternalConnection());
+		c.close();
 		assertEquals(5, poolClass.partitions[0].getFreeConnections().size());
+
+		poolClass.close();
 	}
 	 
 	
 	@Test
-	public void testCoverage() throws SQLException{
+	public void testPollConnection() throws SQLException{
 		poolClass = new BoneCP(config);
-		try{
-			poolClass.connectionStrategy.pollConnection();
-			Assert.fail("Should throw an exception");
-		} catch(Exception e){
-			// nothing
-		}
-		
-		BoneCP mockPool = EasyMock.createNiceMock(BoneCP.class);
-		CachedConnectionStrategy ccs = new CachedConnectionStrategy(mockPool , new DefaultConnectionStrategy(mockPool));
-		ConnectionHandle mockConnection = EasyMock.createNiceMock(ConnectionHandle.class);
-		mockConnection.logicallyClosed = new AtomicBoolean(true);
-		ccs.threadFinalizableRefs.put(mockConnection, new FinalizableWeakReference<Thread>(Thread.currentThread(), new FinalizableReferenceQueue()) {
-			public void finalizeReferent() {
-		}
-	});
-		
-		mockPool.releaseConnection((Connection)EasyMock.anyObject());
-		EasyMock.expectLastCall().andThrow(new SQLException("foo")).once();
-		EasyMock.replay(mockPool);
-		ccs.stealExistingAllocations();
-		
+		ConnectionHandle c = (ConnectionHandle) poolClass.connectionStrategy.pollConnection();
+		assertNotNull(c);
+		Connection conn = c.getInternalConnection();
+		// hand it back the same way close() does: via a new handle.
+		ConnectionHandle handle = c.recreateConnectionHandle();
+		poolClass.connectionStrategy.cleanupConnection(c, handle);
+		poolClass.putConnectionBackInPartition(handle);
+
+		c = (ConnectionHandle) poolClass.connectionStrategy.pollConnection();
+		assertSame(handle, c);
+		assertSame(conn, c.getInternalConnection());
+		poolClass.putConnectionBackInPartition(c);
+		poolClass.close();
 	}
 }
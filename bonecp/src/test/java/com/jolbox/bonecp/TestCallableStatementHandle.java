@@ -57,7 +57,7 @@ public class TestCallableStatementHandle {
 		expect(this.mockPool.getConfig()).andReturn(config).anyTimes();
 	
 		replay(this.mockConnection, this.mockPool);
-		this.testClass = new CallableStatementHandle(this.mockClass, "",  this.mockConnection, "somesql", this.mockCallableStatementCache);
+		this.testClass = new CallableStatementHandle(this.mockClass, "",  this.mockConnection, new StatementCacheKey("somesql"), this.mockCallableStatementCache);
 		this.testClass.logStatementsEnabled=true;
 		reset(this.mockConnection, this.mockPool);
 
@@ -0,0 +1,422 @@
+/**
+ *  Copyright 2010 Wallace Wadge
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.jolbox.bonecp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/** Tests for the free connection bag.
+ * @author wallacew
+ *
+ */
+public class TestConnectionBag {
+
+	/** Basic offer/poll/size behaviour. */
+	@Test
+	public void testOfferPoll(){
+		ConnectionBag<String> bag = new ConnectionBag<String>(2);
+		assertNull(bag.poll());
+		assertTrue(bag.offer("a"));
+		assertTrue(bag.offer("b"));
+		assertFalse(bag.offer("c")); // full
+		assertEquals(2, bag.size());
+		assertEquals(0, bag.remainingCapacity());
+
+		List<String> drained = new ArrayList<String>();
+		assertEquals(2, bag.drainTo(drained));
+		assertTrue(drained.contains("a") && drained.contains("b"));
+		assertEquals(0, bag.size());
+		assertNull(bag.poll());
+	}
+
+	/** A thread should get back the item it has just released. */
+	@Test
+	public void testLastUsedFastPath(){
+		ConnectionBag<String> bag = new ConnectionBag<String>(10);
+		for (int i=0; i < 5; i++){
+			bag.offer("item"+i);
+		}
+		String item = bag.poll();
+		bag.offer(item);
+		assertSame(item, bag.poll());
+	}
+
+	/** Without per-thread state, a thread still starts off from the same slot every time. */
+	@Test
+	public void testWithoutThreadAffinity(){
+		ConnectionBag<String> bag = new ConnectionBag<String>(10, new ConnectionWaitQueue<String>(null), false);
+		for (int i=0; i < 5; i++){
+			bag.offer("item"+i);
+		}
+		String item = bag.poll();
+		bag.offer(item);
+		assertSame(item, bag.poll());
+		assertEquals(4, bag.size());
+		for (int i=0; i < 4; i++){
+			assertTrue(bag.poll() != null);
+		}
+		assertNull(bag.poll());
+	}
+
+	/** In LIFO mode, the item released last is handed out first and the rest are left alone. */
+	@Test
+	public void testLifo(){
+		ConnectionBag<String> bag = new ConnectionBag<String>(5, new ConnectionWaitQueue<String>(null), true, true);
+		for (int i=0; i < 5; i++){
+			bag.offer("item"+i);
+		}
+		assertEquals("item0", bag.poll());
+		assertEquals("item1", bag.poll());
+		bag.offer("item1");
+		bag.offer("item0");
+		for (int i=0; i < 10; i++){
+			String item = bag.poll();
+			assertTrue(item.equals("item0") || item.equals("item1"));
+			bag.offer(item);
+		}
+
+		// items that have only been looked at go to the back.
+		while (bag.poll() != null){
+			// empty it
+		}
+		assertTrue(bag.offerLast("tested"));
+		bag.offer("a");
+		bag.offer("b");
+		assertEquals("a", bag.poll());
+		assertEquals("b", bag.poll());
+		assertEquals("tested", bag.poll());
+	}
+
+	/** pollLast takes from the cold end and leaves reserved items alone. */
+	@Test
+	public void testPollLast(){
+		ConnectionBag<String> bag = new ConnectionBag<String>(5, new ConnectionWaitQueue<String>(null), true, true);
+		bag.offer("a");
+		bag.offer("b");
+		bag.offer("c");
+		assertEquals("a", bag.poll());
+		bag.offer("a");
+		assertEquals("c", bag.pollLast());
+		bag.reserve(1);
+		assertEquals("b", bag.pollLast());
+		assertNull(bag.pollLast());
+		assertEquals("a", bag.pollReserved());
+	}
+
+	/** Remove and iteration. */
+	@Test
+	public void testRemoveAndIterate(){
+		ConnectionBag<String> bag = new ConnectionBag<String>(5);
+		bag.offer("a");
+		bag.offer("b");
+		int count = 0;
+		for (String s: bag){
+			assertTrue(bag.remove(s));
+			count++;
+		}
+		assertEquals(2, count);
+		assertFalse(bag.remove("a"));
+		assertTrue(bag.isEmpty());
+	}
+
+	/** A waiting thread is handed an item that's released while it waits.
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testHandoffToWaiter() throws InterruptedException{
+		final ConnectionBag<String> bag = new ConnectionBag<String>(1);
+		final AtomicReference<String> result = new AtomicReference<String>();
+		final CountDownLatch done = new CountDownLatch(1);
+		Thread waiter = new Thread(new Runnable() {
+			public void run() {
+				try {
+					result.set(bag.poll(10, TimeUnit.SECONDS));
+				} catch (InterruptedException e) {
+					// do nothing
+				}
+				done.countDown();
+			}
+		});
+		waiter.start();
+		while (bag.getWaitingThreadCount() == 0){
+			Thread.sleep(5);
+		}
+		bag.offer("a");
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertEquals("a", result.get());
+		assertEquals(0, bag.size());
+	}
+
+	/** Times out if nothing gets released.
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testPollTimeout() throws InterruptedException{
+		ConnectionBag<String> bag = new ConnectionBag<String>(1);
+		assertNull(bag.poll(10, TimeUnit.MILLISECONDS));
+		assertEquals(0, bag.getWaitingThreadCount());
+	}
+
+	/** A thread waiting on one bag is handed an item released into another bag sharing the same wait queue.
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testHandoffAcrossBags() throws InterruptedException{
+		Statistics stats = new Statistics(null);
+		ConnectionWaitQueue<String> waitQueue = new ConnectionWaitQueue<String>(stats);
+		final ConnectionBag<String> home = new ConnectionBag<String>(1, waitQueue);
+		ConnectionBag<String> other = new ConnectionBag<String>(1, waitQueue);
+		final AtomicReference<String> result = new AtomicReference<String>();
+		final CountDownLatch done = new CountDownLatch(1);
+		Thread waiter = new Thread(new Runnable() {
+			public void run() {
+				try {
+					result.set(home.poll(10, TimeUnit.SECONDS));
+				} catch (InterruptedException e) {
+					// do nothing
+				}
+				done.countDown();
+			}
+		});
+		waiter.start();
+		while (waitQueue.getWaitingThreadCount() == 0){
+			Thread.sleep(5);
+		}
+		other.offer("a");
+		assertEquals(0, other.size());
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertEquals("a", result.get());
+		assertEquals(1, stats.getConnectionsHandedOff());
+		assertEquals(0, stats.getConnectionsQueued());
+
+		other.offer("b");
+		assertEquals(1, stats.getConnectionsQueued());
+		assertEquals(0.5, stats.getConnectionHandoffRatio(), 0.01);
+		// a waiter finds items already sitting in other bags too.
+		assertEquals("b", home.poll(10, TimeUnit.MILLISECONDS));
+	}
+
+	/** Below the handoff threshold, a released item goes into the bag and the waiter is woken up to come and get it.
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testNoHandoffBelowThreshold() throws InterruptedException{
+		Statistics stats = new Statistics(null);
+		ConnectionWaitQueue<String> waitQueue = new ConnectionWaitQueue<String>(stats, TimeUnit.SECONDS.toNanos(60));
+		final ConnectionBag<String> home = new ConnectionBag<String>(1, waitQueue);
+		ConnectionBag<String> other = new ConnectionBag<String>(1, waitQueue);
+		final AtomicReference<String> result = new AtomicReference<String>();
+		final CountDownLatch done = new CountDownLatch(1);
+		Thread waiter = new Thread(new Runnable() {
+			public void run() {
+				try {
+					result.set(home.poll(10, TimeUnit.SECONDS));
+				} catch (InterruptedException e) {
+					// do nothing
+				}
+				done.countDown();
+			}
+		});
+		waiter.start();
+		while (waitQueue.getWaitingThreadCount() == 0){
+			Thread.sleep(5);
+		}
+		other.offer("a");
+		assertEquals(0, stats.getConnectionsHandedOff());
+		assertEquals(1, stats.getConnectionsQueued());
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertEquals("a", result.get());
+		assertEquals(0, other.size());
+	}
+
+	/** A thread waiting for an item from its own bag only is passed by items released into other bags.
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testPollOwn() throws InterruptedException{
+		ConnectionWaitQueue<String> waitQueue = new ConnectionWaitQueue<String>(null);
+		final ConnectionBag<String> home = new ConnectionBag<String>(1, waitQueue);
+		ConnectionBag<String> other = new ConnectionBag<String>(1, waitQueue);
+		other.offer("a");
+		final AtomicReference<String> result = new AtomicReference<String>();
+		final CountDownLatch done = new CountDownLatch(1);
+		Thread waiter = new Thread(new Runnable() {
+			public void run() {
+				try {
+					result.set(home.pollOwn(10, TimeUnit.SECONDS));
+				} catch (InterruptedException e) {
+					// do nothing
+				}
+				done.countDown();
+			}
+		});
+		waiter.start();
+		while (waitQueue.getWaitingThreadCount() == 0){
+			Thread.sleep(5);
+		}
+		assertEquals("a", other.poll());
+		other.offer("b");
+		assertEquals(1, other.size());
+		assertEquals(1, done.getCount());
+
+		home.offer("c");
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertEquals("c", result.get());
+		assertEquals(0, home.size());
+		assertNull(home.pollOwn(10, TimeUnit.MILLISECONDS));
+	}
+
+	/** Items set aside are left alone by everyone but those asking for reserved items. */
+	@Test
+	public void testReserve() throws InterruptedException{
+		ConnectionBag<String> bag = new ConnectionBag<String>(2);
+		bag.reserve(1);
+		bag.offer("a");
+		assertNull(bag.poll());
+		assertNull(bag.poll(10, TimeUnit.MILLISECONDS));
+		assertFalse(bag.removeUnreserved("a"));
+		assertEquals(0, bag.unreservedSize());
+
+		bag.offer("b");
+		assertEquals(1, bag.unreservedSize());
+		assertNotNull(bag.poll());
+		assertNull(bag.poll());
+		assertNotNull(bag.pollReserved());
+		assertEquals(0, bag.size());
+
+		bag.reserve(-1);
+		bag.offer("c");
+		assertTrue(bag.removeUnreserved("c"));
+	}
+
+	/** An item needed to make up the reserved items is passed on to a waiter that may have it, and the others are
+	 * only woken up once there's more.
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testReservedWaiters() throws InterruptedException{
+		ConnectionWaitQueue<String> waitQueue = new ConnectionWaitQueue<String>(null);
+		final ConnectionBag<String> bag = new ConnectionBag<String>(2, waitQueue);
+		bag.reserve(1);
+		final AtomicReference<String> unreserved = new AtomicReference<String>();
+		final AtomicReference<String> reserved = new AtomicReference<String>();
+		final CountDownLatch unreservedDone = new CountDownLatch(1);
+		final CountDownLatch reservedDone = new CountDownLatch(1);
+		new Thread(new Runnable() {
+			public void run() {
+				try {
+					unreserved.set(bag.poll(10, TimeUnit.SECONDS));
+				} catch (InterruptedException e) {
+					// do nothing
+				}
+				unreservedDone.countDown();
+			}
+		}).start();
+		while (waitQueue.getWaitingThreadCount() < 1){
+			Thread.sleep(5);
+		}
+		new Thread(new Runnable() {
+			public void run() {
+				try {
+					reserved.set(bag.pollOwn(10, TimeUnit.SECONDS, true));
+				} catch (InterruptedException e) {
+					// do nothing
+				}
+				reservedDone.countDown();
+			}
+		}).start();
+		while (waitQueue.getWaitingThreadCount() < 2){
+			Thread.sleep(5);
+		}
+
+		bag.offer("a");
+		assertTrue(reservedDone.await(10, TimeUnit.SECONDS));
+		assertEquals("a", reserved.get());
+		assertEquals(1, unreservedDone.getCount());
+
+		bag.reserve(-1);
+		bag.offer("b");
+		assertTrue(unreservedDone.await(10, TimeUnit.SECONDS));
+		assertEquals("b", unreserved.get());
+	}
+
+	/** An item a waiter doesn't need after all goes back into its home bag, or another one if that is full. */
+	@Test
+	public void testPutBack(){
+		ConnectionWaitQueue<String> waitQueue = new ConnectionWaitQueue<String>(null);
+		ConnectionBag<String> home = new ConnectionBag<String>(1, waitQueue);
+		ConnectionBag<String> other = new ConnectionBag<String>(1, waitQueue);
+		waitQueue.putBack(home, "a");
+		assertEquals(1, home.size());
+		waitQueue.putBack(home, "b");
+		assertEquals("b", other.poll());
+	}
+
+	/** Async requests are called back by the releasing thread, and can be cancelled. */
+	@Test
+	public void testPollAsync(){
+		ConnectionWaitQueue<String> waitQueue = new ConnectionWaitQueue<String>(null);
+		ConnectionBag<String> bag = new ConnectionBag<String>(1, waitQueue);
+		final List<String> handed = new ArrayList<String>();
+		final AtomicReference<Boolean> cancelled = new AtomicReference<Boolean>(false);
+		ConnectionWaitQueue.Callback<String> callback = new ConnectionWaitQueue.Callback<String>() {
+			public void handedOver(String item) {
+				handed.add(item);
+			}
+
+			public void waitCancelled() {
+				cancelled.set(true);
+			}
+		};
+
+		// available straight away
+		bag.offer("a");
+		assertFalse(waitQueue.pollAsync(bag, callback).cancel());
+		assertEquals(1, handed.size());
+
+		// waits, then gets handed the next item without it going through the bag
+		waitQueue.pollAsync(bag, callback);
+		assertEquals(1, waitQueue.getWaitingThreadCount());
+		bag.offer("b");
+		assertEquals("b", handed.get(1));
+		assertEquals(0, bag.size());
+		assertEquals(0, waitQueue.getWaitingThreadCount());
+
+		// cancelled requests don't get anything
+		assertTrue(waitQueue.pollAsync(bag, callback).cancel());
+		bag.offer("c");
+		assertEquals(2, handed.size());
+		assertEquals(1, bag.size());
+		bag.poll();
+
+		waitQueue.pollAsync(bag, callback);
+		waitQueue.cancelAsyncWaiters();
+		assertTrue(cancelled.get());
+		assertEquals(0, waitQueue.getWaitingThreadCount());
+	}
+}
@@ -30,6 +30,7 @@ import static org.easymock.EasyMock.verify;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.fail;
 
 import java.lang.ref.Reference;
@@ -114,11 +115,7 @@ public class TestConnectionHandle {
 
 		this.testClass.logicallyClosed.set(false);
 
-		Field field = this.testClass.getClass().getDeclaredField("statisticsEnabled");
-		field.setAccessible(true);
-		field.set(this.testClass, true);
-
-		field = this.testClass.getClass().getDeclaredField("statistics");
+		Field field = this.testClass.getClass().getDeclaredField("statistics");
 		field.setAccessible(true);
 		field.set(this.testClass, new Statistics(this.mockPool));
 
@@ -126,6 +123,11 @@ public class TestConnectionHandle {
 	}
 
 
+	/** Gives the handle under test the settings of the test config, eg after the test changed the config. */
+	private void applyConfig(){
+		this.testClass.settings = new ConnectionHandle.Settings(this.config);
+	}
+
 	/** For test. */
 	static int count=1;
 
@@ -163,6 +165,13 @@ public class TestConnectionHandle {
 		skipTests.add("recreateConnectionHandle");
 		skipTests.add("fillConnectionFields");
 		skipTests.add("createConnectionHandle");
+		// answered locally once known if trackSessionState is on, tested separately.
+		skipTests.add("getAutoCommit");
+		skipTests.add("getCatalog");
+		skipTests.add("isReadOnly");
+		skipTests.add("getTransactionIsolation");
+		skipTests.add("getAutoCommitState");
+		skipTests.add("resetSessionState");
 		if (CommonTestUtils.jvmMajorVersion < 7){
 			skipTests.add("getNetworkTimeout");
 			skipTests.add("setNetworkTimeout");
@@ -176,7 +185,8 @@ public class TestConnectionHandle {
 		skipTests.add("$VRi"); // this only comes into play when code coverage is started. Eclemma bug?
 		expect(this.mockPool.getConfig()).andReturn(this.config).anyTimes();
 		replay(this.mockPool);
-		testClass.closeOpenStatements = true;
+		this.config.setCloseOpenStatements(true);
+		applyConfig();
 		CommonTestUtils.testStatementBounceMethod(this.mockConnection, this.testClass, skipTests, this.mockConnection);
 	}
 	
@@ -223,7 +233,8 @@ public class TestConnectionHandle {
 	@Test 
 	public void testClose() throws SecurityException, NoSuchFieldException, IllegalArgumentException, IllegalAccessException, InvocationTargetException, NoSuchMethodException, SQLException, InterruptedException{
 
-		this.testClass.doubleCloseCheck = true;
+		this.config.setCloseConnectionWatch(true);
+		applyConfig();
 		Connection mockInternalConnection = EasyMock.createNiceMock(Connection.class);
 		this.testClass.setInternalConnection(mockInternalConnection);
 
@@ -277,12 +288,200 @@ public class TestConnectionHandle {
 
 	}
 
+	/** Recreating a handle carries the state of the old one over without going back to the config.
+	 * @throws SQLException
+	 */
+	@Test
+	public void testRecreateConnectionHandle() throws SQLException{
+		Connection mockConnection = EasyMock.createNiceMock(Connection.class);
+		this.testClass.setInternalConnection(mockConnection);
+		this.testClass.connectionCreationTimeInMs = 1234L;
+		this.config.setResetConnectionOnClose(true);
+		applyConfig();
+		this.testClass.maxConnectionAgeInMs = 5678L;
+		Object debugHandle = new Object();
+		this.testClass.setDebugHandle(debugHandle);
+		expect(mockConnection.getAutoCommit()).andReturn(true).anyTimes();
+		// no calls to the pool (eg getConfig()) are expected.
+		replay(mockConnection, this.mockPool);
+
+		ConnectionHandle handle = this.testClass.recreateConnectionHandle();
+		assertNotSame(this.testClass, handle);
+		assertEquals(mockConnection, handle.getInternalConnection());
+		assertEquals(null, this.testClass.getInternalConnection());
+		assertEquals(1234L, handle.getConnectionCreationTime());
+		assertEquals(5678L, handle.maxConnectionAgeInMs);
+		assertSame(this.testClass.settings, handle.settings);
+		assertEquals(debugHandle, handle.getDebugHandle());
+		assertEquals(this.mockPool, handle.getPool());
+		assertFalse(handle.isClosed());
+		verify(mockConnection, this.mockPool);
+	}
+
+	/** Session settings are answered from what the handle knows, without asking the driver again.
+	 * @throws SQLException
+	 */
+	@Test
+	public void testSessionStateAnsweredLocally() throws SQLException{
+		this.config.setTrackSessionState(true);
+		applyConfig();
+		Connection mockConnection = EasyMock.createMock(Connection.class);
+		this.testClass.setInternalConnection(mockConnection);
+		expect(mockConnection.getAutoCommit()).andReturn(true).once();
+		mockConnection.setReadOnly(true);
+		mockConnection.setCatalog(null);
+		mockConnection.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+		replay(mockConnection);
+
+		assertTrue(this.testClass.getAutoCommit());
+		assertTrue(this.testClass.getAutoCommit());
+		this.testClass.setReadOnly(true);
+		this.testClass.setCatalog(null);
+		this.testClass.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+		assertTrue(this.testClass.isReadOnly());
+		assertEquals(null, this.testClass.getCatalog());
+		assertEquals(Connection.TRANSACTION_SERIALIZABLE, this.testClass.getTransactionIsolation());
+		verify(mockConnection);
+	}
+
+	/** Recreating a handle only rolls back if a statement ran, and only resets the settings that were changed.
+	 * @throws Exception
+	 */
+	@Test
+	public void testRecreateOnlyResetsChangedState() throws Exception{
+		this.config.setTrackSessionState(true);
+		applyConfig();
+		Connection mockConnection = EasyMock.createMock(Connection.class);
+		this.testClass.setInternalConnection(mockConnection);
+		expect(mockConnection.isClosed()).andReturn(false).anyTimes();
+		mockConnection.setAutoCommit(true);
+		expectLastCall().times(3);
+		mockConnection.setCatalog("foo");
+		mockConnection.setReadOnly(false); // default, not known to the handle yet
+		mockConnection.setAutoCommit(false);
+		expectLastCall().times(2);
+		mockConnection.rollback();
+		replay(mockConnection);
+
+		this.testClass.setAutoCommit(true);
+		this.testClass.setCatalog("foo");
+		// nothing changed: no calls to the driver.
+		ConnectionHandle handle = this.testClass.recreateConnectionHandle();
+		assertFalse(handle.isTransactionDirty());
+
+		// no statement ran in the transaction: nothing to roll back.
+		handle.setAutoCommit(false);
+		handle = handle.recreateConnectionHandle();
+
+		handle.setAutoCommit(false);
+		handle.markStatementExecuted();
+		assertTrue(handle.isTransactionDirty());
+		handle = handle.recreateConnectionHandle();
+		assertTrue(handle.getAutoCommit());
+		assertEquals("foo", handle.getCatalog());
+		assertFalse(handle.isTransactionDirty());
+		verify(mockConnection);
+	}
+
+	/** Unless trackSessionState is on, recreating a handle always rolls back and resets the configured defaults,
+	 * and the getters ask the driver.
+	 * @throws Exception
+	 */
+	@Test
+	public void testRecreateResetsEverythingByDefault() throws Exception{
+		Connection mockConnection = EasyMock.createMock(Connection.class);
+		this.testClass.setInternalConnection(mockConnection);
+		expect(mockConnection.isClosed()).andReturn(false).anyTimes();
+		mockConnection.setAutoCommit(true);
+		expectLastCall().times(2);
+		mockConnection.setCatalog("foo");
+		expectLastCall().times(2);
+		expect(mockConnection.getAutoCommit()).andReturn(false).once();
+		mockConnection.rollback();
+		mockConnection.setReadOnly(false);
+		expect(mockConnection.getCatalog()).andReturn("bar").once();
+		replay(mockConnection);
+
+		this.testClass.setAutoCommit(true);
+		this.testClass.setCatalog("foo");
+		// eg "USE bar" behind our back.
+		assertEquals("bar", this.testClass.getCatalog());
+		ConnectionHandle handle = this.testClass.recreateConnectionHandle();
+		assertFalse(handle.isTransactionDirty());
+		verify(mockConnection);
+	}
+
+	/** Handing out the internal connection forgets the tracked session state.
+	 * @throws SQLException
+	 */
+	@Test
+	public void testInternalConnectionForgetsSessionState() throws SQLException{
+		this.config.setTrackSessionState(true);
+		applyConfig();
+		Connection mockConnection = EasyMock.createMock(Connection.class);
+		this.testClass.setInternalConnection(mockConnection);
+		mockConnection.setAutoCommit(true);
+		expect(mockConnection.getAutoCommit()).andReturn(false).times(2);
+		expect(mockConnection.unwrap(Connection.class)).andReturn(mockConnection);
+		replay(mockConnection);
+
+		this.testClass.setAutoCommit(true);
+		assertTrue(this.testClass.getAutoCommit());
+		this.testClass.getInternalConnection();
+		assertFalse(this.testClass.getAutoCommit());
+		this.testClass.unwrap(Connection.class);
+		assertTrue(this.testClass.isTransactionDirty());
+		assertFalse(this.testClass.getAutoCommit());
+		verify(mockConnection);
+	}
+
+	/** A recreated handle shares the queue state of the old one: it's in use until placed back in the free queue.
+	 * @throws SQLException
+	 */
+	@Test
+	public void testRecreatedHandleSharesQueueState() throws SQLException{
+		Connection mockConnection = EasyMock.createNiceMock(Connection.class);
+		this.testClass.setInternalConnection(mockConnection);
+		replay(mockConnection);
+
+		assertTrue(this.testClass.claimForUse());
+		ConnectionHandle handle = this.testClass.recreateConnectionHandle();
+		assertFalse(handle.startMaintenance());
+		handle.markFree();
+		assertTrue(handle.startMaintenance());
+		assertFalse(handle.claimForUse());
+	}
+
+	/** With a sample rate of N, only 1 in every N statements gets timed.
+	 * @throws IllegalArgumentException
+	 * @throws IllegalAccessException
+	 * @throws SecurityException
+	 * @throws NoSuchFieldException
+	 */
+	@Test
+	public void testSampleStatistics() throws IllegalArgumentException, IllegalAccessException, SecurityException, NoSuchFieldException{
+		assertTrue(this.testClass.sampleStatistics());
+		assertTrue(this.testClass.sampleStatistics()); // default: time everything
+
+		this.config.setStatisticsSampleRate(3);
+		applyConfig();
+		int sampled = 0;
+		for (int i=0; i < 9; i++){
+			if (this.testClass.sampleStatistics()){
+				sampled++;
+			}
+		}
+		assertEquals(3, sampled);
+		assertEquals(3, this.testClass.getStatisticsSampleRate());
+	}
+
 	@Test
 	public void testCloseWithRollback() throws SQLException{
 		Connection mockConnection = EasyMock.createNiceMock(Connection.class);
 		this.testClass.logicallyClosed.set(false);
-		this.testClass.resetConnectionOnClose = true;
-		this.testClass.connectionTrackingDisabled = true;
+		this.config.setResetConnectionOnClose(true);
+		this.config.setDisableConnectionTracking(true);
+		applyConfig();
 		this.testClass.setInternalConnection(mockConnection);
 		mockConnection.rollback();
 		expect(mockConnection.getAutoCommit()).andReturn(false);
@@ -301,8 +500,9 @@ public class TestConnectionHandle {
 	public void testCloseWithExceptionsOnRecreate() throws SQLException{
 		Connection mockConnection = EasyMock.createNiceMock(Connection.class);
 		this.testClass.logicallyClosed.set(false);
-		this.testClass.resetConnectionOnClose = false;
-		this.testClass.connectionTrackingDisabled = true;
+		this.config.setResetConnectionOnClose(false);
+		this.config.setDisableConnectionTracking(true);
+		applyConfig();
 		this.testClass.setInternalConnection(mockConnection);
 		expect(mockConnection.getAutoCommit()).andReturn(false);
 		expect(this.mockPool.getConfig()).andReturn(new BoneCPConfig()).anyTimes();
@@ -329,10 +529,10 @@ public class TestConnectionHandle {
 		//coverage test
 		Connection mockConnection = EasyMock.createNiceMock(Connection.class);
 		this.testClass.logicallyClosed.set(false);
-		this.testClass.resetConnectionOnClose = true;
-		this.testClass.connectionTrackingDisabled = true;
+		this.config.setResetConnectionOnClose(true);
+		this.config.setDisableConnectionTracking(true);
+		applyConfig();
 		this.testClass.setInternalConnection(mockConnection);
-		mockConnection.rollback();
 		expect(mockConnection.getAutoCommit()).andThrow(new SQLException("FOO", "123"));
 		replay(mockConnection);
 		try{
@@ -344,14 +544,16 @@ public class TestConnectionHandle {
 	}
 	@Test
 	public void testCloseWithRollbackNoResetAutoCommit() throws SQLException{
-		// same test but let's set autocommit is set to true (the usual default)
+		// same test but let's set autocommit is set to true (the usual default): nothing to roll back then.
 		Connection mockConnection = EasyMock.createNiceMock(Connection.class);
 		this.testClass.logicallyClosed.set(false);
-		this.testClass.resetConnectionOnClose = true;
-		this.testClass.connectionTrackingDisabled = true;
+		this.config.setResetConnectionOnClose(true);
+		this.config.setDisableConnectionTracking(true);
+		applyConfig();
 		this.testClass.setInternalConnection(mockConnection);
 
 		mockConnection.rollback();
+		expectLastCall().andThrow(new AssertionError("No rollback expected")).anyTimes();
 		expect(mockConnection.getAutoCommit()).andReturn(true);
 		replay(mockConnection);
 		try{
@@ -368,8 +570,9 @@ public class TestConnectionHandle {
 	public void testCloseWithOpenStatementsMakeSureTheyAreClosed() throws SQLException{
 		Connection mockConnection = EasyMock.createNiceMock(Connection.class);
 		this.testClass.logicallyClosed.set(false);
-		this.testClass.closeOpenStatements = true;
-		this.testClass.detectUnclosedStatements = true;
+		this.config.setCloseOpenStatements(true);
+		this.config.setDetectUnclosedStatements(true);
+		applyConfig();
 
 		this.testClass.setInternalConnection(mockConnection);
 
@@ -400,8 +603,9 @@ public class TestConnectionHandle {
 		// Test mostly for coverage. 
 		Connection mockConnection = EasyMock.createNiceMock(Connection.class);
 		this.testClass.logicallyClosed.set(false);
-		this.testClass.closeOpenStatements = true;
-		this.testClass.detectUnclosedStatements = false;
+		this.config.setCloseOpenStatements(true);
+		this.config.setDetectUnclosedStatements(false);
+		applyConfig();
 
 		this.testClass.setInternalConnection(mockConnection);
 
@@ -481,7 +685,8 @@ public class TestConnectionHandle {
 
 	@Test
 	public void testCoverage(){
-		this.testClass.url = "foo";
+		this.config.setJdbcUrl("foo");
+		applyConfig();
 		assertEquals("foo", this.testClass.getUrl());
 	}
 
@@ -494,7 +699,8 @@ public class TestConnectionHandle {
 	 */
 	@Test
 	public void testDoubleClose() throws SecurityException, NoSuchFieldException, IllegalArgumentException, IllegalAccessException, SQLException{
-		this.testClass.doubleCloseCheck = true;
+		this.config.setCloseConnectionWatch(true);
+		applyConfig();
 		this.testClass.logicallyClosed.set(true);
 
 
@@ -512,7 +718,8 @@ public class TestConnectionHandle {
 	@Test
 	public void testDoubleCloseNoLogging() throws SecurityException, NoSuchFieldException, IllegalArgumentException, IllegalAccessException, SQLException{
 		// coverage
-		this.testClass.doubleCloseCheck = true;
+		this.config.setCloseConnectionWatch(true);
+		applyConfig();
 		this.testClass.logicallyClosed.set(true);
 
 
@@ -569,13 +776,15 @@ public class TestConnectionHandle {
 	@SuppressWarnings("unchecked")
 	@Test 
 	public void testInternalCloseCoverage() throws SQLException {
-		this.testClass.connectionTrackingDisabled = false;
+		this.config.setDisableConnectionTracking(false);
+		applyConfig();
 		this.testClass.finalizableRefs = new MapMaker().makeMap();
 		this.testClass.finalizableRefs.put(this.testClass.connection, createNiceMock(Reference.class));
 		this.testClass.internalClose();
 		assertTrue(this.testClass.finalizableRefs.isEmpty());
 		
-		this.testClass.connectionTrackingDisabled = false;
+		this.config.setDisableConnectionTracking(false);
+		applyConfig();
 		this.testClass.finalizableRefs = null;  // should never happen
 		this.testClass.internalClose();
 		
@@ -632,9 +841,8 @@ public class TestConnectionHandle {
 	 */
 	@Test
 	public void testRenewConnection() throws SecurityException, NoSuchFieldException, IllegalArgumentException, IllegalAccessException{
-		Field field = this.testClass.getClass().getDeclaredField("doubleCloseCheck");
-		field.setAccessible(true);
-		field.set(this.testClass, true);
+		this.config.setCloseConnectionWatch(true);
+		applyConfig();
 
 		this.testClass.logicallyClosed.set(true);
 
@@ -751,9 +959,11 @@ public class TestConnectionHandle {
 	@Test
 	public void testMaybeCaptureStackTrace(){
 		assertEquals("", this.testClass.maybeCaptureStackTrace());
-		this.testClass.detectUnclosedStatements = true;
+		this.config.setDetectUnclosedStatements(true);
+		applyConfig();
 		assertNotSame("", this.testClass.maybeCaptureStackTrace());
-		this.testClass.detectUnclosedStatements = false;
+		this.config.setDetectUnclosedStatements(false);
+		applyConfig();
 	}
 
 	@Test
@@ -787,9 +997,11 @@ public class TestConnectionHandle {
 	public void testUntrackStatement(){
 		StatementHandle mockStatement = createNiceMock(StatementHandle.class);
 		this.testClass.trackedStatement.put(mockStatement, "");
-		this.testClass.closeOpenStatements = false;
+		this.config.setCloseOpenStatements(false);
+		applyConfig();
 		assertTrue(this.testClass.trackedStatement.containsKey(mockStatement)); // should be a NOP
-		this.testClass.closeOpenStatements = true;
+		this.config.setCloseOpenStatements(true);
+		applyConfig();
 		this.testClass.untrackStatement(mockStatement);
 		assertFalse(this.testClass.trackedStatement.containsKey(mockStatement));
 
@@ -1151,7 +1363,8 @@ public class TestConnectionHandle {
 	 */
 	@Test
 	public void testAutoCommitSetToFalse() throws SQLException{
-		this.testClass.detectUnresolvedTransactions = true;
+		this.config.setDetectUnresolvedTransactions(true);
+		applyConfig();
 		expect(this.mockPool.captureStackTrace((String)anyObject())).andReturn("foo").once();
 		replay(this.mockPool);
 		this.testClass.setAutoCommit(false);
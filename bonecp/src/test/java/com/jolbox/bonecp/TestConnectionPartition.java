@@ -24,9 +24,6 @@ import java.sql.SQLException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock.ReadLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
 import com.google.common.base.FinalizableReferenceQueue;
 import com.jolbox.bonecp.proxy.ConnectionProxy;
 
@@ -104,40 +101,6 @@ public class TestConnectionPartition {
 		assertEquals(count+5, testClass.getCreatedConnections());
 	}
 
-	/**
-	 * Test method for created connections.
-	 * @throws NoSuchFieldException 
-	 * @throws SecurityException 
-	 * @throws IllegalAccessException 
-	 * @throws IllegalArgumentException 
-	 */
-	@Test
-	public void testUpdateCreatedConnectionsWithException() throws SecurityException, NoSuchFieldException, IllegalArgumentException, IllegalAccessException {
-	
-		// Test #2: Same test but fake an exception 
-		ReentrantReadWriteLock mockLock = createNiceMock(ReentrantReadWriteLock.class);
-		WriteLock mockWriteLock = createNiceMock(WriteLock.class);
-
-		Field field = testClass.getClass().getDeclaredField("statsLock");
-		field.setAccessible(true);
-		ReentrantReadWriteLock oldLock = (ReentrantReadWriteLock) field.get(testClass);
-		field.set(testClass, mockLock);
-		expect(mockLock.writeLock()).andThrow(new RuntimeException()).once().andReturn(mockWriteLock).once();
-		mockWriteLock.lock();
-		expectLastCall().once();
-		replay(mockLock, mockWriteLock);
-
-		try{
-			testClass.updateCreatedConnections(5);
-			fail("Should have thrown an exception");
-		} catch (Throwable t){
-			//do nothing
-		}
-		verify(mockLock);
-		field.set(testClass, oldLock);
-
-	}
-
 	/**
 	 * Test method for freeConnections
 	 * @throws SQLException 
@@ -206,36 +169,6 @@ public class TestConnectionPartition {
 
 	}
 
-	/**
-	 * @throws SecurityException
-	 * @throws NoSuchFieldException
-	 * @throws IllegalArgumentException
-	 * @throws IllegalAccessException
-	 */
-	@Test
-	public void testGetCreatedConnections() throws SecurityException, NoSuchFieldException, IllegalArgumentException, IllegalAccessException{
-		ReentrantReadWriteLock mockLock = createNiceMock(ReentrantReadWriteLock.class);
-		ReadLock mockReadLock = createNiceMock(ReadLock.class);
-
-		Field field = testClass.getClass().getDeclaredField("statsLock");
-		field.setAccessible(true);
-		ReentrantReadWriteLock oldLock = (ReentrantReadWriteLock) field.get(testClass);
-		field.set(testClass, mockLock);
-		expect(mockLock.readLock()).andThrow(new RuntimeException()).once().andReturn(mockReadLock).once();
-		mockReadLock.lock();
-		expectLastCall().once();
-		replay(mockLock, mockReadLock);
-
-		try{
-			testClass.getCreatedConnections();
-			fail("Should have thrown an exception");
-		} catch (Throwable t){
-			//do nothing
-		}
-		verify(mockLock);
-		field.set(testClass, oldLock);
-	}
-
 	/**
 	 * Test method for config related stuff.
 	 */
@@ -326,7 +259,7 @@ public class TestConnectionPartition {
 
 		replay(mockConnectionHandle, mockConnection, this.mockPool);
 		testClass.trackConnectionFinalizer(mockConnectionHandle);
-		testClass.statsLock = null; // this makes it blow up.
+		testClass.createdConnections = null; // this makes it blow up.
 		reset(mockLogger);
 		mockLogger.error((String)anyObject());
 		expectLastCall().anyTimes();
@@ -0,0 +1,75 @@
+/**
+ *  Copyright 2010 Wallace Wadge
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.jolbox.bonecp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/** Tests for the demand forecast used by predictive sizing.
+ * @author wallacew
+ *
+ */
+public class TestDemandForecast {
+
+	/** The peak seen at checkout time is what gets sampled, then the next period starts at the current value. */
+	@Test
+	public void testPeak(){
+		DemandForecast forecast = new DemandForecast();
+		forecast.recordLeased(3);
+		forecast.recordLeased(7);
+		forecast.recordLeased(5);
+		assertEquals(7.0, forecast.update(2), 0.001);
+		// nothing recorded since: 2 carried over from the last update
+		forecast.update(0);
+		assertTrue(forecast.getForecast() < 7.0);
+		assertTrue(forecast.getForecast() >= 0);
+	}
+
+	/** A steady ramp is forecast ahead of the latest sample, and a flat load settles on its level. */
+	@Test
+	public void testTrend(){
+		DemandForecast forecast = new DemandForecast();
+		for (int i=0; i < 30; i++){
+			forecast.update(i);
+		}
+		assertTrue(forecast.getForecast() > 29);
+
+		forecast = new DemandForecast();
+		for (int i=0; i < 50; i++){
+			forecast.update(10);
+		}
+		assertEquals(10.0, forecast.getForecast(), 0.001);
+	}
+
+	/** Decision counters and target. */
+	@Test
+	public void testDecisions(){
+		DemandForecast forecast = new DemandForecast();
+		assertEquals(0, forecast.getTargetConnections());
+		forecast.setTargetConnections(5);
+		assertEquals(5, forecast.getTargetConnections());
+		forecast.incrementGrowths();
+		forecast.incrementShrinks();
+		forecast.incrementShrinks();
+		assertEquals(1, forecast.getGrowths());
+		assertEquals(2, forecast.getShrinks());
+		forecast.resetStats();
+		assertEquals(0, forecast.getGrowths());
+		assertEquals(0, forecast.getShrinks());
+	}
+}
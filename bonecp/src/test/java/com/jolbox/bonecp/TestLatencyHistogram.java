@@ -0,0 +1,82 @@
+/**
+ *  Copyright 2010 Wallace Wadge
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.jolbox.bonecp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/** Tests for the rolling latency histogram.
+ * @author wallacew
+ *
+ */
+public class TestLatencyHistogram {
+
+	/** Every value maps to a bucket whose midpoint is within 1/16th of it. */
+	@Test
+	public void testBucketPrecision(){
+		int lastIndex = -1;
+		for (long v=0; v < 1000000; v = v < 100 ? v+1 : v + v/97){
+			int idx = LatencyHistogram.bucketIndex(v);
+			assertTrue(idx >= lastIndex);
+			lastIndex = idx;
+			assertTrue(Math.abs(LatencyHistogram.bucketMidpoint(idx) - v) <= v/16);
+		}
+		assertTrue(LatencyHistogram.bucketIndex(1L << 39) < 400);
+	}
+
+	/** Percentiles, max and reset. */
+	@Test
+	public void testPercentiles(){
+		LatencyHistogram histogram = new LatencyHistogram(3600, TimeUnit.SECONDS, 6);
+		assertEquals(0, histogram.getPercentile(50), 0.0);
+		assertEquals(0, histogram.getMax(), 0.0);
+		for (int i=1; i <= 1000; i++){
+			histogram.record(TimeUnit.MILLISECONDS.toNanos(i));
+		}
+		assertEquals(1000, histogram.getCount());
+		assertEquals(500, histogram.getPercentile(50), 500/16.0);
+		assertEquals(990, histogram.getPercentile(99), 990/16.0);
+		assertEquals(1000, histogram.getPercentile(100), 0.0);
+		assertEquals(1000, histogram.getMax(), 0.0);
+		histogram.record(-5);
+		assertEquals(0, histogram.getPercentile(0), 0.0);
+
+		histogram.reset();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getMax(), 0.0);
+	}
+
+	/** Values age out once the window has gone by.
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testWindowRollover() throws InterruptedException{
+		LatencyHistogram histogram = new LatencyHistogram(200, TimeUnit.MILLISECONDS, 2);
+		histogram.record(TimeUnit.MILLISECONDS.toNanos(50));
+		assertEquals(1, histogram.getCount());
+		Thread.sleep(450);
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getMax(), 0.0);
+
+		histogram.record(TimeUnit.MILLISECONDS.toNanos(3));
+		assertEquals(1, histogram.getCount());
+		assertEquals(3, histogram.getMax(), 0.0);
+	}
+}
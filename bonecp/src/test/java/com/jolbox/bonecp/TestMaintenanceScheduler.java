@@ -0,0 +1,354 @@
+/**
+ *  Copyright 2010 Wallace Wadge
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.jolbox.bonecp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Tests for the shared maintenance scheduler.
+ * @author wallacew
+ *
+ */
+public class TestMaintenanceScheduler {
+	/** Class under test. */
+	private MaintenanceScheduler scheduler;
+	/** Threads running the tasks. */
+	private ExecutorService executor;
+
+	/** Starts a scheduler. */
+	@Before
+	public void before(){
+		this.scheduler = new MaintenanceScheduler();
+		this.executor = Executors.newCachedThreadPool(new CustomThreadFactory("test-maintenance", true));
+	}
+
+	/** Stops it. */
+	@After
+	public void after(){
+		this.scheduler.shutdown();
+		this.executor.shutdownNow();
+	}
+
+	/** Tasks run once after a delay, on the executor they were scheduled with.
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testSchedule() throws InterruptedException{
+		final CountDownLatch latch = new CountDownLatch(2);
+		final AtomicInteger runs = new AtomicInteger();
+		final AtomicInteger elsewhere = new AtomicInteger();
+		Runnable task = new Runnable() {
+			// @Override
+			public void run() {
+				if (!Thread.currentThread().getName().startsWith("test-maintenance")){
+					elsewhere.incrementAndGet();
+				}
+				runs.incrementAndGet();
+				latch.countDown();
+			}
+		};
+		this.scheduler.schedule(this.executor, task, 0, TimeUnit.MILLISECONDS);
+		long start = System.nanoTime();
+		this.scheduler.schedule(this.executor, task, 100, TimeUnit.MILLISECONDS);
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+		Thread.sleep(200);
+		assertEquals(2, runs.get());
+		assertEquals(0, elsewhere.get());
+	}
+
+	/** A task that is stuck, eg waiting on a database that's down, doesn't hold up the tasks of other executors,
+	 * and tasks due on an executor that has been shut down are dropped.
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testStuckTaskAndShutdownExecutor() throws InterruptedException{
+		final CountDownLatch stuck = new CountDownLatch(1);
+		final CountDownLatch ran = new CountDownLatch(1);
+		final AtomicInteger runs = new AtomicInteger();
+		ExecutorService other = Executors.newSingleThreadExecutor();
+		try {
+			for (int i=0; i < 10; i++){
+				other.execute(new Runnable() {
+					// @Override
+					public void run() {
+						try {
+							stuck.await();
+						} catch (InterruptedException e) {
+							// do nothing
+						}
+					}
+				});
+				this.scheduler.schedule(other, new Runnable() {
+					// @Override
+					public void run() {
+						runs.incrementAndGet();
+					}
+				}, 0, TimeUnit.MILLISECONDS);
+			}
+			this.scheduler.schedule(this.executor, new Runnable() {
+				// @Override
+				public void run() {
+					ran.countDown();
+				}
+			}, 0, TimeUnit.MILLISECONDS);
+			assertTrue(ran.await(5, TimeUnit.SECONDS));
+		} finally {
+			other.shutdownNow();
+		}
+		this.scheduler.schedule(other, new Runnable() {
+			// @Override
+			public void run() {
+				runs.incrementAndGet();
+			}
+		}, 0, TimeUnit.MILLISECONDS);
+		Thread.sleep(200);
+		assertEquals(0, runs.get());
+	}
+
+	/** Periodic tasks keep running, even if they fail, until cancelled.
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testFixedDelay() throws InterruptedException{
+		final CountDownLatch latch = new CountDownLatch(3);
+		final AtomicInteger runs = new AtomicInteger();
+		MaintenanceScheduler.Timeout timeout = this.scheduler.scheduleWithFixedDelay(this.executor, new Runnable() {
+			// @Override
+			public void run() {
+				runs.incrementAndGet();
+				latch.countDown();
+				throw new RuntimeException("fail on purpose");
+			}
+		}, 0, 30, TimeUnit.MILLISECONDS);
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+		timeout.cancel();
+		assertTrue(timeout.isCancelled());
+		Thread.sleep(100);
+		int count = runs.get();
+		Thread.sleep(200);
+		assertEquals(count, runs.get());
+	}
+
+	/** A task cancelled before it's due never runs.
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testCancelledBeforeRun() throws InterruptedException{
+		final AtomicInteger runs = new AtomicInteger();
+		MaintenanceScheduler.Timeout timeout = this.scheduler.schedule(this.executor, new Runnable() {
+			// @Override
+			public void run() {
+				runs.incrementAndGet();
+			}
+		}, 50, TimeUnit.MILLISECONDS);
+		timeout.cancel();
+		Thread.sleep(200);
+		assertEquals(0, runs.get());
+	}
+
+	/** A pool's executor runs no more than its limit of tasks at a time, and a slow pool doesn't hold up others.
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testPoolExecutor() throws InterruptedException{
+		ExecutorService slow = this.scheduler.newExecutor(2, 0);
+		ExecutorService other = this.scheduler.newExecutor(1, 0);
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger maxRunning = new AtomicInteger();
+		for (int i=0; i < 5; i++){
+			slow.execute(new Runnable() {
+				// @Override
+				public void run() {
+					int now = running.incrementAndGet();
+					if (now > maxRunning.get()){
+						maxRunning.set(now);
+					}
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						// shutting down
+					}
+					running.decrementAndGet();
+				}
+			});
+		}
+		final CountDownLatch done = new CountDownLatch(1);
+		other.execute(new Runnable() {
+			// @Override
+			public void run() {
+				done.countDown();
+			}
+		});
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		Thread.sleep(100);
+		assertEquals(2, running.get());
+
+		release.countDown();
+		slow.shutdown();
+		assertTrue(slow.awaitTermination(5, TimeUnit.SECONDS));
+		assertEquals(2, maxRunning.get());
+		other.shutdown();
+		assertTrue(other.awaitTermination(5, TimeUnit.SECONDS));
+	}
+
+	/** However many executors have all their tasks stuck, there is always a worker for another executor's tasks, and
+	 * the stuck ones give their workers up once shut down.
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testStuckExecutorsDontStarveOthers() throws InterruptedException{
+		final CountDownLatch release = new CountDownLatch(1);
+		int stuckExecutors = 4 * Runtime.getRuntime().availableProcessors() + 16;
+		final CountDownLatch stuck = new CountDownLatch(2 * stuckExecutors);
+		List<ExecutorService> executors = new ArrayList<ExecutorService>();
+		for (int i=0; i < stuckExecutors; i++){
+			ExecutorService executor = this.scheduler.newExecutor(2, 0);
+			executors.add(executor);
+			for (int j=0; j < 2; j++){
+				executor.execute(new Runnable() {
+					// @Override
+					public void run() {
+						stuck.countDown();
+						try {
+							release.await();
+						} catch (InterruptedException e) {
+							// shutting down
+						}
+					}
+				});
+			}
+		}
+		assertTrue(stuck.await(5, TimeUnit.SECONDS));
+
+		ExecutorService other = this.scheduler.newExecutor(1, 0);
+		final CountDownLatch done = new CountDownLatch(1);
+		other.execute(new Runnable() {
+			// @Override
+			public void run() {
+				done.countDown();
+			}
+		});
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertEquals(2 * stuckExecutors + 1, this.scheduler.getMaxWorkers());
+
+		release.countDown();
+		for (ExecutorService executor: executors){
+			executor.shutdown();
+			executor.shutdownNow(); // gives up its workers only once
+		}
+		other.shutdown();
+		assertEquals(0, this.scheduler.getMaxWorkers());
+	}
+
+	/** shutdownNow() stops what's running and drops what's waiting, without touching other executors.
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testPoolExecutorShutdownNow() throws InterruptedException{
+		ExecutorService executor = this.scheduler.newExecutor(1, 2);
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch interrupted = new CountDownLatch(1);
+		executor.execute(new Runnable() {
+			// @Override
+			public void run() {
+				started.countDown();
+				try {
+					Thread.sleep(10000);
+				} catch (InterruptedException e) {
+					interrupted.countDown();
+				}
+			}
+		});
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		executor.execute(new Runnable() {
+			// @Override
+			public void run() {
+				// never runs
+			}
+		});
+		executor.execute(new Runnable() {
+			// @Override
+			public void run() {
+				// never runs
+			}
+		});
+		try {
+			executor.execute(new Runnable() {
+				// @Override
+				public void run() {
+					// too many waiting
+				}
+			});
+			fail("Should have been rejected");
+		} catch (RejectedExecutionException e) {
+			// expected
+		}
+
+		assertEquals(2, executor.shutdownNow().size());
+		assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+		assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+		assertTrue(executor.isTerminated());
+
+		// the worker carries on with other work, without the interrupt.
+		ExecutorService other = this.scheduler.newExecutor(1, 0);
+		final CountDownLatch done = new CountDownLatch(1);
+		final AtomicInteger wasInterrupted = new AtomicInteger();
+		other.execute(new Runnable() {
+			// @Override
+			public void run() {
+				if (Thread.currentThread().isInterrupted()){
+					wasInterrupted.incrementAndGet();
+				}
+				done.countDown();
+			}
+		});
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertEquals(0, wasInterrupted.get());
+		assertFalse(other.isShutdown());
+		other.shutdown();
+	}
+
+	/** Pools share one instance, which keeps running for as long as any pool holds on to it. */
+	@Test
+	public void testAcquireRelease(){
+		MaintenanceScheduler first = MaintenanceScheduler.acquire();
+		MaintenanceScheduler second = MaintenanceScheduler.acquire();
+		assertSame(first, second);
+		first.release();
+		MaintenanceScheduler third = MaintenanceScheduler.acquire();
+		assertSame(second, third);
+		second.release();
+		third.release();
+	}
+}
@@ -21,19 +21,18 @@ import static org.easymock.EasyMock.expectLastCall;
 import static org.easymock.EasyMock.makeThreadSafe;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.reset;
+import static org.junit.Assert.assertEquals;
 
-import java.lang.reflect.Field;
 import java.sql.Connection;
 import java.sql.SQLException;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.easymock.EasyMock;
 import org.easymock.IAnswer;
 import org.junit.After;
-import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.slf4j.Logger;
@@ -55,8 +54,6 @@ public class TestPoolWatchThread {
 	static PoolWatchThread testClass;
 	/** Mock handle. */
 	private Logger mockLogger;
-	/** Break out from infinite loop. */
-	static boolean first = true;
 	/** Mock handle. */
 	private BoneCPConfig mockConfig;
 	/** Mock handle. */
@@ -114,165 +111,105 @@ public class TestPoolWatchThread {
 	/** Tests the case where we cannot create more transactions.
 	 * @throws InterruptedException
 	 */
-	@SuppressWarnings({ "unchecked", "rawtypes" })
 	@Test
 	public void testRunFullConnections() throws InterruptedException{
-//		mockPartition.lockAlmostFullLock();
-//		expectLastCall().once();
-//		mockPartition.unlockAlmostFullLock();
-//		expectLastCall().anyTimes();
-		BlockingQueue<Object> bq = new ArrayBlockingQueue<Object>(1);
-		bq.add(new Object());
-		expect(mockPartition.getPoolWatchThreadSignalQueue()).andReturn(bq);
-		expect(mockPartition.getMaxConnections()).andReturn(5).once();
-		expect(mockPartition.getCreatedConnections()).andReturn(5).once();
+		mockPartition.startPoolWatch();
+		expectLastCall().once();
+		expect(mockPartition.getMaxConnections()).andReturn(5).anyTimes();
+		expect(mockPartition.getCreatedConnections()).andReturn(5).anyTimes();
 		mockPartition.setUnableToCreateMoreTransactions(true);
 		expectLastCall().once();
+		expect(mockPartition.finishPoolWatch()).andReturn(true).once();
 
-		// just to break out of the loop
-		BlockingQueue<?> mockQueue = EasyMock.createNiceMock(BlockingQueue.class);
-		expect(mockPartition.getPoolWatchThreadSignalQueue()).andReturn((BlockingQueue) mockQueue);
-		expect(mockQueue.take()).andThrow(new InterruptedException());
-
-		replay(mockPartition, mockPool, mockLogger, mockQueue);
+		replay(mockPartition, mockPool, mockLogger);
 		testClass.run();
 		EasyMock.verify(mockPartition);
-
-
 	}
 
 	
-	/** Tests the case where we are in lazyInit mode
+	/** Tests the case where the partition has enough free connections, and was signalled again while the task
+	 * was running.
 	 * @throws InterruptedException
 	 */
-	@SuppressWarnings({ "unchecked", "rawtypes" })
 	@Test
-	public void testRunLazyInit() throws InterruptedException{
-		BlockingQueue<Object> bq = new ArrayBlockingQueue<Object>(1);
-		bq.add(new Object());
-		expect(mockPartition.getPoolWatchThreadSignalQueue()).andReturn(bq);
-		expect(mockPartition.getMaxConnections()).andReturn(5).once();
-		expect(mockPartition.getCreatedConnections()).andReturn(5).once();
-
-		mockPartition.setUnableToCreateMoreTransactions(true);
-		expectLastCall().once();
-
-		// just to break out of the loop
-		BlockingQueue<?> mockQueue = EasyMock.createNiceMock(BlockingQueue.class);
-		expect(mockPartition.getPoolWatchThreadSignalQueue()).andReturn((BlockingQueue) mockQueue);
-		expect(mockQueue.take()).andThrow(new InterruptedException());
+	public void testRunNothingToDo() throws InterruptedException{
+		mockPartition.startPoolWatch();
+		expectLastCall().times(2);
+		expect(mockPartition.getMaxConnections()).andReturn(10).anyTimes();
+		expect(mockPartition.getMinConnections()).andReturn(2).anyTimes();
+		expect(mockPartition.getCreatedConnections()).andReturn(5).anyTimes();
+		expect(mockPartition.getAvailableConnections()).andReturn(5).anyTimes();
+		expect(mockPartition.getUnreservedConnections()).andReturn(5).anyTimes();
+		mockPartition.addFreeConnection((ConnectionHandle)anyObject());
+		expectLastCall().andThrow(new AssertionError("should not create connections")).anyTimes();
+		// signalled while running: go round again
+		expect(mockPartition.finishPoolWatch()).andReturn(false).once();
+		expect(mockPartition.finishPoolWatch()).andReturn(true).once();
 
-		replay(mockPartition, mockPool, mockLogger, mockQueue);
-		testClass.lazyInit = true;
+		replay(mockPartition, mockPool, mockLogger);
 		testClass.run();
 		EasyMock.verify(mockPartition);
-
-
 	}
 
 
 	/** Tests the normal state.
 	 * @throws InterruptedException
-	 * @throws SecurityException
-	 * @throws NoSuchFieldException
-	 * @throws IllegalArgumentException
-	 * @throws IllegalAccessException
 	 * @throws SQLException 
 	 */
 	@Test
-	public void testRunCreateConnections() throws InterruptedException, SecurityException, NoSuchFieldException, IllegalArgumentException, IllegalAccessException, SQLException{
+	public void testRunCreateConnections() throws InterruptedException, SQLException{
 		expect(mockLogger.isDebugEnabled()).andReturn(true).anyTimes();
+		final AtomicInteger created = new AtomicInteger();
 
-		LinkedBlockingQueue<ConnectionHandle> fakeConnections = new LinkedBlockingQueue<ConnectionHandle>(100);
-//		mockPartition.almostFullWait();
-//		expectLastCall().anyTimes();
-		expect(mockPartition.getMaxConnections()).andAnswer(new IAnswer<Integer>() {
+		expect(mockPartition.getMaxConnections()).andReturn(4).anyTimes();
+		expect(mockPartition.getCreatedConnections()).andAnswer(new IAnswer<Integer>() {
 
 			// @Override
 			public Integer answer() throws Throwable {
-				if (first) {
-					first=false;
-					return 4;
-				} 
-				Field field = testClass.getClass().getDeclaredField("signalled");
-				field.setAccessible(true);
-				field.setBoolean(testClass, true);
-				return 4;
-
+				return created.get();
 			}
 		}).anyTimes();
-		
-		expect(mockPartition.getFreeConnections()).andReturn(fakeConnections).anyTimes();
-
-
-		expect(mockPartition.getAcquireIncrement()).andReturn(1);
-		
-		
+		expect(mockPartition.getAcquireIncrement()).andReturn(1).anyTimes();
 		expect(mockPartition.getUrl()).andReturn(CommonTestUtils.url).anyTimes();
 		expect(mockPartition.getPassword()).andReturn(CommonTestUtils.password).anyTimes();
 		expect(mockPartition.getUsername()).andReturn(CommonTestUtils.username).anyTimes();
-		expect(mockPartition.getAvailableConnections()).andReturn(fakeConnections.size()).anyTimes();
+		expect(mockPartition.getAvailableConnections()).andReturn(0).anyTimes();
+		expect(mockPartition.getUnreservedConnections()).andReturn(0).anyTimes();
 
 		mockPartition.addFreeConnection((ConnectionHandle)anyObject());
+		expectLastCall().andAnswer(new IAnswer<Object>() {
+
+			// @Override
+			public Object answer() throws Throwable {
+				created.incrementAndGet();
+				return null;
+			}
+		}).times(4);
+		// and once full, we stop
+		mockPartition.setUnableToCreateMoreTransactions(true);
 		expectLastCall().once();
+		expect(mockPartition.finishPoolWatch()).andReturn(true).once();
+
 		expect(mockPool.obtainInternalConnection((ConnectionHandle)anyObject())).andReturn(EasyMock.createNiceMock(Connection.class)).anyTimes();
+		expect(mockPool.getConnectionHandleSettings()).andReturn(new ConnectionHandle.Settings(mockConfig)).anyTimes();
 		expect(mockPool.getDbIsDown()).andReturn(new AtomicBoolean()).anyTimes();
-    	expect(mockPool.getConfig()).andReturn(mockConfig).anyTimes();
+		expect(mockPool.getConfig()).andReturn(mockConfig).anyTimes();
 		replay(mockPool, mockPartition, mockLogger);
 		testClass.run();
 		EasyMock.verify(mockPartition);
-		
-		// check exceptional cases
-		reset(mockPartition, mockPool, mockLogger);
-		resetSignalled();
-
-
-		first = true;
-//		mockPartition.unlockAlmostFullLock();
-//		expectLastCall().once();
-		
-//		mockPartition.lockAlmostFullLock();
-//		expectLastCall().andThrow(new RuntimeException());
-		replay(mockPartition, mockLogger);
-		try{
-			testClass.run();
-			Assert.fail("Exception should have been thrown");
-		} catch (RuntimeException e){
-			// do nothing
-		}
-		EasyMock.verify(mockPartition);
-
-		
-		// check case where creating new ConnectionHandle fails
-		reset(mockPool, mockLogger, mockConfig);
-		reset(mockPartition);
-		resetSignalled();
-
-		first = true;
-		expect(mockPartition.getFreeConnections()).andReturn(fakeConnections).anyTimes();
-		
-		expect(mockPartition.getMaxConnections()).andAnswer(new IAnswer<Integer>() {
+		assertEquals(4, created.get());
+	}
 
-			// @Override
-			public Integer answer() throws Throwable {
-				if (first) {
-					first=false;
-					return 4;
-				} 
-				Field field = testClass.getClass().getDeclaredField("signalled");
-				field.setAccessible(true);
-				field.setBoolean(testClass, true);
-				return 4;
-
-			}
-		}).anyTimes();
-		
-//		mockPartition.unlockAlmostFullLock();
-//		expectLastCall().once();
-		
-//		mockPartition.lockAlmostFullLock();
-//		expectLastCall().once();
 
+	/** Tests the case where creating new connections fails: the error is logged and a retry is timed on the
+	 * maintenance scheduler rather than sleeping.
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testRunCreateConnectionsFails() throws InterruptedException{
+		MaintenanceScheduler mockScheduler = EasyMock.createNiceMock(MaintenanceScheduler.class);
+		ConnectionHandle.Settings settings = new ConnectionHandle.Settings(mockConfig);
+		reset(mockConfig);
 		expect(mockConfig.getStatementsCacheSize()).andAnswer(new IAnswer<Integer>() {
 			
 			// @Override
@@ -280,31 +217,24 @@ public class TestPoolWatchThread {
 				throw new SQLException();
 				
 			} 
-		}).once();
-		expect(mockPartition.getAcquireIncrement()).andReturn(1).anyTimes();
-		expect(mockPartition.getAvailableConnections()).andReturn(fakeConnections.size()).anyTimes();
-    	expect(mockPool.getConfig()).andReturn(mockConfig).anyTimes();
-
+		}).anyTimes();
 		expect(mockConfig.getAcquireRetryAttempts()).andReturn(0).anyTimes();
 
-		mockLogger.error((String)anyObject(), anyObject());
-		expectLastCall(); 
+		expect(mockPartition.getMaxConnections()).andReturn(4).anyTimes();
+		expect(mockPartition.getAcquireIncrement()).andReturn(1).anyTimes();
+		expect(mockPartition.getAvailableConnections()).andReturn(0).anyTimes();
+		expect(mockPartition.getUnreservedConnections()).andReturn(0).anyTimes();
+		expect(mockPartition.finishPoolWatch()).andReturn(true).once();
+		expect(mockPool.getConfig()).andReturn(mockConfig).anyTimes();
 		expect(mockPool.getDbIsDown()).andReturn(new AtomicBoolean()).anyTimes();
-		replay(mockPartition, mockPool, mockLogger, mockConfig);
-		testClass.run();
-		EasyMock.verify(mockPartition);
-
-	}
-
+		expect(mockPool.getMaintenanceScheduler()).andReturn(mockScheduler).anyTimes();
+		expect(mockPool.getConnectionHandleSettings()).andReturn(settings).anyTimes();
+		expect(mockScheduler.schedule((Executor)anyObject(), (Runnable)anyObject(), EasyMock.eq(1000L), EasyMock.eq(TimeUnit.MILLISECONDS))).andReturn(null).once();
 
-	/**
-	 * @throws NoSuchFieldException
-	 * @throws IllegalAccessException
-	 */
-	private void resetSignalled() throws NoSuchFieldException,
-			IllegalAccessException {
-		Field field = testClass.getClass().getDeclaredField("signalled");
-		field.setAccessible(true);
-		field.setBoolean(testClass, false);
+		mockLogger.error((String)anyObject(), anyObject());
+		expectLastCall().once(); 
+		replay(mockPartition, mockPool, mockLogger, mockConfig, mockScheduler);
+		testClass.run();
+		EasyMock.verify(mockPartition, mockScheduler, mockLogger);
 	}
-}
\ No newline at end of file
+}
@@ -83,7 +83,7 @@ public class TestPreparedStatementHandle {
 		});
 		expect(this.mockConnection.isLogStatementsEnabled()).andReturn(true).anyTimes();
 		replay(this.mockConnection, this.mockPool);
-		this.testClass = new PreparedStatementHandle(this.mockClass, "", this.mockConnection, "TestSQL", this.mockCallableStatementCache);
+		this.testClass = new PreparedStatementHandle(this.mockClass, "", this.mockConnection, new StatementCacheKey("TestSQL"), this.mockCallableStatementCache);
 		reset(this.mockConnection, this.mockPool);
 		Logger pshMockLogger = TestUtils.mockLogger(PreparedStatementHandle.class);
 		expect(PreparedStatementHandle.logger.isDebugEnabled()).andReturn(true).anyTimes();
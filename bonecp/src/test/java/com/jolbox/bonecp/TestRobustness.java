@@ -21,9 +21,11 @@ package com.jolbox.bonecp;
 import static org.easymock.EasyMock.anyObject;
 import static org.easymock.EasyMock.createNiceMock;
 import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.makeThreadSafe;
 import static org.easymock.EasyMock.replay;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -32,6 +34,7 @@ import java.sql.SQLException;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.junit.After;
 import org.junit.Before;
@@ -96,7 +99,7 @@ public class TestRobustness {
 		driver = new MockJDBCDriver(new MockJDBCAnswer() {
 
 			public Connection answer() throws SQLException {
-				if (ai.getAndIncrement() == 2){ // skip sanity 1st connection, skip 2nd driver force load connection
+				if (ai.getAndIncrement() == 1){ // skip sanity 1st connection
 					throw new SQLException("Unavailable", "8S01");
 				}
 				return new MockConnection();
@@ -113,7 +116,7 @@ public class TestRobustness {
 		driver = new MockJDBCDriver(new MockJDBCAnswer() {
 
 			public Connection answer() throws SQLException {
-				if (ai.getAndIncrement() >= 2){ // skip sanity 1st connection, skip 2nd driver force load connection
+				if (ai.getAndIncrement() >= 1){ // skip sanity 1st connection
 					throw new SQLException("Unavailable", "8S01");
 				}
 				return new MockConnection();
@@ -213,7 +216,7 @@ public class TestRobustness {
 
 
 			public Connection answer() throws SQLException {
-				if (count.incrementAndGet() > 6) {
+				if (count.incrementAndGet() > 5) {
 					throw new SQLException("foo", "08S01");
 				}
 				return mockConnection;
@@ -232,20 +235,27 @@ public class TestRobustness {
 	 * @throws InterruptedException */
 	@Test
 	public void testTwoConnectionsDieSimultaneously() throws SQLException, InterruptedException{
-		final Connection mockConnection1 = createNiceMock(Connection.class);
-		final Connection mockConnection2 = createNiceMock(Connection.class);
 		final AtomicInteger ai = new AtomicInteger();
+		final CountDownLatch cdlEnd = new CountDownLatch(2);
 
 		driver = new MockJDBCDriver(new MockJDBCAnswer() {
 
 
 			public Connection answer() throws SQLException {
-				switch (ai.getAndIncrement()){ // skip sanity 1st connection, skip 2nd driver force load connection
-				case 2: return mockConnection1;
-				case 3: return mockConnection2;
-				default:
-					return createNiceMock(Connection.class);
+				Connection result = createNiceMock(Connection.class);
+				int i = ai.getAndIncrement();
+				if (i >= 6){
+					// the database only comes back once both connections have died.
+					Uninterruptibles.awaitUninterruptibly(cdlEnd, 30, TimeUnit.SECONDS);
+				} else if (i >= 1){ // skip sanity 1st connection
+					// the pool doesn't hand out its connections in any particular order, so all of the initial ones fail.
+					// 08S01 is a specific db code that signals to the rest of the code to discard existing connections
+					expect(result.prepareStatement((String)anyObject())).andThrow(new SQLException("reason", "08S01"));
+					expect(result.getMetaData()).andThrow(new SQLException()).anyTimes(); // for isConnectionAlive
 				}
+				makeThreadSafe(result, true); // used by both the pool's threads and ours
+				replay(result);
+				return result;
 			}
 		});
 
@@ -254,45 +264,43 @@ public class TestRobustness {
 			ch.setDebugHandle(123L);
 		}
 
-		// 08S01 is a specific db code that signals to the rest of the code to discard existing connections
-		expect(mockConnection1.prepareStatement((String)anyObject())).andThrow(new SQLException("reason", "08S01"));
-		expect(mockConnection2.prepareStatement((String)anyObject())).andThrow(new SQLException("reason", "08S01"));
-		expect(mockConnection1.getMetaData()).andThrow(new SQLException()).anyTimes(); // for isConnectionAlive
-		expect(mockConnection2.getMetaData()).andThrow(new SQLException()).anyTimes(); // for isConnectionAlive
-		replay(mockConnection1, mockConnection2);
 		final CountDownLatch cdl = new CountDownLatch(1);
-		final CountDownLatch cdlEnd = new CountDownLatch(2);
+		final CountDownLatch cdlObtained = new CountDownLatch(2);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
 		for (int i=0; i < 2; i++){
 			new Thread(new Runnable() {
 
 				public void run() {
-					ConnectionHandle ch = null ;
 					try {
-						cdl.await();
-
-						ch = (ConnectionHandle) pool.getConnection();
-						ch.prepareStatement("lalala");
-						fail("Should trigger exception");
-					} catch (SQLException e) {
-						assertTrue(ch.possiblyBroken);
-						assertEquals("reason", e.getMessage());
-						assertEquals("08S01", e.getSQLState());
-					} catch (InterruptedException e) {
-						e.printStackTrace();
+						ConnectionHandle ch = null ;
+						try {
+							cdl.await();
+
+							ch = (ConnectionHandle) pool.getConnection();
+							// both threads hold a connection before either of them fails.
+							cdlObtained.countDown();
+							cdlObtained.await();
+							ch.prepareStatement("lalala");
+							fail("Should trigger exception");
+						} catch (SQLException e) {
+							assertTrue(ch.possiblyBroken);
+							assertEquals("reason", e.getMessage());
+							assertEquals("08S01", e.getSQLState());
+						} 
+						ch.close(); // shouldn't fail
+						assertTrue(ch.logicallyClosed.get()); // broken so should be marked as such
+					} catch (Throwable t) {
+						failure.compareAndSet(null, t);
+					} finally {
+						cdlEnd.countDown();
 					}
-					try {
-						ch.close();
-					} catch (SQLException e) {
-						fail(e.getMessage());
-					} // shouldn't fail
-					assertTrue(ch.logicallyClosed.get()); // broken so should be marked as such
-					cdlEnd.countDown();
 				}
 			}).start();
 		}
 
 		cdl.countDown();
-		cdlEnd.await();
+		assertTrue("Timed out waiting for both threads", cdlEnd.await(30, TimeUnit.SECONDS));
+		assertNull(String.valueOf(failure.get()), failure.get());
 		for(ConnectionHandle c: pool.partitions[0].getFreeConnections()){
 			assertNotSame(123L,c.getDebugHandle());// all connections should have been killed off
 		}
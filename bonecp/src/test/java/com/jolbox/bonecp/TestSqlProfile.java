@@ -0,0 +1,81 @@
+/**
+ *  Copyright 2010 Wallace Wadge
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.jolbox.bonecp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+/** Tests for the per-SQL execution profile.
+ * @author wallacew
+ *
+ */
+public class TestSqlProfile {
+
+	/** Counts, totals, max and rows of a tracked statement. */
+	@Test
+	public void testRecord(){
+		SqlProfile profile = new SqlProfile(10);
+		profile.record("SELECT 1", 1000000, 0, 1);
+		profile.record("SELECT 1", 3000000, 0, 1);
+		profile.record("UPDATE x", 500000, 4, 2);
+		profile.record("", 500000, 4, 1);
+		profile.record(null, 500000, 4, 1);
+
+		List<SqlProfile.Entry> top = profile.getTopStatements(10);
+		assertEquals(2, top.size());
+		SqlProfile.Entry select = top.get(0);
+		assertEquals("SELECT 1", select.getSql());
+		assertEquals(2, select.getCount());
+		assertEquals(4.0, select.getTotalTime(), 0.001);
+		assertEquals(2.0, select.getAverageTime(), 0.001);
+		assertEquals(3.0, select.getMaxTime(), 0.001);
+		assertEquals(0, select.getTotalTimeError(), 0.001);
+
+		SqlProfile.Entry update = top.get(1);
+		assertEquals(2, update.getCount());
+		assertEquals(1.0, update.getTotalTime(), 0.001);
+		assertEquals(8, update.getRowsAffected());
+		assertTrue(update.toString().contains("UPDATE x"));
+
+		assertEquals(1, profile.getTopStatements(1).size());
+		profile.reset();
+		assertEquals(0, profile.getTopStatements(10).size());
+	}
+
+	/** The heavy hitters survive a flood of distinct statements and memory stays bounded. */
+	@Test
+	public void testSpaceSaving(){
+		SqlProfile profile = new SqlProfile(5);
+		for (int i=0; i < 10000; i++){
+			profile.record("SELECT heavy", 1000000, 0, 1);
+			profile.record("SELECT light "+i, 1000, 0, 1);
+		}
+		List<SqlProfile.Entry> top = profile.getTopStatements(100);
+		assertEquals(5, top.size());
+		assertEquals("SELECT heavy", top.get(0).getSql());
+		assertEquals(10000, top.get(0).getCount());
+		assertEquals(10000.0, top.get(0).getTotalTime(), 0.001);
+
+		// a late arrival takes over the smallest entry, and says by how much its total may be out.
+		SqlProfile.Entry last = top.get(top.size()-1);
+		assertTrue(last.getTotalTimeError() > 0);
+		assertTrue(last.getTotalTime() >= last.getTotalTimeError());
+	}
+}
@@ -19,9 +19,7 @@ import java.lang.reflect.Field;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.Statement;
-import java.util.Iterator;
-import java.util.List;
-import java.util.concurrent.ConcurrentMap;
+import java.util.Arrays;
 
 import org.junit.After;
 import org.junit.Before;
@@ -184,7 +182,7 @@ public class TestStatementCache {
 
 		
 		StatementCache cache = new StatementCache(5, false, null);
-		cache.putIfAbsent("test1", (StatementHandle)statement);
+		cache.putIfAbsent(cache.calculateCacheKey("test1"), (StatementHandle)statement);
 		assertNotNull(cache.get("test1"));
 		
 		assertNull(cache.get("test1", 1));
@@ -268,17 +266,17 @@ public class TestStatementCache {
 		StatementHandle statement = (StatementHandle)conn.prepareStatement(sql);
 
 		StatementCache cache = new StatementCache(5, true, new Statistics(dsb));
-		cache.putIfAbsent("test1", statement);
-		cache.putIfAbsent("test2", statement);
-		cache.putIfAbsent("test3", statement);
-		cache.putIfAbsent("test4", statement);
-		cache.putIfAbsent("test5", statement);
+		cache.putIfAbsent(cache.calculateCacheKey("test1"), statement);
+		cache.putIfAbsent(cache.calculateCacheKey("test2"), statement);
+		cache.putIfAbsent(cache.calculateCacheKey("test3"), statement);
+		cache.putIfAbsent(cache.calculateCacheKey("test4"), statement);
+		cache.putIfAbsent(cache.calculateCacheKey("test5"), statement);
 
 
 		conn.close();
 
 		for (int i=0; i < 5000000; i++){
-			cache.putIfAbsent("test"+i, statement);
+			cache.putIfAbsent(cache.calculateCacheKey("test"+i), statement);
 			if ((i % 10000) == 0){
 				System.gc();
 			}
@@ -295,40 +293,29 @@ public class TestStatementCache {
 	}
 
 	
-	/** Tests statement cache clear.
-	 * @throws SecurityException
-	 * @throws NoSuchFieldException
-	 * @throws IllegalArgumentException
-	 * @throws IllegalAccessException
+	/** Tests statement cache clear: statements still checked out are closed off, the rest are just dropped.
 	 * @throws SQLException 
 	 */
-	@SuppressWarnings({ "unchecked", "rawtypes" })
 	@Test
-	public void testStatementCacheClear() throws SecurityException, NoSuchFieldException, IllegalArgumentException, IllegalAccessException, SQLException {
-		ConcurrentMap mockCache = createNiceMock(ConcurrentMap.class);
-		List<StatementHandle> mockStatementCollections = createNiceMock(List.class);
-		StatementCache testClass = new StatementCache(1, false, null);
-		Field field = testClass.getClass().getDeclaredField("cache");
-		field.setAccessible(true);
-		field.set(testClass, mockCache);
-		
-		Iterator<StatementHandle> mockIterator = createNiceMock(Iterator.class);
-		StatementHandle mockStatement = createNiceMock(StatementHandle.class);
-		
-		expect(mockCache.values()).andReturn(mockStatementCollections).anyTimes();
-		expect(mockStatementCollections.iterator()).andReturn(mockIterator).anyTimes();
-		expect(mockIterator.hasNext()).andReturn(true).times(2).andReturn(false).once();
-		expect(mockIterator.next()).andReturn(mockStatement).anyTimes();
-		mockStatement.close();
-		expectLastCall().once().andThrow(new SQLException()).once();
-		
-		mockCache.clear();
+	public void testStatementCacheClear() throws SQLException {
+		ConnectionHandle conn = obtainCachingConnection();
+		StatementCache testClass = new StatementCache(5, false, null);
+		Statement mockInUse = createNiceMock(Statement.class);
+		Statement mockReleased = createMock(Statement.class);
+		mockInUse.close();
 		expectLastCall().once();
-		replay(mockCache, mockStatementCollections, mockIterator,mockStatement);
-		
+		replay(mockInUse, mockReleased);
+
+		StatementHandle inUse = new StatementHandle(mockInUse, "a", testClass, conn, new StatementCacheKey("a"), false);
+		StatementHandle released = new StatementHandle(mockReleased, "b", testClass, conn, new StatementCacheKey("b"), false);
+		released.close();
+		assertEquals(2, testClass.size());
+
 		testClass.clear();
-		verify(mockCache, mockStatement);
-		
+		assertEquals(0, testClass.size());
+		assertTrue(inUse.isClosed());
+		verify(mockInUse, mockReleased);
+		conn.close();
 	}
 
 	/** Proper closure test
@@ -338,36 +325,230 @@ public class TestStatementCache {
 	 * @throws IllegalAccessException
 	 * @throws SQLException
 	 */
-	@SuppressWarnings({ "unchecked", "rawtypes" })
 	@Test
 	public void testStatementCacheCheckForProperClosure() throws SecurityException, NoSuchFieldException, IllegalArgumentException, IllegalAccessException, SQLException {
-		
-		ConcurrentMap mockCache = createNiceMock(ConcurrentMap.class);
-		List<StatementHandle> mockStatementCollections = createNiceMock(List.class);
-		StatementCache testClass = new StatementCache(1, false, null);
-		Field field = testClass.getClass().getDeclaredField("cache");
-		field.setAccessible(true);
-		field.set(testClass, mockCache);
-
-		field = testClass.getClass().getDeclaredField("logger");
-    TestUtils.setFinalStatic(field, mockLogger);
-
-		Iterator<StatementHandle> mockIterator = createNiceMock(Iterator.class);
-		StatementHandle mockStatement = createNiceMock(StatementHandle.class);
-		
-		expect(mockCache.values()).andReturn(mockStatementCollections).anyTimes();
-		expect(mockStatementCollections.iterator()).andReturn(mockIterator).anyTimes();
-		expect(mockIterator.hasNext()).andReturn(true).once().andReturn(false).once();
-		expect(mockIterator.next()).andReturn(mockStatement).anyTimes();
-		expect(mockStatement.isClosed()).andReturn(false).once();
+		ConnectionHandle conn = obtainCachingConnection();
+		StatementCache testClass = new StatementCache(5, false, null);
+		Field field = testClass.getClass().getDeclaredField("logger");
+		TestUtils.setFinalStatic(field, mockLogger);
+
+		new StatementHandle(createNiceMock(Statement.class), "a", testClass, conn, new StatementCacheKey("a"), false);
+		new StatementHandle(createNiceMock(Statement.class), "b", testClass, conn, new StatementCacheKey("b"), false).close();
 
 		mockLogger.error((String)anyObject());
 		expectLastCall().once();
-		replay(mockCache, mockStatementCollections, mockIterator,mockStatement, mockLogger);
+		replay(mockLogger);
 		
 		testClass.checkForProperClosure();
-		verify(mockCache, mockStatement, mockLogger);
-		
+		verify(mockLogger);
+		conn.close();
+	}
+
+	/** Once full, the least recently used statement that isn't checked out is closed off to make room for one
+	 * that is asked for more often.
+	 * @throws SQLException
+	 */
+	@Test
+	public void testStatementCacheEviction() throws SQLException {
+		ConnectionHandle conn = obtainCachingConnection();
+		StatementCache testClass = new StatementCache(2, false, null);
+		Statement mockA = createNiceMock(Statement.class);
+		Statement mockB = createMock(Statement.class);
+		mockA.close();
+		expectLastCall().once();
+		replay(mockA, mockB);
+
+		new StatementHandle(mockA, "a", testClass, conn, new StatementCacheKey("a"), false).close();
+		new StatementHandle(mockB, "b", testClass, conn, new StatementCacheKey("b"), false).close();
+		assertNotNull(testClass.get("b"));
+		assertTrue(testClass.release(new StatementCacheKey("b"), mockB));
+
+		// "c" keeps getting asked for; "a" is the least recently used.
+		assertNull(testClass.get("c"));
+		assertNull(testClass.get("c"));
+		StatementHandle c = new StatementHandle(createNiceMock(Statement.class), "c", testClass, conn, new StatementCacheKey("c"), false);
+		assertTrue(c.inCache);
+		assertEquals(2, testClass.size());
+		assertNull(testClass.get("a"));
+		verify(mockA, mockB);
+
+		// a one-off statement doesn't push out one that's in use more.
+		StatementHandle d = new StatementHandle(createNiceMock(Statement.class), "d", testClass, conn, new StatementCacheKey("d"), false);
+		assertFalse(d.inCache);
+		assertEquals(2, testClass.size());
+
+		// statements that are checked out are never evicted.
+		testClass.get("e");
+		testClass.get("e");
+		testClass.get("e");
+		assertNotNull(testClass.get("b"));
+		StatementHandle e = new StatementHandle(createNiceMock(Statement.class), "e", testClass, conn, new StatementCacheKey("e"), false);
+		assertFalse(e.inCache);
+		conn.close();
+	}
+
+	/** Returning a statement through a new handle wrapping it (as the connection does on a cache hit) puts it
+	 * back in the cache rather than closing it.
+	 * @throws SQLException
+	 */
+	@Test
+	public void testStatementCacheReleaseViaNewHandle() throws SQLException {
+		ConnectionHandle conn = obtainCachingConnection();
+		StatementCache testClass = new StatementCache(2, false, null);
+		Statement mockStatement = createMock(Statement.class);
+		replay(mockStatement);
+
+		new StatementHandle(mockStatement, "a", testClass, conn, new StatementCacheKey("a"), false).close();
+		StatementHandle cached = testClass.get("a");
+		StatementHandle wrapper = new StatementHandle(cached.internalStatement, "a", testClass, conn, cached.cacheKey, false);
+		assertTrue(wrapper.inCache);
+		assertNull(testClass.get("a"));
+		wrapper.close();
+		assertNotNull(testClass.get("a"));
+		verify(mockStatement); // never closed
+		conn.close();
+	}
+
+	/** Keys for the different prepare variants are distinct, and lookups by raw arguments find them.
+	 * @throws SQLException
+	 */
+	@Test
+	public void testStatementCacheKeys() throws SQLException {
+		StatementCache testClass = new StatementCache(10, false, null);
+		assertEquals(testClass.calculateCacheKey("a", 1, 2), testClass.calculateCacheKey(new String("a"), 1, 2));
+		assertEquals(testClass.calculateCacheKey("a", 1, 2).hashCode(), testClass.calculateCacheKey("a", 1, 2).hashCode());
+		assertFalse(testClass.calculateCacheKey("a", 1, 2).equals(testClass.calculateCacheKey("a", 1, 2, 0)));
+		assertFalse(testClass.calculateCacheKey("a", 1).equals(testClass.calculateCacheKey("a", 1, 0)));
+		assertFalse(testClass.calculateCacheKey("a").equals(testClass.calculateCacheKey("a", new int[0])));
+		assertFalse(testClass.calculateCacheKey("a", new int[]{1}).equals(testClass.calculateCacheKey("a", new int[]{2})));
+
+		ConnectionHandle conn = obtainCachingConnection();
+		int[] columns = new int[]{1, 2};
+		StatementCacheKey key = testClass.calculateCacheKey("a", columns);
+		columns[0] = 5; // the key must have taken a copy
+		new StatementHandle(createNiceMock(Statement.class), "a", testClass, conn, key, false).close();
+		new StatementHandle(createNiceMock(Statement.class), "a", testClass, conn, testClass.calculateCacheKey("a", new String[]{"x"}), false).close();
+		assertNull(testClass.get("a"));
+		assertNull(testClass.get("a", columns));
+		assertNotNull(testClass.get("a", new int[]{1, 2}));
+		assertNotNull(testClass.get("a", new String[]{"x"}));
+		conn.close();
+	}
+
+	/** Caches sharing a budget stay within it between them, taking the place of a less used statement of some
+	 * other cache once that cache has closed it off, and share their SQL key strings.
+	 * @throws SQLException
+	 */
+	@Test
+	public void testStatementCacheBudget() throws SQLException {
+		ConnectionHandle conn = obtainCachingConnection();
+		StatementCacheBudget budget = new StatementCacheBudget(2);
+		StatementCache first = new StatementCache(5, false, null, budget);
+		StatementCache second = new StatementCache(5, false, null, budget);
+		Statement mockA = createMock(Statement.class);
+		mockA.close();
+		expectLastCall().once();
+		replay(mockA);
+		Statement mockB = createNiceMock(Statement.class);
+		StatementCacheKey keyB = first.calculateCacheKey("b");
+
+		new StatementHandle(mockA, "a", first, conn, first.calculateCacheKey("a"), false).close();
+		new StatementHandle(mockB, "b", first, conn, keyB, false).close();
+		assertEquals(2, budget.getStatementsCached());
+
+		// a one-off statement on the other connection doesn't get in...
+		StatementHandle c = new StatementHandle(createNiceMock(Statement.class), "c", second, conn, second.calculateCacheKey("c"), false);
+		assertFalse(c.inCache);
+		assertEquals(0, second.size());
+
+		// ...but one that is asked for gets the least recently used one over there given up...
+		assertNull(second.get("c"));
+		c = new StatementHandle(createNiceMock(Statement.class), "c", second, conn, second.calculateCacheKey("c"), false);
+		assertEquals(1, first.size());
+		// ...which is left for its own connection to close off, and counted until then...
+		assertEquals(1, first.evictedByBudget.size());
+		assertEquals(2, budget.getStatementsCached());
+		assertFalse(c.inCache);
+		assertNull(first.get("a"));
+		assertNull(first.evictedByBudget);
+		verify(mockA);
+		assertEquals(1, budget.getStatementsCached());
+		// ...after which there's room for it.
+		assertNull(second.get("c"));
+		c = new StatementHandle(createNiceMock(Statement.class), "c", second, conn, second.calculateCacheKey("c"), false);
+		assertTrue(c.inCache);
+		assertEquals(1, second.size());
+		assertEquals(2, budget.getStatementsCached());
+
+		// a statement in demand on its own connection isn't pushed out by a newcomer asked for less often.
+		for (int i=0; i < 2; i++){
+			assertNotNull(first.get("b"));
+			assertTrue(first.release(keyB, mockB));
+		}
+		assertNull(second.get("d"));
+		StatementHandle d = new StatementHandle(createNiceMock(Statement.class), "d", second, conn, second.calculateCacheKey("d"), false);
+		assertFalse(d.inCache);
+		assertEquals(1, first.size());
+		assertEquals(2, budget.getStatementsCached());
+
+		// SQL strings are shared.
+		assertSame(first.calculateCacheKey(new String("x")).getSql(), second.calculateCacheKey(new String("x")).getSql());
+
+		// a cleared cache stays in the budget's line, but is skipped and let go.
+		first.clear();
+		assertEquals(1, budget.getStatementsCached());
+		assertFalse(first.isRegistered());
+		assertFalse(first.keepRegistered());
+		conn.close();
+	}
+
+	/** The warm-up tracker picks the most used statements after the seed ones, and new connections come with
+	 * them already prepared.
+	 * @throws SQLException
+	 */
+	@Test
+	public void testStatementCacheWarmup() throws SQLException {
+		StatementCacheWarmup warmup = new StatementCacheWarmup(2, Arrays.asList("seed", "b"));
+		warmup.record("a", 1);
+		warmup.record("b", 5);
+		warmup.record("c", 3);
+		assertEquals(Arrays.asList("seed", "b", "c"), warmup.getStatements(10));
+		assertEquals(Arrays.asList("seed", "b"), warmup.getStatements(2));
+
+		// only a fixed number of statements are tracked, but a newcomer can still make it to the top.
+		for (int i=0; i < 10; i++){
+			warmup.record("x"+i, 1);
+		}
+		warmup.record("d", 100);
+		assertEquals(Arrays.asList("seed", "b", "d"), warmup.getStatements(10));
+
+		// lookups on a cache are reported to the tracker, 1 in 16 at a time.
+		StatementCache testClass = new StatementCache(5, false, null, null, warmup);
+		for (int i=0; i < 160; i++){
+			testClass.get("e");
+		}
+		assertEquals(Arrays.asList("seed", "b", "e", "d"), warmup.getStatements(10));
+
+		config.setStatementsCacheWarmupSql("seed1; seed2;");
+		ConnectionHandle conn = obtainCachingConnection();
+		Statistics statistics = conn.getPool().getStatistics();
+		conn.prepareStatement("seed2").close();
+		assertEquals(1, statistics.getCacheHits());
+		assertEquals(0, statistics.getCacheMiss());
+		conn.close();
+	}
+
+	/** Returns a connection from a pool with statement caching enabled.
+	 * @return connection
+	 * @throws SQLException
+	 */
+	private ConnectionHandle obtainCachingConnection() throws SQLException {
+		config.setMinConnectionsPerPartition(1);
+		config.setMaxConnectionsPerPartition(1);
+		config.setAcquireIncrement(1);
+		config.setPartitionCount(1);
+		config.setStatementsCacheSize(5);
+		return (ConnectionHandle) new BoneCP(config).getConnection();
 	}
 
 }
\ No newline at end of file
@@ -72,7 +72,7 @@ public class TestStatementHandle {
 		expect(mockConfig.getQueryExecuteTimeLimitInMs()).andReturn(1L).anyTimes();
 		expect(mockConfig.getConnectionHook()).andReturn(new CoverageHook()).anyTimes();
 		replay(mockConnection, mockPool, mockConfig);
-		testClass = new StatementHandle(mockClass, "", mockCallableStatementCache, mockConnection, "testSQL", true);
+		testClass = new StatementHandle(mockClass, "", mockCallableStatementCache, mockConnection, new StatementCacheKey("testSQL"), true);
 		reset(mockClass, mockCallableStatementCache, mockConnection, mockPool);
 		
 	    Logger shMockLogger = TestUtils.mockLogger(testClass.getClass());
@@ -130,7 +130,7 @@ public class TestStatementHandle {
 		// alternate constructor 
 		StatementHandle handle = new StatementHandle(mockStatement, mockConnection, true);
 
-		handle = new StatementHandle(mockStatement, null, mockCache, mockConnection, "testSQL", true);
+		handle = new StatementHandle(mockStatement, null, mockCache, mockConnection, new StatementCacheKey("testSQL"), true);
 		
 		handle.setLogicallyOpen();
 		handle.getConnection();
@@ -20,7 +20,6 @@ import static org.junit.Assert.assertEquals;
 
 import java.lang.reflect.Field;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicLong;
 
 import org.junit.Test;
 
@@ -59,6 +58,7 @@ public class TestStatistics {
 		assertEquals(0, this.stats.getStatementExecuteTimeAvg(), 0.5);
 		assertEquals(0, this.stats.getStatementPrepareTimeAvg(), 0.5);
 		assertEquals(0, this.stats.getCacheHitRatio(), 0.05);
+		assertEquals(0, this.stats.getConnectionHandoffRatio(), 0.05);
 		
 		this.stats.addCumulativeConnectionWaitTime(1000000);
 		this.stats.addStatementExecuteTime(1000000);
@@ -69,6 +69,8 @@ public class TestStatistics {
 		this.stats.incrementStatementsCached();
 		this.stats.incrementStatementsExecuted();
 		this.stats.incrementStatementsPrepared();
+		this.stats.incrementConnectionsHandedOff();
+		this.stats.incrementConnectionsQueued();
 		
 		expect(this.mockPool.getTotalLeased()).andReturn(1).once();
 		expect(this.mockPool.getTotalFree()).andReturn(1).once();
@@ -91,6 +93,30 @@ public class TestStatistics {
 		assertEquals(1, this.stats.getTotalCreatedConnections());
 		assertEquals(1, this.stats.getTotalLeased());
 		assertEquals(0.5, this.stats.getCacheHitRatio(), 0.05);
+		assertEquals(1, this.stats.getConnectionsHandedOff());
+		assertEquals(1, this.stats.getConnectionsQueued());
+		assertEquals(0.5, this.stats.getConnectionHandoffRatio(), 0.05);
+		assertEquals(1, this.stats.getConnectionWaitTimeP50(), 0.1);
+		assertEquals(1, this.stats.getConnectionWaitTimeMax(), 0.1);
+		assertEquals(1, this.stats.getStatementExecuteTimeP99(), 0.1);
+		assertEquals(1000, this.stats.getStatementPrepareTimeP999(), 100);
+		assertEquals(0, this.stats.getConnectionCreationTimeP90(), 0.1);
+
+		// a sampled statement counts several times over in the totals but only once in the distribution.
+		this.stats.addStatementExecuteTime(1000000, 9);
+		assertEquals(10, this.stats.getCumulativeStatementExecutionTime());
+		assertEquals(1, this.stats.getStatementExecuteTimeMax(), 0.1);
+		this.stats.addConnectionCreationTime(TimeUnit.NANOSECONDS.convert(20, TimeUnit.MILLISECONDS));
+		assertEquals(20, this.stats.getConnectionCreationTimeP50(), 2);
+
+		this.stats.addConnectionValidation(TimeUnit.NANOSECONDS.convert(2, TimeUnit.MILLISECONDS), true);
+		this.stats.addConnectionValidation(TimeUnit.NANOSECONDS.convert(4, TimeUnit.MILLISECONDS), false);
+		this.stats.incrementConnectionValidationsSkipped();
+		assertEquals(2, this.stats.getConnectionValidations());
+		assertEquals(1, this.stats.getConnectionValidationFailures());
+		assertEquals(1, this.stats.getConnectionValidationsSkipped());
+		assertEquals(3, this.stats.getConnectionValidationTimeAvg(), 0.5);
+		assertEquals(4, this.stats.getConnectionValidationTimeMax(), 0.5);
 		
 	}
 	/**
@@ -100,9 +126,13 @@ public class TestStatistics {
 	private void checkValuesSetToZero(Statistics stats)
 			throws IllegalAccessException {
 		for (Field field: Statistics.class.getDeclaredFields()){
-			if (field.getType().equals(AtomicLong.class) ){
+			if (field.getType().equals(StripedCounter.class) ){
 				field.setAccessible(true);
-				assertEquals(0, ((AtomicLong)field.get(stats)).get());
+				assertEquals(0, ((StripedCounter)field.get(stats)).sum());
+			}
+			if (field.getType().equals(LatencyHistogram.class) ){
+				field.setAccessible(true);
+				assertEquals(0, ((LatencyHistogram)field.get(stats)).getCount());
 			}
 			
 		}
@@ -115,6 +145,7 @@ public class TestStatistics {
 	@Test
 	public void testStatsReset() throws IllegalArgumentException, IllegalAccessException{
 		
+		this.stats.addCumulativeConnectionWaitTime(1000000);
 		this.stats.resetStats();
 		// test that the values start off at zero initially
 		checkValuesSetToZero(this.stats);
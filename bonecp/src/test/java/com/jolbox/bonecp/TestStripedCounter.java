@@ -0,0 +1,63 @@
+/**
+ *  Copyright 2010 Wallace Wadge
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.jolbox.bonecp;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+/** Tests for the striped counter.
+ * @author wallacew
+ *
+ */
+public class TestStripedCounter {
+
+	/** Basic add/sum/reset. */
+	@Test
+	public void testAddSumReset(){
+		StripedCounter counter = new StripedCounter();
+		assertEquals(0, counter.sum());
+		counter.increment();
+		counter.add(41);
+		assertEquals(42, counter.sum());
+		assertEquals("42", counter.toString());
+		counter.reset();
+		assertEquals(0, counter.sum());
+	}
+
+	/** Updates from many threads all end up in the total.
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testConcurrentIncrements() throws InterruptedException{
+		final StripedCounter counter = new StripedCounter();
+		final CountDownLatch done = new CountDownLatch(8);
+		for (int t=0; t < 8; t++){
+			new Thread(new Runnable() {
+				public void run() {
+					for (int i=0; i < 10000; i++){
+						counter.increment();
+					}
+					done.countDown();
+				}
+			}).start();
+		}
+		done.await();
+		assertEquals(80000, counter.sum());
+	}
+}
@@ -22,6 +22,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -32,8 +33,17 @@ import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.naming.RefAddr;
 import javax.naming.Reference;
@@ -44,6 +54,9 @@ import org.junit.Ignore;
 import org.junit.Test;
 
 import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.jolbox.bonecp.hooks.AbstractConnectionHook;
 import com.jolbox.bonecp.hooks.CoverageHook;
 import com.jolbox.bonecp.hooks.CustomHook;
 
@@ -243,6 +256,72 @@ public class TestSystemTests {
 		CommonTestUtils.logPass();
 	}
 
+	/** Per-partition hit/steal/miss counters.
+	 * @throws SQLException
+	 */
+	@Test
+	public void testPartitionStatistics() throws SQLException{
+		CommonTestUtils.logTestInfo("Test partition hit/steal/miss statistics");
+
+		config.setAcquireIncrement(1);
+		config.setMinConnectionsPerPartition(1);
+		config.setMaxConnectionsPerPartition(1);
+		config.setPartitionCount(2);
+		config.setStatisticsEnabled(true);
+		config.setConnectionTimeoutInMs(10);
+		config.setNullOnConnectionTimeout(true);
+		BoneCP dsb = new BoneCP(config);
+		dsb.getConnection();
+		dsb.getConnection(); // our partition is empty by now so this must come from the other one
+		assertNull(dsb.getConnection());
+
+		Statistics stats = dsb.getStatistics();
+		long[] hits = stats.getPartitionHits();
+		long[] steals = stats.getPartitionSteals();
+		long[] misses = stats.getPartitionMisses();
+		assertEquals(2, hits[0] + hits[1] + steals[0] + steals[1]);
+		assertTrue(steals[0] + steals[1] >= 1);
+		assertEquals(1, misses[0] + misses[1]);
+		stats.resetStats();
+		assertEquals(0, stats.getPartitionSteals()[0] + stats.getPartitionSteals()[1]);
+		dsb.close();
+		CommonTestUtils.logPass();
+	}
+
+	/** Statements executed show up in the SQL profile.
+	 * @throws SQLException
+	 */
+	@Test
+	public void testTopStatements() throws SQLException{
+		CommonTestUtils.logTestInfo("Test per-SQL execution profile");
+
+		config.setAcquireIncrement(1);
+		config.setMinConnectionsPerPartition(1);
+		config.setMaxConnectionsPerPartition(1);
+		config.setPartitionCount(1);
+		config.setStatisticsEnabled(true);
+		config.setSqlProfileSize(10);
+		BoneCP dsb = new BoneCP(config);
+		Connection con = dsb.getConnection();
+		con.prepareStatement("SELECT 1").executeQuery();
+		con.prepareStatement("SELECT 1").executeQuery();
+		con.createStatement().executeUpdate("UPDATE x");
+		con.close();
+
+		String[] top = dsb.getStatistics().getTopStatements();
+		assertEquals(2, top.length);
+		assertTrue(top[0].contains("count=2") || top[1].contains("count=2"));
+		dsb.getStatistics().resetStats();
+		assertEquals(0, dsb.getStatistics().getTopStatements().length);
+		dsb.close();
+
+		config.setStatisticsEnabled(false);
+		dsb = new BoneCP(config);
+		assertEquals(0, dsb.getStatistics().getTopStatements().length);
+		dsb.close();
+		CommonTestUtils.logPass();
+	}
+
 	@Test
 	public void testMultithreadSinglePartition() throws InterruptedException, SQLException{
 		CommonTestUtils.logTestInfo("Test multiple threads hitting a single partition concurrently");
@@ -312,6 +391,114 @@ public class TestSystemTests {
 		CommonTestUtils.logPass();
 	}
 	
+	/** Initial connections can be opened several at a time, and in the background.
+	 * @throws InterruptedException
+	 * @throws SQLException
+	 */
+	@Test
+	public void testInitialFill() throws InterruptedException, SQLException{
+		CommonTestUtils.logTestInfo("Tests parallel and background initial fill");
+		config.setMinConnectionsPerPartition(10);
+		config.setMaxConnectionsPerPartition(20);
+		config.setAcquireIncrement(5);
+		config.setPartitionCount(3);
+		config.setConnectionCreationThreads(4);
+
+		BoneCP dsb = new BoneCP(config);
+		assertEquals(30, dsb.getTotalCreatedConnections());
+		dsb.shutdown();
+
+		config.setInitialFillAsync(true);
+		dsb = new BoneCP(config);
+		Connection con = dsb.getConnection();
+		assertNotNull(con);
+		con.close();
+		for (int i=0; i < 50 && dsb.getTotalCreatedConnections() < 30; i++){
+			Thread.sleep(20);
+		}
+		assertEquals(30, dsb.getTotalCreatedConnections());
+		dsb.shutdown();
+		CommonTestUtils.logPass();
+	}
+
+	/** Connections still being opened in the background when the pool is shut down are closed off, and those that
+	 * haven't been started yet never are.
+	 * @throws InterruptedException
+	 * @throws SQLException
+	 */
+	@Test
+	public void testShutdownDuringInitialFillAsync() throws InterruptedException, SQLException{
+		CommonTestUtils.logTestInfo("Tests that shutting down stops a background initial fill");
+		config.setMinConnectionsPerPartition(10);
+		config.setMaxConnectionsPerPartition(10);
+		config.setPartitionCount(1);
+		config.setConnectionCreationThreads(2);
+		config.setInitialFillAsync(true);
+		final AtomicInteger connectionsOpened = new AtomicInteger();
+		final AtomicInteger connectionsClosed = new AtomicInteger();
+		driver.setMockJDBCAnswer(new MockJDBCAnswer() {
+
+			public Connection answer() throws SQLException {
+				connectionsOpened.incrementAndGet();
+				try {
+					Thread.sleep(100); // slow database
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return new MockConnection(){
+					@Override
+					public void close() throws SQLException {
+						connectionsClosed.incrementAndGet();
+						super.close();
+					}
+				};
+			}
+		});
+
+		BoneCP dsb = new BoneCP(config);
+		Thread.sleep(50);
+		dsb.shutdown();
+		Thread.sleep(300); // anything left running would have opened another connection by now
+		assertTrue(connectionsOpened.get() < 10);
+		assertEquals(connectionsOpened.get(), connectionsClosed.get());
+		assertEquals(0, dsb.getTotalCreatedConnections());
+		CommonTestUtils.logPass();
+	}
+
+	/** A pool that fails to start doesn't leave its threads, tasks or connections behind.
+	 * @throws SQLException
+	 */
+	@Test
+	public void testFailedStartupCleansUp() throws SQLException{
+		CommonTestUtils.logTestInfo("Tests that a pool failing to start up cleans up after itself");
+		config.setMinConnectionsPerPartition(2);
+		config.setMaxConnectionsPerPartition(5);
+		config.setPartitionCount(2);
+		config.setConnectionCreationThreads(2);
+		config.setPoolSizingPeriodInMs(1000);
+		config.setDisableJMX(false);
+		final AtomicReference<BoneCP> started = new AtomicReference<BoneCP>();
+		try{
+			new BoneCP(config){
+				@Override
+				protected void registerUnregisterJMX(boolean doRegister) {
+					started.set(this);
+					throw new IllegalStateException("JMX failure");
+				}
+			};
+			fail("Should throw exception");
+		} catch (IllegalStateException e){
+			// expected
+		}
+		BoneCP dsb = started.get();
+		assertTrue(dsb.getConnectionCreationExecutor().isShutdown());
+		for (MaintenanceScheduler.Timeout task: dsb.maintenanceTasks){
+			assertTrue(task.isCancelled());
+		}
+		assertEquals(0, dsb.getTotalFree());
+		CommonTestUtils.logPass();
+	}
+
 	/** Tests that new connections are created on the fly. */
 	@Test
 	public void testConnectionCreate() throws InterruptedException, SQLException{
@@ -353,6 +540,582 @@ public class TestSystemTests {
 		CommonTestUtils.logPass();
 	}
 
+	@Test
+	public void testConnectionCreateParallel() throws InterruptedException, SQLException{
+		CommonTestUtils.logTestInfo("Tests that new connections are created on the fly by several threads at once");
+		config.setMinConnectionsPerPartition(10);
+		config.setMaxConnectionsPerPartition(20);
+		config.setAcquireIncrement(5);
+		config.setPartitionCount(1);
+		config.setReleaseHelperThreads(0);
+		config.setPoolAvailabilityThreshold(0);
+		config.setConnectionCreationThreads(3);
+
+		BoneCP dsb = new BoneCP(config);
+		assertNotNull(dsb.getConnectionCreationExecutor());
+		assertEquals(10, dsb.getTotalCreatedConnections());
+
+		Connection[] con = new Connection[10];
+		for (int i=0; i < 10; i++){
+			con[i] = dsb.getConnection(); // keep track of it to avoid finalizer
+		}
+
+		for (int i=0; i < 10; i++) {
+			Thread.yield();
+			Thread.sleep(200); // give time for pool watch thread to fire up
+			if (dsb.getTotalCreatedConnections() == 15) {
+				break;
+			}
+		}
+		assertEquals(15, dsb.getTotalCreatedConnections());
+		assertEquals(10, dsb.getTotalLeased());
+		assertEquals(5, dsb.getTotalFree());
+
+		for (Connection c : con){
+			c.close();
+		}
+
+		dsb.shutdown();
+		CommonTestUtils.logPass();
+	}
+
+	@Test
+	public void testIdleConnectionTestInPlace() throws InterruptedException, SQLException{
+		CommonTestUtils.logTestInfo("Tests that idle connections are tested without being taken out of the pool");
+		config.setMinConnectionsPerPartition(10);
+		config.setMaxConnectionsPerPartition(10);
+		config.setPartitionCount(1);
+		config.setIdleConnectionTestPeriod(1, TimeUnit.SECONDS);
+		config.setConnectionTestThreads(3);
+		driver.setMockJDBCAnswer(new MockJDBCAnswer() {
+
+			public Connection answer() throws SQLException {
+				return new MockConnection(){
+					@Override
+					public boolean isValid(int timeout) throws SQLException {
+						return true; // pass the keep-alive test
+					}
+				};
+			}
+		});
+
+		BoneCP dsb = new BoneCP(config);
+		ConnectionHandle[] con = new ConnectionHandle[10];
+		for (int i=0; i < 10; i++){
+			con[i] = (ConnectionHandle) dsb.getConnection();
+		}
+		for (ConnectionHandle c : con){
+			c.close();
+		}
+
+		long start = System.currentTimeMillis();
+		boolean tested = false;
+		while (!tested && System.currentTimeMillis() - start < 5000){
+			assertEquals(10, dsb.getTotalFree()); // never taken out of the pool
+			tested = true;
+			// closing a connection puts a new handle in the pool, so look at those rather than ours.
+			for (ConnectionHandle c : dsb.partitions[0].getFreeConnections()){
+				tested &= c.getConnectionLastResetInMs() >= start;
+			}
+			Thread.sleep(5);
+		}
+		assertTrue(tested);
+		assertEquals(10, dsb.getTotalCreatedConnections());
+
+		Connection c = dsb.getConnection();
+		assertFalse(c.isClosed());
+		c.close();
+
+		dsb.shutdown();
+		CommonTestUtils.logPass();
+	}
+
+	@Test
+	public void testMaxConnectionAgeReplacement() throws InterruptedException, SQLException{
+		CommonTestUtils.logTestInfo("Tests that expired connections are replaced before they're closed, at different times");
+		config.setMinConnectionsPerPartition(5);
+		config.setMaxConnectionsPerPartition(10); // room for the replacements
+		config.setPartitionCount(1);
+		config.setMaxConnectionAge(2, TimeUnit.SECONDS);
+		config.setMaxConnectionAgeJitterPercent(50);
+
+		BoneCP dsb = new BoneCP(config);
+		Set<Connection> original = new HashSet<Connection>();
+		Set<Long> maxAges = new HashSet<Long>();
+		for (ConnectionHandle c : dsb.partitions[0].getFreeConnections()){
+			original.add(c.getInternalConnection());
+			maxAges.add(c.maxConnectionAgeInMs);
+		}
+		assertEquals(5, original.size());
+		assertTrue(maxAges.size() > 1); // don't all expire together
+
+		// one of them is in use when it expires: it's put back until its replacement is ready.
+		Connection inUse = dsb.getConnection();
+		Thread.sleep(2100);
+		inUse.close();
+
+		long start = System.currentTimeMillis();
+		boolean replaced = false;
+		while (!replaced && System.currentTimeMillis() - start < 5000){
+			assertTrue(dsb.getTotalCreatedConnections() >= 5); // never closed before its replacement is in
+			replaced = dsb.getTotalCreatedConnections() == 5;
+			for (ConnectionHandle c : dsb.partitions[0].getFreeConnections()){
+				replaced &= !original.contains(c.getInternalConnection());
+			}
+			Thread.sleep(5);
+		}
+		assertTrue(replaced);
+
+		dsb.shutdown();
+		CommonTestUtils.logPass();
+	}
+
+	@Test
+	public void testMaxConnectionAgeFullPartition() throws InterruptedException, SQLException{
+		CommonTestUtils.logTestInfo("Tests that expired connections in a full partition are replaced without going over max");
+		config.setMinConnectionsPerPartition(2);
+		config.setMaxConnectionsPerPartition(2);
+		config.setPartitionCount(1);
+		config.setMaxConnectionAge(1, TimeUnit.SECONDS);
+
+		BoneCP dsb = new BoneCP(config);
+		Set<Connection> original = new HashSet<Connection>();
+		for (ConnectionHandle c : dsb.partitions[0].getFreeConnections()){
+			original.add(c.getInternalConnection());
+		}
+		assertEquals(2, original.size());
+
+		long start = System.currentTimeMillis();
+		boolean replaced = false;
+		while (!replaced && System.currentTimeMillis() - start < 8000){
+			assertTrue(dsb.getTotalCreatedConnections() <= 2); // no room for a replacement next to the expired one
+			replaced = dsb.getTotalCreatedConnections() == 2;
+			for (ConnectionHandle c : dsb.partitions[0].getFreeConnections()){
+				replaced &= !original.contains(c.getInternalConnection());
+			}
+			Thread.sleep(5);
+		}
+		assertTrue(replaced);
+
+		dsb.shutdown();
+		CommonTestUtils.logPass();
+	}
+
+	@Test
+	public void testRetirementInBackground() throws InterruptedException, SQLException{
+		CommonTestUtils.logTestInfo("Tests that possibly broken connections are tested after close() returns");
+		config.setMinConnectionsPerPartition(2);
+		config.setMaxConnectionsPerPartition(2);
+		config.setPartitionCount(1);
+		config.setConnectionRetirementThreads(1);
+		config.setValidationTrustWindowInMs(0);
+
+		BoneCP dsb = new BoneCP(config);
+		final CountDownLatch testing = new CountDownLatch(1);
+		final CountDownLatch carryOn = new CountDownLatch(1);
+		ConnectionHandle c = (ConnectionHandle) dsb.getConnection();
+		c.setInternalConnection(new MockConnection(){
+			@Override
+			public boolean isValid(int timeout) throws SQLException {
+				testing.countDown();
+				try {
+					carryOn.await();
+				} catch (InterruptedException e) {
+					// do nothing
+				}
+				return true;
+			}
+		});
+		c.possiblyBroken = true;
+		c.close(); // doesn't wait for the test
+
+		assertTrue(testing.await(5, TimeUnit.SECONDS));
+		assertEquals(1, dsb.getTotalFree());
+		carryOn.countDown();
+
+		long start = System.currentTimeMillis();
+		while (dsb.getTotalFree() != 2 && System.currentTimeMillis() - start < 5000){
+			Thread.sleep(5);
+		}
+		assertEquals(2, dsb.getTotalFree()); // alive after all, so it's back in the pool
+		assertEquals(2, dsb.getTotalCreatedConnections());
+
+		dsb.shutdown();
+		CommonTestUtils.logPass();
+	}
+
+	@Test
+	public void testLightweightStrategy() throws InterruptedException, SQLException{
+		CommonTestUtils.logTestInfo("Tests that a crowd of short-lived threads all get served under the lightweight strategy");
+		config.setMinConnectionsPerPartition(5);
+		config.setMaxConnectionsPerPartition(5);
+		config.setPartitionCount(2);
+		config.setPoolStrategy("LIGHTWEIGHT");
+		config.setDisableConnectionTracking(true);
+
+		final BoneCP dsb = new BoneCP(config);
+		assertTrue(dsb.connectionStrategy instanceof LightweightConnectionStrategy);
+		int threads = 1000;
+		final CountDownLatch done = new CountDownLatch(threads);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		for (int i=0; i < threads; i++){
+			new Thread(new Runnable() {
+				// @Override
+				public void run() {
+					try {
+						dsb.getConnection().close();
+					} catch (Throwable t) {
+						failure.set(t);
+					}
+					done.countDown();
+				}
+			}).start();
+		}
+		assertTrue(done.await(30, TimeUnit.SECONDS));
+		assertNull(failure.get());
+		assertEquals(0, dsb.getTotalLeased());
+		assertEquals(10, dsb.getTotalFree());
+		dsb.shutdown();
+		CommonTestUtils.logPass();
+	}
+
+	@Test
+	public void testAsyncConnection() throws InterruptedException, SQLException, ExecutionException{
+		CommonTestUtils.logTestInfo("Tests that async requests wait in the queue and are completed from close()");
+		config.setMinConnectionsPerPartition(1);
+		config.setMaxConnectionsPerPartition(1);
+		config.setPartitionCount(1);
+		config.setConnectionTimeoutInMs(200);
+
+		BoneCP dsb = new BoneCP(config);
+		ConnectionHandle c = (ConnectionHandle) dsb.getConnection();
+		ListenableFuture<Connection> first = dsb.getAsyncConnection();
+		ListenableFuture<Connection> second = dsb.getAsyncConnection();
+		assertFalse(first.isDone());
+		assertEquals(2, dsb.connectionWaitQueue.getWaitingThreadCount());
+		assertTrue(second.cancel(false));
+		assertEquals(1, dsb.connectionWaitQueue.getWaitingThreadCount());
+
+		Connection internalConnection = c.getInternalConnection();
+		c.close(); // hands it straight over
+		assertTrue(first.isDone());
+		ConnectionHandle c2 = (ConnectionHandle) first.get();
+		assertEquals(internalConnection, c2.getInternalConnection());
+		assertFalse(c2.isClosed());
+
+		// nothing gets released this time round
+		final CountDownLatch failed = new CountDownLatch(1);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		dsb.getAsyncConnection(new FutureCallback<Connection>() {
+			// @Override
+			public void onSuccess(Connection connection) {
+				// not expected
+			}
+
+			// @Override
+			public void onFailure(Throwable t) {
+				failure.set(t);
+				failed.countDown();
+			}
+		});
+		assertTrue(failed.await(5, TimeUnit.SECONDS));
+		assertEquals("08001", ((SQLException) failure.get()).getSQLState());
+		assertEquals(0, dsb.connectionWaitQueue.getWaitingThreadCount());
+
+		c2.close();
+		assertEquals(1, dsb.getTotalFree());
+		dsb.shutdown();
+		CommonTestUtils.logPass();
+	}
+
+	@Test
+	public void testAsyncConnectionCancelledWhileCompleting() throws InterruptedException, SQLException{
+		CommonTestUtils.logTestInfo("Tests that a connection isn't leaked if its future is cancelled while the request is completed");
+		config.setMinConnectionsPerPartition(1);
+		config.setMaxConnectionsPerPartition(1);
+		config.setPartitionCount(1);
+		final AtomicReference<ListenableFuture<Connection>> future = new AtomicReference<ListenableFuture<Connection>>();
+		config.setConnectionHook(new AbstractConnectionHook() {
+			@Override
+			public void onCheckOut(ConnectionHandle connection) {
+				// runs after the request has taken the connection, before it's passed to the future.
+				ListenableFuture<Connection> current = future.get();
+				if (current != null){
+					assertTrue(current.cancel(false));
+				}
+			}
+		});
+
+		BoneCP dsb = new BoneCP(config);
+		Connection c = dsb.getConnection();
+		future.set(dsb.getAsyncConnection());
+		c.close(); // hands it over to the request, whose future gets cancelled on the way
+		assertTrue(future.get().isCancelled());
+		assertEquals(0, dsb.getTotalLeased());
+		assertEquals(1, dsb.getTotalFree());
+		dsb.shutdown();
+		CommonTestUtils.logPass();
+	}
+
+	@Test
+	public void testPredictiveSizing() throws InterruptedException, SQLException{
+		CommonTestUtils.logTestInfo("Tests that partitions are grown and shrunk according to the demand forecast");
+		config.setMinConnectionsPerPartition(2);
+		config.setMaxConnectionsPerPartition(20);
+		config.setAcquireIncrement(1);
+		config.setPartitionCount(1);
+		config.setPoolAvailabilityThreshold(0);
+		config.setPoolSizingPeriodInMs(50);
+
+		BoneCP dsb = new BoneCP(config);
+		// ramp up: the forecast should run ahead of us
+		Connection[] con = new Connection[12];
+		for (int i=0; i < con.length; i++){
+			con[i] = dsb.getConnection(); // keep track of it to avoid finalizer
+			Thread.sleep(60);
+		}
+		assertTrue(dsb.getStatistics().getPredictiveGrowths() > 0);
+
+		// level off
+		for (int i=0; i < 40 && dsb.getStatistics().getPartitionTargetConnections()[0] != 13; i++) {
+			Thread.sleep(50);
+		}
+		assertEquals(13, dsb.getStatistics().getPartitionTargetConnections()[0]);
+		assertTrue(dsb.getStatistics().getPartitionDemandForecast()[0] > 11.5);
+		assertTrue(dsb.getTotalCreatedConnections() >= 13);
+
+		for (Connection c : con){
+			c.close();
+		}
+
+		for (int i=0; i < 100 && dsb.getTotalCreatedConnections() > 3; i++) {
+			Thread.sleep(50);
+		}
+		assertTrue(dsb.getTotalCreatedConnections() <= 3);
+		assertTrue(dsb.getTotalCreatedConnections() >= 2);
+		assertTrue(dsb.getStatistics().getPredictiveShrinks() > 0);
+
+		dsb.shutdown();
+		CommonTestUtils.logPass();
+	}
+
+	@Test
+	public void testLifoIdleTailShrinks() throws InterruptedException, SQLException{
+		CommonTestUtils.logTestInfo("Tests that in LIFO order, connections beyond what is needed go idle and get closed off");
+		config.setMinConnectionsPerPartition(2);
+		config.setMaxConnectionsPerPartition(10);
+		config.setPartitionCount(1);
+		config.setPoolAvailabilityThreshold(0);
+		config.setServiceOrder("LIFO");
+		config.setIdleMaxAgeInSeconds(1);
+
+		final BoneCP dsb = new BoneCP(config);
+		Connection[] con = new Connection[10];
+		for (int i=0; i < con.length; i++){
+			con[i] = dsb.getConnection();
+		}
+		for (Connection c : con){
+			c.close();
+		}
+		assertEquals(10, dsb.getTotalCreatedConnections());
+
+		// a few threads taking turns only ever need one connection between them.
+		final Object lock = new Object();
+		final long end = System.currentTimeMillis() + 3500;
+		Thread[] threads = new Thread[4];
+		for (int i=0; i < threads.length; i++){
+			threads[i] = new Thread(){
+				public void run() {
+					try {
+						while (System.currentTimeMillis() < end){
+							synchronized (lock) {
+								dsb.getConnection().close();
+							}
+							Thread.sleep(5);
+						}
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread t : threads){
+			t.join();
+		}
+		assertEquals(2, dsb.getTotalCreatedConnections());
+
+		dsb.shutdown();
+		CommonTestUtils.logPass();
+	}
+
+	@Test
+	public void testKeyedPartitions() throws InterruptedException, SQLException{
+		CommonTestUtils.logTestInfo("Tests that connections set aside for a key are left alone by everyone else");
+		config.setMinConnectionsPerPartition(3);
+		config.setMaxConnectionsPerPartition(3);
+		config.setPartitionCount(2);
+		config.setReservedConnectionsPerKey(1);
+		config.setNullOnConnectionTimeout(true);
+		config.setConnectionTimeoutInMs(300);
+
+		BoneCP dsb = new BoneCP(config);
+		// "a" is given the first partition and "b" the second, each with a connection set aside.
+		Connection a = dsb.getConnection("a");
+		assertSame(dsb.partitions[0], ((ConnectionHandle) a).getOriginatingPartition());
+		a.close();
+		Connection b = dsb.getConnection("b");
+		assertSame(dsb.partitions[1], ((ConnectionHandle) b).getOriginatingPartition());
+		b.close();
+
+		// plain getConnection() calls get the other four, and no more.
+		List<Connection> unkeyed = new ArrayList<Connection>();
+		for (int i=0; i < 4; i++){
+			Connection c = dsb.getConnection();
+			assertNotNull(c);
+			unkeyed.add(c);
+		}
+		assertNull(dsb.getConnection());
+		assertEquals(1, dsb.partitions[0].getAvailableConnections());
+		assertEquals(1, dsb.partitions[1].getAvailableConnections());
+
+		// "a" still gets its own, but can't go on to take the one set aside for "b".
+		a = dsb.getConnection("a");
+		assertSame(dsb.partitions[0], ((ConnectionHandle) a).getOriginatingPartition());
+		assertNull(dsb.getConnection("a"));
+		assertEquals(1, dsb.partitions[1].getAvailableConnections());
+
+		// once closed, it's set aside for "a" again.
+		a.close();
+		assertNull(dsb.getConnection());
+		// connections that aren't set aside go to whoever asks.
+		unkeyed.remove(0).close();
+		assertNotNull(dsb.getConnection());
+		b = dsb.getConnection("b");
+		assertSame(dsb.partitions[1], ((ConnectionHandle) b).getOriginatingPartition());
+		b.close();
+
+		dsb.shutdown();
+		CommonTestUtils.logPass();
+	}
+
+	@Test
+	public void testKeyedReservationsBounded() throws InterruptedException, SQLException, NoSuchFieldException, IllegalAccessException{
+		CommonTestUtils.logTestInfo("Tests that keys can't set aside more than a partition holds, and idle keys give theirs up");
+		config.setMinConnectionsPerPartition(4);
+		config.setMaxConnectionsPerPartition(4);
+		config.setPartitionCount(1);
+		config.setReservedConnectionsPerKey(3);
+		config.setKeyIdleTimeout(1, TimeUnit.SECONDS);
+		config.setNullOnConnectionTimeout(true);
+		config.setConnectionTimeoutInMs(100);
+
+		BoneCP dsb = new BoneCP(config);
+		dsb.getConnection("a").close();
+		assertEquals(1, dsb.partitions[0].getUnreservedConnections());
+		// only one left to set aside for "b".
+		dsb.getConnection("b").close();
+		assertEquals(0, dsb.partitions[0].getUnreservedConnections());
+		assertNull(dsb.getConnection());
+		Connection b = dsb.getConnection("b");
+		assertNotNull(b);
+
+		// "a" goes idle and is forgotten, "b" has a connection out and isn't.
+		long start = System.currentTimeMillis();
+		while (dsb.partitions[0].getUnreservedConnections() < 3 && System.currentTimeMillis() - start < 5000){
+			Thread.sleep(20);
+		}
+		assertEquals(3, dsb.partitions[0].getUnreservedConnections());
+		Field field = KeyedPartitions.class.getDeclaredField("partitionsByKey");
+		field.setAccessible(true);
+		assertEquals(1, ((Map<?, ?>) field.get(dsb.keyedPartitions)).size());
+		Connection c = dsb.getConnection();
+		assertNotNull(c);
+		c.close();
+
+		// "b" still has its one set aside once it's closed.
+		b.close();
+		assertEquals(3, dsb.partitions[0].getUnreservedConnections());
+		dsb.shutdown();
+		CommonTestUtils.logPass();
+	}
+
+	@Test
+	public void testMaxConnectionsPerKey() throws SQLException{
+		CommonTestUtils.logTestInfo("Tests that a key can't have more than maxConnectionsPerKey connections out");
+		config.setMinConnectionsPerPartition(3);
+		config.setMaxConnectionsPerPartition(3);
+		config.setPartitionCount(2);
+		config.setMaxConnectionsPerKey(2);
+		config.setNullOnConnectionTimeout(true);
+		config.setConnectionTimeoutInMs(300);
+
+		BoneCP dsb = new BoneCP(config);
+		Connection a1 = dsb.getConnection("a");
+		Connection a2 = dsb.getConnection("a");
+		assertNotNull(a1);
+		assertNotNull(a2);
+		// four connections are still free, but "a" has had its share.
+		assertNull(dsb.getConnection("a"));
+		Connection b = dsb.getConnection("b");
+		assertNotNull(b);
+		assertNotNull(dsb.getConnection());
+
+		// closing one lets "a" have another.
+		a1.close();
+		a1 = dsb.getConnection("a");
+		assertNotNull(a1);
+		assertNull(dsb.getConnection("a"));
+
+		a1.close();
+		a2.close();
+		b.close();
+		dsb.shutdown();
+		CommonTestUtils.logPass();
+	}
+
+	@Test
+	public void testMaintenanceThreadsBounded() throws SQLException{
+		CommonTestUtils.logTestInfo("Tests that a pool runs no more than so many background tasks at a time");
+		config.setPartitionCount(2);
+		config.setConnectionTestThreads(3);
+		BoneCP dsb = new BoneCP(config);
+		assertEquals(3, ((MaintenanceScheduler.PoolExecutor) dsb.maintenanceExecutor).getMaxThreads());
+		dsb.shutdown();
+
+		config.setConnectionTestThreads(1);
+		dsb = new BoneCP(config);
+		assertEquals(2, ((MaintenanceScheduler.PoolExecutor) dsb.maintenanceExecutor).getMaxThreads());
+		dsb.shutdown();
+		CommonTestUtils.logPass();
+	}
+
+	@Test
+	public void testKeyedPartitionsBounded() throws SQLException, NoSuchFieldException, IllegalAccessException{
+		CommonTestUtils.logTestInfo("Tests that only so many keys are remembered, and the others still stick to one partition");
+		config.setPartitionCount(3);
+		config.setLazyInit(true);
+		BoneCP dsb = new BoneCP(config);
+		KeyedPartitions keyed = new KeyedPartitions(dsb);
+		for (int i=0; i < KeyedPartitions.MAX_REMEMBERED_KEYS; i++){
+			assertSame(dsb.partitions[i % 3], keyed.partitionFor("key"+i));
+		}
+		Set<ConnectionPartition> used = new HashSet<ConnectionPartition>();
+		for (int i=0; i < 3 * KeyedPartitions.MAX_REMEMBERED_KEYS; i++){
+			ConnectionPartition partition = keyed.partitionFor("other"+i);
+			assertSame(partition, keyed.partitionFor("other"+i));
+			used.add(partition);
+		}
+		assertEquals(3, used.size());
+		assertSame(dsb.partitions[1], keyed.partitionFor("key1"));
+		Field field = KeyedPartitions.class.getDeclaredField("partitionsByKey");
+		field.setAccessible(true);
+		assertEquals(KeyedPartitions.MAX_REMEMBERED_KEYS, ((Map<?, ?>) field.get(keyed)).size());
+
+		dsb.shutdown();
+		CommonTestUtils.logPass();
+	}
+
 	@Test
 	public void testClosedConnection() throws InterruptedException, SQLException{
 		BoneCP dsb = null ;